@@ -9,7 +9,6 @@ import java.security.SecureRandom;
 import java.security.Security;
 import java.util.Date;
 import java.util.Iterator;
-import org.bouncycastle.bcpg.ArmoredInputStream;
 import org.bouncycastle.bcpg.ArmoredOutputStream;
 import org.bouncycastle.bcpg.CompressionAlgorithmTags;
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
@@ -17,7 +16,6 @@ import org.bouncycastle.openpgp.*;
 import org.bouncycastle.openpgp.operator.bc.BcKeyFingerprintCalculator;
 import org.bouncycastle.openpgp.operator.jcajce.JcePBESecretKeyDecryptorBuilder;
 import org.bouncycastle.openpgp.operator.jcajce.JcePGPDataEncryptorBuilder;
-import org.bouncycastle.openpgp.operator.jcajce.JcePublicKeyDataDecryptorFactoryBuilder;
 import org.bouncycastle.openpgp.operator.jcajce.JcePublicKeyKeyEncryptionMethodGenerator;
 import org.bouncycastle.util.io.Streams;
 
@@ -32,31 +30,41 @@ public class PGP {
         Security.addProvider(PROVIDER);
     }
 
+    /**
+     * Decrypts a single message. Parses the private key and extracts the secret key on every call, use a
+     * {@link PGPDecryptor} to decrypt many messages with the same key.
+     */
     public static byte[] decrypt(
             final byte[] data,
             final InputStream privateKey,
             final String passphrase)
             throws CryptographyException {
-        final ByteArrayOutputStream out;
-        try {
-            final PGPLiteralData message = asLiteral(data, privateKey, passphrase);
-            out = new ByteArrayOutputStream();
-            Streams.pipeAll(message.getInputStream(), out);
-        } catch (IOException | PGPException e) {
-            throw new CryptographyException("Failed to decrypt.", e);
-        }
-        return out.toByteArray();
+        return new PGPDecryptor(privateKey, passphrase).decrypt(data);
+    }
+
+    public static byte[] encrypt(
+            final byte[] secret,
+            final PGPPublicKey... keys)
+            throws CryptographyException {
+        return encrypt(secret, CompressionAlgorithmTags.UNCOMPRESSED, keys);
     }
 
+    /**
+     * Encrypts a message that is compressed inside the encrypted data, so that no extra step is needed to decompress
+     * it: decrypting a compressed message gives back the original message.
+     *
+     * @param compressionAlgorithm One of {@link CompressionAlgorithmTags}.
+     */
     public static byte[] encrypt(
             final byte[] secret,
+            final int compressionAlgorithm,
             final PGPPublicKey... keys)
             throws CryptographyException {
         final ByteArrayOutputStream out;
         try (ByteArrayInputStream in = new ByteArrayInputStream(secret);
             ByteArrayOutputStream bOut = new ByteArrayOutputStream()) {
             final PGPLiteralDataGenerator literal = new PGPLiteralDataGenerator();
-            final PGPCompressedDataGenerator comData = new PGPCompressedDataGenerator(CompressionAlgorithmTags.UNCOMPRESSED);
+            final PGPCompressedDataGenerator comData = new PGPCompressedDataGenerator(compressionAlgorithm);
             final OutputStream pOut = literal.open(
                     comData.open(bOut),
                     PGPLiteralData.BINARY,
@@ -87,7 +95,7 @@ public class PGP {
     }
 
     @SuppressWarnings("unchecked")
-    private static Iterator<PGPPublicKeyEncryptedData> getEncryptedObjects(final byte[] data) throws IOException {
+    static Iterator<PGPPublicKeyEncryptedData> getEncryptedObjects(final byte[] data) throws IOException {
         final PGPObjectFactory factory = new PGPObjectFactory(
             PGPUtil.getDecoderStream(new ByteArrayInputStream(data)),
             new BcKeyFingerprintCalculator()
@@ -97,29 +105,7 @@ public class PGP {
         return ((PGPEncryptedDataList) list).getEncryptedDataObjects();
     }
 
-    private static PGPLiteralData asLiteral(
-            final byte[] data,
-            final InputStream keyfile,
-            final String passphrase) throws IOException, PGPException {
-        PGPPrivateKey key = null;
-        PGPPublicKeyEncryptedData encrypted = null;
-        final PGPSecretKeyRingCollection keys =
-            new PGPSecretKeyRingCollection(new ArmoredInputStream(keyfile), new BcKeyFingerprintCalculator());
-        for (final Iterator<PGPPublicKeyEncryptedData> i = getEncryptedObjects(data); key == null && i.hasNext();) {
-            encrypted = i.next();
-            key = findSecretKey(keys, encrypted.getKeyID(), passphrase);
-        }
-        if (key == null) {
-            throw new IllegalArgumentException("secret key for message not found.");
-        }
-        final InputStream stream = encrypted.getDataStream(
-                new JcePublicKeyDataDecryptorFactoryBuilder()
-                    .setProvider(PROVIDER)
-                        .build(key));
-        return asLiteral(stream);
-    }
-
-    private static PGPLiteralData asLiteral(final InputStream clear) throws IOException, PGPException {
+    static PGPLiteralData asLiteral(final InputStream clear) throws IOException, PGPException {
         BcKeyFingerprintCalculator bcKeyFingerprintCalculator = new BcKeyFingerprintCalculator();
         final PGPObjectFactory plainFact = new PGPObjectFactory(clear, bcKeyFingerprintCalculator);
         final Object message = plainFact.nextObject();
@@ -141,7 +127,7 @@ public class PGP {
         }
     }
 
-    private static PGPPrivateKey findSecretKey(
+    static PGPPrivateKey findSecretKey(
             final PGPSecretKeyRingCollection keys,
             final long id,
             final String passphrase) {
@@ -0,0 +1,90 @@
+package com.izettle.cryptography;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import org.bouncycastle.bcpg.ArmoredInputStream;
+import org.bouncycastle.openpgp.PGPException;
+import org.bouncycastle.openpgp.PGPLiteralData;
+import org.bouncycastle.openpgp.PGPPrivateKey;
+import org.bouncycastle.openpgp.PGPPublicKeyEncryptedData;
+import org.bouncycastle.openpgp.PGPSecretKeyRingCollection;
+import org.bouncycastle.openpgp.operator.bc.BcKeyFingerprintCalculator;
+import org.bouncycastle.openpgp.operator.jcajce.JcePublicKeyDataDecryptorFactoryBuilder;
+import org.bouncycastle.util.io.Streams;
+
+/**
+ * Decrypts any number of messages with the same private key. The key ring is parsed once, and every secret key is
+ * extracted with the passphrase the first time it is needed, so decrypting a message only costs the decryption
+ * itself. Safe to share between threads.
+ */
+public class PGPDecryptor {
+    private final PGPSecretKeyRingCollection keys;
+    private final String passphrase;
+    private final ConcurrentMap<Long, PGPPrivateKey> privateKeysById = new ConcurrentHashMap<>();
+
+    public PGPDecryptor(final byte[] privateKey, final String passphrase) throws CryptographyException {
+        this(new ByteArrayInputStream(privateKey), passphrase);
+    }
+
+    public PGPDecryptor(final InputStream privateKey, final String passphrase) throws CryptographyException {
+        try {
+            this.keys = new PGPSecretKeyRingCollection(
+                new ArmoredInputStream(privateKey),
+                new BcKeyFingerprintCalculator()
+            );
+        } catch (IOException | PGPException e) {
+            throw new CryptographyException("Failed to read private key.", e);
+        }
+        this.passphrase = passphrase;
+    }
+
+    public byte[] decrypt(final byte[] data) throws CryptographyException {
+        final ByteArrayOutputStream out;
+        try {
+            final PGPLiteralData message = asLiteral(data);
+            out = new ByteArrayOutputStream();
+            Streams.pipeAll(message.getInputStream(), out);
+        } catch (IOException | PGPException e) {
+            throw new CryptographyException("Failed to decrypt.", e);
+        }
+        return out.toByteArray();
+    }
+
+    private PGPLiteralData asLiteral(final byte[] data) throws IOException, PGPException {
+        PGPPrivateKey key = null;
+        PGPPublicKeyEncryptedData encrypted = null;
+        for (final Iterator<PGPPublicKeyEncryptedData> i = PGP.getEncryptedObjects(data); key == null && i.hasNext();) {
+            encrypted = i.next();
+            key = findPrivateKey(encrypted.getKeyID());
+        }
+        if (key == null) {
+            throw new IllegalArgumentException("secret key for message not found.");
+        }
+        final InputStream stream = encrypted.getDataStream(
+                new JcePublicKeyDataDecryptorFactoryBuilder()
+                    .setProvider(PGP.PROVIDER)
+                        .build(key));
+        return PGP.asLiteral(stream);
+    }
+
+    private PGPPrivateKey findPrivateKey(final long id) {
+        PGPPrivateKey key = privateKeysById.get(id);
+        if (key != null) {
+            return key;
+        }
+        // Extracted outside of the map, so that other keys can be looked up meanwhile. Threads that race here extract
+        // the same key, and the first one to finish is kept. Keys that are not in the key ring are not cached, there
+        // is nothing to save for them.
+        key = PGP.findSecretKey(keys, id, passphrase);
+        if (key == null) {
+            return null;
+        }
+        PGPPrivateKey cached = privateKeysById.putIfAbsent(id, key);
+        return cached != null ? cached : key;
+    }
+}
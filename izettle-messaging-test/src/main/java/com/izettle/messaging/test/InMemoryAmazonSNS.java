@@ -0,0 +1,385 @@
+package com.izettle.messaging.test;
+
+import static com.izettle.java.ValueChecks.empty;
+
+import com.amazonaws.services.sns.AbstractAmazonSNS;
+import com.amazonaws.services.sns.model.BatchEntryIdsNotDistinctException;
+import com.amazonaws.services.sns.model.BatchRequestTooLongException;
+import com.amazonaws.services.sns.model.BatchResultErrorEntry;
+import com.amazonaws.services.sns.model.CreateTopicRequest;
+import com.amazonaws.services.sns.model.CreateTopicResult;
+import com.amazonaws.services.sns.model.EmptyBatchRequestException;
+import com.amazonaws.services.sns.model.InvalidParameterException;
+import com.amazonaws.services.sns.model.ListSubscriptionsByTopicRequest;
+import com.amazonaws.services.sns.model.ListSubscriptionsByTopicResult;
+import com.amazonaws.services.sns.model.MessageAttributeValue;
+import com.amazonaws.services.sns.model.NotFoundException;
+import com.amazonaws.services.sns.model.PublishBatchRequest;
+import com.amazonaws.services.sns.model.PublishBatchRequestEntry;
+import com.amazonaws.services.sns.model.PublishBatchResult;
+import com.amazonaws.services.sns.model.PublishBatchResultEntry;
+import com.amazonaws.services.sns.model.PublishRequest;
+import com.amazonaws.services.sns.model.PublishResult;
+import com.amazonaws.services.sns.model.SetSubscriptionAttributesRequest;
+import com.amazonaws.services.sns.model.SetSubscriptionAttributesResult;
+import com.amazonaws.services.sns.model.SubscribeRequest;
+import com.amazonaws.services.sns.model.SubscribeResult;
+import com.amazonaws.services.sns.model.Subscription;
+import com.amazonaws.services.sns.model.TooManyEntriesInBatchRequestException;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Amazon SNS client that keeps its topics in memory, and fans out published messages to the queues of an
+ * {@link InMemoryAmazonSQS} that subscribe to them, for example through
+ * {@link com.izettle.messaging.AmazonSNSSubscriptionSetup}. Messages are delivered in the JSON envelope of Amazon
+ * SNS, or as they were published for subscriptions with raw message delivery, and only to queues whose policy lets
+ * the topic send to them. Every call takes the time of the supplied {@link Latency}.
+ *
+ * Only subscriptions of SQS queues are supported, and messages are not signed.
+ */
+public class InMemoryAmazonSNS extends AbstractAmazonSNS {
+    private static final int MAXIMUM_BATCH_SIZE = 10;
+    private static final String ARN_PREFIX =
+        "arn:aws:sns:" + InMemoryAmazonSQS.REGION + ":" + InMemoryAmazonSQS.ACCOUNT_ID + ":";
+    private static final String ENDPOINT = "https://sns." + InMemoryAmazonSQS.REGION + ".localhost/";
+    private static final String RAW_MESSAGE_DELIVERY = "RawMessageDelivery";
+    private static final DateTimeFormatter TIMESTAMP_FORMAT =
+        DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'").withZone(ZoneOffset.UTC);
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+    private final InMemoryAmazonSQS amazonSQS;
+    private final Latency latency;
+    private final ConcurrentMap<String, List<TopicSubscription>> subscriptionsByTopicArn = new ConcurrentHashMap<>();
+
+    /**
+     * @param amazonSQS Client of the queues that may subscribe to the topics.
+     */
+    public InMemoryAmazonSNS(InMemoryAmazonSQS amazonSQS) {
+        this(amazonSQS, Latency.NONE);
+    }
+
+    public InMemoryAmazonSNS(InMemoryAmazonSQS amazonSQS, Latency latency) {
+        this.amazonSQS = amazonSQS;
+        this.latency = latency;
+    }
+
+    @Override
+    public CreateTopicResult createTopic(CreateTopicRequest request) {
+        latency.inject();
+        String name = request.getName();
+        if (empty(name) || name.length() > 256 || !name.matches("[\\w-]+(\\.fifo)?")) {
+            throw new InvalidParameterException("Invalid parameter: Topic Name, was: " + name);
+        }
+        String topicArn = ARN_PREFIX + name;
+        subscriptionsByTopicArn.putIfAbsent(topicArn, new CopyOnWriteArrayList<>());
+        return new CreateTopicResult().withTopicArn(topicArn);
+    }
+
+    @Override
+    public CreateTopicResult createTopic(String name) {
+        return createTopic(new CreateTopicRequest(name));
+    }
+
+    @Override
+    public SubscribeResult subscribe(SubscribeRequest request) {
+        latency.inject();
+        List<TopicSubscription> subscriptions = subscriptionsOf(request.getTopicArn());
+        if (!"sqs".equals(request.getProtocol())) {
+            throw new InvalidParameterException("Invalid parameter: Unsupported protocol " + request.getProtocol());
+        }
+        synchronized (subscriptions) {
+            for (TopicSubscription subscription : subscriptions) {
+                if (subscription.endpoint.equals(request.getEndpoint())) {
+                    return new SubscribeResult().withSubscriptionArn(subscription.subscriptionArn);
+                }
+            }
+            TopicSubscription subscription = new TopicSubscription(
+                request.getTopicArn() + ":" + UUID.randomUUID(),
+                request.getEndpoint(),
+                "true".equals(request.getAttributes().get(RAW_MESSAGE_DELIVERY))
+            );
+            subscriptions.add(subscription);
+            return new SubscribeResult().withSubscriptionArn(subscription.subscriptionArn);
+        }
+    }
+
+    @Override
+    public SubscribeResult subscribe(String topicArn, String protocol, String endpoint) {
+        return subscribe(new SubscribeRequest(topicArn, protocol, endpoint));
+    }
+
+    @Override
+    public ListSubscriptionsByTopicResult listSubscriptionsByTopic(ListSubscriptionsByTopicRequest request) {
+        latency.inject();
+        List<Subscription> subscriptions = new ArrayList<>();
+        for (TopicSubscription subscription : subscriptionsOf(request.getTopicArn())) {
+            subscriptions.add(
+                new Subscription()
+                    .withSubscriptionArn(subscription.subscriptionArn)
+                    .withTopicArn(request.getTopicArn())
+                    .withProtocol("sqs")
+                    .withEndpoint(subscription.endpoint)
+                    .withOwner(InMemoryAmazonSQS.ACCOUNT_ID)
+            );
+        }
+        return new ListSubscriptionsByTopicResult().withSubscriptions(subscriptions);
+    }
+
+    @Override
+    public ListSubscriptionsByTopicResult listSubscriptionsByTopic(String topicArn) {
+        return listSubscriptionsByTopic(new ListSubscriptionsByTopicRequest(topicArn));
+    }
+
+    /**
+     * Supports the RawMessageDelivery attribute, that delivers messages without the envelope of Amazon SNS.
+     */
+    @Override
+    public SetSubscriptionAttributesResult setSubscriptionAttributes(SetSubscriptionAttributesRequest request) {
+        latency.inject();
+        if (!RAW_MESSAGE_DELIVERY.equals(request.getAttributeName())) {
+            throw new InvalidParameterException(
+                "Invalid parameter: AttributeName, was: " + request.getAttributeName()
+            );
+        }
+        for (List<TopicSubscription> subscriptions : subscriptionsByTopicArn.values()) {
+            for (TopicSubscription subscription : subscriptions) {
+                if (subscription.subscriptionArn.equals(request.getSubscriptionArn())) {
+                    subscription.rawMessageDelivery = "true".equals(request.getAttributeValue());
+                    return new SetSubscriptionAttributesResult();
+                }
+            }
+        }
+        throw new NotFoundException("Subscription does not exist: " + request.getSubscriptionArn());
+    }
+
+    @Override
+    public PublishResult publish(PublishRequest request) {
+        latency.inject();
+        List<TopicSubscription> subscriptions = subscriptionsOf(request.getTopicArn());
+        checkMessage(request.getMessage(), request.getSubject(), request.getMessageAttributes());
+        String messageId = UUID.randomUUID().toString();
+        deliver(
+            request.getTopicArn(),
+            subscriptions,
+            messageId,
+            request.getMessage(),
+            request.getSubject(),
+            request.getMessageAttributes()
+        );
+        return new PublishResult().withMessageId(messageId);
+    }
+
+    @Override
+    public PublishResult publish(String topicArn, String message) {
+        return publish(new PublishRequest(topicArn, message));
+    }
+
+    @Override
+    public PublishResult publish(String topicArn, String message, String subject) {
+        return publish(new PublishRequest(topicArn, message, subject));
+    }
+
+    @Override
+    public PublishBatchResult publishBatch(PublishBatchRequest request) {
+        latency.inject();
+        List<TopicSubscription> subscriptions = subscriptionsOf(request.getTopicArn());
+        List<PublishBatchRequestEntry> entries = request.getPublishBatchRequestEntries();
+        if (entries.isEmpty()) {
+            throw new EmptyBatchRequestException("The batch request doesn't contain any entries.");
+        }
+        if (entries.size() > MAXIMUM_BATCH_SIZE) {
+            throw new TooManyEntriesInBatchRequestException(
+                "The batch request contains more entries than permissible, was: " + entries.size()
+            );
+        }
+        Set<String> ids = new HashSet<>();
+        int batchSize = 0;
+        for (PublishBatchRequestEntry entry : entries) {
+            if (!ids.add(entry.getId())) {
+                throw new BatchEntryIdsNotDistinctException(
+                    "Two or more batch entries have the same Id: " + entry.getId()
+                );
+            }
+            batchSize += sizeOf(entry.getMessage(), entry.getMessageAttributes());
+        }
+        if (batchSize > InMemoryAmazonSQS.MAXIMUM_MESSAGE_SIZE) {
+            throw new BatchRequestTooLongException(
+                "The length of all the messages put together is more than the limit."
+            );
+        }
+        PublishBatchResult result = new PublishBatchResult();
+        for (PublishBatchRequestEntry entry : entries) {
+            try {
+                checkMessage(entry.getMessage(), entry.getSubject(), entry.getMessageAttributes());
+            } catch (InvalidParameterException e) {
+                result.getFailed().add(
+                    new BatchResultErrorEntry()
+                        .withId(entry.getId())
+                        .withCode("InvalidParameter")
+                        .withMessage(e.getErrorMessage())
+                        .withSenderFault(true)
+                );
+                continue;
+            }
+            String messageId = UUID.randomUUID().toString();
+            deliver(
+                request.getTopicArn(),
+                subscriptions,
+                messageId,
+                entry.getMessage(),
+                entry.getSubject(),
+                entry.getMessageAttributes()
+            );
+            result.getSuccessful().add(new PublishBatchResultEntry().withId(entry.getId()).withMessageId(messageId));
+        }
+        return result;
+    }
+
+    @Override
+    public void shutdown() {
+    }
+
+    private void deliver(
+        String topicArn,
+        List<TopicSubscription> subscriptions,
+        String messageId,
+        String message,
+        String subject,
+        Map<String, MessageAttributeValue> messageAttributes
+    ) {
+        String timestamp = TIMESTAMP_FORMAT.format(Instant.now());
+        for (TopicSubscription subscription : subscriptions) {
+            if (subscription.rawMessageDelivery) {
+                amazonSQS.deliver(subscription.endpoint, topicArn, message, toQueueAttributes(messageAttributes));
+            } else {
+                String envelope = envelope(
+                    topicArn,
+                    subscription.subscriptionArn,
+                    messageId,
+                    message,
+                    subject,
+                    messageAttributes,
+                    timestamp
+                );
+                amazonSQS.deliver(subscription.endpoint, topicArn, envelope, new HashMap<>());
+            }
+        }
+    }
+
+    private static String envelope(
+        String topicArn,
+        String subscriptionArn,
+        String messageId,
+        String message,
+        String subject,
+        Map<String, MessageAttributeValue> messageAttributes,
+        String timestamp
+    ) {
+        ObjectNode envelope = OBJECT_MAPPER.createObjectNode()
+            .put("Type", "Notification")
+            .put("MessageId", messageId)
+            .put("TopicArn", topicArn);
+        if (subject != null) {
+            envelope.put("Subject", subject);
+        }
+        envelope
+            .put("Message", message)
+            .put("Timestamp", timestamp)
+            .put("SignatureVersion", "1")
+            .put("Signature", "")
+            .put("SigningCertURL", ENDPOINT + "SimpleNotificationService.pem")
+            .put("UnsubscribeURL", ENDPOINT + "?Action=Unsubscribe&SubscriptionArn=" + subscriptionArn);
+        if (!messageAttributes.isEmpty()) {
+            ObjectNode attributes = envelope.putObject("MessageAttributes");
+            for (Map.Entry<String, MessageAttributeValue> attribute : messageAttributes.entrySet()) {
+                MessageAttributeValue value = attribute.getValue();
+                attributes.putObject(attribute.getKey())
+                    .put("Type", value.getDataType())
+                    .put("Value", value.getBinaryValue() != null
+                        ? Base64.getEncoder().encodeToString(bytesOf(value.getBinaryValue()))
+                        : value.getStringValue());
+            }
+        }
+        try {
+            return OBJECT_MAPPER.writeValueAsString(envelope);
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException("Failed to write SNS envelope", e);
+        }
+    }
+
+    private static Map<String, com.amazonaws.services.sqs.model.MessageAttributeValue> toQueueAttributes(
+        Map<String, MessageAttributeValue> messageAttributes
+    ) {
+        Map<String, com.amazonaws.services.sqs.model.MessageAttributeValue> queueAttributes = new HashMap<>();
+        for (Map.Entry<String, MessageAttributeValue> attribute : messageAttributes.entrySet()) {
+            MessageAttributeValue value = attribute.getValue();
+            queueAttributes.put(
+                attribute.getKey(),
+                new com.amazonaws.services.sqs.model.MessageAttributeValue()
+                    .withDataType(value.getDataType())
+                    .withStringValue(value.getStringValue())
+                    .withBinaryValue(value.getBinaryValue())
+            );
+        }
+        return queueAttributes;
+    }
+
+    private List<TopicSubscription> subscriptionsOf(String topicArn) {
+        List<TopicSubscription> subscriptions = topicArn == null ? null : subscriptionsByTopicArn.get(topicArn);
+        if (subscriptions == null) {
+            throw new NotFoundException("Topic does not exist: " + topicArn);
+        }
+        return subscriptions;
+    }
+
+    private static void checkMessage(String message, String subject, Map<String, MessageAttributeValue> attributes) {
+        if (empty(message)) {
+            throw new InvalidParameterException("Invalid parameter: Empty message");
+        }
+        if (subject != null && (subject.isEmpty() || subject.length() > 100)) {
+            throw new InvalidParameterException("Invalid parameter: Subject, was: " + subject);
+        }
+        if (sizeOf(message, attributes) > InMemoryAmazonSQS.MAXIMUM_MESSAGE_SIZE) {
+            throw new InvalidParameterException("Invalid parameter: Message too long");
+        }
+    }
+
+    private static int sizeOf(String message, Map<String, MessageAttributeValue> attributes) {
+        return InMemoryAmazonSQS.sizeOf(message, toQueueAttributes(attributes));
+    }
+
+    private static byte[] bytesOf(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+
+    private static final class TopicSubscription {
+        private final String subscriptionArn;
+        private final String endpoint;
+        private volatile boolean rawMessageDelivery;
+
+        private TopicSubscription(String subscriptionArn, String endpoint, boolean rawMessageDelivery) {
+            this.subscriptionArn = subscriptionArn;
+            this.endpoint = endpoint;
+            this.rawMessageDelivery = rawMessageDelivery;
+        }
+    }
+}
@@ -0,0 +1,443 @@
+package com.izettle.messaging.test;
+
+import static com.izettle.java.ValueChecks.empty;
+
+import com.amazonaws.AbortedException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.auth.policy.Action;
+import com.amazonaws.auth.policy.Condition;
+import com.amazonaws.auth.policy.Policy;
+import com.amazonaws.auth.policy.Statement;
+import com.amazonaws.services.sqs.AbstractAmazonSQS;
+import com.amazonaws.services.sqs.model.AmazonSQSException;
+import com.amazonaws.services.sqs.model.BatchEntryIdsNotDistinctException;
+import com.amazonaws.services.sqs.model.BatchRequestTooLongException;
+import com.amazonaws.services.sqs.model.BatchResultErrorEntry;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchRequest;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchRequestEntry;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchResult;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchResultEntry;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityRequest;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityResult;
+import com.amazonaws.services.sqs.model.CreateQueueRequest;
+import com.amazonaws.services.sqs.model.CreateQueueResult;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequest;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchResult;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchResultEntry;
+import com.amazonaws.services.sqs.model.DeleteMessageRequest;
+import com.amazonaws.services.sqs.model.DeleteMessageResult;
+import com.amazonaws.services.sqs.model.EmptyBatchRequestException;
+import com.amazonaws.services.sqs.model.GetQueueAttributesRequest;
+import com.amazonaws.services.sqs.model.GetQueueAttributesResult;
+import com.amazonaws.services.sqs.model.GetQueueUrlRequest;
+import com.amazonaws.services.sqs.model.GetQueueUrlResult;
+import com.amazonaws.services.sqs.model.Message;
+import com.amazonaws.services.sqs.model.MessageAttributeValue;
+import com.amazonaws.services.sqs.model.MessageNotInflightException;
+import com.amazonaws.services.sqs.model.PurgeQueueRequest;
+import com.amazonaws.services.sqs.model.PurgeQueueResult;
+import com.amazonaws.services.sqs.model.QueueAttributeName;
+import com.amazonaws.services.sqs.model.QueueDoesNotExistException;
+import com.amazonaws.services.sqs.model.ReceiptHandleIsInvalidException;
+import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
+import com.amazonaws.services.sqs.model.ReceiveMessageResult;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequest;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.SendMessageBatchResult;
+import com.amazonaws.services.sqs.model.SendMessageBatchResultEntry;
+import com.amazonaws.services.sqs.model.SendMessageRequest;
+import com.amazonaws.services.sqs.model.SendMessageResult;
+import com.amazonaws.services.sqs.model.SetQueueAttributesRequest;
+import com.amazonaws.services.sqs.model.SetQueueAttributesResult;
+import com.amazonaws.services.sqs.model.TooManyEntriesInBatchRequestException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Amazon SQS client that keeps its queues in memory, to run producers and consumers in tests and benchmarks without
+ * AWS. It models what they depend on: visibility timeouts and their changes, delays, long polling, batches and their
+ * limits, receive counts and redrive to dead letter queues, and the queue policy that lets SNS topics send to a queue,
+ * see {@link InMemoryAmazonSNS}. Every call takes the time of the supplied {@link Latency}.
+ *
+ * FIFO queues, message retention and the asynchronous client are not modeled.
+ */
+public class InMemoryAmazonSQS extends AbstractAmazonSQS {
+    static final String ACCOUNT_ID = "000000000000";
+    static final String REGION = "in-memory";
+    static final int MAXIMUM_MESSAGE_SIZE = 262144;
+    private static final int MAXIMUM_BATCH_SIZE = 10;
+    private static final int MAXIMUM_WAIT_TIME_SECONDS = 20;
+    private static final String URL_PREFIX = "https://sqs." + REGION + ".localhost/" + ACCOUNT_ID + "/";
+    private static final String ARN_PREFIX = "arn:aws:sqs:" + REGION + ":" + ACCOUNT_ID + ":";
+
+    private final ConcurrentMap<String, InMemoryQueue> queuesByUrl = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, InMemoryQueue> queuesByArn = new ConcurrentHashMap<>();
+    private final Latency latency;
+
+    public InMemoryAmazonSQS() {
+        this(Latency.NONE);
+    }
+
+    public InMemoryAmazonSQS(Latency latency) {
+        this.latency = latency;
+    }
+
+    @Override
+    public CreateQueueResult createQueue(CreateQueueRequest request) {
+        latency.inject();
+        String queueName = request.getQueueName();
+        if (empty(queueName) || queueName.length() > 80 || !queueName.matches("[\\w-]+(\\.fifo)?")) {
+            throw invalidParameterValue("Illegal queue name, was: " + queueName);
+        }
+        InMemoryQueue queue = queuesByUrl.computeIfAbsent(URL_PREFIX + queueName, url -> {
+            InMemoryQueue created = new InMemoryQueue(queueName, url, ARN_PREFIX + queueName, request.getAttributes());
+            queuesByArn.put(created.getArn(), created);
+            return created;
+        });
+        return new CreateQueueResult().withQueueUrl(queue.getUrl());
+    }
+
+    @Override
+    public CreateQueueResult createQueue(String queueName) {
+        return createQueue(new CreateQueueRequest(queueName));
+    }
+
+    @Override
+    public GetQueueUrlResult getQueueUrl(GetQueueUrlRequest request) {
+        latency.inject();
+        return new GetQueueUrlResult().withQueueUrl(queue(URL_PREFIX + request.getQueueName()).getUrl());
+    }
+
+    @Override
+    public GetQueueUrlResult getQueueUrl(String queueName) {
+        return getQueueUrl(new GetQueueUrlRequest(queueName));
+    }
+
+    @Override
+    public GetQueueAttributesResult getQueueAttributes(GetQueueAttributesRequest request) {
+        latency.inject();
+        return new GetQueueAttributesResult().withAttributes(
+            queue(request.getQueueUrl()).getAttributes(request.getAttributeNames())
+        );
+    }
+
+    @Override
+    public SetQueueAttributesResult setQueueAttributes(SetQueueAttributesRequest request) {
+        latency.inject();
+        queue(request.getQueueUrl()).setAttributes(request.getAttributes());
+        return new SetQueueAttributesResult();
+    }
+
+    @Override
+    public PurgeQueueResult purgeQueue(PurgeQueueRequest request) {
+        latency.inject();
+        queue(request.getQueueUrl()).purge();
+        return new PurgeQueueResult();
+    }
+
+    @Override
+    public SendMessageResult sendMessage(SendMessageRequest request) {
+        latency.inject();
+        InMemoryQueue queue = queue(request.getQueueUrl());
+        checkSize(request.getMessageBody(), request.getMessageAttributes());
+        Message message = queue.send(
+            request.getMessageBody(),
+            request.getMessageAttributes(),
+            request.getDelaySeconds()
+        );
+        return new SendMessageResult()
+            .withMessageId(message.getMessageId())
+            .withMD5OfMessageBody(message.getMD5OfBody());
+    }
+
+    @Override
+    public SendMessageResult sendMessage(String queueUrl, String messageBody) {
+        return sendMessage(new SendMessageRequest(queueUrl, messageBody));
+    }
+
+    @Override
+    public SendMessageBatchResult sendMessageBatch(SendMessageBatchRequest request) {
+        latency.inject();
+        InMemoryQueue queue = queue(request.getQueueUrl());
+        List<SendMessageBatchRequestEntry> entries = request.getEntries();
+        checkBatch(entries.size());
+        checkDistinct(entries.stream().map(SendMessageBatchRequestEntry::getId));
+        int batchSize = 0;
+        for (SendMessageBatchRequestEntry entry : entries) {
+            batchSize += sizeOf(entry.getMessageBody(), entry.getMessageAttributes());
+        }
+        if (batchSize > MAXIMUM_MESSAGE_SIZE) {
+            throw new BatchRequestTooLongException("Batch requests cannot be longer than 262144 bytes.");
+        }
+        SendMessageBatchResult result = new SendMessageBatchResult();
+        for (SendMessageBatchRequestEntry entry : entries) {
+            if (empty(entry.getMessageBody())) {
+                result.getFailed().add(failure(entry.getId(), "InvalidParameterValue", "Message body is empty."));
+                continue;
+            }
+            Message message = queue.send(entry.getMessageBody(), entry.getMessageAttributes(), entry.getDelaySeconds());
+            result.getSuccessful().add(
+                new SendMessageBatchResultEntry()
+                    .withId(entry.getId())
+                    .withMessageId(message.getMessageId())
+                    .withMD5OfMessageBody(message.getMD5OfBody())
+            );
+        }
+        return result;
+    }
+
+    @Override
+    public ReceiveMessageResult receiveMessage(ReceiveMessageRequest request) {
+        latency.inject();
+        InMemoryQueue queue = queue(request.getQueueUrl());
+        int maxNumberOfMessages = request.getMaxNumberOfMessages() != null ? request.getMaxNumberOfMessages() : 1;
+        if (maxNumberOfMessages < 1 || maxNumberOfMessages > MAXIMUM_BATCH_SIZE) {
+            throw invalidParameterValue("Illegal MaxNumberOfMessages, was: " + maxNumberOfMessages);
+        }
+        Integer waitTimeSeconds = request.getWaitTimeSeconds();
+        if (waitTimeSeconds == null) {
+            String queueWaitTime = queue.getAttribute(QueueAttributeName.ReceiveMessageWaitTimeSeconds.toString());
+            waitTimeSeconds = queueWaitTime == null ? 0 : Integer.parseInt(queueWaitTime);
+        }
+        if (waitTimeSeconds < 0 || waitTimeSeconds > MAXIMUM_WAIT_TIME_SECONDS) {
+            throw invalidParameterValue("Illegal WaitTimeSeconds, was: " + waitTimeSeconds);
+        }
+        List<Message> deadLetters = new ArrayList<>();
+        List<Message> messages;
+        try {
+            messages = queue.receive(
+                maxNumberOfMessages,
+                request.getVisibilityTimeout(),
+                TimeUnit.SECONDS.toNanos(waitTimeSeconds),
+                request.getAttributeNames(),
+                request.getMessageAttributeNames(),
+                deadLetters
+            );
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new AbortedException(e);
+        } finally {
+            moveToDeadLetterQueue(queue, deadLetters);
+        }
+        return new ReceiveMessageResult().withMessages(messages);
+    }
+
+    @Override
+    public ReceiveMessageResult receiveMessage(String queueUrl) {
+        return receiveMessage(new ReceiveMessageRequest(queueUrl));
+    }
+
+    @Override
+    public DeleteMessageResult deleteMessage(DeleteMessageRequest request) {
+        latency.inject();
+        if (!queue(request.getQueueUrl()).delete(request.getReceiptHandle())) {
+            throw new ReceiptHandleIsInvalidException("The receipt handle is not valid: " + request.getReceiptHandle());
+        }
+        return new DeleteMessageResult();
+    }
+
+    @Override
+    public DeleteMessageResult deleteMessage(String queueUrl, String receiptHandle) {
+        return deleteMessage(new DeleteMessageRequest(queueUrl, receiptHandle));
+    }
+
+    @Override
+    public DeleteMessageBatchResult deleteMessageBatch(DeleteMessageBatchRequest request) {
+        latency.inject();
+        InMemoryQueue queue = queue(request.getQueueUrl());
+        List<DeleteMessageBatchRequestEntry> entries = request.getEntries();
+        checkBatch(entries.size());
+        checkDistinct(entries.stream().map(DeleteMessageBatchRequestEntry::getId));
+        DeleteMessageBatchResult result = new DeleteMessageBatchResult();
+        for (DeleteMessageBatchRequestEntry entry : entries) {
+            if (queue.delete(entry.getReceiptHandle())) {
+                result.getSuccessful().add(new DeleteMessageBatchResultEntry().withId(entry.getId()));
+            } else {
+                result.getFailed().add(
+                    failure(entry.getId(), "ReceiptHandleIsInvalid", "The receipt handle is not valid.")
+                );
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public ChangeMessageVisibilityResult changeMessageVisibility(ChangeMessageVisibilityRequest request) {
+        latency.inject();
+        InMemoryQueue queue = queue(request.getQueueUrl());
+        if (!queue.changeVisibility(request.getReceiptHandle(), request.getVisibilityTimeout())) {
+            throw new MessageNotInflightException(
+                "Message does not exist or is not available for visibility timeout change."
+            );
+        }
+        return new ChangeMessageVisibilityResult();
+    }
+
+    @Override
+    public ChangeMessageVisibilityBatchResult changeMessageVisibilityBatch(
+        ChangeMessageVisibilityBatchRequest request
+    ) {
+        latency.inject();
+        InMemoryQueue queue = queue(request.getQueueUrl());
+        List<ChangeMessageVisibilityBatchRequestEntry> entries = request.getEntries();
+        checkBatch(entries.size());
+        checkDistinct(entries.stream().map(ChangeMessageVisibilityBatchRequestEntry::getId));
+        ChangeMessageVisibilityBatchResult result = new ChangeMessageVisibilityBatchResult();
+        for (ChangeMessageVisibilityBatchRequestEntry entry : entries) {
+            if (queue.changeVisibility(entry.getReceiptHandle(), entry.getVisibilityTimeout())) {
+                result.getSuccessful().add(new ChangeMessageVisibilityBatchResultEntry().withId(entry.getId()));
+            } else {
+                result.getFailed().add(
+                    failure(entry.getId(), "MessageNotInflight", "Message is not available for visibility change.")
+                );
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public void shutdown() {
+    }
+
+    /**
+     * Sends a message that was published on an SNS topic to a queue, if the policy of the queue allows the topic to
+     * send to it. Amazon SNS does not tell publishers about queues it could not deliver to, and neither does this.
+     *
+     * @return True if the message was sent to the queue.
+     */
+    boolean deliver(String queueArn, String topicArn, String body, Map<String, MessageAttributeValue> attributes) {
+        InMemoryQueue queue = queuesByArn.get(queueArn);
+        if (queue == null || !allowsMessagesFrom(queue, topicArn)) {
+            return false;
+        }
+        queue.send(body, attributes, null);
+        return true;
+    }
+
+    private static boolean allowsMessagesFrom(InMemoryQueue queue, String topicArn) {
+        String policy = queue.getAttribute(QueueAttributeName.Policy.toString());
+        if (policy == null) {
+            return false;
+        }
+        for (Statement statement : Policy.fromJson(policy).getStatements()) {
+            if (statement.getEffect() == Statement.Effect.Allow
+                && allowsSendMessage(statement.getActions())
+                && allowsSourceArn(statement.getConditions(), topicArn)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean allowsSendMessage(List<Action> actions) {
+        for (Action action : actions) {
+            String actionName = action.getActionName();
+            if (actionName.equals("sqs:SendMessage") || actionName.equals("sqs:*") || actionName.equals("*")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean allowsSourceArn(List<Condition> conditions, String topicArn) {
+        for (Condition condition : conditions) {
+            if (condition.getConditionKey().equalsIgnoreCase("aws:SourceArn")
+                && !condition.getValues().contains(topicArn)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void moveToDeadLetterQueue(InMemoryQueue queue, List<Message> deadLetters) {
+        if (deadLetters.isEmpty()) {
+            return;
+        }
+        RedrivePolicy redrivePolicy = queue.getRedrivePolicy();
+        InMemoryQueue deadLetterQueue = redrivePolicy == null
+            ? null
+            : queuesByArn.get(redrivePolicy.getDeadLetterTargetArn());
+        if (deadLetterQueue == null) {
+            // Amazon SQS drops the messages too, when the dead letter queue is gone.
+            return;
+        }
+        for (Message message : deadLetters) {
+            deadLetterQueue.send(message.getBody(), message.getMessageAttributes(), 0);
+        }
+    }
+
+    private InMemoryQueue queue(String queueUrl) {
+        InMemoryQueue queue = queueUrl == null ? null : queuesByUrl.get(queueUrl);
+        if (queue == null) {
+            throw new QueueDoesNotExistException("The specified queue does not exist: " + queueUrl);
+        }
+        return queue;
+    }
+
+    private static void checkSize(String body, Map<String, MessageAttributeValue> attributes) {
+        if (empty(body)) {
+            throw invalidParameterValue("Message body is empty.");
+        }
+        int size = sizeOf(body, attributes);
+        if (size > MAXIMUM_MESSAGE_SIZE) {
+            throw invalidParameterValue("Message must be shorter than 262144 bytes, was: " + size);
+        }
+    }
+
+    static int sizeOf(String body, Map<String, MessageAttributeValue> attributes) {
+        int size = body == null ? 0 : body.getBytes(StandardCharsets.UTF_8).length;
+        for (Map.Entry<String, MessageAttributeValue> attribute : attributes.entrySet()) {
+            MessageAttributeValue value = attribute.getValue();
+            size += attribute.getKey().length() + value.getDataType().length();
+            if (value.getStringValue() != null) {
+                size += value.getStringValue().getBytes(StandardCharsets.UTF_8).length;
+            }
+            if (value.getBinaryValue() != null) {
+                size += value.getBinaryValue().remaining();
+            }
+        }
+        return size;
+    }
+
+    private static void checkBatch(int entries) {
+        if (entries == 0) {
+            throw new EmptyBatchRequestException("There should be at least one entry in the request.");
+        }
+        if (entries > MAXIMUM_BATCH_SIZE) {
+            throw new TooManyEntriesInBatchRequestException(
+                "Maximum number of entries per request are 10, was: " + entries
+            );
+        }
+    }
+
+    private static void checkDistinct(Stream<String> ids) {
+        Set<String> distinctIds = new HashSet<>();
+        ids.forEach(id -> {
+            if (!distinctIds.add(id)) {
+                throw new BatchEntryIdsNotDistinctException("Id " + id + " repeated.");
+            }
+        });
+    }
+
+    private static BatchResultErrorEntry failure(String id, String code, String message) {
+        return new BatchResultErrorEntry().withId(id).withSenderFault(true).withCode(code).withMessage(message);
+    }
+
+    private static AmazonServiceException invalidParameterValue(String message) {
+        AmazonSQSException exception = new AmazonSQSException(message);
+        exception.setErrorCode("InvalidParameterValue");
+        exception.setErrorType(AmazonServiceException.ErrorType.Client);
+        exception.setStatusCode(400);
+        exception.setServiceName("AmazonSQS");
+        return exception;
+    }
+}
@@ -0,0 +1,363 @@
+package com.izettle.messaging.test;
+
+import com.amazonaws.services.sqs.model.Message;
+import com.amazonaws.services.sqs.model.MessageAttributeValue;
+import com.amazonaws.services.sqs.model.QueueAttributeName;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Messages of one queue of {@link InMemoryAmazonSQS}. Messages that can be received are kept in the order they became
+ * visible, and delayed messages and messages that are in flight wait in a queue ordered by when they become visible
+ * again. Changing the visibility of a message adds a new entry to that queue, and entries that were replaced by newer
+ * ones are skipped.
+ */
+final class InMemoryQueue {
+    static final int DEFAULT_VISIBILITY_TIMEOUT_SECONDS = 30;
+
+    private final String name;
+    private final String url;
+    private final String arn;
+    private final Map<String, String> attributes = new HashMap<>();
+    private final Map<String, StoredMessage> messages = new LinkedHashMap<>();
+    private final Map<String, StoredMessage> messagesByReceiptHandle = new HashMap<>();
+    private final Deque<StoredMessage> visibleMessages = new ArrayDeque<>();
+    private final PriorityQueue<Invisibility> invisibleMessages = new PriorityQueue<>();
+    private final String receiptHandlePrefix = UUID.randomUUID() + "-";
+    private long receiptHandlesIssued;
+    private RedrivePolicy redrivePolicy;
+
+    InMemoryQueue(String name, String url, String arn, Map<String, String> attributes) {
+        this.name = name;
+        this.url = url;
+        this.arn = arn;
+        this.attributes.put(QueueAttributeName.QueueArn.toString(), arn);
+        this.attributes.put(
+            QueueAttributeName.VisibilityTimeout.toString(),
+            String.valueOf(DEFAULT_VISIBILITY_TIMEOUT_SECONDS)
+        );
+        this.attributes.put(QueueAttributeName.DelaySeconds.toString(), "0");
+        this.attributes.put(QueueAttributeName.CreatedTimestamp.toString(), String.valueOf(currentTimeSeconds()));
+        setAttributes(attributes);
+    }
+
+    String getName() {
+        return name;
+    }
+
+    String getUrl() {
+        return url;
+    }
+
+    String getArn() {
+        return arn;
+    }
+
+    synchronized String getAttribute(String attributeName) {
+        return attributes.get(attributeName);
+    }
+
+    synchronized Map<String, String> getAttributes(Collection<String> attributeNames) {
+        long now = System.nanoTime();
+        int visible = 0;
+        int notVisible = 0;
+        int delayed = 0;
+        for (StoredMessage message : messages.values()) {
+            if (message.visibleAtNanos <= now) {
+                visible++;
+            } else if (message.receiveCount > 0) {
+                notVisible++;
+            } else {
+                delayed++;
+            }
+        }
+        Map<String, String> current = new HashMap<>(attributes);
+        current.put(QueueAttributeName.ApproximateNumberOfMessages.toString(), String.valueOf(visible));
+        current.put(QueueAttributeName.ApproximateNumberOfMessagesNotVisible.toString(), String.valueOf(notVisible));
+        current.put(QueueAttributeName.ApproximateNumberOfMessagesDelayed.toString(), String.valueOf(delayed));
+        if (attributeNames.contains(QueueAttributeName.All.toString())) {
+            return current;
+        }
+        Map<String, String> result = new HashMap<>();
+        for (String attributeName : attributeNames) {
+            if (current.containsKey(attributeName)) {
+                result.put(attributeName, current.get(attributeName));
+            }
+        }
+        return result;
+    }
+
+    synchronized void setAttributes(Map<String, String> attributes) {
+        this.attributes.putAll(attributes);
+        String redrivePolicy = this.attributes.get(QueueAttributeName.RedrivePolicy.toString());
+        this.redrivePolicy = redrivePolicy == null ? null : RedrivePolicy.parse(redrivePolicy);
+    }
+
+    synchronized RedrivePolicy getRedrivePolicy() {
+        return redrivePolicy;
+    }
+
+    /**
+     * @param delaySeconds Delay of the message, or null for the delay of the queue.
+     */
+    synchronized Message send(
+        String body,
+        Map<String, MessageAttributeValue> messageAttributes,
+        Integer delaySeconds
+    ) {
+        int delay = delaySeconds != null ? delaySeconds : intAttribute(QueueAttributeName.DelaySeconds, 0);
+        StoredMessage message = new StoredMessage(
+            UUID.randomUUID().toString(),
+            body,
+            messageAttributes,
+            System.currentTimeMillis()
+        );
+        messages.put(message.messageId, message);
+        makeVisibleIn(message, TimeUnit.SECONDS.toNanos(delay));
+        return message.toSentMessage();
+    }
+
+    /**
+     * Receives the messages that are visible, and waits for messages to become visible if there are none.
+     *
+     * @param visibilityTimeoutSeconds Visibility timeout of the received messages, or null for the timeout of the
+     *                                 queue.
+     * @param deadLetters Messages that have been received as many times as the redrive policy of the queue allows.
+     *                    They are removed from this queue, to be sent to the dead letter queue by the caller.
+     */
+    synchronized List<Message> receive(
+        int maxNumberOfMessages,
+        Integer visibilityTimeoutSeconds,
+        long waitNanos,
+        Collection<String> attributeNames,
+        Collection<String> messageAttributeNames,
+        List<Message> deadLetters
+    ) throws InterruptedException {
+        int visibilityTimeout = visibilityTimeoutSeconds != null
+            ? visibilityTimeoutSeconds
+            : intAttribute(QueueAttributeName.VisibilityTimeout, DEFAULT_VISIBILITY_TIMEOUT_SECONDS);
+        int maxReceiveCount = redrivePolicy == null ? 0 : redrivePolicy.getMaxReceiveCount();
+        List<Message> received = new ArrayList<>();
+        long deadline = System.nanoTime() + waitNanos;
+        while (true) {
+            long now = System.nanoTime();
+            revealMessagesVisibleAt(now);
+            while (received.size() < maxNumberOfMessages && !visibleMessages.isEmpty()) {
+                StoredMessage message = visibleMessages.poll();
+                if (message.removed) {
+                    continue;
+                }
+                if (maxReceiveCount > 0 && message.receiveCount >= maxReceiveCount) {
+                    remove(message);
+                    deadLetters.add(message.toSentMessage());
+                    continue;
+                }
+                message.receiveCount++;
+                if (message.firstReceiveTimestamp == 0) {
+                    message.firstReceiveTimestamp = System.currentTimeMillis();
+                }
+                if (message.receiptHandle != null) {
+                    messagesByReceiptHandle.remove(message.receiptHandle);
+                }
+                message.receiptHandle = receiptHandlePrefix + ++receiptHandlesIssued;
+                messagesByReceiptHandle.put(message.receiptHandle, message);
+                makeVisibleIn(message, TimeUnit.SECONDS.toNanos(visibilityTimeout));
+                received.add(message.toMessage(attributeNames, messageAttributeNames));
+            }
+            long remaining = deadline - now;
+            if (!received.isEmpty() || remaining <= 0) {
+                return received;
+            }
+            Invisibility next = invisibleMessages.peek();
+            if (next != null) {
+                remaining = Math.min(remaining, Math.max(next.visibleAtNanos - now, 1));
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+    }
+
+    /**
+     * Deletes the message last received with the receipt handle. Like Amazon SQS, deleting with the handle of a
+     * message that was already deleted, or that was received again since, succeeds without deleting anything.
+     *
+     * @return False if the receipt handle was never issued by this queue.
+     */
+    synchronized boolean delete(String receiptHandle) {
+        StoredMessage message = messagesByReceiptHandle.get(receiptHandle);
+        if (message == null) {
+            return receiptHandle != null && receiptHandle.startsWith(receiptHandlePrefix);
+        }
+        remove(message);
+        return true;
+    }
+
+    /**
+     * @return False if the receipt handle is not the one the message was last received with, or if the message
+     *         is no longer in flight.
+     */
+    synchronized boolean changeVisibility(String receiptHandle, int visibilityTimeoutSeconds) {
+        StoredMessage message = messagesByReceiptHandle.get(receiptHandle);
+        if (message == null || message.visibleAtNanos <= System.nanoTime()) {
+            return false;
+        }
+        makeVisibleIn(message, TimeUnit.SECONDS.toNanos(visibilityTimeoutSeconds));
+        return true;
+    }
+
+    synchronized void purge() {
+        messages.clear();
+        messagesByReceiptHandle.clear();
+        visibleMessages.clear();
+        invisibleMessages.clear();
+    }
+
+    private void remove(StoredMessage message) {
+        messages.remove(message.messageId);
+        if (message.receiptHandle != null) {
+            messagesByReceiptHandle.remove(message.receiptHandle);
+        }
+        // Removed messages are skipped when they come up.
+        message.removed = true;
+    }
+
+    private void makeVisibleIn(StoredMessage message, long nanos) {
+        message.generation++;
+        message.visibleAtNanos = System.nanoTime() + nanos;
+        invisibleMessages.add(new Invisibility(message, message.generation, message.visibleAtNanos));
+        if (nanos <= 0) {
+            notifyAll();
+        }
+    }
+
+    private void revealMessagesVisibleAt(long now) {
+        while (!invisibleMessages.isEmpty() && invisibleMessages.peek().visibleAtNanos <= now) {
+            Invisibility invisibility = invisibleMessages.poll();
+            if (invisibility.generation == invisibility.message.generation) {
+                visibleMessages.add(invisibility.message);
+            }
+        }
+    }
+
+    private int intAttribute(QueueAttributeName attributeName, int defaultValue) {
+        String value = attributes.get(attributeName.toString());
+        return value == null ? defaultValue : Integer.parseInt(value);
+    }
+
+    private static String md5Hex(String body) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(body.getBytes(StandardCharsets.UTF_8));
+            return String.format("%032x", new BigInteger(1, digest));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 is not supported", e);
+        }
+    }
+
+    private static long currentTimeSeconds() {
+        return TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis());
+    }
+
+    private static final class StoredMessage {
+        private final String messageId;
+        private final String body;
+        private final String md5OfBody;
+        private final Map<String, MessageAttributeValue> messageAttributes;
+        private final long sentTimestamp;
+        private long firstReceiveTimestamp;
+        private int receiveCount;
+        private String receiptHandle;
+        private long visibleAtNanos;
+        private int generation;
+        private boolean removed;
+
+        private StoredMessage(
+            String messageId,
+            String body,
+            Map<String, MessageAttributeValue> messageAttributes,
+            long sentTimestamp
+        ) {
+            this.messageId = messageId;
+            this.body = body;
+            this.md5OfBody = md5Hex(body);
+            this.messageAttributes = new HashMap<>(messageAttributes);
+            this.sentTimestamp = sentTimestamp;
+        }
+
+        private Message toMessage(Collection<String> attributeNames, Collection<String> messageAttributeNames) {
+            Message message = new Message()
+                .withMessageId(messageId)
+                .withReceiptHandle(receiptHandle)
+                .withBody(body)
+                .withMD5OfBody(md5OfBody);
+            Map<String, String> attributes = new HashMap<>();
+            attributes.put("SentTimestamp", String.valueOf(sentTimestamp));
+            attributes.put("ApproximateReceiveCount", String.valueOf(receiveCount));
+            attributes.put("ApproximateFirstReceiveTimestamp", String.valueOf(firstReceiveTimestamp));
+            boolean allAttributes = attributeNames.contains(QueueAttributeName.All.toString());
+            for (Map.Entry<String, String> attribute : attributes.entrySet()) {
+                if (allAttributes || attributeNames.contains(attribute.getKey())) {
+                    message.addAttributesEntry(attribute.getKey(), attribute.getValue());
+                }
+            }
+            for (Map.Entry<String, MessageAttributeValue> attribute : messageAttributes.entrySet()) {
+                if (isRequested(attribute.getKey(), messageAttributeNames)) {
+                    message.addMessageAttributesEntry(attribute.getKey(), attribute.getValue());
+                }
+            }
+            return message;
+        }
+
+        /**
+         * @return The message without the attributes of its receipt, as it was sent.
+         */
+        private Message toSentMessage() {
+            return new Message()
+                .withMessageId(messageId)
+                .withBody(body)
+                .withMD5OfBody(md5OfBody)
+                .withMessageAttributes(new HashMap<>(messageAttributes));
+        }
+
+        private static boolean isRequested(String attributeName, Collection<String> requestedNames) {
+            for (String requestedName : requestedNames) {
+                if (requestedName.equals("All") || requestedName.equals(".*") || requestedName.equals(attributeName)) {
+                    return true;
+                }
+                if (requestedName.endsWith(".*")
+                    && attributeName.startsWith(requestedName.substring(0, requestedName.length() - 1))) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private static final class Invisibility implements Comparable<Invisibility> {
+        private final StoredMessage message;
+        private final int generation;
+        private final long visibleAtNanos;
+
+        private Invisibility(StoredMessage message, int generation, long visibleAtNanos) {
+            this.message = message;
+            this.generation = generation;
+            this.visibleAtNanos = visibleAtNanos;
+        }
+
+        @Override
+        public int compareTo(Invisibility other) {
+            return Long.compare(visibleAtNanos - other.visibleAtNanos, 0);
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package com.izettle.messaging.test;
+
+import com.amazonaws.AbortedException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time that calls to the in-memory Amazon SQS and SNS clients take, to see how producers and consumers behave with
+ * the round trips of the real services. Every call waits for a fixed time, plus a random time up to the jitter.
+ */
+public final class Latency {
+    public static final Latency NONE = new Latency(0, 0);
+
+    private final long fixedNanos;
+    private final long jitterNanos;
+
+    private Latency(long fixedNanos, long jitterNanos) {
+        if (fixedNanos < 0 || jitterNanos < 0) {
+            throw new IllegalArgumentException("Illegal latency, was: " + fixedNanos + " ns + " + jitterNanos + " ns");
+        }
+        this.fixedNanos = fixedNanos;
+        this.jitterNanos = jitterNanos;
+    }
+
+    public static Latency fixed(long latency, TimeUnit unit) {
+        return new Latency(unit.toNanos(latency), 0);
+    }
+
+    /**
+     * @param latency Time that every call takes.
+     * @param jitter Most time that is randomly added to every call.
+     */
+    public static Latency withJitter(long latency, long jitter, TimeUnit unit) {
+        return new Latency(unit.toNanos(latency), unit.toNanos(jitter));
+    }
+
+    /**
+     * Waits for the latency of a call. Interrupting the waiting thread aborts the call, like it does for the Amazon
+     * clients.
+     *
+     * @throws AbortedException The thread was interrupted.
+     */
+    public void inject() {
+        long nanos = fixedNanos;
+        if (jitterNanos > 0) {
+            nanos += ThreadLocalRandom.current().nextLong(jitterNanos + 1);
+        }
+        if (nanos == 0) {
+            return;
+        }
+        try {
+            TimeUnit.NANOSECONDS.sleep(nanos);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new AbortedException(e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        String fixed = String.format("%.3f ms", fixedNanos / 1e6);
+        return jitterNanos == 0 ? fixed : fixed + String.format(" + up to %.3f ms", jitterNanos / 1e6);
+    }
+}
@@ -0,0 +1,42 @@
+package com.izettle.messaging.test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.IOException;
+
+/**
+ * The RedrivePolicy attribute of a queue, that tells how many times a message may be received before it is moved to
+ * the dead letter queue.
+ */
+final class RedrivePolicy {
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+    private final String deadLetterTargetArn;
+    private final int maxReceiveCount;
+
+    private RedrivePolicy(String deadLetterTargetArn, int maxReceiveCount) {
+        this.deadLetterTargetArn = deadLetterTargetArn;
+        this.maxReceiveCount = maxReceiveCount;
+    }
+
+    static RedrivePolicy parse(String json) {
+        try {
+            JsonNode policy = OBJECT_MAPPER.readTree(json);
+            // The receive count is a string when the policy is read from Amazon SQS, but may be set as a number.
+            return new RedrivePolicy(
+                policy.path("deadLetterTargetArn").asText(),
+                policy.path("maxReceiveCount").asInt()
+            );
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Illegal RedrivePolicy, was: " + json, e);
+        }
+    }
+
+    String getDeadLetterTargetArn() {
+        return deadLetterTargetArn;
+    }
+
+    int getMaxReceiveCount() {
+        return maxReceiveCount;
+    }
+}
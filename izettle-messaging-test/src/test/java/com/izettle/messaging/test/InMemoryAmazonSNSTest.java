@@ -0,0 +1,158 @@
+package com.izettle.messaging.test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.amazonaws.services.sns.model.MessageAttributeValue;
+import com.amazonaws.services.sns.model.NotFoundException;
+import com.amazonaws.services.sns.model.PublishBatchRequest;
+import com.amazonaws.services.sns.model.PublishBatchRequestEntry;
+import com.amazonaws.services.sns.model.PublishRequest;
+import com.amazonaws.services.sns.model.SetSubscriptionAttributesRequest;
+import com.amazonaws.services.sqs.model.GetQueueAttributesRequest;
+import com.amazonaws.services.sqs.model.Message;
+import com.amazonaws.services.sqs.model.QueueAttributeName;
+import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.izettle.messaging.AmazonSNSSubscriptionSetup;
+import com.izettle.messaging.MessagePublisher;
+import com.izettle.messaging.MessageQueueConsumer;
+import com.izettle.messaging.PolledMessage;
+import com.izettle.messaging.PublisherService;
+import com.izettle.messaging.QueueServicePoller;
+import com.izettle.messaging.serialization.AmazonSNSMessage;
+import com.izettle.messaging.serialization.AmazonSNSMessageReader;
+import java.util.List;
+import java.util.stream.Collectors;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+public class InMemoryAmazonSNSTest {
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    @Rule
+    public ExpectedException expectedException = ExpectedException.none();
+
+    private final InMemoryAmazonSQS amazonSQS = new InMemoryAmazonSQS();
+    private final InMemoryAmazonSNS amazonSNS = new InMemoryAmazonSNS(amazonSQS);
+    private final String topicArn = amazonSNS.createTopic("topic").getTopicArn();
+    private final String queueUrl = amazonSQS.createQueue("queue").getQueueUrl();
+
+    @Test
+    public void shouldDeliverPublishedMessagesToSubscribedQueuesInTheEnvelopeOfAmazonSNS() throws Exception {
+        // Arrange
+        AmazonSNSSubscriptionSetup.subscribeSQSQueueToSNSTopic(queueUrl, topicArn, amazonSQS, amazonSNS);
+        MessagePublisher publisher = PublisherService.nonEncryptedPublisherService(amazonSNS, topicArn);
+        MessageQueueConsumer<TestEvent> consumer =
+            QueueServicePoller.nonEncryptedMessageQueueConsumer(TestEvent.class, queueUrl, amazonSQS);
+
+        // Act
+        publisher.post(new TestEvent(1, 0, "payload"), "TestEvent");
+        List<PolledMessage<TestEvent>> received = consumer.poll(0);
+
+        // Assert
+        assertThat(received).hasSize(1);
+        assertThat(received.get(0).getMessage().getPayload()).isEqualTo("payload");
+    }
+
+    @Test
+    public void shouldFanOutPublishedMessagesToAllSubscribedQueues() throws Exception {
+        // Arrange
+        String otherQueueUrl = amazonSQS.createQueue("other-queue").getQueueUrl();
+        AmazonSNSSubscriptionSetup.subscribeSQSQueueToSNSTopic(queueUrl, topicArn, amazonSQS, amazonSNS);
+        AmazonSNSSubscriptionSetup.subscribeSQSQueueToSNSTopic(otherQueueUrl, topicArn, amazonSQS, amazonSNS);
+
+        // Act
+        amazonSNS.publishBatch(
+            new PublishBatchRequest()
+                .withTopicArn(topicArn)
+                .withPublishBatchRequestEntries(
+                    new PublishBatchRequestEntry().withId("1").withMessage("first").withSubject("Subject"),
+                    new PublishBatchRequestEntry().withId("2").withMessage("second").withSubject("Subject")
+                )
+        );
+
+        // Assert
+        assertThat(receive(queueUrl)).extracting(AmazonSNSMessage::getMessage).containsExactly("first", "second");
+        assertThat(receive(otherQueueUrl)).extracting(AmazonSNSMessage::getMessage).containsExactly("first", "second");
+    }
+
+    @Test
+    public void shouldKeepMessageAttributesInTheEnvelope() throws Exception {
+        // Arrange
+        AmazonSNSSubscriptionSetup.subscribeSQSQueueToSNSTopic(queueUrl, topicArn, amazonSQS, amazonSNS);
+
+        // Act
+        amazonSNS.publish(
+            new PublishRequest(topicArn, "body", "Subject")
+                .addMessageAttributesEntry(
+                    "ContentType",
+                    new MessageAttributeValue().withDataType("String").withStringValue("application/json")
+                )
+        );
+
+        // Assert
+        AmazonSNSMessage envelope = receive(queueUrl).get(0);
+        assertThat(envelope.getSubject()).isEqualTo("Subject");
+        assertThat(envelope.getMessageAttributes()).containsEntry("ContentType", "application/json");
+    }
+
+    @Test
+    public void shouldDeliverMessagesAsTheyWerePublishedToSubscriptionsWithRawMessageDelivery() {
+        // Arrange
+        String queueArn = amazonSQS.getQueueAttributes(
+            new GetQueueAttributesRequest(queueUrl).withAttributeNames(QueueAttributeName.QueueArn)
+        ).getAttributes().get(QueueAttributeName.QueueArn.toString());
+        AmazonSNSSubscriptionSetup.subscribeSQSQueueToSNSTopic(queueUrl, topicArn, amazonSQS, amazonSNS);
+        String subscriptionArn = amazonSNS.subscribe(topicArn, "sqs", queueArn).getSubscriptionArn();
+        amazonSNS.setSubscriptionAttributes(
+            new SetSubscriptionAttributesRequest(subscriptionArn, "RawMessageDelivery", "true")
+        );
+
+        // Act
+        amazonSNS.publish(topicArn, "body");
+
+        // Assert
+        List<Message> messages = amazonSQS.receiveMessage(queueUrl).getMessages();
+        assertThat(messages).extracting(Message::getBody).containsExactly("body");
+    }
+
+    @Test
+    public void shouldNotDeliverToQueuesThatDoNotAllowTheTopicToSendToThem() throws Exception {
+        // Arrange
+        String queueArn = amazonSQS.getQueueAttributes(
+            new GetQueueAttributesRequest(queueUrl).withAttributeNames(QueueAttributeName.QueueArn)
+        ).getAttributes().get(QueueAttributeName.QueueArn.toString());
+        amazonSNS.subscribe(topicArn, "sqs", queueArn);
+
+        // Act
+        amazonSNS.publish(topicArn, "body");
+
+        // Assert
+        assertThat(receive(queueUrl)).isEmpty();
+    }
+
+    @Test
+    public void shouldNotSubscribeToTopicsThatDoNotExist() {
+        expectedException.expect(NotFoundException.class);
+        AmazonSNSSubscriptionSetup.subscribeSQSQueueToSNSTopic(
+            queueUrl,
+            topicArn + "-missing",
+            amazonSQS,
+            amazonSNS
+        );
+    }
+
+    private List<AmazonSNSMessage> receive(String queueUrl) throws Exception {
+        List<Message> messages = amazonSQS.receiveMessage(
+            new ReceiveMessageRequest(queueUrl).withMaxNumberOfMessages(10)
+        ).getMessages();
+        return messages.stream().map(message -> {
+            try {
+                return AmazonSNSMessageReader.read(JSON_FACTORY, message.getBody());
+            } catch (Exception e) {
+                throw new AssertionError("Not an SNS envelope: " + message.getBody(), e);
+            }
+        }).collect(Collectors.toList());
+    }
+}
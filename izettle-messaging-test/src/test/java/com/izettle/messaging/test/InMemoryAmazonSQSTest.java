@@ -0,0 +1,267 @@
+package com.izettle.messaging.test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityRequest;
+import com.amazonaws.services.sqs.model.CreateQueueRequest;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequest;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchResult;
+import com.amazonaws.services.sqs.model.GetQueueAttributesRequest;
+import com.amazonaws.services.sqs.model.Message;
+import com.amazonaws.services.sqs.model.MessageAttributeValue;
+import com.amazonaws.services.sqs.model.QueueAttributeName;
+import com.amazonaws.services.sqs.model.QueueDoesNotExistException;
+import com.amazonaws.services.sqs.model.ReceiptHandleIsInvalidException;
+import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequest;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.SendMessageRequest;
+import com.amazonaws.services.sqs.model.TooManyEntriesInBatchRequestException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+public class InMemoryAmazonSQSTest {
+
+    @Rule
+    public ExpectedException expectedException = ExpectedException.none();
+
+    private final InMemoryAmazonSQS amazonSQS = new InMemoryAmazonSQS();
+    private final String queueUrl = amazonSQS.createQueue("queue").getQueueUrl();
+
+    @Test
+    public void shouldHideReceivedMessagesUntilTheirVisibilityTimeoutExpires() {
+        // Arrange
+        amazonSQS.sendMessage(queueUrl, "body");
+
+        // Act
+        List<Message> received = receive(new ReceiveMessageRequest(queueUrl).withVisibilityTimeout(30));
+        List<Message> receivedWhileInFlight = receive(new ReceiveMessageRequest(queueUrl));
+        amazonSQS.changeMessageVisibility(
+            new ChangeMessageVisibilityRequest(queueUrl, received.get(0).getReceiptHandle(), 0)
+        );
+        List<Message> receivedAgain = receive(new ReceiveMessageRequest(queueUrl));
+
+        // Assert
+        assertThat(received).extracting(Message::getBody).containsExactly("body");
+        assertThat(receivedWhileInFlight).isEmpty();
+        assertThat(receivedAgain).extracting(Message::getMessageId).containsExactly(received.get(0).getMessageId());
+        assertThat(receivedAgain.get(0).getReceiptHandle()).isNotEqualTo(received.get(0).getReceiptHandle());
+    }
+
+    @Test
+    public void shouldWaitForMessagesWhenLongPolling() throws Exception {
+        // Arrange
+        CompletableFuture<List<Message>> received = CompletableFuture.supplyAsync(() ->
+            receive(new ReceiveMessageRequest(queueUrl).withWaitTimeSeconds(20))
+        );
+        Thread.sleep(50);
+
+        // Act
+        amazonSQS.sendMessage(queueUrl, "body");
+
+        // Assert
+        assertThat(received.get(5, TimeUnit.SECONDS)).extracting(Message::getBody).containsExactly("body");
+    }
+
+    @Test
+    public void shouldReceiveAtMostTheRequestedNumberOfMessagesInTheOrderTheyWereSent() {
+        // Arrange
+        for (int i = 0; i < 15; i++) {
+            amazonSQS.sendMessage(queueUrl, "body-" + i);
+        }
+
+        // Act
+        List<Message> received = receive(new ReceiveMessageRequest(queueUrl).withMaxNumberOfMessages(10));
+
+        // Assert
+        assertThat(received).hasSize(10);
+        assertThat(received.get(0).getBody()).isEqualTo("body-0");
+        assertThat(received.get(9).getBody()).isEqualTo("body-9");
+    }
+
+    @Test
+    public void shouldNotReceiveDelayedMessagesBeforeTheirDelay() {
+        // Arrange
+        amazonSQS.sendMessage(new SendMessageRequest(queueUrl, "body").withDelaySeconds(60));
+
+        // Act
+        List<Message> received = receive(new ReceiveMessageRequest(queueUrl));
+
+        // Assert
+        assertThat(received).isEmpty();
+        assertThat(attributes(QueueAttributeName.ApproximateNumberOfMessagesDelayed.toString())).containsValue("1");
+    }
+
+    @Test
+    public void shouldReturnOnlyTheRequestedAttributes() {
+        // Arrange
+        amazonSQS.sendMessage(
+            new SendMessageRequest(queueUrl, "body")
+                .addMessageAttributesEntry("ContentType", stringAttribute("application/json"))
+                .addMessageAttributesEntry("Other", stringAttribute("other"))
+        );
+
+        // Act
+        Message message = receive(
+            new ReceiveMessageRequest(queueUrl)
+                .withAttributeNames("SentTimestamp")
+                .withMessageAttributeNames("ContentType")
+        ).get(0);
+
+        // Assert
+        assertThat(message.getAttributes()).containsOnlyKeys("SentTimestamp");
+        assertThat(message.getMessageAttributes()).containsOnlyKeys("ContentType");
+    }
+
+    @Test
+    public void shouldCountMessagesByVisibility() {
+        // Arrange
+        amazonSQS.sendMessage(queueUrl, "first");
+        amazonSQS.sendMessage(queueUrl, "second");
+        receive(new ReceiveMessageRequest(queueUrl));
+
+        // Act
+        Map<String, String> attributes = attributes(
+            QueueAttributeName.ApproximateNumberOfMessages.toString(),
+            QueueAttributeName.ApproximateNumberOfMessagesNotVisible.toString()
+        );
+
+        // Assert
+        assertThat(attributes)
+            .containsEntry(QueueAttributeName.ApproximateNumberOfMessages.toString(), "1")
+            .containsEntry(QueueAttributeName.ApproximateNumberOfMessagesNotVisible.toString(), "1");
+    }
+
+    @Test
+    public void shouldMoveMessagesToTheDeadLetterQueueWhenTheyHaveBeenReceivedTooManyTimes() {
+        // Arrange
+        String deadLetterQueueUrl = amazonSQS.createQueue("dead-letters").getQueueUrl();
+        String redrivePolicy = "{\"maxReceiveCount\":\"2\",\"deadLetterTargetArn\":\""
+            + amazonSQS.getQueueAttributes(new GetQueueAttributesRequest(deadLetterQueueUrl)
+                .withAttributeNames(QueueAttributeName.QueueArn))
+                .getAttributes()
+                .get(QueueAttributeName.QueueArn.toString())
+            + "\"}";
+        String queueWithRedriveUrl = amazonSQS.createQueue(
+            new CreateQueueRequest("with-redrive")
+                .addAttributesEntry(QueueAttributeName.RedrivePolicy.toString(), redrivePolicy)
+        ).getQueueUrl();
+        amazonSQS.sendMessage(queueWithRedriveUrl, "body");
+
+        // Act
+        List<Message> received = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            received.addAll(receive(new ReceiveMessageRequest(queueWithRedriveUrl).withVisibilityTimeout(0)));
+        }
+
+        // Assert
+        assertThat(received).hasSize(2);
+        assertThat(receive(new ReceiveMessageRequest(deadLetterQueueUrl)))
+            .extracting(Message::getBody)
+            .containsExactly("body");
+    }
+
+    @Test
+    public void shouldReportEntriesOfBatchDeletesWithInvalidReceiptHandlesAsFailed() {
+        // Arrange
+        amazonSQS.sendMessage(queueUrl, "body");
+        Message message = receive(new ReceiveMessageRequest(queueUrl)).get(0);
+
+        // Act
+        DeleteMessageBatchResult result = amazonSQS.deleteMessageBatch(
+            new DeleteMessageBatchRequest(queueUrl)
+                .withEntries(
+                    new DeleteMessageBatchRequestEntry("1", message.getReceiptHandle()),
+                    new DeleteMessageBatchRequestEntry("2", "invalid")
+                )
+        );
+
+        // Assert
+        assertThat(result.getSuccessful()).extracting(entry -> entry.getId()).containsExactly("1");
+        assertThat(result.getFailed()).extracting(entry -> entry.getId()).containsExactly("2");
+        assertThat(attributes(QueueAttributeName.ApproximateNumberOfMessagesNotVisible.toString())).containsValue("0");
+    }
+
+    @Test
+    public void shouldRejectDeletesWithInvalidReceiptHandles() {
+        expectedException.expect(ReceiptHandleIsInvalidException.class);
+        amazonSQS.deleteMessage(queueUrl, "invalid");
+    }
+
+    @Test
+    public void shouldIgnoreDeletesWithStaleReceiptHandles() {
+        // Arrange
+        amazonSQS.sendMessage(queueUrl, "body");
+        Message received = receive(new ReceiveMessageRequest(queueUrl)).get(0);
+        amazonSQS.changeMessageVisibility(new ChangeMessageVisibilityRequest(queueUrl, received.getReceiptHandle(), 0));
+        Message receivedAgain = receive(new ReceiveMessageRequest(queueUrl)).get(0);
+
+        // Act
+        amazonSQS.deleteMessage(queueUrl, received.getReceiptHandle());
+
+        // Assert
+        assertThat(attributes(QueueAttributeName.ApproximateNumberOfMessagesNotVisible.toString())).containsValue("1");
+
+        // Act
+        amazonSQS.deleteMessage(queueUrl, receivedAgain.getReceiptHandle());
+        amazonSQS.deleteMessage(queueUrl, receivedAgain.getReceiptHandle());
+
+        // Assert
+        assertThat(attributes(QueueAttributeName.ApproximateNumberOfMessagesNotVisible.toString())).containsValue("0");
+    }
+
+    @Test
+    public void shouldRejectBatchesOfMoreThanTenEntries() {
+        // Arrange
+        SendMessageBatchRequest request = new SendMessageBatchRequest(queueUrl);
+        for (int i = 0; i < 11; i++) {
+            request.getEntries().add(new SendMessageBatchRequestEntry(String.valueOf(i), "body"));
+        }
+
+        // Assert
+        expectedException.expect(TooManyEntriesInBatchRequestException.class);
+
+        // Act
+        amazonSQS.sendMessageBatch(request);
+    }
+
+    @Test
+    public void shouldRejectCallsToQueuesThatDoNotExist() {
+        expectedException.expect(QueueDoesNotExistException.class);
+        amazonSQS.getQueueUrl("missing");
+    }
+
+    @Test
+    public void shouldInjectLatencyIntoEveryCall() {
+        // Arrange
+        InMemoryAmazonSQS slowAmazonSQS = new InMemoryAmazonSQS(Latency.fixed(20, TimeUnit.MILLISECONDS));
+        long startNanos = System.nanoTime();
+
+        // Act
+        slowAmazonSQS.createQueue("queue");
+        slowAmazonSQS.getQueueUrl("queue");
+
+        // Assert
+        assertThat(System.nanoTime() - startNanos).isGreaterThanOrEqualTo(TimeUnit.MILLISECONDS.toNanos(40));
+    }
+
+    private List<Message> receive(ReceiveMessageRequest request) {
+        return amazonSQS.receiveMessage(request).getMessages();
+    }
+
+    private Map<String, String> attributes(String... attributeNames) {
+        return amazonSQS.getQueueAttributes(new GetQueueAttributesRequest(queueUrl).withAttributeNames(attributeNames))
+            .getAttributes();
+    }
+
+    private static MessageAttributeValue stringAttribute(String value) {
+        return new MessageAttributeValue().withDataType("String").withStringValue(value);
+    }
+}
@@ -0,0 +1,35 @@
+package com.izettle.messaging.test;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class TestEvent {
+    private final long sequence;
+    private final long sentNanos;
+    private final String payload;
+
+    @JsonCreator
+    public TestEvent(
+        @JsonProperty("sequence") long sequence,
+        @JsonProperty("sentNanos") long sentNanos,
+        @JsonProperty("payload") String payload
+    ) {
+        this.sequence = sequence;
+        this.sentNanos = sentNanos;
+        this.payload = payload;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    public long getSentNanos() {
+        return sentNanos;
+    }
+
+    public String getPayload() {
+        return payload;
+    }
+}
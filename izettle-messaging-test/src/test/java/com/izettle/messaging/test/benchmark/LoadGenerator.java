@@ -0,0 +1,129 @@
+package com.izettle.messaging.test.benchmark;
+
+import static com.izettle.java.ResourceUtils.getResourceAsBytes;
+
+import com.izettle.messaging.AmazonSNSSubscriptionSetup;
+import com.izettle.messaging.MessagePublisher;
+import com.izettle.messaging.PublisherService;
+import com.izettle.messaging.QueueProcessingThreads;
+import com.izettle.messaging.QueueProcessor;
+import com.izettle.messaging.handler.MessageDispatcher;
+import com.izettle.messaging.test.InMemoryAmazonSNS;
+import com.izettle.messaging.test.InMemoryAmazonSQS;
+import com.izettle.messaging.test.Latency;
+import com.izettle.messaging.test.TestEvent;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Publishes messages on an SNS topic from several threads, and processes them from a subscribed queue with a
+ * {@link QueueProcessor} that dispatches them with a {@link MessageDispatcher}, all against the in-memory clients. It
+ * then prints how many messages per second went through, and the percentiles of the time from publishing a message
+ * until it was handled.
+ *
+ * Arguments, all optional: number of messages (10000), publishing threads (4), concurrent receivers (4), encrypted
+ * (false), latency of every Amazon SQS and SNS call in milliseconds (0).
+ */
+public final class LoadGenerator {
+    private static final String EVENT_NAME = "TestEvent";
+
+    private LoadGenerator() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        int messages = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        int publishers = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        int receivers = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+        boolean encrypted = args.length > 3 && Boolean.parseBoolean(args[3]);
+        Latency latency = Latency.fixed(args.length > 4 ? Long.parseLong(args[4]) : 0, TimeUnit.MILLISECONDS);
+
+        InMemoryAmazonSQS amazonSQS = new InMemoryAmazonSQS(latency);
+        InMemoryAmazonSNS amazonSNS = new InMemoryAmazonSNS(amazonSQS, latency);
+        String topicArn = amazonSNS.createTopic("load").getTopicArn();
+        String queueUrl = amazonSQS.createQueue("load").getQueueUrl();
+        AmazonSNSSubscriptionSetup.subscribeSQSQueueToSNSTopic(queueUrl, topicArn, amazonSQS, amazonSNS);
+
+        MessagePublisher publisher;
+        MessageDispatcher dispatcher;
+        if (encrypted) {
+            publisher = PublisherService.encryptedPublisherService(
+                amazonSNS,
+                topicArn,
+                getResourceAsBytes("pgp-example-public.key")
+            );
+            dispatcher = MessageDispatcher.encryptedMessageDispatcher(
+                getResourceAsBytes("pgp-example-private.key"),
+                "example"
+            );
+        } else {
+            publisher = PublisherService.nonEncryptedPublisherService(amazonSNS, topicArn);
+            dispatcher = MessageDispatcher.nonEncryptedMessageDispatcher();
+        }
+        long[] latencyNanos = new long[messages];
+        CountDownLatch handled = new CountDownLatch(messages);
+        dispatcher.addHandler(TestEvent.class, EVENT_NAME, event -> {
+            latencyNanos[(int) event.getSequence()] = System.nanoTime() - event.getSentNanos();
+            handled.countDown();
+        });
+        ExecutorService handlerExecutor = Executors.newFixedThreadPool(receivers);
+        QueueProcessingThreads processingThreads = new QueueProcessingThreads(
+            QueueProcessor.builder(amazonSQS, "load", queueUrl, dispatcher)
+                .withExecutorService(handlerExecutor)
+                .withConcurrentReceivers(receivers, receivers * 10)
+                .build()
+        );
+        processingThreads.start();
+
+        long startNanos = System.nanoTime();
+        ExecutorService publisherExecutor = Executors.newFixedThreadPool(publishers);
+        List<Runnable> publishing = new ArrayList<>();
+        for (int publisherIndex = 0; publisherIndex < publishers; publisherIndex++) {
+            int firstSequence = publisherIndex;
+            publishing.add(() -> {
+                for (int sequence = firstSequence; sequence < messages; sequence += publishers) {
+                    try {
+                        publisher.post(new TestEvent(sequence, System.nanoTime(), "payload"), EVENT_NAME);
+                    } catch (Exception e) {
+                        throw new IllegalStateException("Failed to publish message " + sequence, e);
+                    }
+                }
+            });
+        }
+        publishing.forEach(publisherExecutor::execute);
+        boolean completed = handled.await(10, TimeUnit.MINUTES);
+        long elapsedNanos = System.nanoTime() - startNanos;
+        publisherExecutor.shutdownNow();
+        processingThreads.shutdown();
+        handlerExecutor.shutdownNow();
+        if (!completed) {
+            System.out.printf("Handled %d of %d messages before giving up%n", messages - handled.getCount(), messages);
+            return;
+        }
+
+        Arrays.sort(latencyNanos);
+        System.out.printf(
+            "%d messages, %d publishers, %d receivers, encrypted: %b, latency: %s%n",
+            messages,
+            publishers,
+            receivers,
+            encrypted,
+            latency
+        );
+        System.out.printf("Throughput: %.0f messages/s%n", messages / (elapsedNanos / 1e9));
+        System.out.printf(
+            "Latency: p50 %.2f ms, p99 %.2f ms, max %.2f ms%n",
+            percentile(latencyNanos, 0.50) / 1e6,
+            percentile(latencyNanos, 0.99) / 1e6,
+            latencyNanos[latencyNanos.length - 1] / 1e6
+        );
+    }
+
+    private static long percentile(long[] sortedValues, double percentile) {
+        return sortedValues[(int) Math.ceil(percentile * sortedValues.length) - 1];
+    }
+}
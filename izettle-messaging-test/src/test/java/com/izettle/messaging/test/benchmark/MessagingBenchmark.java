@@ -0,0 +1,143 @@
+package com.izettle.messaging.test.benchmark;
+
+import static com.izettle.java.ResourceUtils.getResourceAsBytes;
+
+import com.amazonaws.services.sqs.model.Message;
+import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
+import com.izettle.messaging.MessagePublisher;
+import com.izettle.messaging.MessageQueueConsumer;
+import com.izettle.messaging.MessageQueueProcessor;
+import com.izettle.messaging.PolledMessage;
+import com.izettle.messaging.QueueProcessor;
+import com.izettle.messaging.QueueServicePoller;
+import com.izettle.messaging.QueueServiceSender;
+import com.izettle.messaging.handler.MessageDispatcher;
+import com.izettle.messaging.test.InMemoryAmazonSQS;
+import com.izettle.messaging.test.Latency;
+import com.izettle.messaging.test.TestEvent;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Measures how many messages per second go through the messaging classes, and the latency of each message, against
+ * {@link InMemoryAmazonSQS}, with and without encryption. Run {@link #main(String[])} from the test class path, which
+ * runs every benchmark for throughput in messages per second, and for the distribution of the time per message in
+ * microseconds, whose p0.99 is the p99 latency. Latency of the Amazon SQS calls can be added with the latencyMillis
+ * parameter, for example {@code -p latencyMillis=5} with the JMH command line.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MessagingBenchmark {
+    private static final String EVENT_NAME = "TestEvent";
+    private static final String PASSPHRASE = "example";
+
+    @Param({"false", "true"})
+    public boolean encrypted;
+
+    @Param({"0"})
+    public int latencyMillis;
+
+    private final LongAdder handledEvents = new LongAdder();
+    private final TestEvent event = new TestEvent(1, 0, "payload of the benchmark");
+    private MessagePublisher publisher;
+    private MessageQueueConsumer<TestEvent> consumer;
+    private MessageDispatcher dispatcher;
+    private MessageQueueProcessor processor;
+    private Message receivedMessage;
+
+    @Setup
+    public void setUp() throws Exception {
+        InMemoryAmazonSQS amazonSQS = new InMemoryAmazonSQS(Latency.fixed(latencyMillis, TimeUnit.MILLISECONDS));
+        String queueUrl = amazonSQS.createQueue("benchmark").getQueueUrl();
+        String dispatchQueueUrl = amazonSQS.createQueue("benchmark-dispatch").getQueueUrl();
+        if (encrypted) {
+            byte[] publicKey = getResourceAsBytes("pgp-example-public.key");
+            byte[] privateKey = getResourceAsBytes("pgp-example-private.key");
+            publisher = QueueServiceSender.encryptedMessagePublisher(queueUrl, amazonSQS, publicKey);
+            consumer = QueueServicePoller.encryptedMessageQueueConsumer(
+                TestEvent.class,
+                queueUrl,
+                amazonSQS,
+                privateKey,
+                PASSPHRASE
+            );
+            dispatcher = MessageDispatcher.encryptedMessageDispatcher(privateKey, PASSPHRASE);
+            QueueServiceSender.encryptedMessagePublisher(dispatchQueueUrl, amazonSQS, publicKey)
+                .post(event, EVENT_NAME);
+        } else {
+            publisher = QueueServiceSender.nonEncryptedMessagePublisher(queueUrl, amazonSQS);
+            consumer = QueueServicePoller.nonEncryptedMessageQueueConsumer(TestEvent.class, queueUrl, amazonSQS);
+            dispatcher = MessageDispatcher.nonEncryptedMessageDispatcher();
+            QueueServiceSender.nonEncryptedMessagePublisher(dispatchQueueUrl, amazonSQS).post(event, EVENT_NAME);
+        }
+        dispatcher.addHandler(TestEvent.class, EVENT_NAME, handledEvent -> handledEvents.increment());
+        processor = QueueProcessor.builder(amazonSQS, "benchmark", queueUrl, dispatcher).build();
+        receivedMessage = amazonSQS.receiveMessage(new ReceiveMessageRequest(dispatchQueueUrl)).getMessages().get(0);
+    }
+
+    /**
+     * Reads, decrypts and routes a received message to its handler.
+     */
+    @Benchmark
+    public void dispatch() throws Exception {
+        dispatcher.handle(receivedMessage);
+    }
+
+    /**
+     * Sends a message, polls for it and deletes it.
+     */
+    @Benchmark
+    public int sendAndPoll() throws Exception {
+        publisher.post(event, EVENT_NAME);
+        List<PolledMessage<TestEvent>> messages = consumer.poll(0);
+        for (PolledMessage<TestEvent> message : messages) {
+            consumer.delete(message);
+        }
+        return messages.size();
+    }
+
+    /**
+     * Sends a message, and lets the queue processor receive it, dispatch it to its handler and delete it.
+     */
+    @Benchmark
+    public int sendAndProcess() throws Exception {
+        publisher.post(event, EVENT_NAME);
+        return processor.pollForMessages();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(
+            new OptionsBuilder()
+                .include(MessagingBenchmark.class.getSimpleName())
+                .mode(Mode.Throughput)
+                .timeUnit(TimeUnit.SECONDS)
+                .build()
+        ).run();
+        new Runner(
+            new OptionsBuilder()
+                .include(MessagingBenchmark.class.getSimpleName())
+                .mode(Mode.SampleTime)
+                .timeUnit(TimeUnit.MICROSECONDS)
+                .build()
+        ).run();
+    }
+}
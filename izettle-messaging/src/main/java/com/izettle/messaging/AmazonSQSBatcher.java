@@ -0,0 +1,296 @@
+package com.izettle.messaging;
+
+import static com.izettle.messaging.BatchPacker.MAX_BATCH_PAYLOAD_BYTES;
+import static com.izettle.messaging.BatchPacker.MAX_BATCH_SIZE;
+
+import com.amazonaws.AmazonWebServiceRequest;
+import com.amazonaws.handlers.AsyncHandler;
+import com.amazonaws.services.sqs.AmazonSQS;
+import com.amazonaws.services.sqs.AmazonSQSAsync;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiFunction;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Collects entries for Amazon SQS batch actions per queue url, and sends them as one batch request as soon as
+ * there are ten of them, or when the first entry of a batch has waited for the linger time. A batch is also sent
+ * early when the next entry would take its payload over 256 KB.
+ *
+ * The timer thread only decides when batches go out, it never waits for Amazon SQS. Batches are sent with the async
+ * client when the client is an {@link AmazonSQSAsync}, and otherwise on a few sender threads, so that batches for
+ * different queues are sent at the same time, and adding an entry that fills a batch does not wait for it to be sent.
+ * When all sender threads are busy and the backlog of batches is full, batches are sent on the thread that hands them
+ * over instead.
+ *
+ * @param <E> Type of the entries being batched.
+ * @param <R> Type of the result of each entry.
+ */
+abstract class AmazonSQSBatcher<E, R> implements AutoCloseable {
+    private static final Logger LOG = LoggerFactory.getLogger(AmazonSQSBatcher.class);
+    private static final int SENDER_THREADS = 10;
+    private static final int MAX_QUEUED_BATCHES = 100;
+    private final Map<String, List<PendingEntry<E, R>>> pendingEntriesPerQueueUrl = new HashMap<>();
+    private final Set<CompletableFuture<Void>> batchesInFlight = ConcurrentHashMap.newKeySet();
+    private final AmazonSQS amazonSQS;
+    private final ScheduledExecutorService scheduler;
+    private final ThreadPoolExecutor senderExecutor;
+    private final long lingerMillis;
+    private volatile boolean closed;
+
+    AmazonSQSBatcher(AmazonSQS amazonSQS, String threadName, long linger, TimeUnit unit) {
+        if (linger < 0) {
+            throw new IllegalArgumentException("Illegal linger, was: " + linger);
+        }
+        this.amazonSQS = amazonSQS;
+        this.lingerMillis = unit.toMillis(linger);
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(daemonThreads(threadName));
+        if (amazonSQS instanceof AmazonSQSAsync) {
+            this.senderExecutor = null;
+        } else {
+            this.senderExecutor = new ThreadPoolExecutor(
+                SENDER_THREADS,
+                SENDER_THREADS,
+                60,
+                TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(MAX_QUEUED_BATCHES),
+                daemonThreads(threadName + "-sender")
+            );
+            this.senderExecutor.allowCoreThreadTimeOut(true);
+        }
+    }
+
+    private static ThreadFactory daemonThreads(String threadName) {
+        return runnable -> {
+            Thread thread = new Thread(runnable, threadName);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * Starts sending a batch request for the supplied entries, without waiting for it, see
+     * {@link #call(AmazonWebServiceRequest, AsyncCall, BiFunction)}.
+     *
+     * @param queueUrl Url of the queue that all entries belong to.
+     * @param batch At most ten entries.
+     * @return Future that completes once the future of every entry has been completed. If it completes exceptionally,
+     *         the entries that are not completed yet fail with the same cause.
+     */
+    abstract CompletableFuture<Void> sendBatch(String queueUrl, List<PendingEntry<E, R>> batch);
+
+    /**
+     * Makes a call to Amazon SQS with the async client if the client is an {@link AmazonSQSAsync}, and otherwise with
+     * the blocking client on a sender thread.
+     *
+     * @param request Request of the call.
+     * @param asyncCall The call with the async client, like {@code AmazonSQSAsync::deleteMessageBatchAsync}.
+     * @param call The call with the blocking client, like {@code AmazonSQS::deleteMessageBatch}.
+     * @return Future that completes with the result of the call.
+     */
+    <Q extends AmazonWebServiceRequest, S> CompletableFuture<S> call(
+        Q request,
+        AsyncCall<Q, S> asyncCall,
+        BiFunction<AmazonSQS, Q, S> call
+    ) {
+        if (senderExecutor == null) {
+            CompletableAsyncHandler<Q, S> handler = new CompletableAsyncHandler<>();
+            try {
+                asyncCall.call((AmazonSQSAsync) amazonSQS, request, handler);
+            } catch (RuntimeException e) {
+                handler.onError(e);
+            }
+            return handler.getFuture();
+        }
+        try {
+            return CompletableFuture.supplyAsync(() -> call.apply(amazonSQS, request), senderExecutor);
+        } catch (RejectedExecutionException e) {
+            // The sender threads are behind, or the batcher is closed, so the caller sends it.
+            try {
+                return CompletableFuture.completedFuture(call.apply(amazonSQS, request));
+            } catch (RuntimeException callFailure) {
+                CompletableFuture<S> failed = new CompletableFuture<>();
+                failed.completeExceptionally(callFailure);
+                return failed;
+            }
+        }
+    }
+
+    /**
+     * Tells how many bytes an entry adds to the payload of a batch request, that may be at most
+     * {@link BatchPacker#MAX_BATCH_PAYLOAD_BYTES}. Entries are not counted by default.
+     */
+    long sizeOf(E entry) {
+        return 0;
+    }
+
+    CompletableFuture<R> add(String queueUrl, E entry) {
+        PendingEntry<E, R> pendingEntry = new PendingEntry<>(entry, sizeOf(entry));
+        if (pendingEntry.size > MAX_BATCH_PAYLOAD_BYTES) {
+            pendingEntry.fail(new MessagingException(
+                "Entry of " + pendingEntry.size + " bytes exceeds the maximum batch payload of "
+                    + MAX_BATCH_PAYLOAD_BYTES + " bytes."
+            ));
+            return pendingEntry.future;
+        }
+        List<List<PendingEntry<E, R>>> readyBatches = new ArrayList<>(2);
+        synchronized (pendingEntriesPerQueueUrl) {
+            List<PendingEntry<E, R>> batch = pendingEntriesPerQueueUrl.get(queueUrl);
+            if (batch != null && payloadSize(batch) + pendingEntry.size > MAX_BATCH_PAYLOAD_BYTES) {
+                // Does not fit, so the batch goes out as it is, and the entry starts a new one.
+                pendingEntriesPerQueueUrl.remove(queueUrl);
+                readyBatches.add(batch);
+                batch = null;
+            }
+            if (batch == null) {
+                batch = new ArrayList<>(MAX_BATCH_SIZE);
+                pendingEntriesPerQueueUrl.put(queueUrl, batch);
+            }
+            batch.add(pendingEntry);
+            if (batch.size() >= MAX_BATCH_SIZE || closed) {
+                pendingEntriesPerQueueUrl.remove(queueUrl);
+                readyBatches.add(batch);
+            } else if (batch.size() == 1) {
+                scheduleFlush(queueUrl, batch);
+            }
+        }
+        readyBatches.forEach(batch -> send(queueUrl, batch));
+        return pendingEntry.future;
+    }
+
+    private long payloadSize(List<PendingEntry<E, R>> batch) {
+        long size = 0;
+        for (PendingEntry<E, R> pendingEntry : batch) {
+            size += pendingEntry.size;
+        }
+        return size;
+    }
+
+    /**
+     * Runs a task periodically on the timer thread, until the batcher is closed. The task must not block.
+     */
+    void scheduleAtFixedRate(Runnable task, long periodMillis) {
+        scheduler.scheduleAtFixedRate(task, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void scheduleFlush(String queueUrl, List<PendingEntry<E, R>> batch) {
+        try {
+            scheduler.schedule(() -> flush(queueUrl, batch), lingerMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // Closed while adding, the batch will go out with the flush() in close().
+            LOG.debug("Batcher is closing, entries for {} will be sent when it has closed.", queueUrl);
+        }
+    }
+
+    private void flush(String queueUrl, List<PendingEntry<E, R>> batch) {
+        synchronized (pendingEntriesPerQueueUrl) {
+            if (pendingEntriesPerQueueUrl.get(queueUrl) != batch) {
+                // Already sent because it got full.
+                return;
+            }
+            pendingEntriesPerQueueUrl.remove(queueUrl);
+        }
+        send(queueUrl, batch);
+    }
+
+    /**
+     * Sends all pending entries right away, without waiting for their linger time to pass, and waits until every batch
+     * sent so far is done.
+     */
+    public void flush() {
+        sendPendingEntries();
+        CompletableFuture.allOf(batchesInFlight.toArray(new CompletableFuture<?>[0])).join();
+    }
+
+    /**
+     * Starts sending all pending entries right away, without waiting for them to be sent.
+     */
+    void sendPendingEntries() {
+        Map<String, List<PendingEntry<E, R>>> pending;
+        synchronized (pendingEntriesPerQueueUrl) {
+            pending = new HashMap<>(pendingEntriesPerQueueUrl);
+            pendingEntriesPerQueueUrl.clear();
+        }
+        pending.forEach(this::send);
+    }
+
+    private void send(String queueUrl, List<PendingEntry<E, R>> batch) {
+        CompletableFuture<Void> sent;
+        try {
+            sent = sendBatch(queueUrl, batch);
+        } catch (RuntimeException e) {
+            sent = new CompletableFuture<>();
+            sent.completeExceptionally(e);
+        }
+        CompletableFuture<Void> done = sent.handle((ignored, throwable) -> {
+            if (throwable != null) {
+                Throwable cause = throwable instanceof CompletionException ? throwable.getCause() : throwable;
+                LOG.warn("Failed to send batch of {} entries to queue {}.", batch.size(), queueUrl, cause);
+                batch.forEach(pendingEntry -> pendingEntry.fail(cause));
+            }
+            return null;
+        });
+        batchesInFlight.add(done);
+        done.whenComplete((ignored, throwable) -> batchesInFlight.remove(done));
+    }
+
+    /**
+     * Sends all pending entries, waits for them, and stops the linger timer and the sender threads. Entries added
+     * after this are sent right away.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        scheduler.shutdown();
+        flush();
+        if (senderExecutor != null) {
+            senderExecutor.shutdown();
+        }
+    }
+
+    /**
+     * A call with the async client, that completes the handler with its result.
+     */
+    @FunctionalInterface
+    interface AsyncCall<Q extends AmazonWebServiceRequest, S> {
+        Future<S> call(AmazonSQSAsync amazonSQSAsync, Q request, AsyncHandler<Q, S> handler);
+    }
+
+    static final class PendingEntry<E, R> {
+        private final E entry;
+        private final long size;
+        private final CompletableFuture<R> future = new CompletableFuture<>();
+
+        private PendingEntry(E entry, long size) {
+            this.entry = entry;
+            this.size = size;
+        }
+
+        E getEntry() {
+            return entry;
+        }
+
+        void complete(R result) {
+            future.complete(result);
+        }
+
+        void fail(Throwable cause) {
+            future.completeExceptionally(cause);
+        }
+    }
+}
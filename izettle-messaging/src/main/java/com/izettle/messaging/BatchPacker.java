@@ -0,0 +1,79 @@
+package com.izettle.messaging;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Packs entries into batches that fit the limits of both Amazon SQS and Amazon SNS batch requests: at most ten
+ * entries, and at most 256 KB of payload. Packing is first fit, an entry goes into the oldest open batch that has
+ * room for it, so the order of the entries is kept within each batch.
+ *
+ * Batches are handed over as soon as they hold ten entries. To keep the number of open batches down, the oldest one
+ * is also handed over when yet another batch is needed, so entries can be packed while iterating over any number of
+ * messages.
+ *
+ * @param <E> Type of the entries.
+ */
+final class BatchPacker<E> {
+    static final int MAX_BATCH_SIZE = 10;
+    static final int MAX_BATCH_PAYLOAD_BYTES = 262144;
+    private static final int MAX_OPEN_BATCHES = 10;
+    private final Consumer<List<E>> batchConsumer;
+    private final List<OpenBatch<E>> openBatches = new ArrayList<>(MAX_OPEN_BATCHES);
+
+    /**
+     * @param batchConsumer Gets every batch once it is packed.
+     */
+    BatchPacker(Consumer<List<E>> batchConsumer) {
+        this.batchConsumer = batchConsumer;
+    }
+
+    /**
+     * @param entry Entry to pack.
+     * @param size Payload size of the entry in bytes, at most {@link #MAX_BATCH_PAYLOAD_BYTES}.
+     */
+    void add(E entry, long size) {
+        if (size > MAX_BATCH_PAYLOAD_BYTES) {
+            throw new IllegalArgumentException("Entry does not fit in a batch, size was: " + size);
+        }
+        OpenBatch<E> batch = null;
+        for (OpenBatch<E> openBatch : openBatches) {
+            if (openBatch.payloadSize + size <= MAX_BATCH_PAYLOAD_BYTES) {
+                batch = openBatch;
+                break;
+            }
+        }
+        if (batch == null) {
+            if (openBatches.size() >= MAX_OPEN_BATCHES) {
+                batchConsumer.accept(openBatches.remove(0).entries);
+            }
+            batch = new OpenBatch<>();
+            openBatches.add(batch);
+        }
+        batch.entries.add(entry);
+        batch.payloadSize += size;
+        if (batch.entries.size() >= MAX_BATCH_SIZE) {
+            openBatches.remove(batch);
+            batchConsumer.accept(batch.entries);
+        }
+    }
+
+    /**
+     * Hands over all batches that are still open.
+     */
+    void flush() {
+        Iterator<OpenBatch<E>> iterator = openBatches.iterator();
+        while (iterator.hasNext()) {
+            OpenBatch<E> batch = iterator.next();
+            iterator.remove();
+            batchConsumer.accept(batch.entries);
+        }
+    }
+
+    private static final class OpenBatch<E> {
+        private final List<E> entries = new ArrayList<>(MAX_BATCH_SIZE);
+        private long payloadSize;
+    }
+}
@@ -0,0 +1,109 @@
+package com.izettle.messaging;
+
+import com.amazonaws.services.sqs.AmazonSQS;
+import com.amazonaws.services.sqs.AmazonSQSAsync;
+import com.amazonaws.services.sqs.model.BatchResultErrorEntry;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequest;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchResult;
+import com.amazonaws.services.sqs.model.DeleteMessageRequest;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Deletes handled messages from their queues with DeleteMessageBatch requests instead of one DeleteMessage request
+ * per message. Receipt handles are collected per queue url, and a batch is sent as soon as it holds ten of them, or
+ * when its first receipt handle has waited for the linger time. Entries that fail in a batch are retried one by one.
+ *
+ * One deleter can be shared by any number of queue processors and pollers.
+ */
+public class BatchingMessageDeleter extends AmazonSQSBatcher<String, Void> {
+    private static final Logger LOG = LoggerFactory.getLogger(BatchingMessageDeleter.class);
+    private static final long DEFAULT_LINGER_MILLIS = 50;
+
+    public BatchingMessageDeleter(AmazonSQS amazonSQS) {
+        this(amazonSQS, DEFAULT_LINGER_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    public BatchingMessageDeleter(AmazonSQS amazonSQS, long linger, TimeUnit unit) {
+        super(amazonSQS, "batching-message-deleter", linger, unit);
+    }
+
+    /**
+     * Queues a message for deletion.
+     *
+     * @param queueUrl Url of the queue that the message was received from.
+     * @param receiptHandle Receipt handle of the received message.
+     * @return Future that completes when the message has been deleted.
+     */
+    public CompletableFuture<Void> delete(String queueUrl, String receiptHandle) {
+        return add(queueUrl, receiptHandle);
+    }
+
+    @Override
+    CompletableFuture<Void> sendBatch(String queueUrl, List<PendingEntry<String, Void>> batch) {
+        List<DeleteMessageBatchRequestEntry> entries = new ArrayList<>(batch.size());
+        for (int i = 0; i < batch.size(); i++) {
+            entries.add(new DeleteMessageBatchRequestEntry(String.valueOf(i), batch.get(i).getEntry()));
+        }
+        return call(
+            new DeleteMessageBatchRequest(queueUrl, entries),
+            AmazonSQSAsync::deleteMessageBatchAsync,
+            AmazonSQS::deleteMessageBatch
+        ).thenCompose(result -> complete(queueUrl, batch, result));
+    }
+
+    /**
+     * @return Future that completes when the failed entries have been retried.
+     */
+    private CompletableFuture<Void> complete(
+        String queueUrl,
+        List<PendingEntry<String, Void>> batch,
+        DeleteMessageBatchResult result
+    ) {
+        Set<Integer> failedIndexes = new HashSet<>();
+        List<CompletableFuture<Void>> retries = new ArrayList<>(result.getFailed().size());
+        for (BatchResultErrorEntry failed : result.getFailed()) {
+            int index = Integer.parseInt(failed.getId());
+            failedIndexes.add(index);
+            LOG.debug("Failed to delete message in batch from queue {}, due to {}. Will retry.", queueUrl, failed);
+            retries.add(deleteOne(queueUrl, batch.get(index)));
+        }
+        for (int i = 0; i < batch.size(); i++) {
+            if (!failedIndexes.contains(i)) {
+                batch.get(i).complete(null);
+            }
+        }
+        return CompletableFuture.allOf(retries.toArray(new CompletableFuture<?>[0]));
+    }
+
+    private CompletableFuture<Void> deleteOne(String queueUrl, PendingEntry<String, Void> pendingEntry) {
+        String receiptHandle = pendingEntry.getEntry();
+        return call(
+            new DeleteMessageRequest(queueUrl, receiptHandle),
+            AmazonSQSAsync::deleteMessageAsync,
+            AmazonSQS::deleteMessage
+        ).handle((deleteMessageResult, throwable) -> {
+            if (throwable == null) {
+                pendingEntry.complete(null);
+                return null;
+            }
+            Throwable cause = throwable instanceof CompletionException ? throwable.getCause() : throwable;
+            LOG.warn("Failed to delete message with receipt handle {} from queue {}.", receiptHandle, queueUrl, cause);
+            pendingEntry.fail(
+                new MessagingException(
+                    "Failed to delete message with receipt handle " + receiptHandle + " from queue " + queueUrl,
+                    cause
+                )
+            );
+            return null;
+        });
+    }
+}
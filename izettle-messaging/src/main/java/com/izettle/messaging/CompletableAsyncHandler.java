@@ -0,0 +1,28 @@
+package com.izettle.messaging;
+
+import com.amazonaws.AmazonWebServiceRequest;
+import com.amazonaws.handlers.AsyncHandler;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Async handler for the Amazon async clients, that completes a future with the result of the call.
+ */
+final class CompletableAsyncHandler<REQUEST extends AmazonWebServiceRequest, RESULT>
+    implements AsyncHandler<REQUEST, RESULT> {
+
+    private final CompletableFuture<RESULT> future = new CompletableFuture<>();
+
+    @Override
+    public void onError(Exception exception) {
+        future.completeExceptionally(exception);
+    }
+
+    @Override
+    public void onSuccess(REQUEST request, RESULT result) {
+        future.complete(result);
+    }
+
+    CompletableFuture<RESULT> getFuture() {
+        return future;
+    }
+}
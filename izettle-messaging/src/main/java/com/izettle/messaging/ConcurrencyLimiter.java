@@ -0,0 +1,88 @@
+package com.izettle.messaging;
+
+/**
+ * Adaptive limit on how many received messages a queue processor has in flight, that is received but not yet
+ * handled. Permits are taken before a receive call for as many messages as are asked for, the permits of messages
+ * that were not received are given back afterwards, and the permit of a received message is given back once it has
+ * been handled.
+ *
+ * The limit grows by one for every limit worth of messages handled within the latency threshold, and is cut by a
+ * quarter when a handler fails or exceeds the threshold (additive increase, multiplicative decrease). Only messages
+ * whose handling started after the last cut can cut it again, so that one slow round of messages cuts it once.
+ */
+final class ConcurrencyLimiter {
+    private static final int MINIMUM_LIMIT = 1;
+    private static final double DECREASE_FACTOR = 0.75;
+
+    private final int maximumLimit;
+    private final long latencyThresholdNanos;
+    private double limit;
+    private int inFlight;
+    private long decreasedAtNanos;
+
+    ConcurrencyLimiter(int initialLimit, int maximumLimit, long latencyThresholdNanos) {
+        if (initialLimit < 1) {
+            throw new IllegalArgumentException("Illegal initialLimit, was: " + initialLimit);
+        }
+        if (maximumLimit < initialLimit) {
+            throw new IllegalArgumentException("Illegal maximumLimit, was: " + maximumLimit);
+        }
+        if (latencyThresholdNanos < 1) {
+            throw new IllegalArgumentException("Illegal latencyThresholdNanos, was: " + latencyThresholdNanos);
+        }
+        this.maximumLimit = maximumLimit;
+        this.latencyThresholdNanos = latencyThresholdNanos;
+        this.limit = initialLimit;
+        this.decreasedAtNanos = System.nanoTime();
+    }
+
+    /**
+     * Waits until the number of messages in flight is below the limit.
+     *
+     * @param maximumPermits Most permits to take.
+     * @return Number of permits taken, between 1 and maximumPermits.
+     * @throws InterruptedException Interrupted while waiting, no permits were taken.
+     */
+    synchronized int acquire(int maximumPermits) throws InterruptedException {
+        while (inFlight >= getLimit()) {
+            wait();
+        }
+        int acquired = Math.min(maximumPermits, getLimit() - inFlight);
+        inFlight += acquired;
+        return acquired;
+    }
+
+    /**
+     * @param unusedPermits Permits that were taken for messages that were not received.
+     */
+    synchronized void release(int unusedPermits) {
+        if (unusedPermits > 0) {
+            inFlight -= unusedPermits;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Gives back the permit of a handled message, and adapts the limit to how the handling went.
+     *
+     * @param startNanos When the handling of the message started.
+     * @param endNanos When the handling of the message ended.
+     * @param failed Whether the handler failed.
+     */
+    synchronized void handled(long startNanos, long endNanos, boolean failed) {
+        inFlight--;
+        if (failed || endNanos - startNanos > latencyThresholdNanos) {
+            if (startNanos - decreasedAtNanos >= 0) {
+                limit = Math.max(MINIMUM_LIMIT, limit * DECREASE_FACTOR);
+                decreasedAtNanos = endNanos;
+            }
+        } else {
+            limit = Math.min(maximumLimit, limit + 1 / limit);
+        }
+        notifyAll();
+    }
+
+    synchronized int getLimit() {
+        return (int) limit;
+    }
+}
@@ -0,0 +1,180 @@
+package com.izettle.messaging;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reports messaging metrics to a MetricRegistry, named after the queue or topic they are for, e.g.
+ * "com.izettle.messaging.my-queue.receive". Durations are timers, and the other distributions are histograms:
+ *
+ * <ul>
+ * <li>receive: timer of receive calls, receive.fill-percent: how full the received batches were,
+ * receive.empty: meter of receive calls without messages, and received: meter of received messages, e.g. the drain
+ * rate of a dead letter queue.</li>
+ * <li>depth: gauge of the approximate number of messages in the queue when it was last reported, for processors
+ * that report it.</li>
+ * <li>age-millis: time from when messages were sent until they were received.</li>
+ * <li>in-flight: counter of received messages that are not yet done.</li>
+ * <li>read, handle and delete: timers of the stages of received messages.</li>
+ * <li>serialize and send: timers of the stages of sent messages, and sent: meter of sent messages.</li>
+ * </ul>
+ *
+ * Needs metrics-core 3.2 or later on the class path, which is an optional dependency of izettle-messaging.
+ */
+public class DropwizardMessagingMetrics implements MessagingMetrics {
+    private final MetricRegistry metricRegistry;
+    private final String prefix;
+    private final ConcurrentMap<String, DestinationMetrics> metricsPerDestination = new ConcurrentHashMap<>();
+
+    public DropwizardMessagingMetrics(MetricRegistry metricRegistry) {
+        this(metricRegistry, "com.izettle.messaging");
+    }
+
+    /**
+     * @param metricRegistry Registry to report to.
+     * @param prefix Prefix of the metric names.
+     */
+    public DropwizardMessagingMetrics(MetricRegistry metricRegistry, String prefix) {
+        this.metricRegistry = metricRegistry;
+        this.prefix = prefix;
+    }
+
+    @Override
+    public void received(String queueUrl, int requested, int received, long nanos) {
+        DestinationMetrics metrics = metricsOf(queueUrl);
+        metrics.receive.update(nanos, TimeUnit.NANOSECONDS);
+        if (requested > 0) {
+            metrics.receiveFillPercent.update(received * 100 / requested);
+        }
+        if (received == 0) {
+            metrics.emptyReceive.mark();
+        }
+        metrics.receivedMessages.mark(received);
+    }
+
+    @Override
+    public void queueDepth(String queueUrl, long messages) {
+        metricsOf(queueUrl).depth.set(messages);
+    }
+
+    @Override
+    public void messageAge(String queueUrl, long ageMillis) {
+        metricsOf(queueUrl).ageMillis.update(Math.max(ageMillis, 0));
+    }
+
+    @Override
+    public void inFlight(String queueUrl, int change) {
+        metricsOf(queueUrl).inFlight.inc(change);
+    }
+
+    @Override
+    public void read(String queueUrl, long nanos) {
+        metricsOf(queueUrl).read.update(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public void handled(String queueUrl, long nanos) {
+        metricsOf(queueUrl).handle.update(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public void deleted(String queueUrl, long nanos) {
+        metricsOf(queueUrl).delete.update(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public void serialized(String destination, long nanos) {
+        metricsOf(destination).serialize.update(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public void sent(String destination, int messages, long nanos) {
+        DestinationMetrics metrics = metricsOf(destination);
+        metrics.send.update(nanos, TimeUnit.NANOSECONDS);
+        metrics.sentMessages.mark(messages);
+    }
+
+    private DestinationMetrics metricsOf(String destination) {
+        DestinationMetrics metrics = metricsPerDestination.get(destination);
+        if (metrics == null) {
+            metrics = metricsPerDestination.computeIfAbsent(
+                destination,
+                d -> new DestinationMetrics(MetricRegistry.name(prefix, nameOf(d)))
+            );
+        }
+        return metrics;
+    }
+
+    /**
+     * @return The queue name of a queue url, or the topic name of a topic ARN.
+     */
+    static String nameOf(String destination) {
+        return destination.substring(Math.max(destination.lastIndexOf('/'), destination.lastIndexOf(':')) + 1);
+    }
+
+    /**
+     * @return The gauge with the name, registered if there is none yet.
+     */
+    private LastValue lastValue(String name) {
+        Gauge<?> gauge = metricRegistry.gauge(name, LastValue::new);
+        if (!(gauge instanceof LastValue)) {
+            throw new IllegalArgumentException("A different gauge is already registered as " + name);
+        }
+        return (LastValue) gauge;
+    }
+
+    /**
+     * Gauge of the value that was set last.
+     */
+    private static final class LastValue implements Gauge<Long> {
+        private volatile long value;
+
+        void set(long value) {
+            this.value = value;
+        }
+
+        @Override
+        public Long getValue() {
+            return value;
+        }
+    }
+
+    private final class DestinationMetrics {
+        private final Timer receive;
+        private final Histogram receiveFillPercent;
+        private final Meter emptyReceive;
+        private final Meter receivedMessages;
+        private final LastValue depth;
+        private final Histogram ageMillis;
+        private final Counter inFlight;
+        private final Timer read;
+        private final Timer handle;
+        private final Timer delete;
+        private final Timer serialize;
+        private final Timer send;
+        private final Meter sentMessages;
+
+        private DestinationMetrics(String name) {
+            this.receive = metricRegistry.timer(MetricRegistry.name(name, "receive"));
+            this.receiveFillPercent = metricRegistry.histogram(MetricRegistry.name(name, "receive", "fill-percent"));
+            this.emptyReceive = metricRegistry.meter(MetricRegistry.name(name, "receive", "empty"));
+            this.receivedMessages = metricRegistry.meter(MetricRegistry.name(name, "received"));
+            this.depth = lastValue(MetricRegistry.name(name, "depth"));
+            this.ageMillis = metricRegistry.histogram(MetricRegistry.name(name, "age-millis"));
+            this.inFlight = metricRegistry.counter(MetricRegistry.name(name, "in-flight"));
+            this.read = metricRegistry.timer(MetricRegistry.name(name, "read"));
+            this.handle = metricRegistry.timer(MetricRegistry.name(name, "handle"));
+            this.delete = metricRegistry.timer(MetricRegistry.name(name, "delete"));
+            this.serialize = metricRegistry.timer(MetricRegistry.name(name, "serialize"));
+            this.send = metricRegistry.timer(MetricRegistry.name(name, "send"));
+            this.sentMessages = metricRegistry.meter(MetricRegistry.name(name, "sent"));
+        }
+    }
+}
@@ -0,0 +1,23 @@
+package com.izettle.messaging;
+
+/**
+ * Remembers the keys of handled messages for a {@link MessageDeduplicator}, so that duplicates are also detected by
+ * other consumers of the queue and after restarts. Implementations can keep the keys in a database table with
+ * izettle-jdbi, or in Cassandra, and should forget them once SQS no longer delivers duplicates of the messages, for
+ * example with a Cassandra TTL or a job that deletes old rows.
+ */
+public interface HandledMessageStore {
+
+    /**
+     * @param key Key of a received message.
+     * @return True if a message with the key has been handled.
+     * @throws MessagingException Failed to read from the store.
+     */
+    boolean isHandled(String key) throws MessagingException;
+
+    /**
+     * @param key Key of a message that has been handled.
+     * @throws MessagingException Failed to write to the store.
+     */
+    void markHandled(String key) throws MessagingException;
+}
@@ -0,0 +1,51 @@
+package com.izettle.messaging;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.function.Supplier;
+
+/**
+ * Limits the number of asynchronous sends that are in flight at the same time. Sends beyond the limit are not
+ * queued, but fail right away, so that callers get backpressure without having a thread blocked.
+ */
+final class InFlightLimiter {
+    static final int DEFAULT_MAX_IN_FLIGHT = 1000;
+    private final int maxInFlight;
+    private final Semaphore permits;
+
+    InFlightLimiter(int maxInFlight) {
+        if (maxInFlight < 1) {
+            throw new IllegalArgumentException("Illegal maxInFlight, was: " + maxInFlight);
+        }
+        this.maxInFlight = maxInFlight;
+        this.permits = new Semaphore(maxInFlight);
+    }
+
+    /**
+     * @param send Starts the send, and returns a future that completes when it is done.
+     * @param destination Where the message is sent, for the error message.
+     * @return The future of the send, or a future failed with a {@link MessagingException} if there already are
+     * too many sends in flight.
+     */
+    <T> CompletableFuture<T> send(Supplier<CompletableFuture<T>> send, String destination) {
+        if (!permits.tryAcquire()) {
+            return failedFuture(
+                new MessagingException("More than " + maxInFlight + " messages in flight to " + destination)
+            );
+        }
+        CompletableFuture<T> sent;
+        try {
+            sent = send.get();
+        } catch (RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+        return sent.whenComplete((result, throwable) -> permits.release());
+    }
+
+    static <T> CompletableFuture<T> failedFuture(Throwable throwable) {
+        CompletableFuture<T> failed = new CompletableFuture<>();
+        failed.completeExceptionally(throwable);
+        return failed;
+    }
+}
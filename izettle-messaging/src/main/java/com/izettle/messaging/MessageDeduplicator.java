@@ -0,0 +1,155 @@
+package com.izettle.messaging;
+
+import com.amazonaws.services.sqs.model.Message;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Detects messages that have already been handled, since Amazon SQS standard queues may deliver a message more than
+ * once. A queue processor with a deduplicator deletes duplicates without handling them (see
+ * {@link QueueProcessor.Builder#withDeduplication(MessageDeduplicator)}).
+ *
+ * The keys of handled messages are kept in memory for a limited time, and at most a limited number of them, oldest
+ * first out. They can also be kept in a {@link HandledMessageStore}, which is asked about messages that are not in
+ * memory. Failures of the store are logged, and the message is then handled as if it was not a duplicate.
+ *
+ * Messages are only marked as handled once their handler has returned, so two copies that are received at the same
+ * time may both be handled.
+ */
+public class MessageDeduplicator {
+    private static final Logger LOG = LoggerFactory.getLogger(MessageDeduplicator.class);
+
+    /**
+     * Key of the SQS message. A message that is published more than once to Amazon SNS gets a new message id every
+     * time, use a key from the message body to detect such duplicates.
+     */
+    public static final Function<Message, String> MESSAGE_ID = Message::getMessageId;
+
+    private final Function<Message, String> key;
+    private final int maximumSize;
+    private final long retentionNanos;
+    private final HandledMessageStore handledMessageStore;
+    private final LongSupplier nanoTime;
+    private final Map<String, Long> expiryPerHandledKey = new LinkedHashMap<>();
+
+    /**
+     * Creates a deduplicator that keeps the message ids of handled messages in memory.
+     *
+     * @param maximumSize Maximum number of message ids to keep.
+     * @param retention How long to keep a message id.
+     * @param unit Time unit of the retention.
+     */
+    public MessageDeduplicator(int maximumSize, long retention, TimeUnit unit) {
+        this(MESSAGE_ID, maximumSize, retention, unit, null);
+    }
+
+    /**
+     * @param key Function that picks the key of a message, or returns null for messages that should never be
+     * treated as duplicates.
+     * @param maximumSize Maximum number of keys to keep in memory.
+     * @param retention How long to keep a key in memory.
+     * @param unit Time unit of the retention.
+     * @param handledMessageStore Store to remember keys beyond the memory of this deduplicator, or null.
+     */
+    public MessageDeduplicator(
+        Function<Message, String> key,
+        int maximumSize,
+        long retention,
+        TimeUnit unit,
+        HandledMessageStore handledMessageStore
+    ) {
+        this(key, maximumSize, retention, unit, handledMessageStore, System::nanoTime);
+    }
+
+    MessageDeduplicator(
+        Function<Message, String> key,
+        int maximumSize,
+        long retention,
+        TimeUnit unit,
+        HandledMessageStore handledMessageStore,
+        LongSupplier nanoTime
+    ) {
+        if (maximumSize < 1) {
+            throw new IllegalArgumentException("Illegal maximumSize, was: " + maximumSize);
+        }
+        if (retention < 1) {
+            throw new IllegalArgumentException("Illegal retention, was: " + retention);
+        }
+        this.key = key;
+        this.maximumSize = maximumSize;
+        this.retentionNanos = unit.toNanos(retention);
+        this.handledMessageStore = handledMessageStore;
+        this.nanoTime = nanoTime;
+    }
+
+    /**
+     * @param message Received message.
+     * @return True if a message with the same key has been handled.
+     */
+    public boolean isDuplicate(Message message) {
+        String messageKey = key.apply(message);
+        if (messageKey == null) {
+            return false;
+        }
+        long now = nanoTime.getAsLong();
+        synchronized (expiryPerHandledKey) {
+            Long expiry = expiryPerHandledKey.get(messageKey);
+            if (expiry != null && expiry - now > 0) {
+                return true;
+            }
+        }
+        if (handledMessageStore == null) {
+            return false;
+        }
+        try {
+            if (handledMessageStore.isHandled(messageKey)) {
+                remember(messageKey, now);
+                return true;
+            }
+        } catch (MessagingException | RuntimeException e) {
+            LOG.warn("Failed to look up handled message {}, will handle it.", messageKey, e);
+        }
+        return false;
+    }
+
+    /**
+     * @param message Message that has been handled.
+     */
+    public void markHandled(Message message) {
+        String messageKey = key.apply(message);
+        if (messageKey == null) {
+            return;
+        }
+        remember(messageKey, nanoTime.getAsLong());
+        if (handledMessageStore == null) {
+            return;
+        }
+        try {
+            handledMessageStore.markHandled(messageKey);
+        } catch (MessagingException | RuntimeException e) {
+            LOG.warn("Failed to store handled message {}.", messageKey, e);
+        }
+    }
+
+    private void remember(String messageKey, long now) {
+        synchronized (expiryPerHandledKey) {
+            // Removed first, so that the key moves last in the order of expiry.
+            expiryPerHandledKey.remove(messageKey);
+            expiryPerHandledKey.put(messageKey, now + retentionNanos);
+            Iterator<Long> oldestFirst = expiryPerHandledKey.values().iterator();
+            while (oldestFirst.hasNext()) {
+                long expiry = oldestFirst.next();
+                if (expiryPerHandledKey.size() <= maximumSize && expiry - now > 0) {
+                    break;
+                }
+                oldestFirst.remove();
+            }
+        }
+    }
+}
@@ -1,7 +1,13 @@
 package com.izettle.messaging;
 
+import static com.izettle.java.ValueChecks.empty;
+
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 public interface MessagePublisher {
     <M> void post(M message, String eventName) throws MessagingException;
@@ -9,4 +15,59 @@ public interface MessagePublisher {
     default <M> void post(M message, String eventName, Map<String, String> attributes) throws MessagingException {
         post(message, eventName);
     }
+
+    /**
+     * Posts several messages, and tells how it went for each one of them, instead of failing as a whole.
+     *
+     * @param messages Messages to post.
+     * @param eventName Message subject (type of message).
+     * @return The result of every message, in the order of the messages.
+     * @throws MessagingException Failed to post any of the messages, e.g. because of an empty eventName.
+     */
+    default <M> List<PostResult> postBatchWithResults(
+        Collection<M> messages,
+        String eventName
+    ) throws MessagingException {
+        if (empty(eventName)) {
+            throw new MessagingException("Cannot publish message with empty eventName!");
+        }
+        List<PostResult> results = new ArrayList<>(messages.size());
+        for (M message : messages) {
+            try {
+                post(message, eventName);
+                results.add(PostResult.success(null));
+            } catch (MessagingException e) {
+                results.add(PostResult.failure(e));
+            }
+        }
+        return results;
+    }
+
+    default <M> CompletableFuture<MessageReceipt> postAsync(M message, String eventName) {
+        return postAsync(message, eventName, Collections.emptyMap());
+    }
+
+    /**
+     * Publishes message without waiting for it to be sent. Publishers that can not send without blocking publish
+     * the message before returning, and complete the future without a receipt.
+     *
+     * @param message Message to publish.
+     * @param eventName Message subject (type of message).
+     * @param attributes Message attributes, at most 10 of them.
+     * @return Future that completes with the receipt of the message, or with a {@link MessagingException}.
+     */
+    default <M> CompletableFuture<MessageReceipt> postAsync(
+        M message,
+        String eventName,
+        Map<String, String> attributes
+    ) {
+        CompletableFuture<MessageReceipt> receipt = new CompletableFuture<>();
+        try {
+            post(message, eventName, attributes);
+            receipt.complete(null);
+        } catch (MessagingException | RuntimeException e) {
+            receipt.completeExceptionally(e);
+        }
+        return receipt;
+    }
 }
@@ -0,0 +1,223 @@
+package com.izettle.messaging;
+
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+/**
+ * Publishes the messages of a consumer as a Reactive Stream, so that streaming consumers receive messages as fast as
+ * they can handle them, and no faster. Needs reactive-streams on the class path, and can be turned into a
+ * {@code java.util.concurrent.Flow.Publisher} with {@code org.reactivestreams.FlowAdapters} on Java 9 and later.
+ *
+ * Nothing is received until the subscriber requests messages. From then on, the consumer is polled on the supplied
+ * executor, one poll at a time, whenever the subscriber has requested more messages than are buffered, and while
+ * fewer than the high-water mark are buffered, so that the next request can be served without waiting for Amazon
+ * SQS. Buffered messages stay invisible on the queue, so the high-water mark should be small enough for the
+ * subscriber to handle them within the visibility timeout.
+ *
+ * Handled messages are acknowledged with {@link #acknowledge(PolledMessage)}, which deletes them. Create the consumer
+ * with a {@link BatchingMessageDeleter} to delete them in batches. Messages that are not acknowledged, also those
+ * still buffered when the subscription is cancelled, are received again after their visibility timeout.
+ *
+ * Only one subscriber is allowed. A failed poll, or a poll that the executor rejects, ends the stream with an error
+ * after the messages already buffered. A request for less than one message ends it with an error right away.
+ */
+public class MessageQueueConsumerPublisher<M> implements Publisher<PolledMessage<M>> {
+    private static final int DEFAULT_WAIT_TIME_SECONDS = 20;
+
+    private final MessageQueueConsumer<M> consumer;
+    private final Executor executor;
+    private final int highWaterMark;
+    private final int waitTimeSeconds;
+    private final AtomicBoolean subscribed = new AtomicBoolean();
+
+    /**
+     * @param consumer Consumer of the queue.
+     * @param executor Executor that polls the consumer, and delivers the received messages to the subscriber.
+     * @param highWaterMark Number of received messages to buffer ahead of the requests of the subscriber, or 0 to
+     *                      only receive messages that have been requested.
+     */
+    public MessageQueueConsumerPublisher(MessageQueueConsumer<M> consumer, Executor executor, int highWaterMark) {
+        this(consumer, executor, highWaterMark, DEFAULT_WAIT_TIME_SECONDS);
+    }
+
+    /**
+     * @param waitTimeSeconds Seconds each poll waits for messages, see {@link MessageQueueConsumer#poll(int)}.
+     */
+    public MessageQueueConsumerPublisher(
+        MessageQueueConsumer<M> consumer,
+        Executor executor,
+        int highWaterMark,
+        int waitTimeSeconds
+    ) {
+        if (highWaterMark < 0) {
+            throw new IllegalArgumentException("Illegal highWaterMark, was: " + highWaterMark);
+        }
+        if (waitTimeSeconds < 0) {
+            throw new IllegalArgumentException("Illegal waitTimeSeconds, was: " + waitTimeSeconds);
+        }
+        this.consumer = consumer;
+        this.executor = executor;
+        this.highWaterMark = highWaterMark;
+        this.waitTimeSeconds = waitTimeSeconds;
+    }
+
+    @Override
+    public void subscribe(Subscriber<? super PolledMessage<M>> subscriber) {
+        if (subscriber == null) {
+            throw new NullPointerException("subscriber");
+        }
+        if (!subscribed.compareAndSet(false, true)) {
+            subscriber.onSubscribe(new Subscription() {
+                @Override
+                public void request(long n) {
+                }
+
+                @Override
+                public void cancel() {
+                }
+            });
+            subscriber.onError(new IllegalStateException("The messages of a queue can only have one subscriber."));
+            return;
+        }
+        QueueSubscription subscription = new QueueSubscription(subscriber);
+        subscriber.onSubscribe(subscription);
+    }
+
+    /**
+     * Deletes a handled message from the queue.
+     *
+     * @param message Message published to the subscriber.
+     * @throws MessagingException Failed to delete the message.
+     */
+    public void acknowledge(PolledMessage<M> message) throws MessagingException {
+        consumer.delete(message);
+    }
+
+    /**
+     * Signals to the subscriber from one thread at a time: whoever increments the number of pending drains from zero
+     * drains, and drains again for every increment made by others in the meantime.
+     */
+    private final class QueueSubscription implements Subscription {
+        private final Queue<PolledMessage<M>> buffer = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger buffered = new AtomicInteger();
+        private final AtomicLong requested = new AtomicLong();
+        private final AtomicInteger pendingDrains = new AtomicInteger();
+        private volatile boolean demanded;
+        private volatile boolean polling;
+        private volatile boolean cancelled;
+        private volatile Throwable requestFailure;
+        private volatile Throwable failure;
+        private Subscriber<? super PolledMessage<M>> subscriber;
+        private boolean terminated;
+
+        private QueueSubscription(Subscriber<? super PolledMessage<M>> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                requestFailure = new IllegalArgumentException("Requested messages must be positive, was: " + n);
+            } else {
+                requested.accumulateAndGet(n, (current, added) -> {
+                    long sum = current + added;
+                    return sum < 0 ? Long.MAX_VALUE : sum;
+                });
+                demanded = true;
+            }
+            drain();
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            drain();
+        }
+
+        private void drain() {
+            if (pendingDrains.getAndIncrement() != 0) {
+                return;
+            }
+            do {
+                if (cancelled || terminated) {
+                    release();
+                    continue;
+                }
+                if (requestFailure != null) {
+                    terminate(requestFailure);
+                    continue;
+                }
+                while (requested.get() > 0 && !buffer.isEmpty() && !cancelled) {
+                    PolledMessage<M> message = buffer.poll();
+                    buffered.decrementAndGet();
+                    requested.decrementAndGet();
+                    subscriber.onNext(message);
+                }
+                if (cancelled) {
+                    continue;
+                }
+                if (shouldPoll()) {
+                    polling = true;
+                    try {
+                        executor.execute(this::poll);
+                    } catch (RuntimeException e) {
+                        polling = false;
+                        failure = e;
+                    }
+                }
+                if (failure != null && buffer.isEmpty()) {
+                    terminate(failure);
+                }
+            } while (pendingDrains.decrementAndGet() != 0);
+        }
+
+        private void terminate(Throwable error) {
+            Subscriber<? super PolledMessage<M>> terminatedSubscriber = subscriber;
+            terminated = true;
+            release();
+            terminatedSubscriber.onError(error);
+        }
+
+        /**
+         * Drops the subscriber and the buffered messages once nothing more is signalled, so that they can be garbage
+         * collected while the subscription is still referenced. Messages buffered by a poll that was already running
+         * are dropped by the drain that follows it.
+         */
+        private void release() {
+            subscriber = null;
+            buffer.clear();
+            buffered.set(0);
+        }
+
+        private boolean shouldPoll() {
+            if (polling || cancelled || failure != null || !demanded) {
+                return false;
+            }
+            int bufferedMessages = buffered.get();
+            return requested.get() > bufferedMessages || bufferedMessages < highWaterMark;
+        }
+
+        private void poll() {
+            try {
+                if (!cancelled) {
+                    List<PolledMessage<M>> messages = consumer.poll(waitTimeSeconds);
+                    buffer.addAll(messages);
+                    buffered.addAndGet(messages.size());
+                }
+            } catch (MessagingException | RuntimeException e) {
+                failure = e;
+            } finally {
+                polling = false;
+            }
+            drain();
+        }
+    }
+}
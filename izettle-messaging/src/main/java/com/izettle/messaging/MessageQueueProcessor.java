@@ -1,6 +1,62 @@
 package com.izettle.messaging;
 
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
 public interface MessageQueueProcessor {
     void poll() throws MessagingException;
     String getName();
+
+    /**
+     * Polls the queue once, like {@link #poll()}, and tells whether anything was received. Used by the polling
+     * loops to back off on queues that stay empty. Processors that can not tell report one message, so that they
+     * are never considered idle.
+     *
+     * @return Number of received messages.
+     */
+    default int pollForMessages() throws MessagingException {
+        poll();
+        return 1;
+    }
+
+    /**
+     * Polls the queue once, like {@link #pollForMessages()}, without blocking the calling thread. Processors that can
+     * not poll without blocking run {@link #pollForMessages()} on the supplied executor.
+     *
+     * @param executor Executor for the work that follows a receive call.
+     * @return Future that completes with the number of received messages, or with a {@link MessagingException}.
+     */
+    default CompletableFuture<Integer> pollForMessagesAsync(Executor executor) {
+        CompletableFuture<Integer> received = new CompletableFuture<>();
+        executor.execute(() -> {
+            try {
+                received.complete(pollForMessages());
+            } catch (MessagingException | RuntimeException e) {
+                received.completeExceptionally(e);
+            }
+        });
+        return received;
+    }
+
+    /**
+     * Prepares the processor for shutdown: stops receiving, waits up to the timeout for received messages to be
+     * handled, and makes the messages that were not handled by then visible on the queue again, so that other
+     * consumers receive them right away instead of after their visibility timeout. Polls after this receive nothing.
+     * Processors that do not keep track of their received messages do nothing.
+     *
+     * @param timeout Longest time to wait for received messages to be handled.
+     * @param unit Time unit of the timeout.
+     * @return Number of messages that were made visible on the queue again.
+     */
+    default int drain(long timeout, TimeUnit unit) {
+        return 0;
+    }
+
+    /**
+     * @return Number of threads that should poll this processor at the same time.
+     */
+    default int getConcurrentReceivers() {
+        return 1;
+    }
 }
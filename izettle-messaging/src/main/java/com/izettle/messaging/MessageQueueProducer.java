@@ -1,8 +1,26 @@
 package com.izettle.messaging;
 
+import java.util.concurrent.CompletableFuture;
+
 @FunctionalInterface
 public interface MessageQueueProducer<M> {
 
     MessageReceipt post(M message) throws MessagingException;
 
+    /**
+     * Posts message to queue without waiting for it to be sent. Producers that can not send without blocking post
+     * the message before returning.
+     *
+     * @param message Message to post.
+     * @return Future that completes with the receipt of the message, or with a {@link MessagingException}.
+     */
+    default CompletableFuture<MessageReceipt> postAsync(M message) {
+        CompletableFuture<MessageReceipt> receipt = new CompletableFuture<>();
+        try {
+            receipt.complete(post(message));
+        } catch (MessagingException | RuntimeException e) {
+            receipt.completeExceptionally(e);
+        }
+        return receipt;
+    }
 }
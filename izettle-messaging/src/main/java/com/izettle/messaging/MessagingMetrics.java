@@ -0,0 +1,84 @@
+package com.izettle.messaging;
+
+/**
+ * Receives measurements of the stages that messages go through, from queue processors, consumers, producers and
+ * publishers that are created with it. Every measurement is for a queue url or topic ARN, so that one instance can be
+ * shared by all of them. All methods do nothing by default, see {@link DropwizardMessagingMetrics} for reporting to
+ * Dropwizard Metrics.
+ *
+ * Implementations are called on the hot path of every message, and should not block.
+ */
+public interface MessagingMetrics {
+
+    /**
+     * Measures nothing.
+     */
+    MessagingMetrics NONE = new MessagingMetrics() {
+    };
+
+    /**
+     * @param queueUrl Url of the queue that was polled.
+     * @param requested Number of messages asked for.
+     * @param received Number of messages received, 0 for an empty receive.
+     * @param nanos Duration of the receive call, including long polling.
+     */
+    default void received(String queueUrl, int requested, int received, long nanos) {
+    }
+
+    /**
+     * @param queueUrl Url of the queue.
+     * @param messages Approximate number of messages that are waiting in the queue.
+     */
+    default void queueDepth(String queueUrl, long messages) {
+    }
+
+    /**
+     * @param queueUrl Url of the queue that the message was received from.
+     * @param ageMillis Time from when the message was sent until it was received.
+     */
+    default void messageAge(String queueUrl, long ageMillis) {
+    }
+
+    /**
+     * @param queueUrl Url of the queue that the messages were received from.
+     * @param change Number of messages that were received, or that are done if negative.
+     */
+    default void inFlight(String queueUrl, int change) {
+    }
+
+    /**
+     * @param queueUrl Url of the queue that the message was received from.
+     * @param nanos Duration of reading the message body, decrypting it and deserializing it.
+     */
+    default void read(String queueUrl, long nanos) {
+    }
+
+    /**
+     * @param queueUrl Url of the queue that the message was received from.
+     * @param nanos Duration of the message handler, whether it succeeded or not.
+     */
+    default void handled(String queueUrl, long nanos) {
+    }
+
+    /**
+     * @param queueUrl Url of the queue that the message was deleted from.
+     * @param nanos Duration of the delete, including the wait for a batch if deletes are batched.
+     */
+    default void deleted(String queueUrl, long nanos) {
+    }
+
+    /**
+     * @param destination Url of the queue or ARN of the topic that the message is sent to.
+     * @param nanos Duration of serializing, and possibly encrypting, the message.
+     */
+    default void serialized(String destination, long nanos) {
+    }
+
+    /**
+     * @param destination Url of the queue or ARN of the topic that the messages were sent to.
+     * @param messages Number of messages that were sent in the request.
+     * @param nanos Duration of the request, including the wait for a batch if sends are batched.
+     */
+    default void sent(String destination, int messages, long nanos) {
+    }
+}
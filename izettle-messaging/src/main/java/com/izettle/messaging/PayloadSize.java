@@ -0,0 +1,76 @@
+package com.izettle.messaging;
+
+import com.amazonaws.services.sns.model.PublishBatchRequestEntry;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequestEntry;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Counts the bytes of a message the way Amazon SQS and Amazon SNS do for the payload limit of a batch, see
+ * {@link BatchPacker#MAX_BATCH_PAYLOAD_BYTES}: the body, the subject, plus the name, data type and value of every
+ * message attribute.
+ */
+final class PayloadSize {
+
+    private PayloadSize() {
+    }
+
+    static long of(SendMessageBatchRequestEntry entry) {
+        return of(
+            entry.getMessageBody(),
+            null,
+            entry.getMessageAttributes(),
+            com.amazonaws.services.sqs.model.MessageAttributeValue::getDataType,
+            com.amazonaws.services.sqs.model.MessageAttributeValue::getStringValue,
+            com.amazonaws.services.sqs.model.MessageAttributeValue::getBinaryValue
+        );
+    }
+
+    static long of(PublishBatchRequestEntry entry) {
+        return of(
+            entry.getMessage(),
+            entry.getSubject(),
+            entry.getMessageAttributes(),
+            com.amazonaws.services.sns.model.MessageAttributeValue::getDataType,
+            com.amazonaws.services.sns.model.MessageAttributeValue::getStringValue,
+            com.amazonaws.services.sns.model.MessageAttributeValue::getBinaryValue
+        );
+    }
+
+    /**
+     * @param subject Subject of the message, or null if it has none.
+     * @param attributes Message attributes, or null if there are none.
+     * @param <V> Type of the attribute values, which differs between the Amazon SQS and Amazon SNS clients.
+     * @return Payload size of the message in bytes.
+     */
+    static <V> long of(
+        String body,
+        String subject,
+        Map<String, V> attributes,
+        Function<V, String> dataType,
+        Function<V, String> stringValue,
+        Function<V, ByteBuffer> binaryValue
+    ) {
+        long size = utf8Length(body) + utf8Length(subject);
+        if (attributes != null) {
+            for (Map.Entry<String, V> attribute : attributes.entrySet()) {
+                V value = attribute.getValue();
+                size += utf8Length(attribute.getKey()) + utf8Length(dataType.apply(value));
+                String string = stringValue.apply(value);
+                ByteBuffer binary = binaryValue.apply(value);
+                if (string != null) {
+                    size += utf8Length(string);
+                } else if (binary != null) {
+                    size += binary.remaining();
+                }
+            }
+        }
+        return size;
+    }
+
+    private static long utf8Length(String value) {
+        return value == null ? 0 : value.getBytes(StandardCharsets.UTF_8).length;
+    }
+}
@@ -0,0 +1,120 @@
+package com.izettle.messaging;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides how long a queue processing loop should wait before polling again, after polls that received no
+ * messages, and after polls that failed. Both delays start at their initial value and double with every consecutive
+ * empty or failed poll, up to their maximum. A poll that receives messages resets the idle delay, so polling ramps
+ * up again as soon as there is traffic on the queue.
+ */
+public final class PollingBackoff {
+    private static final long DEFAULT_INITIAL_FAILURE_DELAY_MILLIS = TimeUnit.SECONDS.toMillis(1);
+    private static final long DEFAULT_MAXIMUM_FAILURE_DELAY_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    /**
+     * Polls again right away after empty polls, and backs off from one second up to one minute after failures.
+     */
+    public static final PollingBackoff DEFAULT = new PollingBackoff(
+        0,
+        0,
+        DEFAULT_INITIAL_FAILURE_DELAY_MILLIS,
+        DEFAULT_MAXIMUM_FAILURE_DELAY_MILLIS
+    );
+
+    private final long initialIdleDelayMillis;
+    private final long maximumIdleDelayMillis;
+    private final long initialFailureDelayMillis;
+    private final long maximumFailureDelayMillis;
+
+    private PollingBackoff(
+        long initialIdleDelayMillis,
+        long maximumIdleDelayMillis,
+        long initialFailureDelayMillis,
+        long maximumFailureDelayMillis
+    ) {
+        this.initialIdleDelayMillis = initialIdleDelayMillis;
+        this.maximumIdleDelayMillis = maximumIdleDelayMillis;
+        this.initialFailureDelayMillis = initialFailureDelayMillis;
+        this.maximumFailureDelayMillis = maximumFailureDelayMillis;
+    }
+
+    /**
+     * Creates a backoff that waits between polls of a queue that stays empty, and otherwise behaves like
+     * {@link #DEFAULT}.
+     *
+     * @param initialIdleDelay Delay after the first poll without messages.
+     * @param maximumIdleDelay Upper limit of the delay between polls of an empty queue.
+     * @param unit Time unit of the delays.
+     * @return Polling backoff.
+     */
+    public static PollingBackoff idleBackoff(long initialIdleDelay, long maximumIdleDelay, TimeUnit unit) {
+        return backoff(
+            unit.toMillis(initialIdleDelay),
+            unit.toMillis(maximumIdleDelay),
+            DEFAULT_INITIAL_FAILURE_DELAY_MILLIS,
+            DEFAULT_MAXIMUM_FAILURE_DELAY_MILLIS,
+            TimeUnit.MILLISECONDS
+        );
+    }
+
+    /**
+     * @param initialIdleDelay Delay after the first poll without messages, or 0 to poll again right away.
+     * @param maximumIdleDelay Upper limit of the delay between polls of an empty queue.
+     * @param initialFailureDelay Delay after the first failed poll.
+     * @param maximumFailureDelay Upper limit of the delay between failing polls.
+     * @param unit Time unit of the delays.
+     * @return Polling backoff.
+     */
+    public static PollingBackoff backoff(
+        long initialIdleDelay,
+        long maximumIdleDelay,
+        long initialFailureDelay,
+        long maximumFailureDelay,
+        TimeUnit unit
+    ) {
+        if (initialIdleDelay < 0 || maximumIdleDelay < initialIdleDelay) {
+            throw new IllegalArgumentException(
+                "Illegal idle delays, was: " + initialIdleDelay + " and " + maximumIdleDelay
+            );
+        }
+        if (initialFailureDelay < 0 || maximumFailureDelay < initialFailureDelay) {
+            throw new IllegalArgumentException(
+                "Illegal failure delays, was: " + initialFailureDelay + " and " + maximumFailureDelay
+            );
+        }
+        return new PollingBackoff(
+            unit.toMillis(initialIdleDelay),
+            unit.toMillis(maximumIdleDelay),
+            unit.toMillis(initialFailureDelay),
+            unit.toMillis(maximumFailureDelay)
+        );
+    }
+
+    /**
+     * @param consecutiveEmptyPolls Number of polls in a row that received no messages.
+     * @return Milliseconds to wait before polling again.
+     */
+    public long getIdleDelayMillis(int consecutiveEmptyPolls) {
+        return exponentialDelay(initialIdleDelayMillis, maximumIdleDelayMillis, consecutiveEmptyPolls);
+    }
+
+    /**
+     * @param consecutiveFailures Number of polls in a row that failed.
+     * @return Milliseconds to wait before polling again.
+     */
+    public long getFailureDelayMillis(int consecutiveFailures) {
+        return exponentialDelay(initialFailureDelayMillis, maximumFailureDelayMillis, consecutiveFailures);
+    }
+
+    private static long exponentialDelay(long initialDelayMillis, long maximumDelayMillis, int attempts) {
+        if (attempts < 1 || initialDelayMillis == 0) {
+            return 0;
+        }
+        int doublings = attempts - 1;
+        if (doublings >= Long.numberOfLeadingZeros(initialDelayMillis) - 1) {
+            return maximumDelayMillis;
+        }
+        return Math.min(initialDelayMillis << doublings, maximumDelayMillis);
+    }
+}
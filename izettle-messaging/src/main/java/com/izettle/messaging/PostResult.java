@@ -0,0 +1,69 @@
+package com.izettle.messaging;
+
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Outcome of posting a single message as part of a batch: either a receipt, or the reason it failed.
+ */
+public final class PostResult {
+    private final MessageReceipt receipt;
+    private final MessagingException failure;
+
+    private PostResult(MessageReceipt receipt, MessagingException failure) {
+        this.receipt = receipt;
+        this.failure = failure;
+    }
+
+    public static PostResult success(MessageReceipt receipt) {
+        return new PostResult(receipt, null);
+    }
+
+    public static PostResult failure(MessagingException failure) {
+        return new PostResult(null, failure);
+    }
+
+    public boolean isSuccessful() {
+        return failure == null;
+    }
+
+    /**
+     * @return Receipt of the posted message, or null if it failed, or if the publisher does not provide receipts.
+     */
+    public MessageReceipt getReceipt() {
+        return receipt;
+    }
+
+    /**
+     * @return The reason the message was not posted, or null if it was.
+     */
+    public MessagingException getFailure() {
+        return failure;
+    }
+
+    /**
+     * @param results Results of posting a batch of messages.
+     * @param messagesType Type of the batch, for the error message.
+     * @throws MessagingException At least one of the messages failed, caused by the first failure.
+     */
+    static void throwIfAnyFailed(List<PostResult> results, Class<?> messagesType) throws MessagingException {
+        List<MessagingException> failures = results.stream()
+            .filter(result -> !result.isSuccessful())
+            .map(PostResult::getFailure)
+            .collect(Collectors.toList());
+        if (!failures.isEmpty()) {
+            throw new MessagingException(
+                "Failed to post " + failures.size() + " of " + results.size() + " messages: " + messagesType,
+                failures.get(0)
+            );
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "PostResult{"
+                + "receipt=" + receipt
+                + ", failure=" + failure
+                + '}';
+    }
+}
@@ -2,26 +2,54 @@ package com.izettle.messaging;
 
 import static com.izettle.java.ValueChecks.anyEmpty;
 import static com.izettle.java.ValueChecks.empty;
-import static com.izettle.java.ValueChecks.noneNull;
+import static com.izettle.messaging.BatchPacker.MAX_BATCH_PAYLOAD_BYTES;
+import static com.izettle.messaging.InFlightLimiter.failedFuture;
 
 import com.amazonaws.services.sns.AmazonSNS;
+import com.amazonaws.services.sns.AmazonSNSAsync;
+import com.amazonaws.services.sns.model.BatchResultErrorEntry;
 import com.amazonaws.services.sns.model.MessageAttributeValue;
+import com.amazonaws.services.sns.model.PublishBatchRequest;
+import com.amazonaws.services.sns.model.PublishBatchRequestEntry;
+import com.amazonaws.services.sns.model.PublishBatchResult;
+import com.amazonaws.services.sns.model.PublishBatchResultEntry;
 import com.amazonaws.services.sns.model.PublishRequest;
+import com.amazonaws.services.sns.model.PublishResult;
 import com.izettle.cryptography.CryptographyException;
+import com.izettle.messaging.payload.PayloadStore;
 import com.izettle.messaging.serialization.DefaultMessageSerializer;
+import com.izettle.messaging.serialization.MessageCodec;
 import com.izettle.messaging.serialization.MessageSerializer;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Semaphore;
 import java.util.stream.Collectors;
 
 /**
  * Convenience class for using Amazon Simple Notification Service.
  */
 public class PublisherService implements MessagePublisher {
+    private static final int MAX_BATCHES_IN_FLIGHT = 10;
+    private static final int MAX_MESSAGE_ATTRIBUTES = 10;
+    private static final List<String> RESERVED_ATTRIBUTES = Arrays.asList(
+        PayloadStore.STORED_PAYLOAD_ATTRIBUTE,
+        MessageCodec.CONTENT_TYPE_ATTRIBUTE
+    );
 
     private final String topicArn;
     private final AmazonSNS amazonSNS;
     private final MessageSerializer messageSerializer;
+    private final InFlightLimiter inFlightLimiter;
+    private final PayloadStore payloadStore;
+    private final MessagingMetrics metrics;
 
     public static MessagePublisher nonEncryptedPublisherService(AmazonSNS client, final String topicArn) {
         return PublisherService.nonEncryptedPublisherService(client, topicArn, new DefaultMessageSerializer());
@@ -35,6 +63,58 @@ public class PublisherService implements MessagePublisher {
         return new PublisherService(client, topicArn, messageSerializer);
     }
 
+    /**
+     * Creates a publisher that has at most maxInFlight messages in flight from postAsync at the same time. Messages
+     * posted beyond that fail right away.
+     */
+    public static MessagePublisher nonEncryptedPublisherService(
+            final AmazonSNS client,
+            final String topicArn,
+            final MessageSerializer messageSerializer,
+            final int maxInFlight
+    ) {
+        return new PublisherService(client, topicArn, messageSerializer, maxInFlight);
+    }
+
+    /**
+     * Creates a publisher that puts message bodies that would make messages larger than Amazon SNS allows in the
+     * supplied store, see {@link PayloadStore}.
+     */
+    public static MessagePublisher nonEncryptedPublisherService(
+            final AmazonSNS client,
+            final String topicArn,
+            final MessageSerializer messageSerializer,
+            final PayloadStore payloadStore
+    ) {
+        return new PublisherService(
+            client,
+            topicArn,
+            messageSerializer,
+            InFlightLimiter.DEFAULT_MAX_IN_FLIGHT,
+            payloadStore
+        );
+    }
+
+    /**
+     * Creates a publisher with all options, and measures the time it takes to serialize and publish messages, see
+     * {@link MessagingMetrics}.
+     *
+     * @param maxInFlight Maximum number of messages in flight from postAsync at the same time.
+     * @param payloadStore Store for message bodies that are too large for Amazon SNS, see {@link PayloadStore}, or
+     *                     null.
+     * @param metrics Metrics of the publisher, that may be shared with other publishers.
+     */
+    public static MessagePublisher publisherService(
+            final AmazonSNS client,
+            final String topicArn,
+            final MessageSerializer messageSerializer,
+            final int maxInFlight,
+            final PayloadStore payloadStore,
+            final MessagingMetrics metrics
+    ) {
+        return new PublisherService(client, topicArn, messageSerializer, maxInFlight, payloadStore, metrics);
+    }
+
     public static MessagePublisher encryptedPublisherService(
             AmazonSNS client,
             final String topicArn,
@@ -55,6 +135,36 @@ public class PublisherService implements MessagePublisher {
     }
 
     private PublisherService(AmazonSNS client, String topicArn, MessageSerializer messageSerializer) {
+        this(client, topicArn, messageSerializer, InFlightLimiter.DEFAULT_MAX_IN_FLIGHT);
+    }
+
+    private PublisherService(
+            AmazonSNS client,
+            String topicArn,
+            MessageSerializer messageSerializer,
+            int maxInFlight
+    ) {
+        this(client, topicArn, messageSerializer, maxInFlight, null);
+    }
+
+    private PublisherService(
+            AmazonSNS client,
+            String topicArn,
+            MessageSerializer messageSerializer,
+            int maxInFlight,
+            PayloadStore payloadStore
+    ) {
+        this(client, topicArn, messageSerializer, maxInFlight, payloadStore, MessagingMetrics.NONE);
+    }
+
+    private PublisherService(
+            AmazonSNS client,
+            String topicArn,
+            MessageSerializer messageSerializer,
+            int maxInFlight,
+            PayloadStore payloadStore,
+            MessagingMetrics metrics
+    ) {
         if (anyEmpty(client, topicArn, messageSerializer)) {
             throw new IllegalArgumentException(
                     "None of client, topicArn or messageSerializer can be empty!\n"
@@ -66,6 +176,9 @@ public class PublisherService implements MessagePublisher {
         this.amazonSNS = client;
         this.topicArn = topicArn;
         this.messageSerializer = messageSerializer;
+        this.inFlightLimiter = new InFlightLimiter(maxInFlight);
+        this.payloadStore = payloadStore;
+        this.metrics = metrics == null ? MessagingMetrics.NONE : metrics;
     }
 
     /**
@@ -99,34 +212,182 @@ public class PublisherService implements MessagePublisher {
      */
     @Override
     public <M> void post(M message, String eventName, Map<String, String> attributes) throws MessagingException {
+        validateEventNameAndAttributes(eventName, attributes);
+        try {
+            long startNanos = System.nanoTime();
+            PublishRequest publishRequest =
+                createPublishRequest(messageSerializer.serialize(message), eventName, attributes);
+            metrics.serialized(topicArn, System.nanoTime() - startNanos);
+            startNanos = System.nanoTime();
+            amazonSNS.publish(publishRequest);
+            metrics.sent(topicArn, 1, System.nanoTime() - startNanos);
+        } catch (Exception e) {
+            throw new MessagingException("Failed to publish message " + eventName, e);
+        }
+    }
+
+    /**
+     * Posts message to topic without waiting for it to be published. Uses the async client if the Amazon SNS client
+     * is an {@link AmazonSNSAsync}, otherwise the message is published before returning.
+     *
+     * @param message Message to post.
+     * @param eventName Message subject (type of message).
+     * @param attributes Attributes to be set as MessageAttributes on the publishRequest, at most 10 of them.
+     * @return Future that completes with the receipt of the message, or with a {@link MessagingException}.
+     */
+    @Override
+    public <M> CompletableFuture<MessageReceipt> postAsync(
+        M message,
+        String eventName,
+        Map<String, String> attributes
+    ) {
+        String jsonBody;
+        PublishRequest publishRequest;
+        try {
+            validateEventNameAndAttributes(eventName, attributes);
+            long startNanos = System.nanoTime();
+            jsonBody = messageSerializer.serialize(message);
+            publishRequest = createPublishRequest(jsonBody, eventName, attributes);
+            metrics.serialized(topicArn, System.nanoTime() - startNanos);
+        } catch (MessagingException e) {
+            return failedFuture(e);
+        } catch (Exception e) {
+            return failedFuture(new MessagingException("Failed to publish message " + eventName, e));
+        }
+        return inFlightLimiter.send(
+            () -> {
+                CompletableAsyncHandler<PublishRequest, PublishResult> handler = new CompletableAsyncHandler<>();
+                long startNanos = System.nanoTime();
+                try {
+                    if (amazonSNS instanceof AmazonSNSAsync) {
+                        ((AmazonSNSAsync) amazonSNS).publishAsync(publishRequest, handler);
+                    } else {
+                        handler.onSuccess(publishRequest, amazonSNS.publish(publishRequest));
+                    }
+                } catch (RuntimeException e) {
+                    handler.onError(e);
+                }
+                return handler.getFuture().handle((publishResult, throwable) -> {
+                    if (throwable != null) {
+                        throw new CompletionException(
+                            new MessagingException("Failed to publish message " + eventName, throwable)
+                        );
+                    }
+                    metrics.sent(topicArn, 1, System.nanoTime() - startNanos);
+                    return new MessageReceipt(publishResult.getMessageId(), jsonBody);
+                });
+            },
+            "topic " + topicArn
+        );
+    }
+
+    /**
+     * Rejects attributes that would not fit in the Amazon SNS limit together with the attributes the message may get
+     * from this publisher, or that would be overwritten by those.
+     */
+    private void validateEventNameAndAttributes(
+        String eventName,
+        Map<String, String> attributes
+    ) throws MessagingException {
         if (empty(eventName)) {
             throw new MessagingException("Cannot publish message with empty eventName!");
         }
-        if (noneNull(attributes) && attributes.size() > 10) {
-            throw new MessagingException("Cannot publish message with more than 10 attributes!");
+        if (attributes == null) {
+            return;
         }
-        try {
-            String jsonBody = messageSerializer.serialize(message);
-            String encryptedBody = messageSerializer.encrypt(jsonBody);
-            PublishRequest publishRequest = new PublishRequest(topicArn, encryptedBody, eventName);
-
-            if (attributes != null) {
-                publishRequest.setMessageAttributes(
-                    attributes
-                        .entrySet()
-                        .stream()
-                        .collect(
-                            Collectors.toMap(
-                                Map.Entry::getKey,
-                                e -> new MessageAttributeValue().withStringValue(e.getValue()).withDataType("String")
-                            )
-                        )
-                );
+        for (String reservedAttribute : RESERVED_ATTRIBUTES) {
+            if (attributes.containsKey(reservedAttribute)) {
+                throw new MessagingException("Cannot publish message with reserved attribute: " + reservedAttribute);
             }
-            amazonSNS.publish(publishRequest);
-        } catch (Exception e) {
-            throw new MessagingException("Failed to publish message " + eventName, e);
         }
+        int reservedAttributes = 0;
+        if (payloadStore != null) {
+            reservedAttributes++;
+        }
+        if (declaresContentType()) {
+            reservedAttributes++;
+        }
+        if (attributes.size() + reservedAttributes > MAX_MESSAGE_ATTRIBUTES) {
+            int maxAttributes = MAX_MESSAGE_ATTRIBUTES - reservedAttributes;
+            throw new MessagingException("Cannot publish message with more than " + maxAttributes + " attributes!");
+        }
+    }
+
+    private PublishRequest createPublishRequest(
+        String jsonBody,
+        String eventName,
+        Map<String, String> attributes
+    ) throws CryptographyException, IOException {
+        PublishBatchRequestEntry entry = createEntry(jsonBody, eventName, attributes);
+        PublishRequest publishRequest = new PublishRequest(topicArn, entry.getMessage(), eventName);
+        if (entry.getMessageAttributes() != null) {
+            publishRequest.setMessageAttributes(entry.getMessageAttributes());
+        }
+        return publishRequest;
+    }
+
+    /**
+     * Creates the batch entry of a message, that single messages are also created from since they have the same size
+     * limit. If the message would be larger than Amazon SNS allows, its body is put in the payload store if there is
+     * one, and the message only carries the key of the stored body.
+     */
+    private PublishBatchRequestEntry createEntry(
+        String jsonBody,
+        String eventName,
+        Map<String, String> attributes
+    ) throws CryptographyException, IOException {
+        String encryptedBody = messageSerializer.encrypt(jsonBody);
+        Map<String, MessageAttributeValue> messageAttributes = messageAttributes(attributes);
+        PublishBatchRequestEntry entry = new PublishBatchRequestEntry()
+            .withMessage(encryptedBody)
+            .withSubject(eventName)
+            .withMessageAttributes(messageAttributes);
+        if (payloadStore == null || PayloadSize.of(entry) <= MAX_BATCH_PAYLOAD_BYTES) {
+            return entry;
+        }
+        String key = payloadStore.store(encryptedBody.getBytes(StandardCharsets.UTF_8));
+        if (messageAttributes == null) {
+            messageAttributes = new HashMap<>();
+        }
+        messageAttributes.put(
+            PayloadStore.STORED_PAYLOAD_ATTRIBUTE,
+            new MessageAttributeValue().withStringValue(key).withDataType("String")
+        );
+        return entry.withMessage(key).withMessageAttributes(messageAttributes);
+    }
+
+    /**
+     * @param attributes Attributes from the caller, or null.
+     * @return The attributes, plus the content type of the message when it is not JSON. Null if there are none.
+     */
+    private Map<String, MessageAttributeValue> messageAttributes(Map<String, String> attributes) {
+        boolean declareContentType = declaresContentType();
+        if (attributes == null && !declareContentType) {
+            return null;
+        }
+        Map<String, MessageAttributeValue> messageAttributes = new HashMap<>();
+        if (attributes != null) {
+            attributes.forEach((name, value) ->
+                messageAttributes.put(name, new MessageAttributeValue().withStringValue(value).withDataType("String"))
+            );
+        }
+        if (declareContentType) {
+            messageAttributes.put(
+                MessageCodec.CONTENT_TYPE_ATTRIBUTE,
+                new MessageAttributeValue()
+                    .withStringValue(messageSerializer.getCodec().getContentType())
+                    .withDataType("String")
+            );
+        }
+        return messageAttributes;
+    }
+
+    /**
+     * @return Whether messages get an attribute with their content type, which they do when it is not JSON.
+     */
+    private boolean declaresContentType() {
+        MessageCodec codec = messageSerializer.getCodec();
+        return codec != null && codec != MessageCodec.JSON;
     }
 
     /**
@@ -134,12 +395,121 @@ public class PublisherService implements MessagePublisher {
      *
      * @param messages Messages to post.
      * @param eventName Message subject (type of message).
-     * @throws MessagingException Failed to post at least one of the messages.
+     * @throws MessagingException Failed to post at least one of the messages, after trying to post all of them.
      */
     @Override
     public <M> void postBatch(Collection<M> messages, String eventName) throws MessagingException {
+        PostResult.throwIfAnyFailed(postBatchWithResults(messages, eventName), messages.getClass());
+    }
+
+    /**
+     * Posts several messages to topic with PublishBatch requests, each holding at most ten messages and 256 KB of
+     * payload. With an {@link AmazonSNSAsync} client, up to ten batches are published at the same time, otherwise
+     * one at a time. A message that can not be posted does not stop the others from being posted.
+     *
+     * @param messages Messages to post.
+     * @param eventName Message subject (type of message).
+     * @return The result of every message, in the order of the messages.
+     * @throws MessagingException Empty eventName.
+     */
+    @Override
+    public <M> List<PostResult> postBatchWithResults(
+        Collection<M> messages,
+        String eventName
+    ) throws MessagingException {
+        validateEventNameAndAttributes(eventName, null);
+        PostResult[] results = new PostResult[messages.size()];
+        String[] jsonBodies = new String[messages.size()];
+        Semaphore batchPermits = new Semaphore(MAX_BATCHES_IN_FLIGHT);
+        List<CompletableFuture<Void>> publishedBatches = new ArrayList<>();
+        BatchPacker<PublishBatchRequestEntry> batchPacker = new BatchPacker<>(batch -> {
+            batchPermits.acquireUninterruptibly();
+            publishedBatches.add(
+                publishBatch(batch, eventName, jsonBodies, results).whenComplete((ignored, throwable) ->
+                    batchPermits.release()
+                )
+            );
+        });
+        int index = 0;
         for (M message : messages) {
-            post(message, eventName);
+            try {
+                long startNanos = System.nanoTime();
+                String jsonBody = messageSerializer.serialize(message);
+                PublishBatchRequestEntry entry = createEntry(jsonBody, eventName, null)
+                    .withId(String.valueOf(index + 1));
+                metrics.serialized(topicArn, System.nanoTime() - startNanos);
+                long size = PayloadSize.of(entry);
+                if (size > MAX_BATCH_PAYLOAD_BYTES) {
+                    results[index] = PostResult.failure(new MessagingException(
+                        "Message of " + size + " bytes exceeds the maximum payload of " + MAX_BATCH_PAYLOAD_BYTES
+                            + " bytes: " + eventName
+                    ));
+                } else {
+                    jsonBodies[index] = jsonBody;
+                    batchPacker.add(entry, size);
+                }
+            } catch (Exception e) {
+                results[index] = PostResult.failure(new MessagingException("Failed to publish message " + eventName, e));
+            }
+            index++;
         }
+        batchPacker.flush();
+        // Never completes exceptionally, failures are in the results.
+        CompletableFuture.allOf(publishedBatches.toArray(new CompletableFuture<?>[0])).join();
+        return Arrays.asList(results);
+    }
+
+    private CompletableFuture<Void> publishBatch(
+        List<PublishBatchRequestEntry> batch,
+        String eventName,
+        String[] jsonBodies,
+        PostResult[] results
+    ) {
+        PublishBatchRequest publishBatchRequest = new PublishBatchRequest()
+            .withTopicArn(topicArn)
+            .withPublishBatchRequestEntries(batch);
+        CompletableAsyncHandler<PublishBatchRequest, PublishBatchResult> handler = new CompletableAsyncHandler<>();
+        long startNanos = System.nanoTime();
+        try {
+            if (amazonSNS instanceof AmazonSNSAsync) {
+                ((AmazonSNSAsync) amazonSNS).publishBatchAsync(publishBatchRequest, handler);
+            } else {
+                handler.onSuccess(publishBatchRequest, amazonSNS.publishBatch(publishBatchRequest));
+            }
+        } catch (RuntimeException e) {
+            handler.onError(e);
+        }
+        return handler.getFuture().handle((publishBatchResult, throwable) -> {
+            if (throwable != null) {
+                for (PublishBatchRequestEntry entry : batch) {
+                    results[indexOf(entry)] = PostResult.failure(
+                        new MessagingException("Failed to publish message " + eventName, throwable)
+                    );
+                }
+                return null;
+            }
+            metrics.sent(topicArn, batch.size(), System.nanoTime() - startNanos);
+            for (BatchResultErrorEntry failed : publishBatchResult.getFailed()) {
+                results[Integer.parseInt(failed.getId()) - 1] = PostResult.failure(new MessagingException(
+                    "Failed to publish message " + eventName + ": " + failed.getCode() + " " + failed.getMessage()
+                ));
+            }
+            Map<String, String> messageIdPerId = publishBatchResult.getSuccessful().stream()
+                .collect(Collectors.toMap(PublishBatchResultEntry::getId, PublishBatchResultEntry::getMessageId));
+            for (PublishBatchRequestEntry entry : batch) {
+                int index = indexOf(entry);
+                // Every message that is not reported as failed has been published.
+                if (results[index] == null) {
+                    results[index] = PostResult.success(
+                        new MessageReceipt(messageIdPerId.get(entry.getId()), jsonBodies[index])
+                    );
+                }
+            }
+            return null;
+        });
+    }
+
+    private static int indexOf(PublishBatchRequestEntry entry) {
+        return Integer.parseInt(entry.getId()) - 1;
     }
 }
@@ -2,23 +2,31 @@ package com.izettle.messaging;
 
 import static java.lang.Thread.sleep;
 
-import java.util.concurrent.TimeUnit;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- * Implementation of a runnable that keeps on polling a message queue until explicitly stopped.
+ * Implementation of a runnable that keeps on polling a message queue until explicitly stopped. Between polls it
+ * waits as told by its {@link PollingBackoff}, depending on whether the last polls received messages or failed.
  */
 public class QueueProcessingRunnable implements Runnable {
     private static final Logger LOG = LoggerFactory.getLogger(QueueProcessingRunnable.class);
     private final String name;
     private final MessageQueueProcessor queueProcessor;
+    private final PollingBackoff pollingBackoff;
     private volatile boolean alive;
+    private volatile boolean idle;
+    private volatile boolean sleeping;
     private volatile Thread executingThread;
 
     public QueueProcessingRunnable(MessageQueueProcessor queueProcessor) {
+        this(queueProcessor, PollingBackoff.DEFAULT);
+    }
+
+    public QueueProcessingRunnable(MessageQueueProcessor queueProcessor, PollingBackoff pollingBackoff) {
         this.name = queueProcessor.getName();
         this.queueProcessor = queueProcessor;
+        this.pollingBackoff = pollingBackoff;
     }
 
     @Override
@@ -27,19 +35,37 @@ public class QueueProcessingRunnable implements Runnable {
         LOG.info(String.format("Message queue processor %s started.", name));
         executingThread = Thread.currentThread();
         alive = true;
+        int consecutiveEmptyPolls = 0;
+        int consecutiveFailures = 0;
 
         while (isAlive()) {
+            long delayMillis;
             try {
-                queueProcessor.poll();
+                if (queueProcessor.pollForMessages() > 0) {
+                    consecutiveEmptyPolls = 0;
+                    idle = false;
+                } else {
+                    consecutiveEmptyPolls++;
+                    idle = true;
+                }
+                consecutiveFailures = 0;
+                delayMillis = pollingBackoff.getIdleDelayMillis(consecutiveEmptyPolls);
             } catch (MessagingException e) {
                 LOG.error(String.format("Message queue processor %s failed to poll for new messages.", name), e);
+                consecutiveFailures++;
+                delayMillis = pollingBackoff.getFailureDelayMillis(consecutiveFailures);
+            }
+            if (delayMillis > 0) {
+                sleeping = true;
                 if (!isAlive()) {
                     break;
                 }
                 try {
-                    sleep(TimeUnit.MINUTES.toMillis(1));
+                    sleep(delayMillis);
                 } catch (InterruptedException e1) {
                     break;
+                } finally {
+                    sleeping = false;
                 }
             }
         }
@@ -49,6 +75,13 @@ public class QueueProcessingRunnable implements Runnable {
         LOG.info(String.format("Message queue processor %s stopped.", name));
     }
 
+    /**
+     * @return True if the last poll received no messages, false if it did, or if nothing has been polled yet.
+     */
+    public boolean isIdle() {
+        return idle;
+    }
+
     private boolean isAlive() {
         if (!alive) {
             return false;
@@ -57,6 +90,20 @@ public class QueueProcessingRunnable implements Runnable {
         return !(thread != null && thread.isInterrupted());
     }
 
+    /**
+     * Makes the polling loop stop once its current poll has completed, without interrupting the poll, so that
+     * messages that are handled on the polling thread are not cut off. Waiting between polls is interrupted. Used
+     * together with {@link MessageQueueProcessor#drain(long, java.util.concurrent.TimeUnit)}, which aborts receive
+     * calls in progress.
+     */
+    public void stopAfterPoll() {
+        alive = false;
+        final Thread thread = this.executingThread;
+        if (thread != null && sleeping) {
+            thread.interrupt();
+        }
+    }
+
     /**
      * Makes the polling loop stop some time in the future.
      */
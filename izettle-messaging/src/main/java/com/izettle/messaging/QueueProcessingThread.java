@@ -1,5 +1,6 @@
 package com.izettle.messaging;
 
+import java.util.concurrent.TimeUnit;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -8,11 +9,25 @@ import org.slf4j.LoggerFactory;
  */
 public class QueueProcessingThread extends Thread {
     private static final Logger LOG = LoggerFactory.getLogger(QueueProcessingThread.class);
+    private final MessageQueueProcessor queueProcessor;
     private final QueueProcessingRunnable runnable;
 
     public QueueProcessingThread(MessageQueueProcessor queueProcessor) {
-        super(queueProcessor.getName());
-        this.runnable = new QueueProcessingRunnable(queueProcessor);
+        this(queueProcessor, queueProcessor.getName());
+    }
+
+    public QueueProcessingThread(MessageQueueProcessor queueProcessor, String threadName) {
+        this(queueProcessor, threadName, PollingBackoff.DEFAULT);
+    }
+
+    public QueueProcessingThread(
+        MessageQueueProcessor queueProcessor,
+        String threadName,
+        PollingBackoff pollingBackoff
+    ) {
+        super(threadName);
+        this.queueProcessor = queueProcessor;
+        this.runnable = new QueueProcessingRunnable(queueProcessor, pollingBackoff);
     }
 
     @Override
@@ -20,6 +35,57 @@ public class QueueProcessingThread extends Thread {
         runnable.run();
     }
 
+    /**
+     * @return True if the last poll received no messages.
+     */
+    public boolean isIdle() {
+        return runnable.isIdle();
+    }
+
+    /**
+     * Makes the polling thread stop some time in the future, without waiting for it.
+     */
+    void stopPolling() {
+        runnable.shutdown();
+    }
+
+    /**
+     * Makes the polling thread stop once its current poll has completed, without interrupting the poll.
+     */
+    void stopAfterPoll() {
+        runnable.stopAfterPoll();
+    }
+
+    /**
+     * Waits for the polling thread to stop, at the longest until the deadline.
+     *
+     * @param deadlineNanos Deadline as a {@link System#nanoTime()} value.
+     */
+    void awaitStop(long deadlineNanos) {
+        try {
+            TimeUnit.NANOSECONDS.timedJoin(this, deadlineNanos - System.nanoTime());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Stops the polling thread without cutting off the messages it has received, see
+     * {@link MessageQueueProcessor#drain(long, TimeUnit)}: receiving stops, received messages get up to the timeout
+     * to be handled, and the ones that were not handled by then are made visible on the queue again. If the thread
+     * is still running when the timeout has passed, it is interrupted without waiting for it any longer.
+     *
+     * @param timeout Longest time to wait for received messages to be handled.
+     * @param unit Time unit of the timeout.
+     */
+    public void shutdown(long timeout, TimeUnit unit) {
+        long deadlineNanos = System.nanoTime() + unit.toNanos(timeout);
+        stopAfterPoll();
+        queueProcessor.drain(timeout, unit);
+        awaitStop(deadlineNanos);
+        stopPolling();
+    }
+
     /**
      * Stops the polling thread and waits for last message completion before returning to caller
      */
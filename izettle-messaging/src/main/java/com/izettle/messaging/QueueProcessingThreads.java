@@ -0,0 +1,79 @@
+package com.izettle.messaging;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the concurrent receivers of a message queue processor, each one in its own thread that keeps on polling the
+ * queue until shut down.
+ */
+public class QueueProcessingThreads {
+    private final MessageQueueProcessor queueProcessor;
+    private final List<QueueProcessingThread> threads;
+
+    public QueueProcessingThreads(MessageQueueProcessor queueProcessor) {
+        this(queueProcessor, queueProcessor.getConcurrentReceivers());
+    }
+
+    public QueueProcessingThreads(MessageQueueProcessor queueProcessor, int concurrentReceivers) {
+        this(queueProcessor, concurrentReceivers, PollingBackoff.DEFAULT);
+    }
+
+    public QueueProcessingThreads(
+        MessageQueueProcessor queueProcessor,
+        int concurrentReceivers,
+        PollingBackoff pollingBackoff
+    ) {
+        if (concurrentReceivers < 1) {
+            throw new IllegalArgumentException("Illegal concurrentReceivers, was: " + concurrentReceivers);
+        }
+        List<QueueProcessingThread> receivers = new ArrayList<>(concurrentReceivers);
+        for (int i = 0; i < concurrentReceivers; i++) {
+            String threadName = queueProcessor.getName() + "-" + i;
+            receivers.add(new QueueProcessingThread(queueProcessor, threadName, pollingBackoff));
+        }
+        this.queueProcessor = queueProcessor;
+        this.threads = Collections.unmodifiableList(receivers);
+    }
+
+    /**
+     * Starts all receivers.
+     */
+    public void start() {
+        threads.forEach(Thread::start);
+    }
+
+    /**
+     * @return True if the last poll of every receiver received no messages.
+     */
+    public boolean isIdle() {
+        return threads.stream().allMatch(QueueProcessingThread::isIdle);
+    }
+
+    /**
+     * Stops all receivers without cutting off the messages they have received, see
+     * {@link MessageQueueProcessor#drain(long, TimeUnit)}: receiving stops, received messages get up to the timeout
+     * to be handled, and the ones that were not handled by then are made visible on the queue again. Receivers that
+     * are still running when the timeout has passed are interrupted without waiting for them any longer.
+     *
+     * @param timeout Longest time to wait for received messages to be handled.
+     * @param unit Time unit of the timeout.
+     */
+    public void shutdown(long timeout, TimeUnit unit) {
+        long deadlineNanos = System.nanoTime() + unit.toNanos(timeout);
+        threads.forEach(QueueProcessingThread::stopAfterPoll);
+        queueProcessor.drain(timeout, unit);
+        threads.forEach(thread -> thread.awaitStop(deadlineNanos));
+        threads.forEach(QueueProcessingThread::stopPolling);
+    }
+
+    /**
+     * Stops all receivers and waits for their last messages to complete before returning to caller.
+     */
+    public void shutdown() {
+        threads.forEach(QueueProcessingThread::stopPolling);
+        threads.forEach(QueueProcessingThread::shutdown);
+    }
+}
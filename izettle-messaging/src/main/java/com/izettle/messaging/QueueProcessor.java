@@ -5,16 +5,43 @@ import static com.izettle.java.ValueChecks.empty;
 import com.amazonaws.AbortedException;
 import com.amazonaws.AmazonClientException;
 import com.amazonaws.services.sqs.AmazonSQS;
+import com.amazonaws.services.sqs.AmazonSQSAsync;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchRequest;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchRequestEntry;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchResult;
 import com.amazonaws.services.sqs.model.DeleteMessageRequest;
+import com.amazonaws.services.sqs.model.GetQueueAttributesRequest;
 import com.amazonaws.services.sqs.model.Message;
+import com.amazonaws.services.sqs.model.QueueAttributeName;
 import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
+import com.amazonaws.services.sqs.model.ReceiveMessageResult;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.izettle.messaging.handler.MessageHandler;
 import com.izettle.messaging.handler.MessageHandlerForSingleMessageType;
+import com.izettle.messaging.payload.PayloadStore;
 import com.izettle.messaging.serialization.JsonSerializer;
+import com.izettle.messaging.serialization.MessageCodec;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -23,6 +50,24 @@ import org.slf4j.LoggerFactory;
  * will be passed on to the supplied message handler. If the message handler does not throw any
  * exceptions, the message will also be deleted from the queue. Otherwise (if an exception is
  * thrown), the message will remain on the queue, and will most likely be processed again.
+ *
+ * A processor can be polled by several threads at once (see {@link QueueProcessingThreads}). When it is configured
+ * with a receive buffer, every poll first reserves room in the buffer for the messages it asks for, and received
+ * messages hold on to that room until the executor service has handled them. Receivers will therefore pause when
+ * the buffer is full, instead of piling up work faster than the executor service can drain it.
+ *
+ * A processor can also be governed by a throughput limit and an adaptive concurrency limit (see
+ * {@link Builder#withThroughputLimit(double)} and
+ * {@link Builder#withAdaptiveConcurrencyLimit(int, int, long, TimeUnit)}), to protect the services that its message
+ * handler calls. Both are waited for before every receive call, so a throttled processor stops receiving, instead of
+ * piling up received messages.
+ *
+ * A processor keeps track of the messages it has received until they have been handled, so that it can be drained
+ * before it is shut down, see {@link #drain(long, TimeUnit)}.
+ *
+ * A processor configured with a dead letter queue url polls the dead letter queue on every tenth poll, with the same
+ * receivers as the main queue. To drain a dead letter queue without slowing down the main queue, leave it out and
+ * run a processor from {@link #deadLetterQueueBuilder(AmazonSQS, String, String, MessageHandler)} instead.
  */
 public class QueueProcessor implements MessageQueueProcessor {
 
@@ -32,30 +77,126 @@ public class QueueProcessor implements MessageQueueProcessor {
     private static final int MAXIMUM_NUMBER_OF_MESSAGES_TO_RECEIVE = 10;
     private static final Integer MESSAGE_WAIT_SECONDS = 20;
     private static final int DEAD_LETTER_QUEUE_POLL_FREQUENCY = 10;
+    private static final String MESSAGE_GROUP_ID_ATTRIBUTE = "MessageGroupId";
+    private static final String APPROXIMATE_RECEIVE_COUNT_ATTRIBUTE = "ApproximateReceiveCount";
+    private static final String SENT_TIMESTAMP_ATTRIBUTE = "SentTimestamp";
+    private static final long DEFAULT_QUEUE_DEPTH_INTERVAL_MINUTES = 1;
+    private static final long DRAIN_CHECK_INTERVAL_MILLIS = 10;
+
+    /**
+     * Ordering key for {@link Builder#withParallelMessageHandling(Function)} that keeps messages from the same
+     * message group of a FIFO queue in order.
+     */
+    public static final Function<Message, String> MESSAGE_GROUP_ID =
+        message -> message.getAttributes().get(MESSAGE_GROUP_ID_ATTRIBUTE);
     private final String queueUrl;
     private final String deadLetterQueueUrl;
     private final AmazonSQS amazonSQS;
     private final MessageHandler<Message> messageHandler;
-    private int deadLetterQueuePollSequence;
-    private ExecutorService executorService;
+    private final AtomicInteger deadLetterQueuePollSequence = new AtomicInteger();
+    private final ExecutorService executorService;
+    private final int concurrentReceivers;
+    private final Semaphore receiveBuffer;
+    private final AtomicReference<CompletableFuture<Void>> receiveCapacityReleased =
+        new AtomicReference<>(new CompletableFuture<>());
+    private final BatchingMessageDeleter messageDeleter;
+    private final Function<Message, ?> orderingKey;
+    private final VisibilityTimeoutExtender visibilityTimeoutExtender;
+    private final int baseRetryDelaySeconds;
+    private final int maximumRetryDelaySeconds;
+    private final MessageDeduplicator deduplicator;
+    private final MessagingMetrics metrics;
+    private final ThroughputLimiter throughputLimiter;
+    private final ConcurrencyLimiter concurrencyLimiter;
+    private final long queueDepthIntervalNanos;
+    private final AtomicLong nextQueueDepthReportNanos = new AtomicLong(System.nanoTime());
+    private final ConcurrentMap<Object, CompletableFuture<Void>> handledPerOrderingKey = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, String> queueUrlPerUnhandledReceiptHandle = new ConcurrentHashMap<>();
+    private final AtomicInteger messagesInFlight = new AtomicInteger();
+    private final Set<Thread> receivingThreads = ConcurrentHashMap.newKeySet();
+    private volatile boolean draining;
 
-    public static MessageQueueProcessor createQueueProcessor(
+    /**
+     * Creates a builder for a queue processor that passes all received messages on to the supplied handler.
+     *
+     * @param amazonSQS Amazon SQS client.
+     * @param name Name of the processor, used for logging and thread names.
+     * @param queueUrl Url of the queue to poll.
+     * @param messageHandler Handler for the received messages.
+     * @return Queue processor builder.
+     */
+    public static Builder builder(
         AmazonSQS amazonSQS,
         String name,
         String queueUrl,
-        String deadLetterQueueUrl,
         MessageHandler<Message> messageHandler
     ) {
-        return new QueueProcessor(
+        return new Builder(amazonSQS, name, queueUrl, messageHandler);
+    }
+
+    /**
+     * Creates a builder for a queue processor that deserializes all received messages into the specified type
+     * before passing them on to the supplied handler.
+     *
+     * @param amazonSQS Amazon SQS client.
+     * @param classType Type of the messages on the queue.
+     * @param name Name of the processor, used for logging and thread names.
+     * @param queueUrl Url of the queue to poll.
+     * @param messageHandler Handler for the received messages.
+     * @param objectMapper Object mapper used to deserialize the messages.
+     * @return Queue processor builder.
+     */
+    public static <M> Builder builder(
+        AmazonSQS amazonSQS,
+        Class<M> classType,
+        String name,
+        String queueUrl,
+        MessageHandler<M> messageHandler,
+        ObjectMapper objectMapper
+    ) {
+        return new Builder(
+            amazonSQS,
             name,
             queueUrl,
-            deadLetterQueueUrl,
-            amazonSQS,
-            messageHandler,
-            null
+            new MessageHandlerForSingleMessageType<>(messageHandler, classType, objectMapper)
         );
     }
 
+    /**
+     * Creates a builder for a processor that drains a dead letter queue on its own, with its own receivers and
+     * throughput, see {@link Builder#withConcurrentReceivers(int, int)} and {@link Builder#withThroughputLimit(double)}.
+     * The processor of the main queue should then be built without the dead letter queue url. With metrics, the
+     * processor reports the depth of the dead letter queue once a minute, and its drain rate is the rate of received
+     * messages.
+     *
+     * @param amazonSQS Amazon SQS client.
+     * @param name Name of the processor, used for logging and thread names.
+     * @param deadLetterQueueUrl Url of the dead letter queue to drain.
+     * @param messageHandler Handler for the messages of the dead letter queue.
+     * @return Queue processor builder.
+     */
+    public static Builder deadLetterQueueBuilder(
+        AmazonSQS amazonSQS,
+        String name,
+        String deadLetterQueueUrl,
+        MessageHandler<Message> messageHandler
+    ) {
+        return new Builder(amazonSQS, name, deadLetterQueueUrl, messageHandler)
+            .withQueueDepthReporting(DEFAULT_QUEUE_DEPTH_INTERVAL_MINUTES, TimeUnit.MINUTES);
+    }
+
+    public static MessageQueueProcessor createQueueProcessor(
+        AmazonSQS amazonSQS,
+        String name,
+        String queueUrl,
+        String deadLetterQueueUrl,
+        MessageHandler<Message> messageHandler
+    ) {
+        return builder(amazonSQS, name, queueUrl, messageHandler)
+            .withDeadLetterQueueUrl(deadLetterQueueUrl)
+            .build();
+    }
+
     public static MessageQueueProcessor createQueueProcessor(
         AmazonSQS amazonSQS,
         String name,
@@ -64,14 +205,10 @@ public class QueueProcessor implements MessageQueueProcessor {
         MessageHandler<Message> messageHandler,
         ExecutorService executorService
     ) {
-        return new QueueProcessor(
-            name,
-            queueUrl,
-            deadLetterQueueUrl,
-            amazonSQS,
-            messageHandler,
-            executorService
-        );
+        return builder(amazonSQS, name, queueUrl, messageHandler)
+            .withDeadLetterQueueUrl(deadLetterQueueUrl)
+            .withExecutorService(executorService)
+            .build();
     }
 
     public static <M> MessageQueueProcessor createQueueProcessor(
@@ -83,14 +220,9 @@ public class QueueProcessor implements MessageQueueProcessor {
         MessageHandler<M> messageHandler,
         ObjectMapper objectMapper
     ) {
-        return new QueueProcessor(
-            name,
-            queueUrl,
-            deadLetterQueueUrl,
-            amazonSQS,
-            new MessageHandlerForSingleMessageType<>(messageHandler, classType, objectMapper),
-            null
-        );
+        return builder(amazonSQS, classType, name, queueUrl, messageHandler, objectMapper)
+            .withDeadLetterQueueUrl(deadLetterQueueUrl)
+            .build();
     }
 
     public static <M> MessageQueueProcessor createQueueProcessor(
@@ -122,14 +254,10 @@ public class QueueProcessor implements MessageQueueProcessor {
         ExecutorService executorService,
         ObjectMapper objectMapper
     ) {
-        return new QueueProcessor(
-            name,
-            queueUrl,
-            deadLetterQueueUrl,
-            amazonSQS,
-            new MessageHandlerForSingleMessageType<>(messageHandler, classType, objectMapper),
-            executorService
-        );
+        return builder(amazonSQS, classType, name, queueUrl, messageHandler, objectMapper)
+            .withDeadLetterQueueUrl(deadLetterQueueUrl)
+            .withExecutorService(executorService)
+            .build();
     }
 
     public static <M> MessageQueueProcessor createQueueProcessor(
@@ -153,20 +281,33 @@ public class QueueProcessor implements MessageQueueProcessor {
         );
     }
 
-    private QueueProcessor(
-        String name,
-        String queueUrl,
-        String deadLetterQueueUrl,
-        AmazonSQS amazonSQS,
-        MessageHandler<Message> messageHandler,
-        ExecutorService executorService
-    ) {
-        this.name = name;
-        this.queueUrl = queueUrl;
-        this.deadLetterQueueUrl = deadLetterQueueUrl;
-        this.amazonSQS = amazonSQS;
-        this.messageHandler = messageHandler;
-        this.executorService = executorService;
+    private QueueProcessor(Builder builder) {
+        this.name = builder.name;
+        this.queueUrl = builder.queueUrl;
+        this.deadLetterQueueUrl = builder.deadLetterQueueUrl;
+        this.amazonSQS = builder.amazonSQS;
+        this.messageHandler = builder.messageHandler;
+        this.executorService = builder.executorService;
+        this.concurrentReceivers = builder.concurrentReceivers;
+        this.receiveBuffer = builder.receiveBufferSize > 0 ? new Semaphore(builder.receiveBufferSize) : null;
+        this.messageDeleter = builder.messageDeleter;
+        this.orderingKey = builder.orderingKey;
+        this.visibilityTimeoutExtender = builder.visibilityTimeoutExtender;
+        this.baseRetryDelaySeconds = builder.baseRetryDelaySeconds;
+        this.maximumRetryDelaySeconds = builder.maximumRetryDelaySeconds;
+        this.deduplicator = builder.deduplicator;
+        this.metrics = builder.metrics;
+        this.throughputLimiter = builder.messagesPerSecond > 0
+            ? new ThroughputLimiter(builder.messagesPerSecond, MAXIMUM_NUMBER_OF_MESSAGES_TO_RECEIVE)
+            : null;
+        this.concurrencyLimiter = builder.maximumConcurrency > 0
+            ? new ConcurrencyLimiter(
+                builder.initialConcurrency,
+                builder.maximumConcurrency,
+                builder.concurrencyLatencyThresholdNanos
+            )
+            : null;
+        this.queueDepthIntervalNanos = metrics != MessagingMetrics.NONE ? builder.queueDepthIntervalNanos : 0;
     }
 
     @Override
@@ -174,54 +315,547 @@ public class QueueProcessor implements MessageQueueProcessor {
         return name;
     }
 
+    @Override
+    public int getConcurrentReceivers() {
+        return concurrentReceivers;
+    }
+
     @Override
     public void poll() throws MessagingException {
-        pollMessageQueue(queueUrl, true);
+        pollForMessages();
+    }
 
-        /*
-            Poll the dead letter queue (if specified) every DEAD_LETTER_QUEUE_POLL_FREQUENCY:th poll attempt.
-         */
-        if (!empty(deadLetterQueueUrl)) {
-            deadLetterQueuePollSequence = (deadLetterQueuePollSequence + 1) % DEAD_LETTER_QUEUE_POLL_FREQUENCY;
-            if (deadLetterQueuePollSequence == 0) {
-                pollMessageQueue(deadLetterQueueUrl, false);
+    @Override
+    public int pollForMessages() throws MessagingException {
+        if (isTimeToReportQueueDepth()) {
+            reportQueueDepth();
+        }
+        int received = pollMessageQueue(queueUrl, true);
+        if (isTimeToPollDeadLetterQueue()) {
+            received += pollMessageQueue(deadLetterQueueUrl, false);
+        }
+        return received;
+    }
+
+    /**
+     * Polls without blocking the calling thread if the Amazon SQS client is an {@link AmazonSQSAsync}: the receive
+     * call is made with the async client, and waiting for room in the receive buffer is done by chaining on the
+     * release of that room. Otherwise the blocking poll is run on the supplied executor.
+     */
+    @Override
+    public CompletableFuture<Integer> pollForMessagesAsync(Executor executor) {
+        if (!(amazonSQS instanceof AmazonSQSAsync) || throughputLimiter != null || concurrencyLimiter != null) {
+            // Waiting for throughput or concurrency blocks.
+            return MessageQueueProcessor.super.pollForMessagesAsync(executor);
+        }
+        if (isTimeToReportQueueDepth()) {
+            executor.execute(this::reportQueueDepth);
+        }
+        CompletableFuture<Integer> received = pollMessageQueueAsync(queueUrl, true, executor);
+        if (isTimeToPollDeadLetterQueue()) {
+            return received.thenCompose(fromQueue ->
+                pollMessageQueueAsync(deadLetterQueueUrl, false, executor).thenApply(fromDeadLetterQueue ->
+                    fromQueue + fromDeadLetterQueue
+                )
+            );
+        }
+        return received;
+    }
+
+    /**
+     * Stops receiving, aborts receive calls in progress, and waits up to the timeout for received messages to be
+     * handled. Messages that have not started being handled by then are made visible on the queue again right away,
+     * and will not be handled by this processor. Pending batched deletes and visibility timeout changes are sent
+     * before returning. Messages still being handled at the timeout are left to their handlers.
+     */
+    @Override
+    public int drain(long timeout, TimeUnit unit) {
+        draining = true;
+        receivingThreads.forEach(Thread::interrupt);
+        long deadlineNanos = System.nanoTime() + unit.toNanos(timeout);
+        try {
+            while (messagesInFlight.get() > 0 && deadlineNanos - System.nanoTime() > 0) {
+                TimeUnit.MILLISECONDS.sleep(DRAIN_CHECK_INTERVAL_MILLIS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        Map<String, List<String>> unhandledReceiptHandlesPerQueueUrl = new HashMap<>();
+        for (String receiptHandle : queueUrlPerUnhandledReceiptHandle.keySet()) {
+            String messageQueueUrl = queueUrlPerUnhandledReceiptHandle.remove(receiptHandle);
+            if (messageQueueUrl != null) {
+                unhandledReceiptHandlesPerQueueUrl.computeIfAbsent(messageQueueUrl, url -> new ArrayList<>())
+                    .add(receiptHandle);
+            }
+        }
+        int returned = 0;
+        for (Map.Entry<String, List<String>> entry : unhandledReceiptHandlesPerQueueUrl.entrySet()) {
+            int unhandled = entry.getValue().size();
+            makeVisible(entry.getKey(), entry.getValue());
+            messagesInFlight.addAndGet(-unhandled);
+            metrics.inFlight(entry.getKey(), -unhandled);
+            releaseConcurrency(unhandled);
+            returned += unhandled;
+        }
+        if (visibilityTimeoutExtender != null) {
+            visibilityTimeoutExtender.flush();
+        }
+        if (messageDeleter != null) {
+            messageDeleter.flush();
+        }
+        LOG.info(
+            "Message queue processor {} drained, returned {} message(s) to the queue, {} still being handled.",
+            name,
+            returned,
+            messagesInFlight.get()
+        );
+        return returned;
+    }
+
+    /**
+     * Poll the dead letter queue (if specified) every DEAD_LETTER_QUEUE_POLL_FREQUENCY:th poll attempt.
+     */
+    private boolean isTimeToPollDeadLetterQueue() {
+        if (empty(deadLetterQueueUrl)) {
+            return false;
+        }
+        return deadLetterQueuePollSequence.updateAndGet(i -> (i + 1) % DEAD_LETTER_QUEUE_POLL_FREQUENCY) == 0;
+    }
+
+    private boolean isTimeToReportQueueDepth() {
+        if (queueDepthIntervalNanos == 0) {
+            return false;
+        }
+        long now = System.nanoTime();
+        long next = nextQueueDepthReportNanos.get();
+        return now - next >= 0 && nextQueueDepthReportNanos.compareAndSet(next, now + queueDepthIntervalNanos);
+    }
+
+    private void reportQueueDepth() {
+        try {
+            String depth = amazonSQS.getQueueAttributes(
+                new GetQueueAttributesRequest(queueUrl)
+                    .withAttributeNames(QueueAttributeName.ApproximateNumberOfMessages)
+            )
+                .getAttributes()
+                .get(QueueAttributeName.ApproximateNumberOfMessages.name());
+            if (!empty(depth)) {
+                metrics.queueDepth(queueUrl, Long.parseLong(depth));
             }
+        } catch (AmazonClientException | NumberFormatException e) {
+            LOG.warn("Failed to read the depth of queue {}.", queueUrl, e);
         }
     }
 
-    private void pollMessageQueue(String messageQueueUrl, boolean useLongPolling) throws MessagingException {
+    /**
+     * @return Number of received messages.
+     */
+    private int pollMessageQueue(String messageQueueUrl, boolean useLongPolling) throws MessagingException {
+        // Registered while waiting for capacity and receiving, so that drain() can abort it.
+        Thread receivingThread = Thread.currentThread();
+        receivingThreads.add(receivingThread);
+        final int capacity;
+        List<Message> messages = Collections.emptyList();
+        try {
+            capacity = draining ? 0 : limitThroughput(limitConcurrency(reserveReceiveCapacity()));
+            if (capacity == 0) {
+                return 0;
+            }
+            try {
+                long startNanos = System.nanoTime();
+                messages = amazonSQS.receiveMessage(
+                    createReceiveMessageRequest(messageQueueUrl, useLongPolling, capacity)
+                ).getMessages();
+                recordReceived(messageQueueUrl, capacity, messages, startNanos);
+            } catch (AbortedException e) {
+                LOG.info("Client abort receive message.");
+            } catch (AmazonClientException e) {
+                releaseReceiveCapacity(capacity);
+                releaseThroughput(capacity);
+                releaseConcurrency(capacity);
+                throw new MessagingException("Failed to poll message queue.", e);
+            } catch (RuntimeException e) {
+                releaseReceiveCapacity(capacity);
+                releaseThroughput(capacity);
+                releaseConcurrency(capacity);
+                throw e;
+            }
+        } finally {
+            receivingThreads.remove(receivingThread);
+        }
+        return dispatchReceivedMessages(messages, messageQueueUrl, capacity);
+    }
+
+    private CompletableFuture<Integer> pollMessageQueueAsync(
+        String messageQueueUrl,
+        boolean useLongPolling,
+        Executor executor
+    ) {
+        return reserveReceiveCapacityAsync().thenCompose(capacity -> {
+            if (draining) {
+                releaseReceiveCapacity(capacity);
+                return CompletableFuture.completedFuture(0);
+            }
+            CompletableAsyncHandler<ReceiveMessageRequest, ReceiveMessageResult> handler =
+                new CompletableAsyncHandler<>();
+            long startNanos = System.nanoTime();
+            try {
+                ((AmazonSQSAsync) amazonSQS).receiveMessageAsync(
+                    createReceiveMessageRequest(messageQueueUrl, useLongPolling, capacity),
+                    handler
+                );
+            } catch (RuntimeException e) {
+                handler.onError(e);
+            }
+            return handler.getFuture().handleAsync(
+                (result, throwable) -> {
+                    if (throwable == null) {
+                        recordReceived(messageQueueUrl, capacity, result.getMessages(), startNanos);
+                        return dispatchReceivedMessages(result.getMessages(), messageQueueUrl, capacity);
+                    }
+                    releaseReceiveCapacity(capacity);
+                    if (throwable instanceof AbortedException) {
+                        LOG.info("Client abort receive message.");
+                        return 0;
+                    }
+                    throw new CompletionException(new MessagingException("Failed to poll message queue.", throwable));
+                },
+                executor
+            );
+        });
+    }
+
+    private ReceiveMessageRequest createReceiveMessageRequest(
+        String messageQueueUrl,
+        boolean useLongPolling,
+        int capacity
+    ) {
         ReceiveMessageRequest messageRequest = new ReceiveMessageRequest(messageQueueUrl);
-        messageRequest.setMaxNumberOfMessages(MAXIMUM_NUMBER_OF_MESSAGES_TO_RECEIVE);
+        messageRequest.setMaxNumberOfMessages(capacity);
+        List<String> attributeNames = new ArrayList<>(3);
+        if (orderingKey != null) {
+            attributeNames.add(MESSAGE_GROUP_ID_ATTRIBUTE);
+        }
+        if (baseRetryDelaySeconds > 0) {
+            attributeNames.add(APPROXIMATE_RECEIVE_COUNT_ATTRIBUTE);
+        }
+        if (metrics != MessagingMetrics.NONE) {
+            attributeNames.add(SENT_TIMESTAMP_ATTRIBUTE);
+        }
+        if (!attributeNames.isEmpty()) {
+            messageRequest.setAttributeNames(attributeNames);
+        }
+        messageRequest.setMessageAttributeNames(
+            Arrays.asList(MessageCodec.CONTENT_TYPE_ATTRIBUTE, PayloadStore.STORED_PAYLOAD_ATTRIBUTE)
+        );
         if (useLongPolling) {
             messageRequest.setWaitTimeSeconds(MESSAGE_WAIT_SECONDS);
         }
+        if (visibilityTimeoutExtender != null) {
+            messageRequest.setVisibilityTimeout(visibilityTimeoutExtender.getVisibilityTimeoutSeconds());
+        }
+        return messageRequest;
+    }
+
+    private void recordReceived(String messageQueueUrl, int requested, List<Message> messages, long startNanos) {
+        if (metrics == MessagingMetrics.NONE) {
+            return;
+        }
+        int received = messages == null ? 0 : messages.size();
+        metrics.received(messageQueueUrl, requested, received, System.nanoTime() - startNanos);
+        if (received == 0) {
+            return;
+        }
+        metrics.inFlight(messageQueueUrl, received);
+        long now = System.currentTimeMillis();
+        for (Message message : messages) {
+            String sentTimestamp = message.getAttributes().get(SENT_TIMESTAMP_ATTRIBUTE);
+            if (!empty(sentTimestamp)) {
+                try {
+                    metrics.messageAge(messageQueueUrl, now - Long.parseLong(sentTimestamp));
+                } catch (NumberFormatException ignored) {
+                    // Not measured.
+                }
+            }
+        }
+    }
+
+    /**
+     * Hands the received messages over for handling. The room they were given in the receive buffer is held until
+     * they have been handled, and the rest of the reserved room is released right away. Messages received while
+     * draining are made visible on the queue again instead.
+     *
+     * @return Number of received messages.
+     */
+    private int dispatchReceivedMessages(List<Message> messages, String messageQueueUrl, int capacity) {
+        if (empty(messages)) {
+            releaseReceiveCapacity(capacity);
+            releaseThroughput(capacity);
+            releaseConcurrency(capacity);
+            return 0;
+        }
+        releaseThroughput(capacity - messages.size());
+        if (draining) {
+            releaseReceiveCapacity(capacity);
+            releaseConcurrency(capacity);
+            metrics.inFlight(messageQueueUrl, -messages.size());
+            List<String> receiptHandles = new ArrayList<>(messages.size());
+            messages.forEach(message -> receiptHandles.add(message.getReceiptHandle()));
+            makeVisible(messageQueueUrl, receiptHandles);
+            return messages.size();
+        }
+        releaseConcurrency(capacity - messages.size());
+        messages.forEach(message ->
+            queueUrlPerUnhandledReceiptHandle.put(message.getReceiptHandle(), messageQueueUrl)
+        );
+        messagesInFlight.addAndGet(messages.size());
+        if (visibilityTimeoutExtender != null) {
+            messages.forEach(message ->
+                visibilityTimeoutExtender.startTracking(messageQueueUrl, message.getReceiptHandle())
+            );
+        }
+        final int reserved = Math.min(messages.size(), capacity);
+        releaseReceiveCapacity(capacity - reserved);
+        dispatchMessages(messages, messageQueueUrl)
+            .whenComplete((ignored, throwable) -> releaseReceiveCapacity(reserved));
+        return messages.size();
+    }
+
+    /**
+     * Makes received messages that will not be handled visible on the queue again right away, instead of after their
+     * visibility timeout. The changes are batched with the visibility timeout extender, if there is one.
+     */
+    private void makeVisible(String messageQueueUrl, List<String> receiptHandles) {
+        if (visibilityTimeoutExtender != null) {
+            for (String receiptHandle : receiptHandles) {
+                visibilityTimeoutExtender.stopTracking(messageQueueUrl, receiptHandle);
+                visibilityTimeoutExtender.changeVisibilityTimeout(messageQueueUrl, receiptHandle, 0);
+            }
+            return;
+        }
+        for (int from = 0; from < receiptHandles.size(); from += MAXIMUM_NUMBER_OF_MESSAGES_TO_RECEIVE) {
+            List<ChangeMessageVisibilityBatchRequestEntry> entries = new ArrayList<>();
+            int to = Math.min(from + MAXIMUM_NUMBER_OF_MESSAGES_TO_RECEIVE, receiptHandles.size());
+            for (int i = from; i < to; i++) {
+                entries.add(
+                    new ChangeMessageVisibilityBatchRequestEntry(String.valueOf(i), receiptHandles.get(i))
+                        .withVisibilityTimeout(0)
+                );
+            }
+            try {
+                ChangeMessageVisibilityBatchResult result = amazonSQS.changeMessageVisibilityBatch(
+                    new ChangeMessageVisibilityBatchRequest(messageQueueUrl, entries)
+                );
+                if (!empty(result.getFailed())) {
+                    LOG.warn(
+                        "Failed to make {} message(s) visible on queue {} again.",
+                        result.getFailed().size(),
+                        messageQueueUrl
+                    );
+                }
+            } catch (AmazonClientException e) {
+                LOG.warn("Failed to make {} message(s) visible on queue {} again.", entries.size(), messageQueueUrl, e);
+            }
+        }
+    }
+
+    /**
+     * Reserves room in the receive buffer for the messages of one receive call. Blocks until there is room for at
+     * least one message, and then grabs as much of the remaining room as a single receive call can fill.
+     *
+     * @return The number of messages to ask for, or 0 if the polling thread was interrupted while waiting.
+     */
+    private int reserveReceiveCapacity() {
+        if (receiveBuffer == null) {
+            return MAXIMUM_NUMBER_OF_MESSAGES_TO_RECEIVE;
+        }
         try {
-            List<Message> messages = amazonSQS.receiveMessage(messageRequest).getMessages();
-            if (!empty(messages)) {
-                if (executorService != null) {
-                    try {
-                        executorService.submit(() -> handleMessages(messages, messageQueueUrl));
-                    } catch (RejectedExecutionException e) {
-                        LOG.warn("Use executorService but been rejected!", e);
-                        handleMessages(messages, messageQueueUrl);
-                    }
-                } else {
+            receiveBuffer.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return 0;
+        }
+        return 1 + tryReserveReceiveCapacity(MAXIMUM_NUMBER_OF_MESSAGES_TO_RECEIVE - 1);
+    }
+
+    /**
+     * Like {@link #reserveReceiveCapacity()}, but instead of blocking while the receive buffer is full, the returned
+     * future completes once room has been released.
+     */
+    private CompletableFuture<Integer> reserveReceiveCapacityAsync() {
+        if (receiveBuffer == null) {
+            return CompletableFuture.completedFuture(MAXIMUM_NUMBER_OF_MESSAGES_TO_RECEIVE);
+        }
+        // Picked before trying, so that a release in between can not go unnoticed.
+        CompletableFuture<Void> released = receiveCapacityReleased.get();
+        int capacity = tryReserveReceiveCapacity(MAXIMUM_NUMBER_OF_MESSAGES_TO_RECEIVE);
+        if (capacity > 0) {
+            return CompletableFuture.completedFuture(capacity);
+        }
+        return released.thenCompose(ignored -> reserveReceiveCapacityAsync());
+    }
+
+    /**
+     * Cuts the reserved room down to what the concurrency limit allows, waiting for messages in flight to be handled
+     * if the limit has been reached.
+     *
+     * @return The number of messages to ask for, or 0 if the polling thread was interrupted while waiting.
+     */
+    private int limitConcurrency(int capacity) {
+        if (concurrencyLimiter == null || capacity == 0) {
+            return capacity;
+        }
+        int permitted;
+        try {
+            permitted = concurrencyLimiter.acquire(capacity);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            permitted = 0;
+        }
+        releaseReceiveCapacity(capacity - permitted);
+        return permitted;
+    }
+
+    private void releaseConcurrency(int permits) {
+        if (concurrencyLimiter != null) {
+            concurrencyLimiter.release(permits);
+        }
+    }
+
+    /**
+     * Cuts the reserved room down to what the throughput limit allows, waiting for throughput if there is none.
+     *
+     * @return The number of messages to ask for, or 0 if the polling thread was interrupted while waiting.
+     */
+    private int limitThroughput(int capacity) {
+        if (throughputLimiter == null || capacity == 0) {
+            return capacity;
+        }
+        int permitted;
+        try {
+            permitted = throughputLimiter.acquire(capacity);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            permitted = 0;
+        }
+        releaseReceiveCapacity(capacity - permitted);
+        releaseConcurrency(capacity - permitted);
+        return permitted;
+    }
+
+    private void releaseThroughput(int permits) {
+        if (throughputLimiter != null) {
+            throughputLimiter.release(permits);
+        }
+    }
+
+    private int tryReserveReceiveCapacity(int maximumCapacity) {
+        int capacity = 0;
+        while (capacity < maximumCapacity && receiveBuffer.tryAcquire()) {
+            capacity++;
+        }
+        return capacity;
+    }
+
+    private void releaseReceiveCapacity(int capacity) {
+        if (receiveBuffer != null && capacity > 0) {
+            receiveBuffer.release(capacity);
+            receiveCapacityReleased.getAndSet(new CompletableFuture<>()).complete(null);
+        }
+    }
+
+    /**
+     * Hands the received messages over to the executor service, if there is one.
+     *
+     * @return Future that completes when all messages have been handled.
+     */
+    private CompletableFuture<Void> dispatchMessages(List<Message> messages, String messageQueueUrl) {
+        if (executorService == null) {
+            handleMessages(messages, messageQueueUrl);
+            return CompletableFuture.completedFuture(null);
+        }
+        if (orderingKey == null) {
+            return submitMessages(messages, messageQueueUrl);
+        }
+        List<CompletableFuture<Void>> handled = new ArrayList<>(messages.size());
+        Map<Object, List<Message>> messagesPerKey = new LinkedHashMap<>();
+        for (Message message : messages) {
+            Object key = orderingKey.apply(message);
+            if (key == null) {
+                handled.add(submitMessages(Collections.singletonList(message), messageQueueUrl));
+            } else {
+                messagesPerKey.computeIfAbsent(key, k -> new ArrayList<>()).add(message);
+            }
+        }
+        messagesPerKey.forEach((key, messagesWithSameKey) ->
+            handled.add(submitMessagesAfterEarlierMessagesWithSameKey(key, messagesWithSameKey, messageQueueUrl))
+        );
+        return CompletableFuture.allOf(handled.toArray(new CompletableFuture<?>[0]));
+    }
+
+    /**
+     * Submits the messages once all earlier received messages with the same ordering key have been handled, so
+     * that messages stay in order also when a key shows up in several receive calls.
+     */
+    private CompletableFuture<Void> submitMessagesAfterEarlierMessagesWithSameKey(
+        Object key,
+        List<Message> messages,
+        String messageQueueUrl
+    ) {
+        // Only the placeholder is swapped in atomically; submitting, or handling on rejection, happens outside of
+        // the map so that it never runs while a bin of the map is locked.
+        CompletableFuture<Void> handled = new CompletableFuture<>();
+        CompletableFuture<Void> earlier = handledPerOrderingKey.put(key, handled);
+        (earlier == null ? CompletableFuture.<Void>completedFuture(null) : earlier)
+            .thenCompose(ignored -> submitMessages(messages, messageQueueUrl))
+            .whenComplete((ignored, throwable) -> handled.complete(null));
+        handled.whenComplete((ignored, throwable) -> handledPerOrderingKey.remove(key, handled));
+        return handled;
+    }
+
+    private CompletableFuture<Void> submitMessages(List<Message> messages, String messageQueueUrl) {
+        CompletableFuture<Void> handled = new CompletableFuture<>();
+        try {
+            executorService.submit(() -> {
+                try {
                     handleMessages(messages, messageQueueUrl);
+                } finally {
+                    handled.complete(null);
                 }
-            }
-        } catch (AbortedException e) {
-            LOG.info("Client abort receive message.");
-        } catch (AmazonClientException e) {
-            throw new MessagingException("Failed to poll message queue.", e);
+            });
+        } catch (RejectedExecutionException e) {
+            LOG.warn("Use executorService but been rejected!", e);
+            handleMessages(messages, messageQueueUrl);
+            handled.complete(null);
         }
+        return handled;
     }
 
     private void handleMessages(List<Message> messages, String messageQueueUrl) {
         LOG.debug("Message queue processor {} fetched {} message(s) from queue.", name, messages.size());
 
         for (Message message : messages) {
+            if (queueUrlPerUnhandledReceiptHandle.remove(message.getReceiptHandle()) == null) {
+                // Made visible on the queue again by drain().
+                continue;
+            }
+            long handlingStartNanos = System.nanoTime();
+            boolean failed = false;
             try {
-                messageHandler.handle(message);
+                if (deduplicator != null && deduplicator.isDuplicate(message)) {
+                    LOG.debug("Deleting duplicate of handled message {} from queue {}.", message.getMessageId(), messageQueueUrl);
+                    deleteMessageFromQueue(message.getReceiptHandle(), messageQueueUrl);
+                    continue;
+                }
+                long startNanos = System.nanoTime();
+                try {
+                    messageHandler.handle(message);
+                } finally {
+                    metrics.handled(messageQueueUrl, System.nanoTime() - startNanos);
+                }
+                if (deduplicator != null) {
+                    deduplicator.markHandled(message);
+                }
                 deleteMessageFromQueue(message.getReceiptHandle(), messageQueueUrl);
             } catch (RetryableMessageHandlerException ignored) {
                 /*
@@ -232,7 +866,7 @@ public class QueueProcessor implements MessageQueueProcessor {
                  should not be logged in the same way that general exceptions (below) are done.
                  The message will be polled again by Amazon SQS.
                  */
-                LOG.debug("Will retry handling message {} later.", message.getMessageId());
+                delayRetry(message, messageQueueUrl);
             } catch (Exception e) {
                 /*
                  Note: We should only log here and continue with the other messages fetched. The reason for that is
@@ -240,18 +874,311 @@ public class QueueProcessor implements MessageQueueProcessor {
                  not.
                  Please note that in Amazon SQS, the message will be retried after some time (default 30s).
                  */
+                failed = true;
                 LOG.warn("Failed to handle message {} from queue {}. Will leave it on queue.", message.getMessageId(), messageQueueUrl, e);
+            } finally {
+                if (visibilityTimeoutExtender != null) {
+                    visibilityTimeoutExtender.stopTracking(messageQueueUrl, message.getReceiptHandle());
+                }
+                metrics.inFlight(messageQueueUrl, -1);
+                messagesInFlight.decrementAndGet();
+                if (concurrencyLimiter != null) {
+                    concurrencyLimiter.handled(handlingStartNanos, System.nanoTime(), failed);
+                }
             }
         }
     }
 
+    /**
+     * Makes a message that should be retried invisible for a delay that doubles with every receive of the
+     * message, if the processor is configured with retry delays. Otherwise the message will be received again
+     * once its current visibility timeout has passed.
+     */
+    private void delayRetry(Message message, String messageQueueUrl) {
+        if (baseRetryDelaySeconds == 0) {
+            LOG.debug("Will retry handling message {} later.", message.getMessageId());
+            return;
+        }
+        int retryDelaySeconds = getRetryDelaySeconds(getApproximateReceiveCount(message));
+        LOG.debug("Will retry handling message {} in {} seconds.", message.getMessageId(), retryDelaySeconds);
+        visibilityTimeoutExtender.stopTracking(messageQueueUrl, message.getReceiptHandle());
+        visibilityTimeoutExtender.changeVisibilityTimeout(messageQueueUrl, message.getReceiptHandle(), retryDelaySeconds);
+    }
+
+    private int getRetryDelaySeconds(int receiveCount) {
+        long retryDelaySeconds = (long) baseRetryDelaySeconds << Math.min(receiveCount - 1, 30);
+        return (int) Math.min(retryDelaySeconds, maximumRetryDelaySeconds);
+    }
+
+    private static int getApproximateReceiveCount(Message message) {
+        String receiveCount = message.getAttributes().get(APPROXIMATE_RECEIVE_COUNT_ATTRIBUTE);
+        try {
+            return empty(receiveCount) ? 1 : Math.max(Integer.parseInt(receiveCount), 1);
+        } catch (NumberFormatException e) {
+            return 1;
+        }
+    }
+
     private void deleteMessageFromQueue(String messageReceiptHandle, String messageQueueUrl) throws MessagingException {
+        long startNanos = System.nanoTime();
+        if (messageDeleter != null) {
+            messageDeleter.delete(messageQueueUrl, messageReceiptHandle).whenComplete((ignored, throwable) ->
+                metrics.deleted(messageQueueUrl, System.nanoTime() - startNanos)
+            );
+            return;
+        }
         try {
             amazonSQS.deleteMessage(new DeleteMessageRequest(messageQueueUrl, messageReceiptHandle));
+            metrics.deleted(messageQueueUrl, System.nanoTime() - startNanos);
         } catch (AbortedException e) {
             LOG.info("Client abort delete message.");
         } catch (AmazonClientException ase) {
             throw new MessagingException("Failed to delete message with receipt handle " + messageReceiptHandle + " from queue " + messageQueueUrl, ase);
         }
     }
+
+    public static class Builder {
+        private final AmazonSQS amazonSQS;
+        private final String name;
+        private final String queueUrl;
+        private final MessageHandler<Message> messageHandler;
+        private String deadLetterQueueUrl;
+        private ExecutorService executorService;
+        private int concurrentReceivers = 1;
+        private int receiveBufferSize;
+        private BatchingMessageDeleter messageDeleter;
+        private Function<Message, ?> orderingKey;
+        private VisibilityTimeoutExtender visibilityTimeoutExtender;
+        private int baseRetryDelaySeconds;
+        private int maximumRetryDelaySeconds;
+        private MessageDeduplicator deduplicator;
+        private MessagingMetrics metrics = MessagingMetrics.NONE;
+        private double messagesPerSecond;
+        private long queueDepthIntervalNanos;
+        private int initialConcurrency;
+        private int maximumConcurrency;
+        private long concurrencyLatencyThresholdNanos;
+
+        private Builder(AmazonSQS amazonSQS, String name, String queueUrl, MessageHandler<Message> messageHandler) {
+            this.amazonSQS = amazonSQS;
+            this.name = name;
+            this.queueUrl = queueUrl;
+            this.messageHandler = messageHandler;
+        }
+
+        /**
+         * @param deadLetterQueueUrl Url of a dead letter queue that should also be polled, or null.
+         * @return This builder.
+         */
+        public Builder withDeadLetterQueueUrl(String deadLetterQueueUrl) {
+            this.deadLetterQueueUrl = deadLetterQueueUrl;
+            return this;
+        }
+
+        /**
+         * @param executorService Executor service that received messages are handled on, or null to handle them on
+         * the polling thread.
+         * @return This builder.
+         */
+        public Builder withExecutorService(ExecutorService executorService) {
+            this.executorService = executorService;
+            return this;
+        }
+
+        /**
+         * Lets several receivers long poll the queue at the same time, all feeding the executor service. The
+         * receivers will pause while the number of received but not yet handled messages is at
+         * receiveBufferSize.
+         *
+         * @param concurrentReceivers Number of receivers that should poll the queue at the same time.
+         * @param receiveBufferSize Maximum number of received messages waiting for, or being handled by, the
+         * executor service.
+         * @return This builder.
+         */
+        public Builder withConcurrentReceivers(int concurrentReceivers, int receiveBufferSize) {
+            if (concurrentReceivers < 1) {
+                throw new IllegalArgumentException("Illegal concurrentReceivers, was: " + concurrentReceivers);
+            }
+            if (receiveBufferSize < 1) {
+                throw new IllegalArgumentException("Illegal receiveBufferSize, was: " + receiveBufferSize);
+            }
+            this.concurrentReceivers = concurrentReceivers;
+            this.receiveBufferSize = receiveBufferSize;
+            return this;
+        }
+
+        /**
+         * Deletes handled messages in batches instead of one by one. Failures to delete are logged by the deleter,
+         * and the message will be received again after its visibility timeout.
+         *
+         * @param messageDeleter Deleter that collects the receipt handles of handled messages.
+         * @return This builder.
+         */
+        public Builder withBatchedDeletes(BatchingMessageDeleter messageDeleter) {
+            this.messageDeleter = messageDeleter;
+            return this;
+        }
+
+        /**
+         * Hands each received message over to the executor service on its own, instead of handling all messages
+         * of a receive call one after another in a single task. Messages with the same ordering key are still
+         * handled one after another, in the order they were received, also across receive calls. Messages without
+         * an ordering key are handled independently of all other messages.
+         *
+         * @param orderingKey Function that picks the ordering key of a message, e.g. {@link #MESSAGE_GROUP_ID}.
+         * @return This builder.
+         */
+        public Builder withParallelMessageHandling(Function<Message, ?> orderingKey) {
+            this.orderingKey = orderingKey;
+            return this;
+        }
+
+        /**
+         * Receives messages with the visibility timeout of the extender, and keeps extending it for as long as the
+         * messages are waiting for, or being handled by, the message handler. Once a message has been handled,
+         * or has failed, it is no longer extended.
+         *
+         * @param visibilityTimeoutExtender Extender that tracks the received messages.
+         * @return This builder.
+         */
+        public Builder withVisibilityTimeoutExtension(VisibilityTimeoutExtender visibilityTimeoutExtender) {
+            this.visibilityTimeoutExtender = visibilityTimeoutExtender;
+            return this;
+        }
+
+        /**
+         * Delays the next attempt to handle a message, when the message handler throws a
+         * {@link RetryableMessageHandlerException}, by changing the visibility timeout of the message. The delay
+         * starts at baseRetryDelaySeconds and doubles with every time the message has been received, up to
+         * maximumRetryDelaySeconds. Needs a visibility timeout extender, which the changes are batched with.
+         *
+         * @param baseRetryDelaySeconds Delay after the first failed attempt.
+         * @param maximumRetryDelaySeconds Upper limit of the delay, at most 43200 seconds (12 hours).
+         * @return This builder.
+         */
+        public Builder withExponentialRetryDelay(int baseRetryDelaySeconds, int maximumRetryDelaySeconds) {
+            if (baseRetryDelaySeconds < 1) {
+                throw new IllegalArgumentException("Illegal baseRetryDelaySeconds, was: " + baseRetryDelaySeconds);
+            }
+            if (maximumRetryDelaySeconds < baseRetryDelaySeconds
+                || maximumRetryDelaySeconds > VisibilityTimeoutExtender.MAXIMUM_VISIBILITY_TIMEOUT_SECONDS) {
+                throw new IllegalArgumentException(
+                    "Illegal maximumRetryDelaySeconds, was: " + maximumRetryDelaySeconds
+                );
+            }
+            this.baseRetryDelaySeconds = baseRetryDelaySeconds;
+            this.maximumRetryDelaySeconds = maximumRetryDelaySeconds;
+            return this;
+        }
+
+        /**
+         * Deletes received messages that the deduplicator has seen handled before, without passing them on to the
+         * message handler, and marks every handled message in the deduplicator.
+         *
+         * @param deduplicator Deduplicator of the messages, that may be shared with other queue processors.
+         * @return This builder.
+         */
+        public Builder withDeduplication(MessageDeduplicator deduplicator) {
+            this.deduplicator = deduplicator;
+            return this;
+        }
+
+        /**
+         * Measures receive calls, message age, messages in flight, and the time it takes to handle and delete
+         * messages, see {@link MessagingMetrics}. The time it takes to read messages is part of the handling.
+         *
+         * @param metrics Metrics of the processor, that may be shared with other processors.
+         * @return This builder.
+         */
+        public Builder withMetrics(MessagingMetrics metrics) {
+            this.metrics = metrics == null ? MessagingMetrics.NONE : metrics;
+            return this;
+        }
+
+        /**
+         * Limits how many messages per second all receivers of the processor receive together. A receiver waits
+         * for throughput before each receive call, and only asks for as many messages as it is allowed.
+         *
+         * @param messagesPerSecond Maximum number of received messages per second.
+         * @return This builder.
+         */
+        public Builder withThroughputLimit(double messagesPerSecond) {
+            if (!(messagesPerSecond > 0)) {
+                throw new IllegalArgumentException("Illegal messagesPerSecond, was: " + messagesPerSecond);
+            }
+            this.messagesPerSecond = messagesPerSecond;
+            return this;
+        }
+
+        /**
+         * Limits how many received messages all receivers of the processor have in flight together, and adapts the
+         * limit to how the message handler copes: it grows by one for every limit worth of messages handled within
+         * the latency threshold, and is cut by a quarter when the handling of a message fails or takes longer. A
+         * receiver waits for a message in flight to be handled before each receive call while the limit is reached,
+         * and only asks for as many messages as are allowed. The time to handle a message includes checking for
+         * duplicates and deleting it. Can be combined with {@link #withThroughputLimit(double)}, which is waited for
+         * after the concurrency limit.
+         *
+         * @param initialConcurrency Limit to start with.
+         * @param maximumConcurrency Upper limit.
+         * @param latencyThreshold Longest time to handle a message before the limit is cut.
+         * @param unit Time unit of the latency threshold.
+         * @return This builder.
+         */
+        public Builder withAdaptiveConcurrencyLimit(
+            int initialConcurrency,
+            int maximumConcurrency,
+            long latencyThreshold,
+            TimeUnit unit
+        ) {
+            if (initialConcurrency < 1) {
+                throw new IllegalArgumentException("Illegal initialConcurrency, was: " + initialConcurrency);
+            }
+            if (maximumConcurrency < initialConcurrency) {
+                throw new IllegalArgumentException("Illegal maximumConcurrency, was: " + maximumConcurrency);
+            }
+            if (latencyThreshold < 1) {
+                throw new IllegalArgumentException("Illegal latencyThreshold, was: " + latencyThreshold);
+            }
+            this.initialConcurrency = initialConcurrency;
+            this.maximumConcurrency = maximumConcurrency;
+            this.concurrencyLatencyThresholdNanos = unit.toNanos(latencyThreshold);
+            return this;
+        }
+
+        /**
+         * Reports the approximate number of messages in the queue to the metrics, see
+         * {@link #withMetrics(MessagingMetrics)}, at most once per interval, from one of the polls.
+         *
+         * @param interval Time between reports.
+         * @param unit Time unit of the interval.
+         * @return This builder.
+         */
+        public Builder withQueueDepthReporting(long interval, TimeUnit unit) {
+            if (interval < 1) {
+                throw new IllegalArgumentException("Illegal interval, was: " + interval);
+            }
+            this.queueDepthIntervalNanos = unit.toNanos(interval);
+            return this;
+        }
+
+        public MessageQueueProcessor build() {
+            if (receiveBufferSize > 0 && executorService == null) {
+                throw new IllegalArgumentException(
+                    "Queue processor " + name + " needs an executorService to drain its receive buffer"
+                );
+            }
+            if (orderingKey != null && executorService == null) {
+                throw new IllegalArgumentException(
+                    "Queue processor " + name + " needs an executorService to handle messages in parallel"
+                );
+            }
+            if (baseRetryDelaySeconds > 0 && visibilityTimeoutExtender == null) {
+                throw new IllegalArgumentException(
+                    "Queue processor " + name + " needs a visibilityTimeoutExtender to delay retries"
+                );
+            }
+            return new QueueProcessor(this);
+        }
+    }
 }
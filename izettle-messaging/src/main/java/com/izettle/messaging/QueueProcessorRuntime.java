@@ -0,0 +1,179 @@
+package com.izettle.messaging;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Hosts any number of message queue processors on a small, shared pool of threads, instead of one thread per
+ * receiver as with {@link QueueProcessingThread}. Every receiver polls with
+ * {@link MessageQueueProcessor#pollForMessagesAsync}, and schedules its next poll on the pool once the last one has
+ * completed, waiting as told by the {@link PollingBackoff} of the runtime.
+ *
+ * Processors that are created with an {@link com.amazonaws.services.sqs.AmazonSQSAsync} client, like the ones from
+ * {@link AmazonSQSClientFactory}, do not hold on to a thread of the pool while long polling. Other processors do,
+ * so the pool should then have a thread per receiver.
+ */
+public class QueueProcessorRuntime {
+    private static final Logger LOG = LoggerFactory.getLogger(QueueProcessorRuntime.class);
+    private final ScheduledExecutorService scheduler;
+    private final PollingBackoff pollingBackoff;
+    private final List<Receiver> receivers = new CopyOnWriteArrayList<>();
+    private volatile boolean alive = true;
+
+    public QueueProcessorRuntime(int threads) {
+        this(threads, PollingBackoff.DEFAULT);
+    }
+
+    public QueueProcessorRuntime(int threads, PollingBackoff pollingBackoff) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Illegal threads, was: " + threads);
+        }
+        AtomicInteger threadSequence = new AtomicInteger();
+        this.scheduler = Executors.newScheduledThreadPool(
+            threads,
+            runnable -> new Thread(runnable, "queue-processor-runtime-" + threadSequence.getAndIncrement())
+        );
+        this.pollingBackoff = pollingBackoff;
+    }
+
+    /**
+     * Starts polling with as many receivers as the processor asks for.
+     *
+     * @param queueProcessor Processor to poll.
+     */
+    public void start(MessageQueueProcessor queueProcessor) {
+        if (!alive) {
+            throw new IllegalStateException("Runtime has been shut down, can not start " + queueProcessor.getName());
+        }
+        for (int i = 0; i < queueProcessor.getConcurrentReceivers(); i++) {
+            Receiver receiver = new Receiver(queueProcessor);
+            receivers.add(receiver);
+            receiver.scheduleNextPoll(0);
+        }
+        LOG.info(String.format("Message queue processor %s started.", queueProcessor.getName()));
+    }
+
+    /**
+     * @param queueProcessor A processor that has been started in this runtime.
+     * @return True if the last poll of every receiver of the processor received no messages.
+     */
+    public boolean isIdle(MessageQueueProcessor queueProcessor) {
+        return receivers.stream()
+            .filter(receiver -> receiver.queueProcessor == queueProcessor)
+            .allMatch(receiver -> receiver.idle);
+    }
+
+    /**
+     * Stops all receivers, and drains every processor within the timeout, see
+     * {@link MessageQueueProcessor#drain(long, TimeUnit)}, before waiting for the last polls like {@link #shutdown()}.
+     *
+     * @param timeout Longest time to wait for received messages to be handled, for all processors together.
+     * @param unit Time unit of the timeout.
+     */
+    public void shutdown(long timeout, TimeUnit unit) {
+        alive = false;
+        long deadlineNanos = System.nanoTime() + unit.toNanos(timeout);
+        receivers.stream()
+            .map(receiver -> receiver.queueProcessor)
+            .distinct()
+            .forEach(queueProcessor ->
+                queueProcessor.drain(Math.max(deadlineNanos - System.nanoTime(), 0), TimeUnit.NANOSECONDS)
+            );
+        shutdown();
+    }
+
+    /**
+     * Stops all receivers, and waits for their last polls to complete before returning to caller. Messages that
+     * are handled on the executor service of a processor may still be in progress.
+     */
+    public void shutdown() {
+        alive = false;
+        try {
+            for (Receiver receiver : receivers) {
+                receiver.awaitLastPoll();
+            }
+        } catch (InterruptedException ignored) {
+            Thread.currentThread().interrupt();
+        }
+        // Nothing but delayed polls of stopped receivers are left at this point.
+        scheduler.shutdownNow();
+        receivers.stream()
+            .map(receiver -> receiver.queueProcessor.getName())
+            .distinct()
+            .forEach(name -> LOG.info(String.format("Message queue processor %s stopped.", name)));
+    }
+
+    private final class Receiver {
+        private final MessageQueueProcessor queueProcessor;
+        private CompletableFuture<Void> lastPoll = CompletableFuture.completedFuture(null);
+        private int consecutiveEmptyPolls;
+        private int consecutiveFailures;
+        private volatile boolean idle;
+
+        private Receiver(MessageQueueProcessor queueProcessor) {
+            this.queueProcessor = queueProcessor;
+        }
+
+        private void scheduleNextPoll(long delayMillis) {
+            try {
+                scheduler.schedule(this::poll, delayMillis, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                LOG.debug("Runtime is shut down, will not poll {} again.", queueProcessor.getName());
+            }
+        }
+
+        private synchronized void poll() {
+            if (!alive) {
+                return;
+            }
+            CompletableFuture<Integer> received;
+            try {
+                received = queueProcessor.pollForMessagesAsync(scheduler);
+            } catch (RuntimeException e) {
+                received = new CompletableFuture<>();
+                received.completeExceptionally(e);
+            }
+            lastPoll = received.handle((messages, throwable) -> {
+                long delayMillis;
+                if (throwable == null) {
+                    consecutiveFailures = 0;
+                    consecutiveEmptyPolls = messages > 0 ? 0 : consecutiveEmptyPolls + 1;
+                    idle = messages == 0;
+                    delayMillis = pollingBackoff.getIdleDelayMillis(consecutiveEmptyPolls);
+                } else {
+                    Throwable cause = throwable instanceof CompletionException ? throwable.getCause() : throwable;
+                    String name = queueProcessor.getName();
+                    LOG.error(String.format("Message queue processor %s failed to poll for new messages.", name), cause);
+                    consecutiveFailures++;
+                    delayMillis = pollingBackoff.getFailureDelayMillis(consecutiveFailures);
+                }
+                if (alive) {
+                    scheduleNextPoll(delayMillis);
+                }
+                return null;
+            });
+        }
+
+        private void awaitLastPoll() throws InterruptedException {
+            CompletableFuture<Void> poll;
+            synchronized (this) {
+                poll = lastPoll;
+            }
+            try {
+                poll.get();
+            } catch (ExecutionException e) {
+                // Already logged when the poll completed.
+            }
+        }
+    }
+}
@@ -8,9 +8,16 @@ import com.amazonaws.services.sqs.model.DeleteMessageRequest;
 import com.amazonaws.services.sqs.model.Message;
 import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.izettle.cryptography.CryptographyException;
+import com.izettle.cryptography.PGPDecryptor;
+import com.izettle.messaging.payload.PayloadStore;
+import com.izettle.messaging.serialization.AmazonSNSMessage;
 import com.izettle.messaging.serialization.JsonSerializer;
+import com.izettle.messaging.serialization.MessageCodec;
 import com.izettle.messaging.serialization.MessageDeserializer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -24,9 +31,12 @@ public class QueueServicePoller<M> implements MessageQueueConsumer<M> {
 
     private static final Logger LOG = Logger.getLogger(QueueServicePoller.class.getName());
     private static final int MAXIMUM_NUMBER_OF_MESSAGES_TO_RECEIVE = 10;
+    private static final String SENT_TIMESTAMP_ATTRIBUTE = "SentTimestamp";
     private final String queueUrl;
     private final AmazonSQS amazonSQS;
     private final MessageDeserializer<M> messageDeserializer;
+    private final BatchingMessageDeleter messageDeleter;
+    private final MessagingMetrics metrics;
 
     public static <T> MessageQueueConsumer<T> nonEncryptedMessageQueueConsumer(
             final Class<T> messageClass,
@@ -40,6 +50,26 @@ public class QueueServicePoller<M> implements MessageQueueConsumer<M> {
                 objectMapper);
     }
 
+    /**
+     * Creates a consumer that deletes messages in batches, see {@link BatchingMessageDeleter}. A call to
+     * {@link #delete(PolledMessage)} will then only queue the message for deletion, and failures to delete it are
+     * logged by the deleter instead of being thrown.
+     */
+    public static <T> MessageQueueConsumer<T> nonEncryptedMessageQueueConsumer(
+            final Class<T> messageClass,
+            final String queueUrl,
+            final AmazonSQS amazonSQSClient,
+            final ObjectMapper objectMapper,
+            final BatchingMessageDeleter messageDeleter
+    ) {
+        return new QueueServicePoller<>(
+            queueUrl,
+            amazonSQSClient,
+            new MessageDeserializer<>(messageClass, objectMapper),
+            messageDeleter
+        );
+    }
+
     public static <T> MessageQueueConsumer<T> nonEncryptedMessageQueueConsumer(
         final Class<T> messageClass,
         final String queueUrl,
@@ -60,16 +90,125 @@ public class QueueServicePoller<M> implements MessageQueueConsumer<M> {
             byte[] privatePgpKey,
             final String privatePgpKeyPassphrase,
             final ObjectMapper objectMapper
+    ) throws MessagingException {
+        return new QueueServicePoller<>(
+            queueUrl,
+            amazonSQSClient,
+            new MessageDeserializer<>(
+                messageClass,
+                createDecryptor(privatePgpKey, privatePgpKeyPassphrase),
+                objectMapper
+            ),
+            null
+        );
+    }
+
+    /**
+     * Creates a consumer that deletes messages in batches, see {@link BatchingMessageDeleter}. A call to
+     * {@link #delete(PolledMessage)} will then only queue the message for deletion, and failures to delete it are
+     * logged by the deleter instead of being thrown.
+     */
+    public static <T> MessageQueueConsumer<T> encryptedMessageQueueConsumer(
+            final Class<T> messageClass,
+            final String queueUrl,
+            final AmazonSQS amazonSQSClient,
+            byte[] privatePgpKey,
+            final String privatePgpKeyPassphrase,
+            final ObjectMapper objectMapper,
+            final BatchingMessageDeleter messageDeleter
+    ) throws MessagingException {
+        return new QueueServicePoller<>(
+            queueUrl,
+            amazonSQSClient,
+            new MessageDeserializer<>(
+                messageClass,
+                createDecryptor(privatePgpKey, privatePgpKeyPassphrase),
+                objectMapper
+            ),
+            messageDeleter
+        );
+    }
+
+    /**
+     * Creates a consumer that decrypts messages with a decryptor that may be shared with other consumers and
+     * dispatchers, so that the private key is only read once.
+     */
+    public static <T> MessageQueueConsumer<T> encryptedMessageQueueConsumer(
+            final Class<T> messageClass,
+            final String queueUrl,
+            final AmazonSQS amazonSQSClient,
+            final PGPDecryptor decryptor,
+            final ObjectMapper objectMapper
+    ) {
+        return encryptedMessageQueueConsumer(messageClass, queueUrl, amazonSQSClient, decryptor, objectMapper, null);
+    }
+
+    /**
+     * Creates a consumer that decrypts messages with a shared decryptor, and deletes messages in batches, see
+     * {@link BatchingMessageDeleter}.
+     */
+    public static <T> MessageQueueConsumer<T> encryptedMessageQueueConsumer(
+            final Class<T> messageClass,
+            final String queueUrl,
+            final AmazonSQS amazonSQSClient,
+            final PGPDecryptor decryptor,
+            final ObjectMapper objectMapper,
+            final BatchingMessageDeleter messageDeleter
+    ) {
+        return new QueueServicePoller<>(
+            queueUrl,
+            amazonSQSClient,
+            new MessageDeserializer<>(messageClass, decryptor, objectMapper),
+            messageDeleter
+        );
+    }
+
+    /**
+     * Creates a consumer that reads messages with the supplied deserializer, for example one that reads large message
+     * bodies from a payload store.
+     *
+     * @param messageDeleter Deleter of the messages, see {@link BatchingMessageDeleter}, or null to delete them one
+     *                       at a time.
+     */
+    public static <T> MessageQueueConsumer<T> messageQueueConsumer(
+            final String queueUrl,
+            final AmazonSQS amazonSQSClient,
+            final MessageDeserializer<T> messageDeserializer,
+            final BatchingMessageDeleter messageDeleter
+    ) {
+        return new QueueServicePoller<>(queueUrl, amazonSQSClient, messageDeserializer, messageDeleter);
+    }
+
+    /**
+     * Creates a consumer that reads messages with the supplied deserializer, and measures receive calls, message age,
+     * and the time it takes to read and delete messages, see {@link MessagingMetrics}.
+     *
+     * @param messageDeleter Deleter of the messages, see {@link BatchingMessageDeleter}, or null to delete them one
+     *                       at a time.
+     * @param metrics Metrics of the consumer, that may be shared with other consumers.
+     */
+    public static <T> MessageQueueConsumer<T> messageQueueConsumer(
+            final String queueUrl,
+            final AmazonSQS amazonSQSClient,
+            final MessageDeserializer<T> messageDeserializer,
+            final BatchingMessageDeleter messageDeleter,
+            final MessagingMetrics metrics
+    ) {
+        return new QueueServicePoller<>(queueUrl, amazonSQSClient, messageDeserializer, messageDeleter, metrics);
+    }
+
+    private static PGPDecryptor createDecryptor(
+        byte[] privatePgpKey,
+        String privatePgpKeyPassphrase
     ) throws MessagingException {
         if (empty(privatePgpKey) || empty(privatePgpKeyPassphrase)) {
             throw new MessagingException("Can't create encryptedQueueServicePoller with private PGP key as null or privatePgpKeyPassphrase as null");
         }
-        return new QueueServicePoller<>(messageClass,
-                queueUrl,
-                amazonSQSClient,
-                privatePgpKey,
-                privatePgpKeyPassphrase,
-                objectMapper);
+        try {
+            return new PGPDecryptor(privatePgpKey, privatePgpKeyPassphrase);
+        } catch (CryptographyException e) {
+            throw new MessagingException("Failed to load private PGP key needed to decrypt messages.", e);
+        }
     }
 
     public static <T> MessageQueueConsumer<T> encryptedMessageQueueConsumer(
@@ -93,30 +232,32 @@ public class QueueServicePoller<M> implements MessageQueueConsumer<M> {
             Class<M> messageClass,
             String queueUrl,
             AmazonSQS amazonSQS,
-            byte[] privatePgpKey,
-            String privatePgpKeyPassphrase,
             ObjectMapper objectMapper
+    ) {
+        this(queueUrl, amazonSQS, new MessageDeserializer<>(messageClass, objectMapper), null);
+    }
 
+    private QueueServicePoller(
+            String queueUrl,
+            AmazonSQS amazonSQS,
+            MessageDeserializer<M> messageDeserializer,
+            BatchingMessageDeleter messageDeleter
     ) {
-        this.queueUrl = queueUrl;
-        this.amazonSQS = amazonSQS;
-        this.messageDeserializer = new MessageDeserializer<>(
-            messageClass,
-            privatePgpKey,
-            privatePgpKeyPassphrase,
-            objectMapper
-        );
+        this(queueUrl, amazonSQS, messageDeserializer, messageDeleter, MessagingMetrics.NONE);
     }
 
     private QueueServicePoller(
-            Class<M> messageClass,
             String queueUrl,
             AmazonSQS amazonSQS,
-            ObjectMapper objectMapper
+            MessageDeserializer<M> messageDeserializer,
+            BatchingMessageDeleter messageDeleter,
+            MessagingMetrics metrics
     ) {
         this.queueUrl = queueUrl;
         this.amazonSQS = amazonSQS;
-        this.messageDeserializer = new MessageDeserializer<>(messageClass, objectMapper);
+        this.messageDeserializer = messageDeserializer;
+        this.messageDeleter = messageDeleter;
+        this.metrics = metrics == null ? MessagingMetrics.NONE : metrics;
     }
 
     /**
@@ -127,8 +268,16 @@ public class QueueServicePoller<M> implements MessageQueueConsumer<M> {
      */
     @Override
     public void delete(PolledMessage<M> message) throws MessagingException {
+        long startNanos = System.nanoTime();
+        if (messageDeleter != null) {
+            messageDeleter.delete(queueUrl, message.getMessageId()).whenComplete((ignored, throwable) ->
+                metrics.deleted(queueUrl, System.nanoTime() - startNanos)
+            );
+            return;
+        }
         try {
             amazonSQS.deleteMessage(new DeleteMessageRequest(queueUrl, message.getMessageId()));
+            metrics.deleted(queueUrl, System.nanoTime() - startNanos);
         } catch (AmazonClientException ase) {
             throw new MessagingException("Failed to delete message with id " + message.getMessageId(), ase);
         }
@@ -158,22 +307,41 @@ public class QueueServicePoller<M> implements MessageQueueConsumer<M> {
         ReceiveMessageRequest messageRequest = new ReceiveMessageRequest(queueUrl);
         messageRequest.setMaxNumberOfMessages(MAXIMUM_NUMBER_OF_MESSAGES_TO_RECEIVE);
         messageRequest.setWaitTimeSeconds(messageWaitTimeInSeconds);
+        messageRequest.setMessageAttributeNames(
+            Arrays.asList(MessageCodec.CONTENT_TYPE_ATTRIBUTE, PayloadStore.STORED_PAYLOAD_ATTRIBUTE)
+        );
+        if (metrics != MessagingMetrics.NONE) {
+            messageRequest.setAttributeNames(Collections.singletonList(SENT_TIMESTAMP_ATTRIBUTE));
+        }
         List<Message> messages;
         List<PolledMessage<M>> receivedMessages = new ArrayList<>();
 
+        long startNanos = System.nanoTime();
         try {
             messages = amazonSQS.receiveMessage(messageRequest).getMessages();
         } catch (AmazonClientException e) {
             throw new MessagingException("Failed to poll message queue.", e);
         }
+        metrics.received(
+            queueUrl,
+            MAXIMUM_NUMBER_OF_MESSAGES_TO_RECEIVE,
+            messages.size(),
+            System.nanoTime() - startNanos
+        );
 
         for (Message message : messages) {
             String decryptedMessage = "";
+            recordAge(message);
             try {
+                long readStartNanos = System.nanoTime();
                 String messageBody = message.getBody();
-                messageBody = messageDeserializer.removeSnsEnvelope(messageBody);
-                decryptedMessage = messageDeserializer.decrypt(messageBody);
-                M messageEntity = messageDeserializer.deserialize(decryptedMessage);
+                AmazonSNSMessage envelope = messageDeserializer.readSnsEnvelope(messageBody);
+                decryptedMessage = messageDeserializer.readBody(message, envelope);
+                M messageEntity = messageDeserializer.deserialize(
+                    decryptedMessage,
+                    MessageCodec.of(message, envelope)
+                );
+                metrics.read(queueUrl, System.nanoTime() - readStartNanos);
                 String messageReceiptHandle = message.getReceiptHandle();
                 PolledMessage<M> receivedMessage = new PolledMessage<>(messageEntity, messageReceiptHandle);
                 receivedMessages.add(receivedMessage);
@@ -188,4 +356,16 @@ public class QueueServicePoller<M> implements MessageQueueConsumer<M> {
         }
         return receivedMessages;
     }
+
+    private void recordAge(Message message) {
+        String sentTimestamp = message.getAttributes().get(SENT_TIMESTAMP_ATTRIBUTE);
+        if (empty(sentTimestamp)) {
+            return;
+        }
+        try {
+            metrics.messageAge(queueUrl, System.currentTimeMillis() - Long.parseLong(sentTimestamp));
+        } catch (NumberFormatException ignored) {
+            // Not measured.
+        }
+    }
 }
@@ -1,31 +1,40 @@
 package com.izettle.messaging;
 
-import static com.izettle.java.CollectionUtils.partition;
 import static com.izettle.java.ValueChecks.anyEmpty;
 import static com.izettle.java.ValueChecks.empty;
-import static com.izettle.java.ValueChecks.noneNull;
+import static com.izettle.messaging.BatchPacker.MAX_BATCH_PAYLOAD_BYTES;
+import static com.izettle.messaging.InFlightLimiter.failedFuture;
 
+import com.amazonaws.AmazonClientException;
 import com.amazonaws.AmazonServiceException;
 import com.amazonaws.services.sqs.AmazonSQS;
+import com.amazonaws.services.sqs.AmazonSQSAsync;
 import com.amazonaws.services.sqs.model.BatchResultErrorEntry;
 import com.amazonaws.services.sqs.model.MessageAttributeValue;
 import com.amazonaws.services.sqs.model.SendMessageBatchRequest;
 import com.amazonaws.services.sqs.model.SendMessageBatchRequestEntry;
 import com.amazonaws.services.sqs.model.SendMessageBatchResult;
+import com.amazonaws.services.sqs.model.SendMessageBatchResultEntry;
 import com.amazonaws.services.sqs.model.SendMessageRequest;
 import com.amazonaws.services.sqs.model.SendMessageResult;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.izettle.cryptography.CryptographyException;
+import com.izettle.messaging.payload.PayloadStore;
 import com.izettle.messaging.serialization.AmazonSNSMessage;
 import com.izettle.messaging.serialization.DefaultMessageSerializer;
+import com.izettle.messaging.serialization.MessageCodec;
 import com.izettle.messaging.serialization.MessageSerializer;
 import java.io.IOException;
-import java.util.ArrayList;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
 import java.util.function.Function;
 import java.util.stream.Collectors;
 import org.slf4j.Logger;
@@ -38,10 +47,18 @@ import org.slf4j.LoggerFactory;
  */
 public class QueueServiceSender<M> implements MessageQueueProducer<M>, MessagePublisher {
     private static final Logger LOG = LoggerFactory.getLogger(QueueServiceSender.class);
-    private static final int MAX_BATCH_SIZE = 10;
+    private static final int MAX_MESSAGE_ATTRIBUTES = 10;
+    private static final List<String> RESERVED_ATTRIBUTES = Arrays.asList(
+        PayloadStore.STORED_PAYLOAD_ATTRIBUTE,
+        MessageCodec.CONTENT_TYPE_ATTRIBUTE
+    );
     private final String queueUrl;
     private final AmazonSQS amazonSQS;
     private final MessageSerializer messageSerializer;
+    private final InFlightLimiter inFlightLimiter;
+    private final SendMessageBatcher messageBatcher;
+    private final PayloadStore payloadStore;
+    private final MessagingMetrics metrics;
 
     public static MessagePublisher nonEncryptedMessagePublisher(
             final String queueUrl,
@@ -65,6 +82,59 @@ public class QueueServiceSender<M> implements MessageQueueProducer<M>, MessagePu
         return new QueueServiceSender<>(queueUrl, amazonSQSClient, messageSerializer);
     }
 
+    /**
+     * Creates a publisher that has at most maxInFlight messages in flight from postAsync at the same time. Messages
+     * posted beyond that fail right away.
+     */
+    public static MessagePublisher nonEncryptedMessagePublisher(
+            final String queueUrl,
+            final AmazonSQS amazonSQSClient,
+            final MessageSerializer messageSerializer,
+            final int maxInFlight
+    ) {
+        return new QueueServiceSender<>(queueUrl, amazonSQSClient, messageSerializer, maxInFlight);
+    }
+
+    /**
+     * Creates a publisher that sends its messages through the supplied batcher, so that messages posted at about
+     * the same time, from any number of threads, are sent in one SendMessageBatch request.
+     */
+    public static MessagePublisher nonEncryptedMessagePublisher(
+            final String queueUrl,
+            final AmazonSQS amazonSQSClient,
+            final MessageSerializer messageSerializer,
+            final SendMessageBatcher messageBatcher
+    ) {
+        return new QueueServiceSender<>(
+            queueUrl,
+            amazonSQSClient,
+            messageSerializer,
+            InFlightLimiter.DEFAULT_MAX_IN_FLIGHT,
+            messageBatcher,
+            null
+        );
+    }
+
+    /**
+     * Creates a publisher that puts message bodies that would make messages larger than Amazon SQS allows in the
+     * supplied store, see {@link PayloadStore}.
+     */
+    public static MessagePublisher nonEncryptedMessagePublisher(
+            final String queueUrl,
+            final AmazonSQS amazonSQSClient,
+            final MessageSerializer messageSerializer,
+            final PayloadStore payloadStore
+    ) {
+        return new QueueServiceSender<>(
+            queueUrl,
+            amazonSQSClient,
+            messageSerializer,
+            InFlightLimiter.DEFAULT_MAX_IN_FLIGHT,
+            null,
+            payloadStore
+        );
+    }
+
     public static MessagePublisher encryptedMessagePublisher(
         final String queueUrl,
         final AmazonSQS amazonSQSClient,
@@ -82,6 +152,119 @@ public class QueueServiceSender<M> implements MessageQueueProducer<M>, MessagePu
         return new QueueServiceSender<>(queueUrl, amazonSQSClient, messageSerializer);
     }
 
+    /**
+     * Creates a producer that has at most maxInFlight messages in flight from postAsync at the same time. Messages
+     * posted beyond that fail right away.
+     */
+    public static <T> MessageQueueProducer<T> nonEncryptedMessageQueueProducer(
+            final String queueUrl,
+            final AmazonSQS amazonSQSClient,
+            final MessageSerializer messageSerializer,
+            final int maxInFlight
+    ) {
+        return new QueueServiceSender<>(queueUrl, amazonSQSClient, messageSerializer, maxInFlight);
+    }
+
+    /**
+     * Creates a producer that sends its messages through the supplied batcher, so that messages posted at about
+     * the same time, from any number of threads, are sent in one SendMessageBatch request.
+     */
+    public static <T> MessageQueueProducer<T> nonEncryptedMessageQueueProducer(
+            final String queueUrl,
+            final AmazonSQS amazonSQSClient,
+            final MessageSerializer messageSerializer,
+            final SendMessageBatcher messageBatcher
+    ) {
+        return new QueueServiceSender<>(
+            queueUrl,
+            amazonSQSClient,
+            messageSerializer,
+            InFlightLimiter.DEFAULT_MAX_IN_FLIGHT,
+            messageBatcher,
+            null
+        );
+    }
+
+    /**
+     * Creates a producer that puts message bodies that would make messages larger than Amazon SQS allows in the
+     * supplied store, see {@link PayloadStore}.
+     */
+    public static <T> MessageQueueProducer<T> nonEncryptedMessageQueueProducer(
+            final String queueUrl,
+            final AmazonSQS amazonSQSClient,
+            final MessageSerializer messageSerializer,
+            final PayloadStore payloadStore
+    ) {
+        return new QueueServiceSender<>(
+            queueUrl,
+            amazonSQSClient,
+            messageSerializer,
+            InFlightLimiter.DEFAULT_MAX_IN_FLIGHT,
+            null,
+            payloadStore
+        );
+    }
+
+    /**
+     * Creates a publisher with all options, and measures the time it takes to serialize and send messages, see
+     * {@link MessagingMetrics}.
+     *
+     * @param maxInFlight Maximum number of messages in flight from postAsync at the same time.
+     * @param messageBatcher Batcher to send messages through, see {@link SendMessageBatcher}, or null.
+     * @param payloadStore Store for message bodies that are too large for Amazon SQS, see {@link PayloadStore}, or
+     *                     null.
+     * @param metrics Metrics of the publisher, that may be shared with other publishers.
+     */
+    public static MessagePublisher messagePublisher(
+            final String queueUrl,
+            final AmazonSQS amazonSQSClient,
+            final MessageSerializer messageSerializer,
+            final int maxInFlight,
+            final SendMessageBatcher messageBatcher,
+            final PayloadStore payloadStore,
+            final MessagingMetrics metrics
+    ) {
+        return new QueueServiceSender<>(
+            queueUrl,
+            amazonSQSClient,
+            messageSerializer,
+            maxInFlight,
+            messageBatcher,
+            payloadStore,
+            metrics
+        );
+    }
+
+    /**
+     * Creates a producer with all options, and measures the time it takes to serialize and send messages, see
+     * {@link MessagingMetrics}.
+     *
+     * @param maxInFlight Maximum number of messages in flight from postAsync at the same time.
+     * @param messageBatcher Batcher to send messages through, see {@link SendMessageBatcher}, or null.
+     * @param payloadStore Store for message bodies that are too large for Amazon SQS, see {@link PayloadStore}, or
+     *                     null.
+     * @param metrics Metrics of the producer, that may be shared with other producers.
+     */
+    public static <T> MessageQueueProducer<T> messageQueueProducer(
+            final String queueUrl,
+            final AmazonSQS amazonSQSClient,
+            final MessageSerializer messageSerializer,
+            final int maxInFlight,
+            final SendMessageBatcher messageBatcher,
+            final PayloadStore payloadStore,
+            final MessagingMetrics metrics
+    ) {
+        return new QueueServiceSender<>(
+            queueUrl,
+            amazonSQSClient,
+            messageSerializer,
+            maxInFlight,
+            messageBatcher,
+            payloadStore,
+            metrics
+        );
+    }
+
     public static <T> MessageQueueProducer<T> encryptedMessageQueueProducer(
             final String queueUrl,
             final AmazonSQS amazonSQSClient,
@@ -106,6 +289,38 @@ public class QueueServiceSender<M> implements MessageQueueProducer<M>, MessagePu
             String queueUrl,
             AmazonSQS amazonSQS,
             MessageSerializer messageSerializer
+    ) {
+        this(queueUrl, amazonSQS, messageSerializer, InFlightLimiter.DEFAULT_MAX_IN_FLIGHT);
+    }
+
+    private QueueServiceSender(
+            String queueUrl,
+            AmazonSQS amazonSQS,
+            MessageSerializer messageSerializer,
+            int maxInFlight
+    ) {
+        this(queueUrl, amazonSQS, messageSerializer, maxInFlight, null, null);
+    }
+
+    private QueueServiceSender(
+            String queueUrl,
+            AmazonSQS amazonSQS,
+            MessageSerializer messageSerializer,
+            int maxInFlight,
+            SendMessageBatcher messageBatcher,
+            PayloadStore payloadStore
+    ) {
+        this(queueUrl, amazonSQS, messageSerializer, maxInFlight, messageBatcher, payloadStore, MessagingMetrics.NONE);
+    }
+
+    private QueueServiceSender(
+            String queueUrl,
+            AmazonSQS amazonSQS,
+            MessageSerializer messageSerializer,
+            int maxInFlight,
+            SendMessageBatcher messageBatcher,
+            PayloadStore payloadStore,
+            MessagingMetrics metrics
     ) {
         if (anyEmpty(queueUrl, amazonSQS, messageSerializer)) {
             throw new IllegalArgumentException(
@@ -118,6 +333,10 @@ public class QueueServiceSender<M> implements MessageQueueProducer<M>, MessagePu
         this.queueUrl = queueUrl;
         this.amazonSQS = amazonSQS;
         this.messageSerializer = messageSerializer;
+        this.inFlightLimiter = new InFlightLimiter(maxInFlight);
+        this.messageBatcher = messageBatcher;
+        this.payloadStore = payloadStore;
+        this.metrics = metrics == null ? MessagingMetrics.NONE : metrics;
     }
 
     /**
@@ -130,10 +349,13 @@ public class QueueServiceSender<M> implements MessageQueueProducer<M>, MessagePu
     @Override
     public MessageReceipt post(M message) throws MessagingException {
         try {
+            long startNanos = System.nanoTime();
             String jsonBody = messageSerializer.serialize(message);
             String encryptedBody = messageSerializer.encrypt(jsonBody);
-            SendMessageResult sendMessageResult = amazonSQS.sendMessage(
-                    new SendMessageRequest(queueUrl, encryptedBody)
+            metrics.serialized(queueUrl, System.nanoTime() - startNanos);
+            SendMessageResult sendMessageResult = sendMessage(
+                    createRequest(encryptedBody, null, null),
+                    message
             );
             return new MessageReceipt(sendMessageResult.getMessageId(), jsonBody);
         } catch (AmazonServiceException | IOException | CryptographyException e) {
@@ -141,6 +363,27 @@ public class QueueServiceSender<M> implements MessageQueueProducer<M>, MessagePu
         }
     }
 
+    /**
+     * Posts message to queue without waiting for it to be sent. Uses the async client if the Amazon SQS client is
+     * an {@link AmazonSQSAsync}, otherwise the message is sent before returning.
+     *
+     * @param message Message to post.
+     * @return Future that completes with the receipt of the message, or with a {@link MessagingException}.
+     */
+    @Override
+    public CompletableFuture<MessageReceipt> postAsync(M message) {
+        try {
+            long startNanos = System.nanoTime();
+            String jsonBody = messageSerializer.serialize(message);
+            String encryptedBody = messageSerializer.encrypt(jsonBody);
+            metrics.serialized(queueUrl, System.nanoTime() - startNanos);
+            return sendMessageAsync(createRequest(encryptedBody, null, null), message)
+                .thenApply(sendMessageResult -> new MessageReceipt(sendMessageResult.getMessageId(), jsonBody));
+        } catch (IOException | CryptographyException e) {
+            return failedFuture(new MessagingException("Failed to post message: " + message.getClass(), e));
+        }
+    }
+
     /**
      * Posts a single messages to queue, with a message envelope that makes it look like it
      * was sent through Amazon SNS.
@@ -156,32 +399,211 @@ public class QueueServiceSender<M> implements MessageQueueProducer<M>, MessagePu
 
     @Override
     public <M> void post(M message, String eventName, Map<String, String> attributes) throws MessagingException {
+        validateEventNameAndAttributes(eventName, attributes);
+        try {
+            long startNanos = System.nanoTime();
+            String jsonBody = messageSerializer.serialize(message);
+            String encryptedBody = messageSerializer.encrypt(jsonBody);
+            metrics.serialized(queueUrl, System.nanoTime() - startNanos);
+            sendMessage(createRequest(encryptedBody, eventName, attributes), message);
+        } catch (MessagingException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new MessagingException("Failed to post message: " + message.getClass(), e);
+        }
+    }
+
+    /**
+     * Posts a single message to queue without waiting for it to be sent, with a message envelope that makes it look
+     * like it was sent through Amazon SNS. Uses the async client if the Amazon SQS client is an
+     * {@link AmazonSQSAsync}, otherwise the message is sent before returning.
+     *
+     * @param message message to post
+     * @param eventName the value that will be used as "subject" in the SNS envelope
+     * @param attributes message attributes, at most 10 of them
+     * @return Future that completes with the receipt of the message, or with a {@link MessagingException}.
+     */
+    @Override
+    public <T> CompletableFuture<MessageReceipt> postAsync(
+        T message,
+        String eventName,
+        Map<String, String> attributes
+    ) {
+        try {
+            validateEventNameAndAttributes(eventName, attributes);
+            long startNanos = System.nanoTime();
+            String jsonBody = messageSerializer.serialize(message);
+            String encryptedBody = messageSerializer.encrypt(jsonBody);
+            metrics.serialized(queueUrl, System.nanoTime() - startNanos);
+            SendMessageRequest request = createRequest(encryptedBody, eventName, attributes);
+            return sendMessageAsync(request, message)
+                .thenApply(sendMessageResult -> new MessageReceipt(sendMessageResult.getMessageId(), jsonBody));
+        } catch (MessagingException e) {
+            return failedFuture(e);
+        } catch (Exception e) {
+            return failedFuture(new MessagingException("Failed to post message: " + message.getClass(), e));
+        }
+    }
+
+    /**
+     * Rejects attributes that would not fit in the Amazon SQS limit together with the attributes the message may get
+     * from this sender, or that would be overwritten by those.
+     */
+    private void validateEventNameAndAttributes(
+        String eventName,
+        Map<String, String> attributes
+    ) throws MessagingException {
         if (empty(eventName)) {
             throw new MessagingException("Cannot publish message with empty eventName!");
         }
-        if (noneNull(attributes) && attributes.size() > 10) {
-            throw new MessagingException("Cannot publish message with more than 10 attributes!");
+        if (attributes == null) {
+            return;
+        }
+        for (String reservedAttribute : RESERVED_ATTRIBUTES) {
+            if (attributes.containsKey(reservedAttribute)) {
+                throw new MessagingException("Cannot publish message with reserved attribute: " + reservedAttribute);
+            }
+        }
+        int reservedAttributes = 0;
+        if (payloadStore != null) {
+            reservedAttributes++;
+        }
+        if (declaresContentType()) {
+            reservedAttributes++;
+        }
+        if (attributes.size() + reservedAttributes > MAX_MESSAGE_ATTRIBUTES) {
+            int maxAttributes = MAX_MESSAGE_ATTRIBUTES - reservedAttributes;
+            throw new MessagingException("Cannot publish message with more than " + maxAttributes + " attributes!");
+        }
+    }
+
+    /**
+     * Creates the request for a message, in an SNS envelope if it has an event name. If the message would be larger
+     * than Amazon SQS allows, its body is put in the payload store if there is one, and the message only carries the
+     * key of the stored body.
+     *
+     * @param messageBody Serialized and encrypted message.
+     * @param eventName The value that will be used as "subject" in the SNS envelope, or null for no envelope.
+     * @param attributes Attributes from the caller, or null.
+     */
+    private SendMessageRequest createRequest(
+        String messageBody,
+        String eventName,
+        Map<String, String> attributes
+    ) throws IOException {
+        SendMessageRequest request = new SendMessageRequest(queueUrl, wrapInSNSMessage(messageBody, eventName))
+            .withMessageAttributes(messageAttributes(attributes));
+        if (payloadStore == null
+            || PayloadSize.of(toBatchRequestEntry(request)) <= MAX_BATCH_PAYLOAD_BYTES) {
+            return request;
+        }
+        String key = payloadStore.store(messageBody.getBytes(StandardCharsets.UTF_8));
+        Map<String, MessageAttributeValue> messageAttributes = new HashMap<>(request.getMessageAttributes());
+        messageAttributes.put(
+            PayloadStore.STORED_PAYLOAD_ATTRIBUTE,
+            new MessageAttributeValue().withStringValue(key).withDataType("String")
+        );
+        return new SendMessageRequest(queueUrl, wrapInSNSMessage(key, eventName))
+            .withMessageAttributes(messageAttributes);
+    }
+
+    /**
+     * @param attributes Attributes from the caller, or null.
+     * @return The attributes, plus the content type of the message when it is not JSON. Null if there are none.
+     */
+    private Map<String, MessageAttributeValue> messageAttributes(Map<String, String> attributes) {
+        boolean declareContentType = declaresContentType();
+        if (empty(attributes) && !declareContentType) {
+            return null;
+        }
+        Map<String, MessageAttributeValue> messageAttributes = new HashMap<>();
+        if (!empty(attributes)) {
+            attributes.forEach((name, value) ->
+                messageAttributes.put(name, new MessageAttributeValue().withStringValue(value).withDataType("String"))
+            );
+        }
+        if (declareContentType) {
+            messageAttributes.put(
+                MessageCodec.CONTENT_TYPE_ATTRIBUTE,
+                new MessageAttributeValue()
+                    .withStringValue(messageSerializer.getCodec().getContentType())
+                    .withDataType("String")
+            );
+        }
+        return messageAttributes;
+    }
+
+    /**
+     * @return Whether messages get an attribute with their content type, which they do when it is not JSON.
+     */
+    private boolean declaresContentType() {
+        MessageCodec codec = messageSerializer.getCodec();
+        return codec != null && codec != MessageCodec.JSON;
+    }
+
+    /**
+     * Sends the message with the batcher if there is one, and otherwise right away.
+     */
+    private SendMessageResult sendMessage(SendMessageRequest request, Object message) throws MessagingException {
+        if (messageBatcher == null) {
+            long startNanos = System.nanoTime();
+            SendMessageResult sendMessageResult = amazonSQS.sendMessage(request);
+            metrics.sent(queueUrl, 1, System.nanoTime() - startNanos);
+            return sendMessageResult;
         }
         try {
-            final SendMessageRequest sendMessageRequest =
-                new SendMessageRequest(queueUrl, wrapInSNSMessage(message, eventName));
-            if (!empty(attributes)) {
-                sendMessageRequest.setMessageAttributes(
-                    attributes
-                        .entrySet()
-                        .stream()
-                        .collect(
-                            Collectors.toMap(
-                                Map.Entry::getKey,
-                                e -> new MessageAttributeValue().withStringValue(e.getValue()).withDataType("String")
-                            )
-                        )
-                );
+            return startSendingMessage(request, message).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MessagingException("Interrupted while posting message: " + message.getClass(), e);
+        } catch (ExecutionException e) {
+            throw (MessagingException) e.getCause();
+        }
+    }
+
+    private CompletableFuture<SendMessageResult> sendMessageAsync(SendMessageRequest request, Object message) {
+        return inFlightLimiter.send(() -> startSendingMessage(request, message), "queue " + queueUrl);
+    }
+
+    /**
+     * @return Future that completes with the result of the send, or with a {@link MessagingException}.
+     */
+    private CompletableFuture<SendMessageResult> startSendingMessage(SendMessageRequest request, Object message) {
+        long startNanos = System.nanoTime();
+        CompletableFuture<SendMessageResult> sent;
+        if (messageBatcher != null) {
+            sent = messageBatcher.send(queueUrl, toBatchRequestEntry(request))
+                .thenApply(messageId -> new SendMessageResult().withMessageId(messageId));
+        } else {
+            CompletableAsyncHandler<SendMessageRequest, SendMessageResult> handler = new CompletableAsyncHandler<>();
+            try {
+                if (amazonSQS instanceof AmazonSQSAsync) {
+                    ((AmazonSQSAsync) amazonSQS).sendMessageAsync(request, handler);
+                } else {
+                    handler.onSuccess(request, amazonSQS.sendMessage(request));
+                }
+            } catch (RuntimeException e) {
+                handler.onError(e);
             }
-            amazonSQS.sendMessage(sendMessageRequest);
-        } catch (Exception e) {
-            throw new MessagingException("Failed to post message: " + message.getClass(), e);
+            sent = handler.getFuture();
         }
+        return sent.handle((sendMessageResult, throwable) -> {
+            if (throwable != null) {
+                Throwable cause = throwable instanceof CompletionException ? throwable.getCause() : throwable;
+                throw new CompletionException(
+                    new MessagingException("Failed to post message: " + message.getClass(), cause)
+                );
+            }
+            metrics.sent(queueUrl, 1, System.nanoTime() - startNanos);
+            return sendMessageResult;
+        });
+    }
+
+    private static SendMessageBatchRequestEntry toBatchRequestEntry(SendMessageRequest request) {
+        return new SendMessageBatchRequestEntry()
+            .withMessageBody(request.getMessageBody())
+            .withMessageAttributes(request.getMessageAttributes())
+            .withDelaySeconds(request.getDelaySeconds());
     }
 
     /**
@@ -190,66 +612,118 @@ public class QueueServiceSender<M> implements MessageQueueProducer<M>, MessagePu
      *
      * @param messages list of messages to post
      * @param eventName the value that will be used as "subject" in the SNS envelope
-     * @throws MessagingException Failed to post messages.
+     * @throws MessagingException Failed to post some of the messages, after trying to post all of them.
      */
     @Override
     public <T> void postBatch(Collection<T> messages, String eventName) throws MessagingException {
+        PostResult.throwIfAnyFailed(postBatchWithResults(messages, eventName), messages.getClass());
+    }
+
+    /**
+     * Posts many messages to queue, with a message envelope that makes them look like they were sent through
+     * Amazon SNS. The messages are packed into as few batch requests as possible, each holding at most ten messages
+     * and 256 KB of payload. A message that can not be posted does not stop the others from being posted.
+     *
+     * @param messages list of messages to post
+     * @param eventName the value that will be used as "subject" in the SNS envelope
+     * @return The result of every message, in the order of the messages.
+     * @throws MessagingException Empty eventName.
+     */
+    @Override
+    public <T> List<PostResult> postBatchWithResults(
+        Collection<T> messages,
+        String eventName
+    ) throws MessagingException {
         if (empty(eventName)) {
             throw new MessagingException("Cannot publish message with empty eventName!");
         }
+        PostResult[] results = new PostResult[messages.size()];
+        String[] jsonBodies = new String[messages.size()];
+        BatchPacker<SendMessageBatchRequestEntry> batchPacker =
+            new BatchPacker<>(batch -> sendMessageBatch(batch, jsonBodies, results));
+        int index = 0;
+        for (T message : messages) {
+            try {
+                long startNanos = System.nanoTime();
+                String jsonBody = messageSerializer.serialize(message);
+                String encryptedBody = messageSerializer.encrypt(jsonBody);
+                metrics.serialized(queueUrl, System.nanoTime() - startNanos);
+                SendMessageBatchRequestEntry entry = toBatchRequestEntry(createRequest(encryptedBody, eventName, null))
+                    .withId(String.valueOf(index + 1));
+                long size = PayloadSize.of(entry);
+                if (size > MAX_BATCH_PAYLOAD_BYTES) {
+                    results[index] = PostResult.failure(new MessagingException(
+                        "Message of " + size + " bytes exceeds the maximum payload of " + MAX_BATCH_PAYLOAD_BYTES
+                            + " bytes: " + message.getClass()
+                    ));
+                } else {
+                    jsonBodies[index] = jsonBody;
+                    batchPacker.add(entry, size);
+                }
+            } catch (IOException | CryptographyException e) {
+                results[index] = PostResult.failure(
+                    new MessagingException("Failed to post message: " + message.getClass(), e)
+                );
+            }
+            index++;
+        }
+        batchPacker.flush();
+        return Arrays.asList(results);
+    }
+
+    private String wrapInSNSMessage(String messageBody, String subject) throws JsonProcessingException {
+        if (subject == null) {
+            return messageBody;
+        }
+        return messageSerializer.serializeEnvelope(new AmazonSNSMessage(subject, messageBody));
+    }
+
+    private void sendMessageBatch(
+        List<SendMessageBatchRequestEntry> batch,
+        String[] jsonBodies,
+        PostResult[] results
+    ) {
+        SendMessageBatchResult sendMessageBatchResult;
         try {
-            Collection<SendMessageBatchRequestEntry> allEntries = new ArrayList<>(messages.size());
-            int messageIdInBatch = 0;
-            for (T message : messages) {
-                ++messageIdInBatch;
-                String messageBody = wrapInSNSMessage(message, eventName);
-                allEntries.add(new SendMessageBatchRequestEntry(String.valueOf(messageIdInBatch), messageBody));
+            long startNanos = System.nanoTime();
+            sendMessageBatchResult = amazonSQS.sendMessageBatch(new SendMessageBatchRequest(queueUrl, batch));
+            metrics.sent(queueUrl, batch.size(), System.nanoTime() - startNanos);
+        } catch (AmazonClientException e) {
+            LOG.error("Failed to send batch of {} messages.", batch.size(), e);
+            for (SendMessageBatchRequestEntry entry : batch) {
+                results[indexOf(entry)] = PostResult.failure(new MessagingException("Failed to post message.", e));
             }
-            sendMessageBatch(allEntries);
-        } catch (AmazonServiceException | IOException | CryptographyException e) {
-            throw new MessagingException("Failed to post messages: " + messages.getClass(), e);
-        }
-    }
-
-    private String wrapInSNSMessage(
-            Object message,
-            String subject
-    ) throws JsonProcessingException, CryptographyException {
-        String messageBody = messageSerializer.encrypt(messageSerializer.serialize(message));
-        AmazonSNSMessage snsMessage = new AmazonSNSMessage(subject, messageBody);
-        return messageSerializer.serialize(snsMessage);
-    }
-
-    private void sendMessageBatch(Collection<SendMessageBatchRequestEntry> messages) {
-        for (Collection<SendMessageBatchRequestEntry> batch : partition(messages, MAX_BATCH_SIZE)) {
-            final SendMessageBatchResult sendMessageBatchResult =
-                amazonSQS.sendMessageBatch(new SendMessageBatchRequest(queueUrl, new ArrayList<>(batch)));
-            final List<BatchResultErrorEntry> failed = sendMessageBatchResult.getFailed();
-            if (!failed.isEmpty()) {
-                try {
-                    Set<String> failedMessageIds =
-                        failed.stream().map(BatchResultErrorEntry::getId).collect(Collectors.toSet());
-                    final Map<String, SendMessageBatchRequestEntry> failedMessageIdToMessage =
-                        batch.stream().filter(failedMessageIds::contains).collect(Collectors.toMap(
-                            SendMessageBatchRequestEntry::getId,
-                            Function.identity()
-                        ));
-                    failed.stream().forEach(failMessage -> {
-                        final SendMessageBatchRequestEntry failedEntry =
-                            failedMessageIdToMessage.get(failMessage.getId());
-                        if (failedEntry != null) {
-                            final String messageBody = failedEntry.getMessageBody();
-                            LOG.error(
-                                "Failed to send message, due to {}, message content : {} ",
-                                failMessage,
-                                messageBody
-                            );
-                        }
-                    });
-                } catch (Exception e) {
-                    LOG.error("Failed to log failed to send messages", e);
-                }
+            return;
+        }
+        Map<String, SendMessageBatchRequestEntry> entryPerId = batch.stream()
+            .collect(Collectors.toMap(SendMessageBatchRequestEntry::getId, Function.identity()));
+        for (BatchResultErrorEntry failMessage : sendMessageBatchResult.getFailed()) {
+            SendMessageBatchRequestEntry failedEntry = entryPerId.get(failMessage.getId());
+            if (failedEntry != null) {
+                LOG.error(
+                    "Failed to send message, due to {}, message content : {} ",
+                    failMessage,
+                    failedEntry.getMessageBody()
+                );
+                results[indexOf(failedEntry)] = PostResult.failure(new MessagingException(
+                    "Failed to post message: " + failMessage.getCode() + " " + failMessage.getMessage()
+                ));
             }
         }
+        Map<String, String> messageIdPerId = sendMessageBatchResult.getSuccessful().stream()
+            .collect(Collectors.toMap(SendMessageBatchResultEntry::getId, SendMessageBatchResultEntry::getMessageId));
+        for (SendMessageBatchRequestEntry entry : batch) {
+            int index = indexOf(entry);
+            // Every message that is not reported as failed has been sent.
+            if (results[index] == null) {
+                results[index] = PostResult.success(
+                    new MessageReceipt(messageIdPerId.get(entry.getId()), jsonBodies[index])
+                );
+            }
+        }
+    }
+
+    private static int indexOf(SendMessageBatchRequestEntry entry) {
+        return Integer.parseInt(entry.getId()) - 1;
     }
 }
@@ -0,0 +1,97 @@
+package com.izettle.messaging;
+
+import com.amazonaws.services.sqs.AmazonSQS;
+import com.amazonaws.services.sqs.AmazonSQSAsync;
+import com.amazonaws.services.sqs.model.BatchResultErrorEntry;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequest;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.SendMessageBatchResult;
+import com.amazonaws.services.sqs.model.SendMessageBatchResultEntry;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Sends single messages, posted from any number of threads, with SendMessageBatch requests instead of one
+ * SendMessage request per message. Messages are collected per queue url, and a batch is sent as soon as it holds ten
+ * of them, when its first message has waited for the linger time, or when the next message would not fit within the
+ * 256 KB payload limit of a batch. Every message gets its own result, also when other messages of the same batch fail.
+ *
+ * One batcher can be shared by any number of queue service senders.
+ */
+public class SendMessageBatcher extends AmazonSQSBatcher<SendMessageBatchRequestEntry, String> {
+    private static final Logger LOG = LoggerFactory.getLogger(SendMessageBatcher.class);
+    private static final long DEFAULT_LINGER_MILLIS = 5;
+
+    public SendMessageBatcher(AmazonSQS amazonSQS) {
+        this(amazonSQS, DEFAULT_LINGER_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    public SendMessageBatcher(AmazonSQS amazonSQS, long linger, TimeUnit unit) {
+        super(amazonSQS, "send-message-batcher", linger, unit);
+    }
+
+    /**
+     * Queues a message for sending.
+     *
+     * @param queueUrl Url of the queue to send the message to.
+     * @param entry The message. Its id is replaced when the batch is sent.
+     * @return Future that completes with the message id when the message has been sent.
+     */
+    public CompletableFuture<String> send(String queueUrl, SendMessageBatchRequestEntry entry) {
+        return add(queueUrl, entry);
+    }
+
+    @Override
+    long sizeOf(SendMessageBatchRequestEntry entry) {
+        return PayloadSize.of(entry);
+    }
+
+    @Override
+    CompletableFuture<Void> sendBatch(
+        String queueUrl,
+        List<PendingEntry<SendMessageBatchRequestEntry, String>> batch
+    ) {
+        List<SendMessageBatchRequestEntry> entries = new ArrayList<>(batch.size());
+        for (int i = 0; i < batch.size(); i++) {
+            SendMessageBatchRequestEntry entry = batch.get(i).getEntry();
+            entries.add(
+                new SendMessageBatchRequestEntry(String.valueOf(i), entry.getMessageBody())
+                    .withDelaySeconds(entry.getDelaySeconds())
+                    .withMessageAttributes(entry.getMessageAttributes())
+                    .withMessageDeduplicationId(entry.getMessageDeduplicationId())
+                    .withMessageGroupId(entry.getMessageGroupId())
+            );
+        }
+        return call(
+            new SendMessageBatchRequest(queueUrl, entries),
+            AmazonSQSAsync::sendMessageBatchAsync,
+            AmazonSQS::sendMessageBatch
+        ).thenAccept(result -> complete(queueUrl, batch, result));
+    }
+
+    private static void complete(
+        String queueUrl,
+        List<PendingEntry<SendMessageBatchRequestEntry, String>> batch,
+        SendMessageBatchResult result
+    ) {
+        for (SendMessageBatchResultEntry successful : result.getSuccessful()) {
+            batch.get(Integer.parseInt(successful.getId())).complete(successful.getMessageId());
+        }
+        for (BatchResultErrorEntry failed : result.getFailed()) {
+            LOG.debug("Failed to send message in batch to queue {}, due to {}.", queueUrl, failed);
+            batch.get(Integer.parseInt(failed.getId())).fail(
+                new MessagingException(
+                    "Failed to send message to queue " + queueUrl + ": " + failed.getCode() + " " + failed.getMessage()
+                )
+            );
+        }
+        // Completing an entry only works once, so this only fails entries that are missing from the result.
+        batch.forEach(pendingEntry ->
+            pendingEntry.fail(new MessagingException("No result for message sent in batch to queue " + queueUrl))
+        );
+    }
+}
@@ -0,0 +1,64 @@
+package com.izettle.messaging;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token bucket that limits how many messages a queue processor receives per second. Permits are taken before a
+ * receive call for as many messages as are asked for, and the permits of messages that were not received are given
+ * back afterwards. Up to a second of unused permits, and at least one receive call worth, can be saved up.
+ */
+final class ThroughputLimiter {
+    private final double permitsPerNano;
+    private final double maximumPermits;
+    private double permits;
+    private long refilledAtNanos;
+
+    ThroughputLimiter(double messagesPerSecond, int maximumMessagesPerReceive) {
+        if (!(messagesPerSecond > 0)) {
+            throw new IllegalArgumentException("Illegal messagesPerSecond, was: " + messagesPerSecond);
+        }
+        this.permitsPerNano = messagesPerSecond / TimeUnit.SECONDS.toNanos(1);
+        this.maximumPermits = Math.max(messagesPerSecond, maximumMessagesPerReceive);
+        this.permits = maximumMessagesPerReceive;
+        this.refilledAtNanos = System.nanoTime();
+    }
+
+    /**
+     * Waits until there is a permit for at least one message.
+     *
+     * @param maximumPermits Most permits to take.
+     * @return Number of permits taken, between 1 and maximumPermits.
+     * @throws InterruptedException Interrupted while waiting, no permits were taken.
+     */
+    int acquire(int maximumPermits) throws InterruptedException {
+        while (true) {
+            long waitNanos;
+            synchronized (this) {
+                refill();
+                if (permits >= 1) {
+                    int acquired = (int) Math.min(maximumPermits, Math.floor(permits));
+                    permits -= acquired;
+                    return acquired;
+                }
+                waitNanos = (long) Math.ceil((1 - permits) / permitsPerNano);
+            }
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        }
+    }
+
+    /**
+     * @param unusedPermits Permits that were taken for messages that were not received.
+     */
+    synchronized void release(int unusedPermits) {
+        if (unusedPermits > 0) {
+            refill();
+            permits = Math.min(maximumPermits, permits + unusedPermits);
+        }
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        permits = Math.min(maximumPermits, permits + (now - refilledAtNanos) * permitsPerNano);
+        refilledAtNanos = now;
+    }
+}
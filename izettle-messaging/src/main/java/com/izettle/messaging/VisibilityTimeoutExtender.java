@@ -0,0 +1,195 @@
+package com.izettle.messaging;
+
+import com.amazonaws.services.sqs.AmazonSQS;
+import com.amazonaws.services.sqs.AmazonSQSAsync;
+import com.amazonaws.services.sqs.model.BatchResultErrorEntry;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchRequest;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchRequestEntry;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchResult;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps received messages invisible to other consumers for as long as they are being handled. Every tracked
+ * message gets its visibility timeout extended when half of it has passed, until tracking of the message is
+ * stopped. Extensions are sent with ChangeMessageVisibilityBatch requests, ten receipt handles at a time.
+ *
+ * This makes it possible to use a short visibility timeout on the queue, so that messages that failed are received
+ * again soon, without having slow messages received and handled a second time while the first handling is still
+ * running.
+ *
+ * Single visibility timeout changes, like delayed retries, are sent in the same batches as the extensions.
+ *
+ * One extender can be shared by any number of queue processors.
+ */
+public class VisibilityTimeoutExtender extends AmazonSQSBatcher<ChangeMessageVisibilityBatchRequestEntry, Void> {
+    private static final Logger LOG = LoggerFactory.getLogger(VisibilityTimeoutExtender.class);
+    static final int MAXIMUM_VISIBILITY_TIMEOUT_SECONDS = 43200;
+    private static final long DEFAULT_LINGER_MILLIS = 50;
+    private final int visibilityTimeoutSeconds;
+    private final long extensionIntervalNanos;
+    private final ConcurrentMap<InFlightMessage, Long> nextExtensionPerMessage = new ConcurrentHashMap<>();
+
+    /**
+     * @param amazonSQS Amazon SQS client.
+     * @param visibilityTimeoutSeconds Visibility timeout that messages are received with, and extended by.
+     */
+    public VisibilityTimeoutExtender(AmazonSQS amazonSQS, int visibilityTimeoutSeconds) {
+        super(amazonSQS, "visibility-timeout-extender", DEFAULT_LINGER_MILLIS, TimeUnit.MILLISECONDS);
+        if (visibilityTimeoutSeconds < 1 || visibilityTimeoutSeconds > MAXIMUM_VISIBILITY_TIMEOUT_SECONDS) {
+            throw new IllegalArgumentException("Illegal visibilityTimeoutSeconds, was: " + visibilityTimeoutSeconds);
+        }
+        this.visibilityTimeoutSeconds = visibilityTimeoutSeconds;
+        this.extensionIntervalNanos = TimeUnit.SECONDS.toNanos(visibilityTimeoutSeconds) / 2;
+        long checkIntervalMillis = Math.max(TimeUnit.NANOSECONDS.toMillis(extensionIntervalNanos) / 2, 100);
+        scheduleAtFixedRate(this::extendExpiringVisibilityTimeouts, checkIntervalMillis);
+    }
+
+    public int getVisibilityTimeoutSeconds() {
+        return visibilityTimeoutSeconds;
+    }
+
+    /**
+     * Starts extending the visibility timeout of a message that was just received.
+     *
+     * @param queueUrl Url of the queue that the message was received from.
+     * @param receiptHandle Receipt handle of the received message.
+     */
+    public void startTracking(String queueUrl, String receiptHandle) {
+        nextExtensionPerMessage.put(
+            new InFlightMessage(queueUrl, receiptHandle),
+            System.nanoTime() + extensionIntervalNanos
+        );
+    }
+
+    /**
+     * Stops extending the visibility timeout of a message, because it has been handled or failed.
+     *
+     * @param queueUrl Url of the queue that the message was received from.
+     * @param receiptHandle Receipt handle of the received message.
+     */
+    public void stopTracking(String queueUrl, String receiptHandle) {
+        nextExtensionPerMessage.remove(new InFlightMessage(queueUrl, receiptHandle));
+    }
+
+    /**
+     * Changes the visibility timeout of a message once, in the same batches as the extensions.
+     *
+     * @param queueUrl Url of the queue that the message was received from.
+     * @param receiptHandle Receipt handle of the received message.
+     * @param visibilityTimeoutSeconds New visibility timeout, counted from now. 0 makes the message visible again.
+     * @return Future that completes when the visibility timeout has been changed.
+     */
+    public CompletableFuture<Void> changeVisibilityTimeout(
+        String queueUrl,
+        String receiptHandle,
+        int visibilityTimeoutSeconds
+    ) {
+        if (visibilityTimeoutSeconds < 0 || visibilityTimeoutSeconds > MAXIMUM_VISIBILITY_TIMEOUT_SECONDS) {
+            throw new IllegalArgumentException("Illegal visibilityTimeoutSeconds, was: " + visibilityTimeoutSeconds);
+        }
+        return add(
+            queueUrl,
+            new ChangeMessageVisibilityBatchRequestEntry()
+                .withReceiptHandle(receiptHandle)
+                .withVisibilityTimeout(visibilityTimeoutSeconds)
+        );
+    }
+
+    private void extendExpiringVisibilityTimeouts() {
+        try {
+            long now = System.nanoTime();
+            nextExtensionPerMessage.forEach((message, nextExtension) -> {
+                if (now - nextExtension >= 0
+                    && nextExtensionPerMessage.replace(message, nextExtension, now + extensionIntervalNanos)) {
+                    add(
+                        message.queueUrl,
+                        new ChangeMessageVisibilityBatchRequestEntry()
+                            .withReceiptHandle(message.receiptHandle)
+                            .withVisibilityTimeout(visibilityTimeoutSeconds)
+                    );
+                }
+            });
+            sendPendingEntries();
+        } catch (RuntimeException e) {
+            // Must not escape, or the extensions would stop for good.
+            LOG.warn("Failed to extend visibility timeouts.", e);
+        }
+    }
+
+    @Override
+    CompletableFuture<Void> sendBatch(
+        String queueUrl,
+        List<PendingEntry<ChangeMessageVisibilityBatchRequestEntry, Void>> batch
+    ) {
+        List<ChangeMessageVisibilityBatchRequestEntry> entries = new ArrayList<>(batch.size());
+        for (int i = 0; i < batch.size(); i++) {
+            ChangeMessageVisibilityBatchRequestEntry entry = batch.get(i).getEntry();
+            entries.add(
+                new ChangeMessageVisibilityBatchRequestEntry(String.valueOf(i), entry.getReceiptHandle())
+                    .withVisibilityTimeout(entry.getVisibilityTimeout())
+            );
+        }
+        return call(
+            new ChangeMessageVisibilityBatchRequest(queueUrl, entries),
+            AmazonSQSAsync::changeMessageVisibilityBatchAsync,
+            AmazonSQS::changeMessageVisibilityBatch
+        ).thenAccept(result -> complete(queueUrl, batch, result));
+    }
+
+    private static void complete(
+        String queueUrl,
+        List<PendingEntry<ChangeMessageVisibilityBatchRequestEntry, Void>> batch,
+        ChangeMessageVisibilityBatchResult result
+    ) {
+        Set<Integer> failedIndexes = new HashSet<>();
+        for (BatchResultErrorEntry failed : result.getFailed()) {
+            int index = Integer.parseInt(failed.getId());
+            failedIndexes.add(index);
+            // Most likely the message was deleted while the batch was on its way.
+            LOG.debug("Failed to change visibility timeout of message in queue {}, due to {}.", queueUrl, failed);
+            batch.get(index).fail(new MessagingException("Failed to change visibility timeout: " + failed.getMessage()));
+        }
+        for (int i = 0; i < batch.size(); i++) {
+            if (!failedIndexes.contains(i)) {
+                batch.get(i).complete(null);
+            }
+        }
+    }
+
+    private static final class InFlightMessage {
+        private final String queueUrl;
+        private final String receiptHandle;
+
+        private InFlightMessage(String queueUrl, String receiptHandle) {
+            this.queueUrl = queueUrl;
+            this.receiptHandle = receiptHandle;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            InFlightMessage that = (InFlightMessage) o;
+            return queueUrl.equals(that.queueUrl) && receiptHandle.equals(that.receiptHandle);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(queueUrl, receiptHandle);
+        }
+    }
+}
@@ -4,35 +4,52 @@ import static com.izettle.java.ValueChecks.empty;
 
 import com.amazonaws.services.sqs.model.Message;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.izettle.cryptography.CryptographyException;
+import com.izettle.cryptography.PGPDecryptor;
 import com.izettle.messaging.MessagingException;
 import com.izettle.messaging.serialization.AmazonSNSMessage;
+import com.izettle.messaging.serialization.AmazonSNSMessageReader;
 import com.izettle.messaging.serialization.JsonSerializer;
+import com.izettle.messaging.serialization.MessageCodec;
 import com.izettle.messaging.serialization.MessageDeserializer;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Routes messages to other MessageHandler&lt;&gt;:s based on message type. All handlers added with the
  * addHandler() method will be called whenever a message of the supplied type is received by this class.
  *
+ * Handlers are usually all added before the first message is received. The routing table is replaced as a whole when a
+ * handler is added, so that routing a message is a single lookup in a table that never changes under it.
+ *
  * Note that the current mechanism for routing messages assumes that the received messages have gone
  * through Amazon SNS and that they have the message type supplied in the "Subject" field of the
  * SQS message.
  */
 public class MessageDispatcher implements MessageHandler<Message> {
     private final MessageDeserializer<String> messageDeserializer;
-    private final Map<String, ListOfMessageHandlersForType> messageHandlersPerEventName = new ConcurrentHashMap<>();
-    private final List<MessageHandler<AmazonSNSMessage>> defaultMessageHandlers = new ArrayList<>();
     private final ObjectMapper objectMapper;
+    private final Object registrationLock = new Object();
+    private volatile Map<String, Route<?>> routes = Collections.emptyMap();
+    private volatile List<MessageHandler<AmazonSNSMessage>> defaultMessageHandlers = Collections.emptyList();
+    private volatile Executor independentHandlerExecutor;
 
     public static MessageDispatcher nonEncryptedMessageDispatcher() {
         return nonEncryptedMessageDispatcher(JsonSerializer.getInstance());
     }
 
     public static MessageDispatcher nonEncryptedMessageDispatcher(ObjectMapper objectMapper) {
-        return new MessageDispatcher(objectMapper);
+        return new MessageDispatcher(new MessageDeserializer<>(String.class, objectMapper), objectMapper);
     }
 
     public static MessageDispatcher encryptedMessageDispatcher(byte[] privatePgpKey, final String privatePgpKeyPassphrase) throws MessagingException {
@@ -47,42 +64,175 @@ public class MessageDispatcher implements MessageHandler<Message> {
         if (empty(privatePgpKey) || empty(privatePgpKeyPassphrase)) {
             throw new MessagingException("Can't create encryptedMessageDispatcher with private PGP key as null or privatePgpKeyPassphrase as null");
         }
-        return new MessageDispatcher(privatePgpKey, privatePgpKeyPassphrase, objectMapper);
+        try {
+            return encryptedMessageDispatcher(new PGPDecryptor(privatePgpKey, privatePgpKeyPassphrase), objectMapper);
+        } catch (CryptographyException e) {
+            throw new MessagingException("Failed to load private PGP key needed to decrypt messages.", e);
+        }
     }
 
-
-    private MessageDispatcher(ObjectMapper objectMapper) {
-        this.objectMapper = objectMapper;
-        this.messageDeserializer = new MessageDeserializer<>(String.class, objectMapper);
+    /**
+     * Creates a dispatcher that decrypts messages with a decryptor that may be shared with other dispatchers and
+     * consumers, so that the private key is only read once.
+     */
+    public static MessageDispatcher encryptedMessageDispatcher(PGPDecryptor decryptor, ObjectMapper objectMapper) {
+        return new MessageDispatcher(new MessageDeserializer<>(String.class, decryptor, objectMapper), objectMapper);
     }
 
-    private MessageDispatcher(
-        byte[] privatePgpKey,
-        String privatePgpKeyPassphrase,
+    /**
+     * Creates a dispatcher that reads message bodies with the supplied deserializer, for example one that reads large
+     * message bodies from a payload store. Messages are then deserialized with the object mapper.
+     */
+    public static MessageDispatcher messageDispatcher(
+        MessageDeserializer<String> messageDeserializer,
         ObjectMapper objectMapper
     ) {
+        return new MessageDispatcher(messageDeserializer, objectMapper);
+    }
+
+    private MessageDispatcher(MessageDeserializer<String> messageDeserializer, ObjectMapper objectMapper) {
         this.objectMapper = objectMapper;
-        this.messageDeserializer = new MessageDeserializer<>(
-            String.class,
-            privatePgpKey,
-            privatePgpKeyPassphrase,
-            this.objectMapper
-        );
+        this.messageDeserializer = messageDeserializer;
     }
 
-    private class ListOfMessageHandlersForType<M> {
-        private final Class<M> messageType;
-        public final List<MessageHandler<M>> handlers = new ArrayList<>();
+    /**
+     * Handlers of one event name or type, with the reader for its messages. Routes are never changed once they are in
+     * the routing table, adding a handler replaces the route.
+     */
+    private static final class Route<M> {
+        private final ObjectReader messageReader;
+        private final Map<MessageCodec, ObjectReader> messageReaderPerCodec;
+        private final List<MessageHandler<M>> handlers;
+        private final List<MessageHandler<M>> independentHandlers;
+
+        Route(ObjectReader messageReader) {
+            this(messageReader, new ConcurrentHashMap<>(), Collections.emptyList(), Collections.emptyList());
+        }
+
+        private Route(
+            ObjectReader messageReader,
+            Map<MessageCodec, ObjectReader> messageReaderPerCodec,
+            List<MessageHandler<M>> handlers,
+            List<MessageHandler<M>> independentHandlers
+        ) {
+            this.messageReader = messageReader;
+            this.messageReaderPerCodec = messageReaderPerCodec;
+            this.handlers = handlers;
+            this.independentHandlers = independentHandlers;
+        }
+
+        Route<M> with(MessageHandler<M> handler, boolean independent) {
+            if (independent) {
+                return new Route<>(messageReader, messageReaderPerCodec, handlers, append(independentHandlers, handler));
+            }
+            return new Route<>(messageReader, messageReaderPerCodec, append(handlers, handler), independentHandlers);
+        }
+
+        void callAllHandlers(
+            String message,
+            MessageCodec codec,
+            long maxDecompressedBytes,
+            Executor executor
+        ) throws Exception {
+            ObjectReader reader = codec == MessageCodec.JSON
+                ? messageReader
+                : messageReaderPerCodec.computeIfAbsent(codec, c -> c.reader(messageReader));
+            M msg = codec.decode(reader, message, maxDecompressedBytes);
+            if (independentHandlers.isEmpty()) {
+                MessageDispatcher.callAllHandlers(handlers, msg);
+            } else if (executor == null) {
+                MessageDispatcher.callAllHandlers(handlers, msg);
+                MessageDispatcher.callAllHandlers(independentHandlers, msg);
+            } else {
+                callHandlersInParallel(msg, executor);
+            }
+        }
+
+        /**
+         * Calls the independent handlers with the executor while the other handlers are called in order on this
+         * thread, and returns when all of them are done, so that the message is not deleted while a handler still runs.
+         * Independent handlers that the executor rejects, or has not started by the time the other handlers are done,
+         * are called on this thread, so that it never waits for a call that is queued behind busy threads.
+         */
+        private void callHandlersInParallel(M message, Executor executor) throws Exception {
+            List<IndependentCall<M>> calls = new ArrayList<>(independentHandlers.size());
+            for (MessageHandler<M> handler : independentHandlers) {
+                IndependentCall<M> call = new IndependentCall<>(handler, message);
+                calls.add(call);
+                try {
+                    executor.execute(call);
+                } catch (RejectedExecutionException e) {
+                    // Called on this thread below.
+                }
+            }
+            Exception failure = null;
+            try {
+                MessageDispatcher.callAllHandlers(handlers, message);
+            } catch (Exception e) {
+                failure = e;
+            }
+            for (IndependentCall<M> call : calls) {
+                try {
+                    call.runOrJoin();
+                } catch (Exception e) {
+                    if (failure == null) {
+                        failure = e;
+                    } else {
+                        failure.addSuppressed(e);
+                    }
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        }
+
+        private static <T> List<T> append(List<T> list, T element) {
+            List<T> appended = new ArrayList<>(list.size() + 1);
+            appended.addAll(list);
+            appended.add(element);
+            return Collections.unmodifiableList(appended);
+        }
+    }
+
+    /**
+     * Call of an independent handler, made by whichever comes first of the executor and the thread that handles the
+     * message.
+     */
+    private static final class IndependentCall<M> implements Runnable {
+        private final MessageHandler<M> handler;
+        private final M message;
+        private final AtomicBoolean claimed = new AtomicBoolean();
+        private final CompletableFuture<Void> done = new CompletableFuture<>();
 
-        ListOfMessageHandlersForType(Class<M> messageType) {
-            this.messageType = messageType;
+        private IndependentCall(MessageHandler<M> handler, M message) {
+            this.handler = handler;
+            this.message = message;
         }
-        public void add(MessageHandler<M> handler) {
-            handlers.add(handler);
+
+        @Override
+        public void run() {
+            if (!claimed.compareAndSet(false, true)) {
+                return;
+            }
+            try {
+                handler.handle(message);
+                done.complete(null);
+            } catch (Throwable e) {
+                done.completeExceptionally(e);
+            }
         }
-        public void callAllHandlers(String message) throws Exception {
-            M msg = objectMapper.readValue(message, messageType);
-            MessageDispatcher.callAllHandlers(handlers, msg);
+
+        /**
+         * Calls the handler unless the executor already has, and waits for it to be done.
+         */
+        void runOrJoin() throws Exception {
+            run();
+            try {
+                done.join();
+            } catch (CompletionException e) {
+                throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+            }
         }
     }
 
@@ -93,32 +243,78 @@ public class MessageDispatcher implements MessageHandler<Message> {
     }
 
     public <M> void addHandler(Class<M> classType, String eventName, MessageHandler<M> handler) {
-        if (!messageHandlersPerEventName.containsKey(eventName)) {
-            messageHandlersPerEventName.put(eventName, new ListOfMessageHandlersForType<>(classType));
-        }
-
-        @SuppressWarnings("unchecked")
-        ListOfMessageHandlersForType<M> listOfMessageHandlersForType = (ListOfMessageHandlersForType<M>) messageHandlersPerEventName.get(eventName);
-
-        listOfMessageHandlersForType.add(handler);
+        addRoute(classType, eventName, handler, false);
     }
 
     public <M> void addHandler(Class<M> classType, MessageHandler<M> handler) {
         addHandler(classType, classType.getName(), handler);
     }
 
+    /**
+     * Adds a message handler that does not depend on the other handlers of the event, and may be called at the same
+     * time as them with the executor from {@link #setIndependentHandlerExecutor(Executor)}.
+     */
+    public <M> void addIndependentHandler(Class<M> classType, String eventName, MessageHandler<M> handler) {
+        addRoute(classType, eventName, handler, true);
+    }
+
+    public <M> void addIndependentHandler(Class<M> classType, MessageHandler<M> handler) {
+        addIndependentHandler(classType, classType.getName(), handler);
+    }
+
+    /**
+     * Sets the executor that independent handlers are called with. Without one they are called one after another,
+     * after the other handlers of the event.
+     *
+     * The executor must not be the one that messages are handled with, or independent handlers queue up behind the
+     * messages that wait for them. Independent handlers that the executor rejects, or has not started when the other
+     * handlers of the event are done, are called by the thread that handles the message.
+     */
+    public void setIndependentHandlerExecutor(Executor executor) {
+        this.independentHandlerExecutor = executor;
+    }
+
+    private <M> void addRoute(Class<M> classType, String eventName, MessageHandler<M> handler, boolean independent) {
+        synchronized (registrationLock) {
+            Map<String, Route<?>> updatedRoutes = new HashMap<>(routes);
+            @SuppressWarnings("unchecked")
+            Route<M> route = (Route<M>) updatedRoutes.get(eventName);
+            if (route == null) {
+                route = new Route<>(objectMapper.readerFor(classType));
+            }
+            updatedRoutes.put(eventName, route.with(handler, independent));
+            routes = Collections.unmodifiableMap(updatedRoutes);
+        }
+    }
+
     /*
      * Adds a message handler that should be called if none of the other message handlers match the incoming message.
      */
     public void addDefaultHandler(MessageHandler<AmazonSNSMessage> handler) {
-        defaultMessageHandlers.add(handler);
+        synchronized (registrationLock) {
+            defaultMessageHandlers = Route.append(defaultMessageHandlers, handler);
+        }
     }
 
     @Override
     public void handle(Message message) throws Exception {
         String messageBody = message.getBody();
-        AmazonSNSMessage sns = objectMapper.readValue(messageBody, AmazonSNSMessage.class);
-        String decryptedMessage = messageDeserializer.decrypt(sns.getMessage());
+        AmazonSNSMessage sns = AmazonSNSMessageReader.read(objectMapper.getFactory(), messageBody);
+        if (sns == null) {
+            throw new MessagingException("Received message that is not a JSON object: " + message.getMessageId());
+        }
+        dispatch(message, sns, messageDeserializer.readBody(message, sns));
+    }
+
+    /**
+     * Routes a message that has been read and decrypted to its handlers. This is the part of {@link #handle(Message)}
+     * that does not depend on how the message was received, so it can also be measured on its own.
+     *
+     * @param message Message received from Amazon SQS, for the message attributes.
+     * @param sns SNS envelope of the message.
+     * @param messageBody Decrypted body of the message.
+     */
+    public void dispatch(Message message, AmazonSNSMessage sns, String messageBody) throws Exception {
         String eventName = sns.getSubject();
         String typeName = sns.getType();
         if (empty(eventName) && empty(typeName)) {
@@ -128,17 +324,26 @@ public class MessageDispatcher implements MessageHandler<Message> {
                     + "with a message subject or type before trying to receive it."
             );
         }
-        if (!empty(eventName) && messageHandlersPerEventName.containsKey(eventName)) {
-            messageHandlersPerEventName.get(eventName).callAllHandlers(decryptedMessage);
-        } else if (!empty(typeName) && messageHandlersPerEventName.containsKey(typeName)) {
-            messageHandlersPerEventName.get(typeName).callAllHandlers(decryptedMessage);
-        } else {
-            if (empty(defaultMessageHandlers)) {
-                throw new MessagingException(
-                    "No handlers for message with event: " + eventName + " and type: " + typeName
-                );
-            }
-            callAllHandlers(defaultMessageHandlers, sns);
+        Map<String, Route<?>> routes = this.routes;
+        Route<?> route = empty(eventName) ? null : routes.get(eventName);
+        if (route == null && !empty(typeName)) {
+            route = routes.get(typeName);
+        }
+        if (route != null) {
+            route.callAllHandlers(
+                messageBody,
+                MessageCodec.of(message, sns),
+                messageDeserializer.getMaxDecompressedBytes(),
+                independentHandlerExecutor
+            );
+            return;
+        }
+        List<MessageHandler<AmazonSNSMessage>> defaultMessageHandlers = this.defaultMessageHandlers;
+        if (empty(defaultMessageHandlers)) {
+            throw new MessagingException(
+                "No handlers for message with event: " + eventName + " and type: " + typeName
+            );
         }
+        callAllHandlers(defaultMessageHandlers, sns);
     }
 }
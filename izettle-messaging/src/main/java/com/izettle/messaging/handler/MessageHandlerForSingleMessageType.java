@@ -23,9 +23,7 @@ public class MessageHandlerForSingleMessageType<M> implements MessageHandler<Mes
 
     @Override
     public void handle(Message message) throws Exception {
-        String messageBody = messageDeserializer.removeSnsEnvelope(message.getBody());
-        String decryptedMessage = messageDeserializer.decrypt(messageBody);
-        M msg = messageDeserializer.deserialize(decryptedMessage);
+        M msg = messageDeserializer.read(message);
         actualHandler.handle(msg);
     }
 }
@@ -0,0 +1,121 @@
+package com.izettle.messaging.payload;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps the most recently used message bodies of another store in memory, so that bodies that are read many times,
+ * by several consumers or after a redelivery, are only fetched once. The cache holds at most a given number of bytes,
+ * and bodies larger than that are streamed from the other store without being cached.
+ */
+public class CachingPayloadStore implements PayloadStore {
+    private final PayloadStore payloadStore;
+    private final long maxCachedBytes;
+    private final Map<String, byte[]> cachedPayloads = new LinkedHashMap<>(16, 0.75f, true);
+    private long cachedBytes;
+
+    /**
+     * @param payloadStore Store to cache the message bodies of.
+     * @param maxCachedBytes Most bytes of message bodies to keep in memory.
+     */
+    public CachingPayloadStore(PayloadStore payloadStore, long maxCachedBytes) {
+        if (maxCachedBytes < 0) {
+            throw new IllegalArgumentException("Illegal maxCachedBytes, was: " + maxCachedBytes);
+        }
+        this.payloadStore = payloadStore;
+        this.maxCachedBytes = maxCachedBytes;
+    }
+
+    @Override
+    public String store(byte[] payload) throws IOException {
+        String key = payloadStore.store(payload);
+        cache(key, payload);
+        return key;
+    }
+
+    @Override
+    public InputStream open(String key) throws IOException {
+        byte[] payload;
+        synchronized (cachedPayloads) {
+            payload = cachedPayloads.get(key);
+        }
+        if (payload != null) {
+            return new ByteArrayInputStream(payload);
+        }
+        InputStream stream = payloadStore.open(key);
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        try {
+            byte[] chunk = new byte[8192];
+            int read;
+            while ((read = stream.read(chunk)) != -1) {
+                buffer.write(chunk, 0, read);
+                if (buffer.size() > maxCachedBytes) {
+                    // Too large to cache, the rest is streamed.
+                    return new SequenceOfStreams(buffer.toByteArray(), stream);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            stream.close();
+            throw e;
+        }
+        stream.close();
+        payload = buffer.toByteArray();
+        cache(key, payload);
+        return new ByteArrayInputStream(payload);
+    }
+
+    @Override
+    public long getMaxPayloadBytes() {
+        return payloadStore.getMaxPayloadBytes();
+    }
+
+    private void cache(String key, byte[] payload) {
+        if (payload.length > maxCachedBytes) {
+            return;
+        }
+        synchronized (cachedPayloads) {
+            byte[] replaced = cachedPayloads.put(key, payload);
+            cachedBytes += payload.length - (replaced == null ? 0 : replaced.length);
+            Iterator<byte[]> leastRecentlyUsed = cachedPayloads.values().iterator();
+            while (cachedBytes > maxCachedBytes) {
+                cachedBytes -= leastRecentlyUsed.next().length;
+                leastRecentlyUsed.remove();
+            }
+        }
+    }
+
+    /**
+     * The bytes that were read before finding out that a body is too large to cache, followed by the rest of it.
+     */
+    private static final class SequenceOfStreams extends InputStream {
+        private final InputStream head;
+        private final InputStream tail;
+
+        private SequenceOfStreams(byte[] head, InputStream tail) {
+            this.head = new ByteArrayInputStream(head);
+            this.tail = tail;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int next = head.read();
+            return next != -1 ? next : tail.read();
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            int read = head.read(bytes, offset, length);
+            return read > 0 ? read : tail.read(bytes, offset, length);
+        }
+
+        @Override
+        public void close() throws IOException {
+            tail.close();
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package com.izettle.messaging.payload;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.UUID;
+
+/**
+ * Stores message bodies as files in a directory, for tests and for producers and consumers on the same host.
+ */
+public class FileSystemPayloadStore implements PayloadStore {
+    private final Path directory;
+
+    public FileSystemPayloadStore(Path directory) throws IOException {
+        this.directory = Files.createDirectories(directory).toAbsolutePath().normalize();
+    }
+
+    @Override
+    public String store(byte[] payload) throws IOException {
+        String key = UUID.randomUUID().toString();
+        Files.write(directory.resolve(key), payload);
+        return key;
+    }
+
+    @Override
+    public InputStream open(String key) throws IOException {
+        return Files.newInputStream(pathOf(key));
+    }
+
+    private Path pathOf(String key) throws IOException {
+        Path path = directory.resolve(key).normalize();
+        if (!directory.equals(path.getParent())) {
+            throw new IOException("Illegal key of stored payload: " + key);
+        }
+        return path;
+    }
+}
@@ -0,0 +1,45 @@
+package com.izettle.messaging.payload;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Keeps message bodies that are too large to be sent through Amazon SQS or Amazon SNS. The message then only carries
+ * the key of the stored body, in its body and in the {@link #STORED_PAYLOAD_ATTRIBUTE} message attribute, and the
+ * consumer reads the body from the same store.
+ *
+ * Stored bodies are not removed when their messages are consumed, use the expiry of the store for that.
+ */
+public interface PayloadStore {
+
+    /**
+     * Message attribute that holds the key of a stored message body.
+     */
+    String STORED_PAYLOAD_ATTRIBUTE = "StoredPayload";
+
+    /**
+     * Default of {@link #getMaxPayloadBytes()}.
+     */
+    long DEFAULT_MAX_PAYLOAD_BYTES = 64L * 1024 * 1024;
+
+    /**
+     * @param payload Message body to store.
+     * @return Key of the stored message body.
+     * @throws IOException Failed to store the message body.
+     */
+    String store(byte[] payload) throws IOException;
+
+    /**
+     * @param key Key from {@link #store(byte[])}.
+     * @return Stream of the stored message body, that the caller must close.
+     * @throws IOException No message body with the key, or failed to read it.
+     */
+    InputStream open(String key) throws IOException;
+
+    /**
+     * @return Largest message body that consumers reading from this store accept, also once decompressed.
+     */
+    default long getMaxPayloadBytes() {
+        return DEFAULT_MAX_PAYLOAD_BYTES;
+    }
+}
@@ -0,0 +1,52 @@
+package com.izettle.messaging.payload;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.UUID;
+
+/**
+ * Stores message bodies as objects in an Amazon S3 bucket. Needs aws-java-sdk-s3 on the class path.
+ */
+public class S3PayloadStore implements PayloadStore {
+    private final AmazonS3 amazonS3;
+    private final String bucketName;
+    private final String keyPrefix;
+
+    /**
+     * @param amazonS3 Client for the bucket.
+     * @param bucketName Bucket that producers and consumers share.
+     * @param keyPrefix Prefix of the keys of the stored objects, for example to give them an expiry with a lifecycle
+     *                  rule of the bucket.
+     */
+    public S3PayloadStore(AmazonS3 amazonS3, String bucketName, String keyPrefix) {
+        this.amazonS3 = amazonS3;
+        this.bucketName = bucketName;
+        this.keyPrefix = keyPrefix;
+    }
+
+    @Override
+    public String store(byte[] payload) throws IOException {
+        String key = keyPrefix + UUID.randomUUID();
+        ObjectMetadata metadata = new ObjectMetadata();
+        metadata.setContentLength(payload.length);
+        try {
+            amazonS3.putObject(bucketName, key, new ByteArrayInputStream(payload), metadata);
+        } catch (AmazonClientException e) {
+            throw new IOException("Failed to store payload in bucket " + bucketName, e);
+        }
+        return key;
+    }
+
+    @Override
+    public InputStream open(String key) throws IOException {
+        try {
+            return amazonS3.getObject(bucketName, key).getObjectContent();
+        } catch (AmazonClientException e) {
+            throw new IOException("Failed to read payload " + key + " from bucket " + bucketName, e);
+        }
+    }
+}
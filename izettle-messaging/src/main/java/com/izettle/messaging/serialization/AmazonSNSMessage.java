@@ -1,8 +1,11 @@
 package com.izettle.messaging.serialization;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
 import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.annotation.JsonProperty;
+import java.util.Collections;
+import java.util.Map;
 
 @JsonIgnoreProperties(ignoreUnknown = true)
 @JsonInclude(JsonInclude.Include.NON_NULL)
@@ -20,6 +23,19 @@ public class AmazonSNSMessage {
     @JsonProperty("Subject")
     private String subject;
 
+    /**
+     * Values of the message attributes, only read by {@link AmazonSNSMessageReader}.
+     */
+    @JsonIgnore
+    private Map<String, String> messageAttributes = Collections.emptyMap();
+
+    /**
+     * Whether the message had both a Subject and a Message field, also if their values were null, which is what makes
+     * it an SNS envelope. Only set by {@link AmazonSNSMessageReader}.
+     */
+    @JsonIgnore
+    private boolean subjectAndMessagePresent;
+
     public String getType() {
         return type;
     }
@@ -36,10 +52,34 @@ public class AmazonSNSMessage {
         return subject;
     }
 
+    public Map<String, String> getMessageAttributes() {
+        return messageAttributes;
+    }
+
+    boolean isSubjectAndMessagePresent() {
+        return subjectAndMessagePresent;
+    }
+
     public AmazonSNSMessage() {
     }
     public AmazonSNSMessage(String subject, String message) {
         this.subject = subject;
         this.message = message;
     }
+
+    AmazonSNSMessage(
+        String type,
+        String messageId,
+        String message,
+        String subject,
+        Map<String, String> messageAttributes,
+        boolean subjectAndMessagePresent
+    ) {
+        this.type = type;
+        this.messageId = messageId;
+        this.message = message;
+        this.subject = subject;
+        this.messageAttributes = messageAttributes;
+        this.subjectAndMessagePresent = subjectAndMessagePresent;
+    }
 }
@@ -0,0 +1,114 @@
+package com.izettle.messaging.serialization;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Reads the fields of an Amazon SNS envelope with a single pass over the message body, without building a tree of
+ * the whole message first. Everything but Type, MessageId, Message, Subject and the values of MessageAttributes is
+ * skipped, so reading a message that is not an SNS envelope costs little more than a scan over it.
+ */
+public final class AmazonSNSMessageReader {
+
+    private AmazonSNSMessageReader() {
+    }
+
+    /**
+     * @param jsonFactory Factory of the parser, usually from the object mapper that will read the inner message.
+     * @param messageBody Body of a message received from Amazon SQS.
+     * @return The envelope, or null if the message body is not a JSON object.
+     * @throws IOException The message body is not valid JSON.
+     */
+    public static AmazonSNSMessage read(JsonFactory jsonFactory, String messageBody) throws IOException {
+        try (JsonParser parser = jsonFactory.createParser(messageBody)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                return null;
+            }
+            String type = null;
+            String messageId = null;
+            String message = null;
+            String subject = null;
+            Map<String, String> messageAttributes = Collections.emptyMap();
+            boolean messagePresent = false;
+            boolean subjectPresent = false;
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String fieldName = parser.getCurrentName();
+                JsonToken value = parser.nextToken();
+                switch (fieldName) {
+                    case "Type":
+                        type = textOf(parser, value);
+                        break;
+                    case "MessageId":
+                        messageId = textOf(parser, value);
+                        break;
+                    case "Message":
+                        message = textOf(parser, value);
+                        messagePresent = true;
+                        break;
+                    case "Subject":
+                        subject = textOf(parser, value);
+                        subjectPresent = true;
+                        break;
+                    case "MessageAttributes":
+                        messageAttributes = attributeValuesOf(parser, value);
+                        break;
+                    default:
+                        parser.skipChildren();
+                }
+            }
+            return new AmazonSNSMessage(
+                type,
+                messageId,
+                message,
+                subject,
+                messageAttributes,
+                subjectPresent && messagePresent
+            );
+        }
+    }
+
+    private static String textOf(JsonParser parser, JsonToken value) throws IOException {
+        if (value == JsonToken.VALUE_NULL) {
+            return null;
+        }
+        if (value.isScalarValue()) {
+            return parser.getText();
+        }
+        // Not an SNS envelope, objects and arrays are not read as text.
+        parser.skipChildren();
+        return null;
+    }
+
+    /**
+     * Reads the value of every attribute in an object like {"Name":{"Type":"String","Value":"value"}}.
+     */
+    private static Map<String, String> attributeValuesOf(JsonParser parser, JsonToken value) throws IOException {
+        if (value != JsonToken.START_OBJECT) {
+            parser.skipChildren();
+            return Collections.emptyMap();
+        }
+        Map<String, String> attributeValues = new HashMap<>();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String attributeName = parser.getCurrentName();
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                parser.skipChildren();
+                continue;
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String fieldName = parser.getCurrentName();
+                JsonToken fieldValue = parser.nextToken();
+                if ("Value".equals(fieldName)) {
+                    attributeValues.put(attributeName, textOf(parser, fieldValue));
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        }
+        return attributeValues;
+    }
+}
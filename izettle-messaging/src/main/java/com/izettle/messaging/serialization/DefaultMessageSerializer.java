@@ -2,29 +2,80 @@ package com.izettle.messaging.serialization;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
 import com.izettle.cryptography.CryptographyException;
 import com.izettle.cryptography.KeyUtil;
 import com.izettle.cryptography.PGP;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import org.bouncycastle.bcpg.CompressionAlgorithmTags;
 import org.bouncycastle.openpgp.PGPPublicKey;
 
 public class DefaultMessageSerializer implements MessageSerializer {
 
+    /**
+     * Compression threshold that turns compression off.
+     */
+    public static final int NO_COMPRESSION = Integer.MAX_VALUE;
     private final PGPPublicKey publicKey;
+    private final MessageCodec codec;
+    private final int compressionThreshold;
     private static final ObjectMapper JSON_MAPPER = JsonSerializer.getInstance();
+    private final ClassValue<ObjectWriter> writerPerType = new ClassValue<ObjectWriter>() {
+        @Override
+        protected ObjectWriter computeValue(Class<?> type) {
+            return codec.writer(JSON_MAPPER.writerFor(type));
+        }
+    };
 
     public DefaultMessageSerializer(byte[] publicPgpKey) throws CryptographyException {
+        this(publicPgpKey, MessageCodec.JSON);
+    }
+
+    /**
+     * Creates a serializer that encrypts messages in the supplied format. Encrypted messages are ASCII-armored, so
+     * binary formats are base64 encoded before they are encrypted.
+     */
+    public DefaultMessageSerializer(byte[] publicPgpKey, MessageCodec codec) throws CryptographyException {
+        this(publicPgpKey, codec, NO_COMPRESSION);
+    }
+
+    /**
+     * Creates a serializer that encrypts messages in the supplied format, and compresses messages of at least
+     * compressionThreshold bytes with ZLIB inside the encrypted data. Decrypting gives back the uncompressed message,
+     * so consumers need nothing to read them.
+     */
+    public DefaultMessageSerializer(
+        byte[] publicPgpKey,
+        MessageCodec codec,
+        int compressionThreshold
+    ) throws CryptographyException {
         try (InputStream publicPgpKeyInputStream = new ByteArrayInputStream(publicPgpKey)) {
             this.publicKey = KeyUtil.findPublicKey(publicPgpKeyInputStream);
         } catch (IOException e) {
             throw new CryptographyException("Could not create public PGP key", e);
         }
+        this.codec = codec;
+        this.compressionThreshold = compressionThreshold;
     }
 
     public DefaultMessageSerializer() {
+        this(MessageCodec.JSON);
+    }
+
+    public DefaultMessageSerializer(MessageCodec codec) {
+        this(codec, NO_COMPRESSION);
+    }
+
+    /**
+     * Creates a serializer that gzip compresses messages of at least compressionThreshold bytes, when that makes
+     * them smaller. Compressed messages are base64 encoded, and are detected by {@link MessageDeserializer}.
+     */
+    public DefaultMessageSerializer(MessageCodec codec, int compressionThreshold) {
         this.publicKey = null;
+        this.codec = codec;
+        this.compressionThreshold = compressionThreshold;
     }
 
     @Override
@@ -33,11 +84,37 @@ public class DefaultMessageSerializer implements MessageSerializer {
             return message;
         }
 
-        return new String(PGP.encrypt(message.getBytes(), publicKey));
+        byte[] bytes = message.getBytes();
+        int compressionAlgorithm = bytes.length >= compressionThreshold
+            ? CompressionAlgorithmTags.ZLIB
+            : CompressionAlgorithmTags.UNCOMPRESSED;
+        return new String(PGP.encrypt(bytes, compressionAlgorithm, publicKey));
     }
 
+    /**
+     * Serializes the message with a writer that is created once per message type, so that the serializer of the type
+     * is only looked up the first time.
+     */
     @Override
     public String serialize(Object message) throws JsonProcessingException {
-        return JSON_MAPPER.writeValueAsString(message);
+        ObjectWriter writer = writerPerType.get(message == null ? Object.class : message.getClass());
+        if (publicKey != null || compressionThreshold == NO_COMPRESSION) {
+            // Encrypted messages are compressed when they are encrypted.
+            return codec.encode(writer, message);
+        }
+        return codec.encode(writer, message, compressionThreshold);
+    }
+
+    /**
+     * Writes the envelope as JSON with the same mapper as the messages, but never compressed or in another format.
+     */
+    @Override
+    public String serializeEnvelope(AmazonSNSMessage envelope) throws JsonProcessingException {
+        return JSON_MAPPER.writeValueAsString(envelope);
+    }
+
+    @Override
+    public MessageCodec getCodec() {
+        return codec;
     }
 }
@@ -0,0 +1,164 @@
+package com.izettle.messaging.serialization;
+
+import static com.izettle.java.ValueChecks.empty;
+
+import com.amazonaws.services.sqs.model.Message;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import com.izettle.messaging.MessagingException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/**
+ * Format of message bodies. JSON can be read by every consumer, and is assumed for messages that do not declare a
+ * format. Smile is the binary JSON format of Jackson, it makes messages smaller and faster to parse, and is sent
+ * base64 encoded since message bodies are text. Smile needs jackson-dataformat-smile on the class path.
+ *
+ * Messages declare their format with the {@link #CONTENT_TYPE_ATTRIBUTE} message attribute. Producers only set it
+ * for formats other than JSON, so consumers should be upgraded before any producer starts to send Smile.
+ *
+ * Bodies in any format may also be gzip compressed, which is detected when they are decoded.
+ */
+public enum MessageCodec {
+    JSON("application/json", false),
+    SMILE("application/x-jackson-smile", true);
+
+    public static final String CONTENT_TYPE_ATTRIBUTE = "ContentType";
+
+    /**
+     * Largest size that compressed bodies are decompressed to by default, four times the largest message body that
+     * Amazon SQS accepts.
+     */
+    public static final long DEFAULT_MAX_DECOMPRESSED_BYTES = 4 * 262144;
+    private final String contentType;
+    private final boolean binary;
+
+    MessageCodec(String contentType, boolean binary) {
+        this.contentType = contentType;
+        this.binary = binary;
+    }
+
+    public String getContentType() {
+        return contentType;
+    }
+
+    /**
+     * @param contentType Value of the content type attribute of a message, or null if it has none.
+     * @return The codec of the content type, JSON when there is none.
+     * @throws IOException Unsupported content type.
+     */
+    public static MessageCodec forContentType(String contentType) throws IOException {
+        if (empty(contentType)) {
+            return JSON;
+        }
+        for (MessageCodec codec : values()) {
+            if (codec.contentType.equals(contentType)) {
+                return codec;
+            }
+        }
+        throw new IOException("Unsupported content type: " + contentType);
+    }
+
+    /**
+     * Finds the codec of a message received from Amazon SQS. The content type is a message attribute of the SQS
+     * message when it was sent to the queue, or when it was delivered raw from Amazon SNS, and a message attribute in
+     * the SNS envelope otherwise.
+     *
+     * @param message Message received from Amazon SQS, with its content type attribute requested.
+     * @param envelope SNS envelope of the message, or null if it has none.
+     */
+    public static MessageCodec of(Message message, AmazonSNSMessage envelope) throws IOException {
+        return forContentType(MessageDeserializer.messageAttribute(message, envelope, CONTENT_TYPE_ATTRIBUTE));
+    }
+
+    /**
+     * @param jsonWriter Writer for JSON.
+     * @return Writer with the same configuration, that writes this format.
+     */
+    public ObjectWriter writer(ObjectWriter jsonWriter) {
+        return binary ? jsonWriter.with(SmileFactoryHolder.FACTORY) : jsonWriter;
+    }
+
+    /**
+     * @param jsonReader Reader for JSON.
+     * @return Reader with the same configuration, that reads this format.
+     */
+    public ObjectReader reader(ObjectReader jsonReader) {
+        return binary ? jsonReader.with(SmileFactoryHolder.FACTORY) : jsonReader;
+    }
+
+    /**
+     * @param writer Writer from {@link #writer(ObjectWriter)}.
+     * @return The message as text that can be sent as a message body.
+     */
+    public String encode(ObjectWriter writer, Object message) throws JsonProcessingException {
+        if (binary) {
+            return Base64.getEncoder().encodeToString(writer.writeValueAsBytes(message));
+        }
+        return writer.writeValueAsString(message);
+    }
+
+    /**
+     * @param writer Writer from {@link #writer(ObjectWriter)}.
+     * @param compressionThreshold Size in bytes from which messages are compressed.
+     * @return The message as text that can be sent as a message body, compressed if it is at least as large as the
+     *         threshold, and compressing makes it smaller.
+     */
+    public String encode(ObjectWriter writer, Object message, int compressionThreshold) throws JsonProcessingException {
+        byte[] bytes = writer.writeValueAsBytes(message);
+        String encoded = binary ? Base64.getEncoder().encodeToString(bytes) : new String(bytes, StandardCharsets.UTF_8);
+        if (bytes.length < compressionThreshold) {
+            return encoded;
+        }
+        String compressed = MessageCompression.compress(bytes);
+        return compressed.length() < encoded.length() ? compressed : encoded;
+    }
+
+    /**
+     * @param reader Reader from {@link #reader(ObjectReader)}.
+     * @param body Message body from {@link #encode(ObjectWriter, Object)}, possibly compressed.
+     * @throws MessagingException The body is compressed, and larger than {@link #DEFAULT_MAX_DECOMPRESSED_BYTES} once
+     *         decompressed.
+     */
+    public <M> M decode(ObjectReader reader, String body) throws IOException, MessagingException {
+        return decode(reader, body, DEFAULT_MAX_DECOMPRESSED_BYTES);
+    }
+
+    /**
+     * @param reader Reader from {@link #reader(ObjectReader)}.
+     * @param body Message body from {@link #encode(ObjectWriter, Object)}, possibly compressed.
+     * @param maxDecompressedBytes Largest size to decompress a compressed body to.
+     * @throws MessagingException The body is compressed, and larger than the maximum once decompressed.
+     */
+    public <M> M decode(
+        ObjectReader reader,
+        String body,
+        long maxDecompressedBytes
+    ) throws IOException, MessagingException {
+        if (MessageCompression.isCompressed(body)) {
+            return reader.readValue(MessageCompression.decompress(body, maxDecompressedBytes));
+        }
+        if (binary) {
+            byte[] bytes;
+            try {
+                bytes = Base64.getDecoder().decode(body);
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Message body of type " + contentType + " is not base64 encoded.", e);
+            }
+            return reader.readValue(bytes);
+        }
+        return reader.readValue(body);
+    }
+
+    /**
+     * Creates the factory the first time Smile is used, so that jackson-dataformat-smile is only needed by those who
+     * use it.
+     */
+    private static final class SmileFactoryHolder {
+        private static final JsonFactory FACTORY = new SmileFactory();
+    }
+}
@@ -0,0 +1,67 @@
+package com.izettle.messaging.serialization;
+
+import com.izettle.messaging.MessagingException;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.Base64;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Gzip compression of message bodies that are not encrypted, sent base64 encoded since message bodies are text.
+ * Compressed bodies are recognized by the base64 encoded gzip header, which no JSON text or base64 encoded Smile
+ * starts with, so they need no message attribute.
+ */
+final class MessageCompression {
+    /**
+     * Base64 of the first three bytes of every gzip stream: the magic number and the deflate method.
+     */
+    private static final String COMPRESSED_PREFIX = "H4sI";
+
+    private MessageCompression() {
+    }
+
+    static String compress(byte[] message) {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(message.length / 4 + 32);
+        try (GZIPOutputStream gzip = new GZIPOutputStream(compressed)) {
+            gzip.write(message);
+        } catch (IOException e) {
+            // Writing to memory does not fail.
+            throw new UncheckedIOException(e);
+        }
+        return Base64.getEncoder().encodeToString(compressed.toByteArray());
+    }
+
+    static boolean isCompressed(String messageBody) {
+        return messageBody != null && messageBody.startsWith(COMPRESSED_PREFIX);
+    }
+
+    /**
+     * @param maxBytes Largest decompressed size to accept, so that a small body can not expand to fill the heap.
+     * @throws MessagingException The decompressed body is larger than the maximum.
+     */
+    static byte[] decompress(String messageBody, long maxBytes) throws IOException, MessagingException {
+        byte[] compressed;
+        try {
+            compressed = Base64.getDecoder().decode(messageBody);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Compressed message body is not base64 encoded.", e);
+        }
+        long initialCapacity = Math.min(compressed.length * 4L, Math.min(maxBytes, 1 << 20));
+        ByteArrayOutputStream message = new ByteArrayOutputStream((int) initialCapacity);
+        try (InputStream gzip = new GZIPInputStream(new ByteArrayInputStream(compressed))) {
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = gzip.read(buffer)) != -1) {
+                if (message.size() + (long) read > maxBytes) {
+                    throw new MessagingException("Decompressed message body is larger than " + maxBytes + " bytes.");
+                }
+                message.write(buffer, 0, read);
+            }
+        }
+        return message.toByteArray();
+    }
+}
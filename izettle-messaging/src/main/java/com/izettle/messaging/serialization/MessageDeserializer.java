@@ -3,20 +3,35 @@ package com.izettle.messaging.serialization;
 import static com.izettle.java.ValueChecks.anyNull;
 import static com.izettle.java.ValueChecks.empty;
 
-import com.fasterxml.jackson.databind.JsonNode;
+import com.amazonaws.services.sqs.model.Message;
+import com.amazonaws.services.sqs.model.MessageAttributeValue;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
 import com.izettle.cryptography.CryptographyException;
-import com.izettle.cryptography.PGP;
-import java.io.ByteArrayInputStream;
+import com.izettle.cryptography.PGPDecryptor;
+import com.izettle.java.ResourceUtils;
+import com.izettle.messaging.MessagingException;
+import com.izettle.messaging.payload.PayloadStore;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 public class MessageDeserializer<M> {
 
     private final byte[] privatePgpKey;
     private final String privatePgpKeyPassphrase;
     private final ObjectMapper objectMapper;
-    private final Class<M> messageClass;
+    private final ObjectReader messageReader;
+    private final ConcurrentMap<MessageCodec, ObjectReader> messageReaderPerCodec = new ConcurrentHashMap<>();
+    private final PayloadStore payloadStore;
+    private final long maxDecompressedBytes;
+    private volatile PGPDecryptor decryptor;
 
+    /**
+     * Creates a deserializer that decrypts messages with the supplied private key. The key is read the first time a
+     * message is decrypted, and then kept for all following messages.
+     */
     public MessageDeserializer(
         Class<M> messageClass,
         byte[] privatePgpKey,
@@ -25,29 +40,156 @@ public class MessageDeserializer<M> {
     ) {
         this.privatePgpKey = privatePgpKey;
         this.privatePgpKeyPassphrase = privatePgpKeyPassphrase;
-        this.messageClass = messageClass;
         this.objectMapper = objectMapper;
+        this.messageReader = objectMapper.readerFor(messageClass);
+        this.payloadStore = null;
+        this.maxDecompressedBytes = MessageCodec.DEFAULT_MAX_DECOMPRESSED_BYTES;
+    }
+
+    /**
+     * Creates a deserializer that decrypts messages with a decryptor that may be shared with other deserializers.
+     */
+    public MessageDeserializer(Class<M> messageClass, PGPDecryptor decryptor, ObjectMapper objectMapper) {
+        this(messageClass, decryptor, objectMapper, null);
+    }
+
+    /**
+     * Creates a deserializer that reads message bodies that were too large to be sent from the supplied store, see
+     * {@link #readBody(Message, AmazonSNSMessage)}. Compressed bodies are decompressed up to
+     * {@link PayloadStore#getMaxPayloadBytes()} of the store, or {@link MessageCodec#DEFAULT_MAX_DECOMPRESSED_BYTES}
+     * without a store.
+     *
+     * @param decryptor Decryptor of the messages, or null if they are not encrypted.
+     */
+    public MessageDeserializer(
+        Class<M> messageClass,
+        PGPDecryptor decryptor,
+        ObjectMapper objectMapper,
+        PayloadStore payloadStore
+    ) {
+        this(
+            messageClass,
+            decryptor,
+            objectMapper,
+            payloadStore,
+            payloadStore != null ? payloadStore.getMaxPayloadBytes() : MessageCodec.DEFAULT_MAX_DECOMPRESSED_BYTES
+        );
+    }
+
+    /**
+     * @param decryptor Decryptor of the messages, or null if they are not encrypted.
+     * @param payloadStore Store of message bodies that were too large to be sent, or null.
+     * @param maxDecompressedBytes Largest size to decompress compressed message bodies to, larger ones fail.
+     */
+    public MessageDeserializer(
+        Class<M> messageClass,
+        PGPDecryptor decryptor,
+        ObjectMapper objectMapper,
+        PayloadStore payloadStore,
+        long maxDecompressedBytes
+    ) {
+        if (maxDecompressedBytes < 1) {
+            throw new IllegalArgumentException("Illegal maxDecompressedBytes, was: " + maxDecompressedBytes);
+        }
+        this.privatePgpKey = null;
+        this.privatePgpKeyPassphrase = null;
+        this.objectMapper = objectMapper;
+        this.messageReader = objectMapper.readerFor(messageClass);
+        this.decryptor = decryptor;
+        this.payloadStore = payloadStore;
+        this.maxDecompressedBytes = maxDecompressedBytes;
     }
 
     public MessageDeserializer(Class<M> messageClass, ObjectMapper objectMapper) {
         this.objectMapper = objectMapper;
         this.privatePgpKey = null;
         this.privatePgpKeyPassphrase = null;
-        this.messageClass = messageClass;
+        this.messageReader = objectMapper.readerFor(messageClass);
+        this.payloadStore = null;
+        this.maxDecompressedBytes = MessageCodec.DEFAULT_MAX_DECOMPRESSED_BYTES;
     }
 
-    public String decrypt(String encrypted) throws IOException, CryptographyException {
-        if (!anyNull(privatePgpKey, privatePgpKeyPassphrase)) {
-            // noinspection ConstantConditions
-            try (ByteArrayInputStream keyStream = new ByteArrayInputStream(privatePgpKey)) {
-                return new String(PGP.decrypt(encrypted.getBytes(), keyStream, privatePgpKeyPassphrase), "UTF-8");
+    /**
+     * Removes the SNS envelope from a message received from Amazon SQS, decrypts it, and deserializes it with the
+     * codec that the message declares.
+     */
+    public M read(Message message) throws IOException, CryptographyException, MessagingException {
+        AmazonSNSMessage envelope = readSnsEnvelope(message.getBody());
+        return deserialize(readBody(message, envelope), MessageCodec.of(message, envelope));
+    }
+
+    /**
+     * Reads the body of a message received from Amazon SQS without its SNS envelope. The body is read from the
+     * payload store if the message only carries its key, and is then decrypted.
+     *
+     * @param envelope SNS envelope of the message, or null if it has none.
+     * @return The decrypted body, ready to be deserialized.
+     */
+    public String readBody(Message message, AmazonSNSMessage envelope) throws IOException, CryptographyException {
+        String messageBody = envelope != null ? envelope.getMessage() : message.getBody();
+        String storedPayloadKey = messageAttribute(message, envelope, PayloadStore.STORED_PAYLOAD_ATTRIBUTE);
+        if (storedPayloadKey != null) {
+            if (payloadStore == null) {
+                throw new IOException("Message body is in a payload store, but there is none to read it from.");
             }
+            messageBody = new String(
+                ResourceUtils.getBytesFromStream(payloadStore.open(storedPayloadKey)),
+                StandardCharsets.UTF_8
+            );
+        }
+        return decrypt(messageBody);
+    }
+
+    /**
+     * @return The value of a message attribute of the SQS message, or of the SNS envelope if the SQS message does not
+     *         have it, or null.
+     */
+    static String messageAttribute(Message message, AmazonSNSMessage envelope, String attributeName) {
+        MessageAttributeValue attribute = message.getMessageAttributes().get(attributeName);
+        if (attribute != null) {
+            return attribute.getStringValue();
+        }
+        return envelope != null ? envelope.getMessageAttributes().get(attributeName) : null;
+    }
+
+    public String decrypt(String encrypted) throws IOException, CryptographyException {
+        PGPDecryptor pgpDecryptor = getDecryptor();
+        if (pgpDecryptor != null) {
+            return new String(pgpDecryptor.decrypt(encrypted.getBytes()), StandardCharsets.UTF_8);
         }
         return encrypted;
     }
 
-    public M deserialize(String message) throws IOException {
-        return objectMapper.readValue(message, messageClass);
+    private PGPDecryptor getDecryptor() throws CryptographyException {
+        PGPDecryptor pgpDecryptor = decryptor;
+        if (pgpDecryptor == null && !anyNull(privatePgpKey, privatePgpKeyPassphrase)) {
+            synchronized (this) {
+                if (decryptor == null) {
+                    decryptor = new PGPDecryptor(privatePgpKey, privatePgpKeyPassphrase);
+                }
+                pgpDecryptor = decryptor;
+            }
+        }
+        return pgpDecryptor;
+    }
+
+    public M deserialize(String message) throws IOException, MessagingException {
+        return deserialize(message, MessageCodec.JSON);
+    }
+
+    public M deserialize(String message, MessageCodec codec) throws IOException, MessagingException {
+        // Readers for other codecs are only created when needed, they may need more on the class path than JSON.
+        ObjectReader reader = codec == MessageCodec.JSON
+            ? messageReader
+            : messageReaderPerCodec.computeIfAbsent(codec, c -> c.reader(messageReader));
+        return codec.decode(reader, message, maxDecompressedBytes);
+    }
+
+    /**
+     * @return Largest size that compressed message bodies are decompressed to.
+     */
+    public long getMaxDecompressedBytes() {
+        return maxDecompressedBytes;
     }
 
     public String removeSnsEnvelope(String message) throws IOException {
@@ -55,12 +197,24 @@ public class MessageDeserializer<M> {
     }
 
     public static String removeSnsEnvelope(ObjectMapper om, String message) throws IOException {
+        AmazonSNSMessage envelope = readSnsEnvelope(om, message);
+        return envelope != null ? envelope.getMessage() : message;
+    }
+
+    /**
+     * @return The SNS envelope of the message, or null if the message has none.
+     */
+    public AmazonSNSMessage readSnsEnvelope(String message) throws IOException {
+        return readSnsEnvelope(objectMapper, message);
+    }
+
+    private static AmazonSNSMessage readSnsEnvelope(ObjectMapper om, String message) throws IOException {
         if (!empty(message) && message.startsWith("{")) {
-            JsonNode root = om.readTree(message);
-            if (root.has("Subject") && root.has("Message")) {
-                return root.get("Message").asText();
+            AmazonSNSMessage envelope = AmazonSNSMessageReader.read(om.getFactory(), message);
+            if (envelope != null && envelope.isSubjectAndMessagePresent()) {
+                return envelope;
             }
         }
-        return message; // Message is most likely not from SNS.
+        return null; // Message is most likely not from SNS.
     }
 }
@@ -25,4 +25,28 @@ public interface MessageSerializer {
      * @throws JsonProcessingException if the serialization fail.
      */
     String serialize(Object message) throws JsonProcessingException;
+
+    /**
+     * @return The format of serialized messages, that producers declare on every message that is not JSON.
+     */
+    default MessageCodec getCodec() {
+        return MessageCodec.JSON;
+    }
+
+    /**
+     * Serializes the SNS envelope that a message body is wrapped in when it is sent straight to Amazon SQS. Consumers
+     * read the envelope before they know the codec and compression of the body, so it must be uncompressed JSON. By
+     * default the envelope is serialized like any message when the codec is JSON, and as plain JSON otherwise.
+     *
+     * @param envelope Envelope to be serialized.
+     * @return serialized version of the envelope.
+     * @throws JsonProcessingException if the serialization fail.
+     */
+    default String serializeEnvelope(AmazonSNSMessage envelope) throws JsonProcessingException {
+        MessageCodec codec = getCodec();
+        if (codec != null && codec != MessageCodec.JSON) {
+            return JsonSerializer.getInstance().writeValueAsString(envelope);
+        }
+        return serialize(envelope);
+    }
 }
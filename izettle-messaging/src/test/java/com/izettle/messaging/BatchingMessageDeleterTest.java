@@ -0,0 +1,117 @@
+package com.izettle.messaging;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.amazonaws.services.sqs.AmazonSQS;
+import com.amazonaws.services.sqs.model.BatchResultErrorEntry;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequest;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchResult;
+import com.amazonaws.services.sqs.model.DeleteMessageRequest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+public class BatchingMessageDeleterTest {
+    private final AmazonSQS mockAmazonSQS = mock(AmazonSQS.class);
+    private BatchingMessageDeleter deleter;
+
+    @Before
+    public final void before() throws Exception {
+        when(mockAmazonSQS.deleteMessageBatch(any(DeleteMessageBatchRequest.class)))
+            .thenReturn(new DeleteMessageBatchResult());
+        deleter = new BatchingMessageDeleter(mockAmazonSQS, 1, TimeUnit.HOURS);
+    }
+
+    @After
+    public final void after() throws Exception {
+        deleter.close();
+    }
+
+    @Test
+    public void shouldSendBatchAsSoonAsItHoldsTenReceiptHandles() throws Exception {
+        // Act
+        for (int i = 0; i < 10; i++) {
+            deleter.delete("queueUrl", "receiptHandle" + i);
+        }
+
+        // Assert
+        ArgumentCaptor<DeleteMessageBatchRequest> captor = ArgumentCaptor.forClass(DeleteMessageBatchRequest.class);
+        verify(mockAmazonSQS, timeout(1000)).deleteMessageBatch(captor.capture());
+        assertEquals("queueUrl", captor.getValue().getQueueUrl());
+        assertThat(captor.getValue().getEntries()).hasSize(10);
+        assertEquals("receiptHandle9", captor.getValue().getEntries().get(9).getReceiptHandle());
+    }
+
+    @Test
+    public void shouldSendOneBatchPerQueueUrl() throws Exception {
+        // Act
+        deleter.delete("queueUrl1", "receiptHandle1");
+        deleter.delete("queueUrl2", "receiptHandle2");
+        deleter.delete("queueUrl1", "receiptHandle3");
+        deleter.flush();
+
+        // Assert
+        ArgumentCaptor<DeleteMessageBatchRequest> captor = ArgumentCaptor.forClass(DeleteMessageBatchRequest.class);
+        verify(mockAmazonSQS, times(2)).deleteMessageBatch(captor.capture());
+        for (DeleteMessageBatchRequest request : captor.getAllValues()) {
+            assertThat(request.getEntries()).hasSize(request.getQueueUrl().equals("queueUrl1") ? 2 : 1);
+        }
+    }
+
+    @Test
+    public void shouldSendBatchWhenLingerTimeHasPassed() throws Exception {
+        // Arrange
+        BatchingMessageDeleter lingeringDeleter = new BatchingMessageDeleter(mockAmazonSQS, 10, TimeUnit.MILLISECONDS);
+
+        // Act
+        CompletableFuture<Void> deleted = lingeringDeleter.delete("queueUrl", "receiptHandle");
+        deleted.get(5, TimeUnit.SECONDS);
+
+        // Assert
+        verify(mockAmazonSQS).deleteMessageBatch(any(DeleteMessageBatchRequest.class));
+        lingeringDeleter.close();
+    }
+
+    @Test
+    public void shouldRetryFailedEntriesOneByOne() throws Exception {
+        // Arrange
+        when(mockAmazonSQS.deleteMessageBatch(any(DeleteMessageBatchRequest.class))).thenReturn(
+            new DeleteMessageBatchResult().withFailed(new BatchResultErrorEntry().withId("1"))
+        );
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+
+        // Act
+        futures.add(deleter.delete("queueUrl", "receiptHandle0"));
+        futures.add(deleter.delete("queueUrl", "receiptHandle1"));
+        deleter.flush();
+
+        // Assert
+        ArgumentCaptor<DeleteMessageRequest> captor = ArgumentCaptor.forClass(DeleteMessageRequest.class);
+        verify(mockAmazonSQS).deleteMessage(captor.capture());
+        assertEquals("receiptHandle1", captor.getValue().getReceiptHandle());
+        assertTrue(futures.stream().allMatch(CompletableFuture::isDone));
+    }
+
+    @Test
+    public void shouldNotSendAnythingWithoutReceiptHandles() throws Exception {
+        // Act
+        deleter.flush();
+
+        // Assert
+        verify(mockAmazonSQS, never()).deleteMessageBatch(any(DeleteMessageBatchRequest.class));
+    }
+}
@@ -0,0 +1,115 @@
+package com.izettle.messaging;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+public class ConcurrencyLimiterTest {
+    private static final long THRESHOLD_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    @Test
+    public void shouldHandOutAtMostTheLimitOfPermits() throws Exception {
+        // Arrange
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(4, 10, THRESHOLD_NANOS);
+
+        // Act
+        int first = limiter.acquire(10);
+        limiter.release(1);
+        int second = limiter.acquire(10);
+
+        // Assert
+        assertEquals(4, first);
+        assertEquals(1, second);
+    }
+
+    @Test
+    public void shouldWaitForAMessageToBeHandledWhenTheLimitIsReached() throws Exception {
+        // Arrange
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(1, 1, THRESHOLD_NANOS);
+        limiter.acquire(10);
+        CompletableFuture<Integer> acquired = CompletableFuture.supplyAsync(() -> {
+            try {
+                return limiter.acquire(10);
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        TimeUnit.MILLISECONDS.sleep(50);
+        assertFalse(acquired.isDone());
+
+        // Act
+        limiter.handled(System.nanoTime(), System.nanoTime(), false);
+
+        // Assert
+        assertEquals(Integer.valueOf(1), acquired.get(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void shouldGrowTheLimitByAboutOneForEveryLimitOfMessagesHandledWithinTheThreshold() throws Exception {
+        // Arrange
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(4, 10, THRESHOLD_NANOS);
+        long startNanos = System.nanoTime();
+
+        // Act
+        for (int i = 0; i < 5; i++) {
+            limiter.acquire(1);
+            limiter.handled(startNanos, startNanos + 1, false);
+        }
+
+        // Assert
+        assertEquals(5, limiter.getLimit());
+    }
+
+    @Test
+    public void shouldCutTheLimitOnceForARoundOfFailedMessages() throws Exception {
+        // Arrange
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(8, 10, THRESHOLD_NANOS);
+        limiter.acquire(8);
+        long startNanos = System.nanoTime();
+
+        // Act
+        limiter.handled(startNanos, startNanos + 1, true);
+        limiter.handled(startNanos, startNanos + THRESHOLD_NANOS + 1, false);
+
+        // Assert
+        assertEquals(6, limiter.getLimit());
+    }
+
+    @Test
+    public void shouldCutTheLimitAgainForSlowMessagesStartedAfterTheLastCut() throws Exception {
+        // Arrange
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(8, 10, THRESHOLD_NANOS);
+        limiter.acquire(8);
+        long startNanos = System.nanoTime();
+        long cutNanos = startNanos + THRESHOLD_NANOS + 1;
+        limiter.handled(startNanos, cutNanos, false);
+
+        // Act
+        limiter.handled(cutNanos, cutNanos + THRESHOLD_NANOS + 1, false);
+
+        // Assert
+        assertEquals(4, limiter.getLimit());
+    }
+
+    @Test
+    public void shouldNeverCutTheLimitBelowOne() throws Exception {
+        // Arrange
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(1, 1, THRESHOLD_NANOS);
+        limiter.acquire(1);
+        long startNanos = System.nanoTime();
+
+        // Act
+        limiter.handled(startNanos, startNanos + 1, true);
+
+        // Assert
+        assertEquals(1, limiter.getLimit());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRequireAMaximumLimitOfAtLeastTheInitialLimit() throws Exception {
+        new ConcurrencyLimiter(10, 5, THRESHOLD_NANOS);
+    }
+}
@@ -0,0 +1,79 @@
+package com.izettle.messaging;
+
+import static org.junit.Assert.assertEquals;
+
+import com.codahale.metrics.MetricRegistry;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+public class DropwizardMessagingMetricsTest {
+    private static final String QUEUE_URL = "https://sqs.eu-west-1.amazonaws.com/123456789012/my-queue";
+    private final MetricRegistry metricRegistry = new MetricRegistry();
+    private final MessagingMetrics metrics = new DropwizardMessagingMetrics(metricRegistry);
+
+    @Test
+    public void shouldNameMetricsAfterTheQueueOrTopic() throws Exception {
+        assertEquals("my-queue", DropwizardMessagingMetrics.nameOf(QUEUE_URL));
+        assertEquals("my-topic", DropwizardMessagingMetrics.nameOf("arn:aws:sns:eu-west-1:123456789012:my-topic"));
+    }
+
+    @Test
+    public void shouldReportReceiveCallsPerQueue() throws Exception {
+        // Act
+        metrics.received(QUEUE_URL, 10, 5, TimeUnit.MILLISECONDS.toNanos(20));
+        metrics.received(QUEUE_URL, 10, 0, TimeUnit.SECONDS.toNanos(20));
+
+        // Assert
+        assertEquals(2, metricRegistry.timer("com.izettle.messaging.my-queue.receive").getCount());
+        assertEquals(1, metricRegistry.meter("com.izettle.messaging.my-queue.receive.empty").getCount());
+        assertEquals(
+            50,
+            metricRegistry.histogram("com.izettle.messaging.my-queue.receive.fill-percent").getSnapshot().getMax()
+        );
+    }
+
+    @Test
+    public void shouldCountMessagesInFlight() throws Exception {
+        // Act
+        metrics.inFlight(QUEUE_URL, 3);
+        metrics.inFlight(QUEUE_URL, -1);
+
+        // Assert
+        assertEquals(2, metricRegistry.counter("com.izettle.messaging.my-queue.in-flight").getCount());
+    }
+
+    @Test
+    public void shouldReportTheLastObservedQueueDepth() throws Exception {
+        // Act
+        metrics.queueDepth(QUEUE_URL, 100);
+        metrics.queueDepth(QUEUE_URL, 7);
+
+        // Assert
+        assertEquals(7L, metricRegistry.getGauges().get("com.izettle.messaging.my-queue.depth").getValue());
+    }
+
+    @Test
+    public void shouldShareTheQueueDepthGaugeBetweenMetricsOfTheSameRegistry() throws Exception {
+        // Arrange
+        MessagingMetrics otherMetrics = new DropwizardMessagingMetrics(metricRegistry);
+
+        // Act
+        metrics.queueDepth(QUEUE_URL, 100);
+        otherMetrics.queueDepth(QUEUE_URL, 7);
+
+        // Assert
+        assertEquals(7L, metricRegistry.getGauges().get("com.izettle.messaging.my-queue.depth").getValue());
+    }
+
+    @Test
+    public void shouldReportSentMessages() throws Exception {
+        // Act
+        metrics.serialized(QUEUE_URL, 1000);
+        metrics.sent(QUEUE_URL, 10, 1000);
+
+        // Assert
+        assertEquals(1, metricRegistry.timer("com.izettle.messaging.my-queue.serialize").getCount());
+        assertEquals(1, metricRegistry.timer("com.izettle.messaging.my-queue.send").getCount());
+        assertEquals(10, metricRegistry.meter("com.izettle.messaging.my-queue.sent").getCount());
+    }
+}
@@ -0,0 +1,103 @@
+package com.izettle.messaging;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.amazonaws.services.sqs.model.Message;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.Test;
+
+public class MessageDeduplicatorTest {
+    private final AtomicLong nanoTime = new AtomicLong();
+    private final HandledMessageStore mockStore = mock(HandledMessageStore.class);
+
+    private MessageDeduplicator createDeduplicator(int maximumSize, HandledMessageStore store) {
+        return new MessageDeduplicator(
+            MessageDeduplicator.MESSAGE_ID,
+            maximumSize,
+            1,
+            TimeUnit.MINUTES,
+            store,
+            nanoTime::get
+        );
+    }
+
+    private Message createMessage(String messageId) {
+        return new Message().withMessageId(messageId).withReceiptHandle(messageId);
+    }
+
+    @Test
+    public void shouldDetectDuplicatesOfHandledMessages() throws Exception {
+        // Arrange
+        MessageDeduplicator deduplicator = createDeduplicator(10, null);
+
+        // Act
+        boolean duplicateBeforeHandled = deduplicator.isDuplicate(createMessage("msg1"));
+        deduplicator.markHandled(createMessage("msg1"));
+
+        // Assert
+        assertFalse(duplicateBeforeHandled);
+        assertTrue(deduplicator.isDuplicate(createMessage("msg1")));
+        assertFalse(deduplicator.isDuplicate(createMessage("msg2")));
+    }
+
+    @Test
+    public void shouldForgetHandledMessagesAfterTheRetention() throws Exception {
+        // Arrange
+        MessageDeduplicator deduplicator = createDeduplicator(10, null);
+        deduplicator.markHandled(createMessage("msg1"));
+
+        // Act
+        nanoTime.addAndGet(TimeUnit.MINUTES.toNanos(1));
+
+        // Assert
+        assertFalse(deduplicator.isDuplicate(createMessage("msg1")));
+    }
+
+    @Test
+    public void shouldForgetTheOldestHandledMessagesWhenFull() throws Exception {
+        // Arrange
+        MessageDeduplicator deduplicator = createDeduplicator(2, null);
+
+        // Act
+        deduplicator.markHandled(createMessage("msg1"));
+        deduplicator.markHandled(createMessage("msg2"));
+        deduplicator.markHandled(createMessage("msg3"));
+
+        // Assert
+        assertFalse(deduplicator.isDuplicate(createMessage("msg1")));
+        assertTrue(deduplicator.isDuplicate(createMessage("msg2")));
+        assertTrue(deduplicator.isDuplicate(createMessage("msg3")));
+    }
+
+    @Test
+    public void shouldAskTheStoreAboutMessagesThatAreNotInMemory() throws Exception {
+        // Arrange
+        when(mockStore.isHandled("msg1")).thenReturn(true);
+        MessageDeduplicator deduplicator = createDeduplicator(10, mockStore);
+
+        // Act
+        deduplicator.markHandled(createMessage("msg2"));
+
+        // Assert
+        assertTrue(deduplicator.isDuplicate(createMessage("msg1")));
+        verify(mockStore).markHandled("msg2");
+    }
+
+    @Test
+    public void shouldHandleMessageWhenTheStoreFails() throws Exception {
+        // Arrange
+        when(mockStore.isHandled("msg1")).thenThrow(new MessagingException("Store is down"));
+        MessageDeduplicator deduplicator = createDeduplicator(10, mockStore);
+
+        // Act
+        boolean duplicate = deduplicator.isDuplicate(createMessage("msg1"));
+
+        // Assert
+        assertFalse(duplicate);
+    }
+}
@@ -0,0 +1,260 @@
+package com.izettle.messaging;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.singletonList;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import org.junit.Test;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+public class MessageQueueConsumerPublisherTest {
+    @SuppressWarnings("unchecked")
+    private final MessageQueueConsumer<String> mockConsumer = mock(MessageQueueConsumer.class);
+
+    @Test
+    public void shouldNotPollBeforeTheSubscriberRequestsMessages() throws Exception {
+        // Arrange
+        MessageQueueConsumerPublisher<String> publisher = publisher(10);
+
+        // Act
+        publisher.subscribe(new RecordingSubscriber());
+
+        // Assert
+        verify(mockConsumer, never()).poll(anyInt());
+    }
+
+    @Test
+    public void shouldOnlyDeliverRequestedMessages() throws Exception {
+        // Arrange
+        when(mockConsumer.poll(anyInt())).thenReturn(messages("a", "b", "c"), messages());
+        MessageQueueConsumerPublisher<String> publisher = publisher(0);
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        publisher.subscribe(subscriber);
+
+        // Act
+        subscriber.subscription.request(2);
+
+        // Assert
+        assertThat(subscriber.received).containsExactly("a", "b");
+        verify(mockConsumer, times(1)).poll(anyInt());
+
+        // Act
+        subscriber.subscription.request(1);
+
+        // Assert
+        assertThat(subscriber.received).containsExactly("a", "b", "c");
+    }
+
+    @Test
+    public void shouldPrefetchUpToTheHighWaterMark() throws Exception {
+        // Arrange
+        when(mockConsumer.poll(anyInt())).thenReturn(messages("a", "b", "c"), messages("d", "e", "f"));
+        MessageQueueConsumerPublisher<String> publisher = publisher(5);
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        publisher.subscribe(subscriber);
+
+        // Act
+        subscriber.subscription.request(1);
+
+        // Assert
+        assertThat(subscriber.received).containsExactly("a");
+        verify(mockConsumer, times(2)).poll(anyInt());
+    }
+
+    @Test
+    public void shouldDeleteAcknowledgedMessages() throws Exception {
+        // Arrange
+        PolledMessage<String> message = new PolledMessage<>("a", "receiptHandle");
+        when(mockConsumer.poll(anyInt())).thenReturn(singletonList(message), messages());
+        MessageQueueConsumerPublisher<String> publisher = publisher(0);
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        publisher.subscribe(subscriber);
+        subscriber.subscription.request(1);
+
+        // Act
+        publisher.acknowledge(message);
+
+        // Assert
+        verify(mockConsumer).delete(message);
+    }
+
+    @Test
+    public void shouldSignalPollFailuresAfterTheBufferedMessages() throws Exception {
+        // Arrange
+        MessagingException failure = new MessagingException("Failed to poll");
+        when(mockConsumer.poll(anyInt())).thenReturn(messages("a", "b")).thenThrow(failure);
+        MessageQueueConsumerPublisher<String> publisher = publisher(5);
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        publisher.subscribe(subscriber);
+
+        // Act
+        subscriber.subscription.request(1);
+
+        // Assert
+        assertThat(subscriber.received).containsExactly("a");
+        assertThat(subscriber.error).isNull();
+
+        // Act
+        subscriber.subscription.request(1);
+
+        // Assert
+        assertThat(subscriber.received).containsExactly("a", "b");
+        assertThat(subscriber.error).isSameAs(failure);
+    }
+
+    @Test
+    public void shouldRejectASecondSubscriber() throws Exception {
+        // Arrange
+        MessageQueueConsumerPublisher<String> publisher = publisher(0);
+        publisher.subscribe(new RecordingSubscriber());
+        RecordingSubscriber secondSubscriber = new RecordingSubscriber();
+
+        // Act
+        publisher.subscribe(secondSubscriber);
+
+        // Assert
+        assertThat(secondSubscriber.subscription).isNotNull();
+        assertThat(secondSubscriber.error).isInstanceOf(IllegalStateException.class);
+    }
+
+    @Test
+    public void shouldStopPollingWhenTheSubscriptionIsCancelled() throws Exception {
+        // Arrange
+        when(mockConsumer.poll(anyInt())).thenReturn(messages("a"), messages("b"));
+        MessageQueueConsumerPublisher<String> publisher = publisher(0);
+        RecordingSubscriber subscriber = new RecordingSubscriber() {
+            @Override
+            public void onNext(PolledMessage<String> message) {
+                super.onNext(message);
+                subscription.cancel();
+            }
+        };
+        publisher.subscribe(subscriber);
+
+        // Act
+        subscriber.subscription.request(2);
+
+        // Assert
+        assertThat(subscriber.received).containsExactly("a");
+        verify(mockConsumer, times(1)).poll(anyInt());
+    }
+
+    @Test
+    public void shouldSignalAnErrorForNonPositiveRequests() throws Exception {
+        // Arrange
+        MessageQueueConsumerPublisher<String> publisher = publisher(0);
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        publisher.subscribe(subscriber);
+
+        // Act
+        subscriber.subscription.request(0);
+
+        // Assert
+        assertThat(subscriber.error).isInstanceOf(IllegalArgumentException.class);
+        verify(mockConsumer, never()).poll(anyInt());
+    }
+
+    @Test
+    public void shouldSignalAnErrorForNonPositiveRequestsBeforeTheBufferedMessages() throws Exception {
+        // Arrange
+        when(mockConsumer.poll(anyInt())).thenReturn(messages("a", "b", "c"), messages());
+        MessageQueueConsumerPublisher<String> publisher = publisher(5);
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        publisher.subscribe(subscriber);
+        subscriber.subscription.request(1);
+
+        // Act
+        subscriber.subscription.request(-1);
+
+        // Assert
+        assertThat(subscriber.received).containsExactly("a");
+        assertThat(subscriber.error).isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    public void shouldSignalAnErrorWhenTheExecutorRejectsAPoll() throws Exception {
+        // Arrange
+        RejectedExecutionException rejection = new RejectedExecutionException("Saturated");
+        MessageQueueConsumerPublisher<String> publisher = new MessageQueueConsumerPublisher<>(
+            mockConsumer,
+            command -> {
+                throw rejection;
+            },
+            0
+        );
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        publisher.subscribe(subscriber);
+
+        // Act
+        subscriber.subscription.request(1);
+
+        // Assert
+        assertThat(subscriber.error).isSameAs(rejection);
+        verify(mockConsumer, never()).poll(anyInt());
+    }
+
+    @Test
+    public void shouldNotDeliverBufferedMessagesAfterTheSubscriptionIsCancelled() throws Exception {
+        // Arrange
+        when(mockConsumer.poll(anyInt())).thenReturn(messages("a", "b", "c"), messages());
+        MessageQueueConsumerPublisher<String> publisher = publisher(5);
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        publisher.subscribe(subscriber);
+        subscriber.subscription.request(1);
+
+        // Act
+        subscriber.subscription.cancel();
+        subscriber.subscription.request(2);
+
+        // Assert
+        assertThat(subscriber.received).containsExactly("a");
+        assertThat(subscriber.error).isNull();
+    }
+
+    private MessageQueueConsumerPublisher<String> publisher(int highWaterMark) {
+        return new MessageQueueConsumerPublisher<>(mockConsumer, Runnable::run, highWaterMark);
+    }
+
+    private static List<PolledMessage<String>> messages(String... messages) {
+        List<PolledMessage<String>> polledMessages = new ArrayList<>();
+        for (String message : asList(messages)) {
+            polledMessages.add(new PolledMessage<>(message, "receiptHandle-" + message));
+        }
+        return polledMessages;
+    }
+
+    private static class RecordingSubscriber implements Subscriber<PolledMessage<String>> {
+        final List<String> received = new ArrayList<>();
+        Subscription subscription;
+        Throwable error;
+
+        @Override
+        public void onSubscribe(Subscription subscription) {
+            this.subscription = subscription;
+        }
+
+        @Override
+        public void onNext(PolledMessage<String> message) {
+            received.add(message.getMessage());
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            error = throwable;
+        }
+
+        @Override
+        public void onComplete() {
+        }
+    }
+}
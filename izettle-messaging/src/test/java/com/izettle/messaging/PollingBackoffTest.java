@@ -0,0 +1,53 @@
+package com.izettle.messaging;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+public class PollingBackoffTest {
+
+    @Test
+    public void shouldPollAgainRightAwayAfterEmptyPollsByDefault() throws Exception {
+        assertEquals(0, PollingBackoff.DEFAULT.getIdleDelayMillis(1));
+        assertEquals(0, PollingBackoff.DEFAULT.getIdleDelayMillis(100));
+    }
+
+    @Test
+    public void shouldDoubleIdleDelayUpToTheMaximum() throws Exception {
+        // Arrange
+        PollingBackoff backoff = PollingBackoff.idleBackoff(1, 30, TimeUnit.SECONDS);
+
+        // Act & Assert
+        assertEquals(0, backoff.getIdleDelayMillis(0));
+        assertEquals(1000, backoff.getIdleDelayMillis(1));
+        assertEquals(2000, backoff.getIdleDelayMillis(2));
+        assertEquals(16000, backoff.getIdleDelayMillis(5));
+        assertEquals(30000, backoff.getIdleDelayMillis(6));
+        assertEquals(30000, backoff.getIdleDelayMillis(Integer.MAX_VALUE));
+    }
+
+    @Test
+    public void shouldBackOffFromOneSecondToOneMinuteAfterFailuresByDefault() throws Exception {
+        assertEquals(1000, PollingBackoff.DEFAULT.getFailureDelayMillis(1));
+        assertEquals(32000, PollingBackoff.DEFAULT.getFailureDelayMillis(6));
+        assertEquals(60000, PollingBackoff.DEFAULT.getFailureDelayMillis(7));
+    }
+
+    @Test
+    public void shouldKeepDefaultFailureDelaysWithCoarseIdleDelayUnit() throws Exception {
+        // Arrange
+        PollingBackoff backoff = PollingBackoff.idleBackoff(1, 10, TimeUnit.MINUTES);
+
+        // Act & Assert
+        assertEquals(60000, backoff.getIdleDelayMillis(1));
+        assertEquals(600000, backoff.getIdleDelayMillis(5));
+        assertEquals(1000, backoff.getFailureDelayMillis(1));
+        assertEquals(60000, backoff.getFailureDelayMillis(7));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldNotAcceptMaximumDelayBelowInitialDelay() throws Exception {
+        PollingBackoff.idleBackoff(10, 1, TimeUnit.SECONDS);
+    }
+}
@@ -2,20 +2,37 @@ package com.izettle.messaging;
 
 import static org.hamcrest.CoreMatchers.startsWith;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.any;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import com.amazonaws.handlers.AsyncHandler;
+import com.amazonaws.services.sns.AmazonSNSAsync;
 import com.amazonaws.services.sns.AmazonSNSClient;
+import com.amazonaws.services.sns.model.BatchResultErrorEntry;
 import com.amazonaws.services.sns.model.MessageAttributeValue;
+import com.amazonaws.services.sns.model.PublishBatchRequest;
+import com.amazonaws.services.sns.model.PublishBatchRequestEntry;
+import com.amazonaws.services.sns.model.PublishBatchResult;
+import com.amazonaws.services.sns.model.PublishBatchResultEntry;
 import com.amazonaws.services.sns.model.PublishRequest;
 import com.amazonaws.services.sns.model.PublishResult;
+import com.izettle.messaging.payload.PayloadStore;
+import com.izettle.messaging.serialization.DefaultMessageSerializer;
+import com.izettle.messaging.serialization.MessageCodec;
 import com.izettle.messaging.serialization.MessageSerializer;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 import org.junit.Before;
 import org.junit.Rule;
@@ -158,4 +175,144 @@ public class PublisherServiceTest {
         // Act
         publisherService.post(message, TestMessage.class.getName(), attributes);
     }
+
+    @Test
+    public void shouldCountTheStoredPayloadAttributeInTheAttributeLimitWhenPostingToSNS() throws Exception {
+
+        // Arrange
+        thrown.expect(MessagingException.class);
+        thrown.expectMessage(startsWith("Cannot publish message with more than 9 attributes!"));
+        TestMessage message = new TestMessage("ad99bb4f");
+        MessagePublisher publisherService = PublisherService.nonEncryptedPublisherService(
+            snsClient,
+            "topicArn",
+            new DefaultMessageSerializer(),
+            mock(PayloadStore.class)
+        );
+        Map<String, String> attributes = new HashMap<>();
+        IntStream.range(0, 10).forEach(num-> attributes.put("attr" + num, "value" + num));
+
+        // Act
+        publisherService.post(message, TestMessage.class.getName(), attributes);
+    }
+
+    @Test
+    public void shouldCountTheContentTypeAttributeInTheAttributeLimitWhenPostingToSNS() throws Exception {
+
+        // Arrange
+        thrown.expect(MessagingException.class);
+        thrown.expectMessage(startsWith("Cannot publish message with more than 9 attributes!"));
+        TestMessage message = new TestMessage("ad99bb4f");
+        MessagePublisher publisherService = PublisherService.nonEncryptedPublisherService(
+            snsClient,
+            "topicArn",
+            new DefaultMessageSerializer(MessageCodec.SMILE)
+        );
+        Map<String, String> attributes = new HashMap<>();
+        IntStream.range(0, 10).forEach(num-> attributes.put("attr" + num, "value" + num));
+
+        // Act
+        publisherService.post(message, TestMessage.class.getName(), attributes);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void postAsyncShouldPublishWithTheAsyncClient() throws Exception {
+
+        // Arrange
+        AmazonSNSAsync snsAsyncClient = mock(AmazonSNSAsync.class);
+        when(snsAsyncClient.publishAsync(any(PublishRequest.class), any(AsyncHandler.class)))
+            .thenAnswer(invocation -> {
+                AsyncHandler<PublishRequest, PublishResult> handler = invocation.getArgument(1);
+                handler.onSuccess(invocation.getArgument(0), new PublishResult().withMessageId("messageId"));
+                return null;
+            });
+        MessagePublisher publisherService = PublisherService.nonEncryptedPublisherService(snsAsyncClient, "topicArn");
+
+        // Act
+        MessageReceipt receipt = publisherService.postAsync(new TestMessage("ad99bb4f"), "EventName")
+            .get(1, TimeUnit.SECONDS);
+
+        // Assert
+        assertEquals("messageId", receipt.getMessageId());
+        assertEquals("{\"message\":\"ad99bb4f\"}", receipt.getMessageString());
+        ArgumentCaptor<PublishRequest> argumentCaptor = ArgumentCaptor.forClass(PublishRequest.class);
+        verify(snsAsyncClient).publishAsync(argumentCaptor.capture(), any(AsyncHandler.class));
+        assertEquals("EventName", argumentCaptor.getValue().getSubject());
+    }
+
+    @Test
+    public void postBatchShouldPublishInBatchesOfTen() throws Exception {
+
+        // Arrange
+        when(snsClient.publishBatch(any(PublishBatchRequest.class))).thenReturn(new PublishBatchResult());
+        MessagePublisher publisherService = PublisherService.nonEncryptedPublisherService(snsClient, "topicArn");
+        List<TestMessage> messages = IntStream.range(0, 25)
+            .mapToObj(i -> new TestMessage("message" + i))
+            .collect(Collectors.toList());
+
+        // Act
+        publisherService.postBatch(messages, "EventName");
+
+        // Assert
+        ArgumentCaptor<PublishBatchRequest> argumentCaptor = ArgumentCaptor.forClass(PublishBatchRequest.class);
+        verify(snsClient, times(3)).publishBatch(argumentCaptor.capture());
+        verify(snsClient, never()).publish(any(PublishRequest.class));
+        List<PublishBatchRequest> requests = argumentCaptor.getAllValues();
+        assertEquals("topicArn", requests.get(0).getTopicArn());
+        assertEquals(10, requests.get(0).getPublishBatchRequestEntries().size());
+        assertEquals(10, requests.get(1).getPublishBatchRequestEntries().size());
+        assertEquals(5, requests.get(2).getPublishBatchRequestEntries().size());
+        PublishBatchRequestEntry first = requests.get(0).getPublishBatchRequestEntries().get(0);
+        assertEquals("EventName", first.getSubject());
+        assertEquals("{\"message\":\"message0\"}", first.getMessage());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void postBatchWithResultsShouldReturnTheResultOfEveryMessage() throws Exception {
+
+        // Arrange
+        AmazonSNSAsync snsAsyncClient = mock(AmazonSNSAsync.class);
+        when(snsAsyncClient.publishBatchAsync(any(PublishBatchRequest.class), any(AsyncHandler.class)))
+            .thenAnswer(invocation -> {
+                AsyncHandler<PublishBatchRequest, PublishBatchResult> handler = invocation.getArgument(1);
+                handler.onSuccess(
+                    invocation.getArgument(0),
+                    new PublishBatchResult()
+                        .withSuccessful(new PublishBatchResultEntry().withId("1").withMessageId("messageId1"))
+                        .withFailed(new BatchResultErrorEntry().withId("2").withCode("InternalError"))
+                );
+                return null;
+            });
+        MessagePublisher publisherService = PublisherService.nonEncryptedPublisherService(snsAsyncClient, "topicArn");
+
+        // Act
+        List<PostResult> results = publisherService.postBatchWithResults(
+            Arrays.asList(new TestMessage("Hello"), new TestMessage("world")),
+            "EventName"
+        );
+
+        // Assert
+        assertEquals(2, results.size());
+        assertTrue(results.get(0).isSuccessful());
+        assertEquals("messageId1", results.get(0).getReceipt().getMessageId());
+        assertEquals("{\"message\":\"Hello\"}", results.get(0).getReceipt().getMessageString());
+        assertFalse(results.get(1).isSuccessful());
+    }
+
+    @Test
+    public void postBatchShouldThrowAfterPublishingAllMessagesWhenSomeFailed() throws Exception {
+
+        // Arrange
+        when(snsClient.publishBatch(any(PublishBatchRequest.class))).thenReturn(
+            new PublishBatchResult().withFailed(new BatchResultErrorEntry().withId("1").withCode("InternalError"))
+        );
+        MessagePublisher publisherService = PublisherService.nonEncryptedPublisherService(snsClient, "topicArn");
+        thrown.expect(MessagingException.class);
+        thrown.expectMessage(startsWith("Failed to post 1 of 2 messages"));
+
+        // Act
+        publisherService.postBatch(Arrays.asList(new TestMessage("Hello"), new TestMessage("world")), "EventName");
+    }
 }
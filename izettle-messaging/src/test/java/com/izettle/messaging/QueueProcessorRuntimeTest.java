@@ -0,0 +1,98 @@
+package com.izettle.messaging;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Test;
+
+public class QueueProcessorRuntimeTest {
+    private final QueueProcessorRuntime runtime =
+        new QueueProcessorRuntime(2, PollingBackoff.idleBackoff(10, 10, TimeUnit.MILLISECONDS));
+
+    @After
+    public final void after() throws Exception {
+        runtime.shutdown();
+    }
+
+    @Test
+    public void shouldKeepOnPollingAllStartedProcessors() throws Exception {
+        // Arrange
+        CountingQueueProcessor processor1 = new CountingQueueProcessor("processor1", 0);
+        CountingQueueProcessor processor2 = new CountingQueueProcessor("processor2", 0);
+
+        // Act
+        runtime.start(processor1);
+        runtime.start(processor2);
+
+        // Assert
+        assertTrue(processor1.awaitPolls(3));
+        assertTrue(processor2.awaitPolls(3));
+        assertTrue(runtime.isIdle(processor1));
+    }
+
+    @Test
+    public void shouldNotBeIdleWhileMessagesAreReceived() throws Exception {
+        // Arrange
+        CountingQueueProcessor processor = new CountingQueueProcessor("processor", 1);
+
+        // Act
+        runtime.start(processor);
+
+        // Assert
+        assertTrue(processor.awaitPolls(3));
+        assertFalse(runtime.isIdle(processor));
+    }
+
+    @Test
+    public void shouldStopPollingWhenShutDown() throws Exception {
+        // Arrange
+        CountingQueueProcessor processor = new CountingQueueProcessor("processor", 0);
+        runtime.start(processor);
+        assertTrue(processor.awaitPolls(3));
+
+        // Act
+        runtime.shutdown();
+        processor.polls.drainPermits();
+
+        // Assert
+        assertFalse(processor.polls.tryAcquire(100, TimeUnit.MILLISECONDS));
+    }
+
+    private static class CountingQueueProcessor implements MessageQueueProcessor {
+        private final String name;
+        private final int messagesPerPoll;
+        private final Semaphore polls = new Semaphore(0);
+
+        private CountingQueueProcessor(String name, int messagesPerPoll) {
+            this.name = name;
+            this.messagesPerPoll = messagesPerPoll;
+        }
+
+        @Override
+        public void poll() {
+            pollForMessages();
+        }
+
+        @Override
+        public int pollForMessages() {
+            polls.release();
+            return messagesPerPoll;
+        }
+
+        /**
+         * @return True once the processor has been polled the number of times since the last call, false if that did
+         *         not happen within a few seconds.
+         */
+        private boolean awaitPolls(int count) throws InterruptedException {
+            return polls.tryAcquire(count, 5, TimeUnit.SECONDS);
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+    }
+}
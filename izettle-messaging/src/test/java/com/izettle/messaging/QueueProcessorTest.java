@@ -1,22 +1,38 @@
 package com.izettle.messaging;
 
+import static org.assertj.core.api.Assertions.assertThat;
 import static org.junit.Assert.assertEquals;
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
 import static org.mockito.Mockito.when;
 
+import com.amazonaws.handlers.AsyncHandler;
 import com.amazonaws.services.sqs.AmazonSQS;
+import com.amazonaws.services.sqs.AmazonSQSAsync;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchRequest;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchResult;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequest;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchResult;
 import com.amazonaws.services.sqs.model.DeleteMessageRequest;
+import com.amazonaws.services.sqs.model.GetQueueAttributesRequest;
+import com.amazonaws.services.sqs.model.GetQueueAttributesResult;
 import com.amazonaws.services.sqs.model.Message;
 import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
 import com.amazonaws.services.sqs.model.ReceiveMessageResult;
 import com.izettle.messaging.handler.MessageHandler;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.ArgumentCaptor;
@@ -97,4 +113,403 @@ public class QueueProcessorTest {
         verify(mockHandler).handle(msg1);
         verify(mockAmazonSQS, never()).deleteMessage(any(DeleteMessageRequest.class));
     }
+
+    @Test
+    public void shouldOnlyReceiveAsManyMessagesAsThereIsRoomForInTheReceiveBuffer() throws Exception {
+        // Arrange
+        List<Runnable> submittedTasks = new ArrayList<>();
+        ExecutorService executorService = mock(ExecutorService.class);
+        when(executorService.submit(any(Runnable.class))).thenAnswer(invocation -> {
+            submittedTasks.add(invocation.getArgument(0));
+            return null;
+        });
+        MessageQueueProcessor bufferedQueueProcessor = QueueProcessor.builder(
+            mockAmazonSQS,
+            "UnitTestProcessor",
+            "testurl",
+            mockHandler
+        )
+            .withExecutorService(executorService)
+            .withConcurrentReceivers(2, 3)
+            .build();
+        receivedMessages.add(createMessage("msg1"));
+        receivedMessages.add(createMessage("msg2"));
+        ArgumentCaptor<ReceiveMessageRequest> captor = ArgumentCaptor.forClass(ReceiveMessageRequest.class);
+
+        // Act
+        bufferedQueueProcessor.poll();
+        bufferedQueueProcessor.poll();
+        submittedTasks.forEach(Runnable::run);
+        bufferedQueueProcessor.poll();
+
+        // Assert
+        verify(mockAmazonSQS, times(3)).receiveMessage(captor.capture());
+        assertEquals(Integer.valueOf(3), captor.getAllValues().get(0).getMaxNumberOfMessages());
+        assertEquals(Integer.valueOf(1), captor.getAllValues().get(1).getMaxNumberOfMessages());
+        assertEquals(Integer.valueOf(3), captor.getAllValues().get(2).getMaxNumberOfMessages());
+        assertEquals(2, bufferedQueueProcessor.getConcurrentReceivers());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRequireAnExecutorServiceToDrainTheReceiveBuffer() throws Exception {
+        QueueProcessor.builder(mockAmazonSQS, "UnitTestProcessor", "testurl", mockHandler)
+            .withConcurrentReceivers(2, 10)
+            .build();
+    }
+
+    @Test
+    public void shouldDeleteHandledMessagesInBatchesWhenConfiguredTo() throws Exception {
+        // Arrange
+        when(mockAmazonSQS.deleteMessageBatch(any(DeleteMessageBatchRequest.class)))
+            .thenReturn(new DeleteMessageBatchResult());
+        BatchingMessageDeleter deleter = new BatchingMessageDeleter(mockAmazonSQS, 1, TimeUnit.HOURS);
+        MessageQueueProcessor batchingQueueProcessor = QueueProcessor.builder(
+            mockAmazonSQS,
+            "UnitTestProcessor",
+            "testurl",
+            mockHandler
+        )
+            .withBatchedDeletes(deleter)
+            .build();
+        receivedMessages.add(createMessage("msg1"));
+        receivedMessages.add(createMessage("msg2"));
+
+        // Act
+        batchingQueueProcessor.poll();
+        deleter.close();
+
+        // Assert
+        ArgumentCaptor<DeleteMessageBatchRequest> captor = ArgumentCaptor.forClass(DeleteMessageBatchRequest.class);
+        verify(mockAmazonSQS).deleteMessageBatch(captor.capture());
+        assertEquals("testurl", captor.getValue().getQueueUrl());
+        assertEquals(2, captor.getValue().getEntries().size());
+        verify(mockAmazonSQS, never()).deleteMessage(any(DeleteMessageRequest.class));
+    }
+
+    @Test
+    public void shouldDeleteDuplicatesOfHandledMessagesWithoutHandlingThem() throws Exception {
+        // Arrange
+        MessageQueueProcessor deduplicatingProcessor = QueueProcessor.builder(
+            mockAmazonSQS,
+            "UnitTestProcessor",
+            "testurl",
+            mockHandler
+        )
+            .withDeduplication(new MessageDeduplicator(100, 1, TimeUnit.HOURS))
+            .build();
+        Message message = createMessage("msg1");
+        receivedMessages.add(message);
+
+        // Act
+        deduplicatingProcessor.poll();
+        deduplicatingProcessor.poll();
+
+        // Assert
+        verify(mockHandler, times(1)).handle(message);
+        verify(mockAmazonSQS, times(2)).deleteMessage(any(DeleteMessageRequest.class));
+    }
+
+    @Test
+    public void shouldMeasureTheStagesOfReceivedMessages() throws Exception {
+        // Arrange
+        MessagingMetrics mockMetrics = mock(MessagingMetrics.class);
+        MessageQueueProcessor measuredProcessor = QueueProcessor.builder(
+            mockAmazonSQS,
+            "UnitTestProcessor",
+            "testurl",
+            mockHandler
+        )
+            .withMetrics(mockMetrics)
+            .build();
+        Message message = createMessage("msg1");
+        message.addAttributesEntry("SentTimestamp", String.valueOf(System.currentTimeMillis()));
+        receivedMessages.add(message);
+
+        // Act
+        measuredProcessor.poll();
+
+        // Assert
+        ArgumentCaptor<ReceiveMessageRequest> captor = ArgumentCaptor.forClass(ReceiveMessageRequest.class);
+        verify(mockAmazonSQS).receiveMessage(captor.capture());
+        assertThat(captor.getValue().getAttributeNames()).contains("SentTimestamp");
+        verify(mockMetrics).received(eq("testurl"), eq(10), eq(1), anyLong());
+        verify(mockMetrics).messageAge(eq("testurl"), anyLong());
+        verify(mockMetrics).inFlight("testurl", 1);
+        verify(mockMetrics).handled(eq("testurl"), anyLong());
+        verify(mockMetrics).deleted(eq("testurl"), anyLong());
+        verify(mockMetrics).inFlight("testurl", -1);
+    }
+
+    @Test
+    public void shouldOnlyAskForAsManyMessagesAsTheThroughputLimitAllows() throws Exception {
+        // Arrange
+        MessageQueueProcessor limitedProcessor = QueueProcessor.deadLetterQueueBuilder(
+            mockAmazonSQS,
+            "UnitTestProcessor",
+            "deadLetterQueueUrl",
+            mockHandler
+        )
+            .withThroughputLimit(20)
+            .build();
+        for (int i = 1; i <= 10; i++) {
+            receivedMessages.add(createMessage("msg" + i));
+        }
+        ArgumentCaptor<ReceiveMessageRequest> captor = ArgumentCaptor.forClass(ReceiveMessageRequest.class);
+
+        // Act
+        limitedProcessor.poll();
+        limitedProcessor.poll();
+
+        // Assert
+        verify(mockAmazonSQS, times(2)).receiveMessage(captor.capture());
+        assertEquals("deadLetterQueueUrl", captor.getAllValues().get(0).getQueueUrl());
+        assertEquals(Integer.valueOf(10), captor.getAllValues().get(0).getMaxNumberOfMessages());
+        assertEquals(Integer.valueOf(1), captor.getAllValues().get(1).getMaxNumberOfMessages());
+    }
+
+    @Test
+    public void shouldOnlyAskForAsManyMessagesAsTheConcurrencyLimitAllows() throws Exception {
+        // Arrange
+        MessageQueueProcessor limitedProcessor = QueueProcessor.builder(
+            mockAmazonSQS,
+            "UnitTestProcessor",
+            "testurl",
+            mockHandler
+        )
+            .withAdaptiveConcurrencyLimit(4, 10, 1, TimeUnit.MINUTES)
+            .build();
+        receivedMessages.add(createMessage("msg1"));
+        doThrow(new RuntimeException("Downstream failure")).when(mockHandler).handle(any(Message.class));
+        ArgumentCaptor<ReceiveMessageRequest> captor = ArgumentCaptor.forClass(ReceiveMessageRequest.class);
+
+        // Act
+        limitedProcessor.poll();
+        limitedProcessor.poll();
+
+        // Assert
+        verify(mockAmazonSQS, times(2)).receiveMessage(captor.capture());
+        assertEquals(Integer.valueOf(4), captor.getAllValues().get(0).getMaxNumberOfMessages());
+        assertEquals(Integer.valueOf(3), captor.getAllValues().get(1).getMaxNumberOfMessages());
+    }
+
+    @Test
+    public void shouldMakeMessagesThatWereNotHandledVisibleAgainWhenDrained() throws Exception {
+        // Arrange
+        List<Runnable> submittedTasks = new ArrayList<>();
+        ExecutorService executorService = mock(ExecutorService.class);
+        when(executorService.submit(any(Runnable.class))).thenAnswer(invocation -> {
+            submittedTasks.add(invocation.getArgument(0));
+            return null;
+        });
+        when(mockAmazonSQS.changeMessageVisibilityBatch(any(ChangeMessageVisibilityBatchRequest.class)))
+            .thenReturn(new ChangeMessageVisibilityBatchResult());
+        MessageQueueProcessor drainedProcessor = QueueProcessor.builder(
+            mockAmazonSQS,
+            "UnitTestProcessor",
+            "testurl",
+            mockHandler
+        )
+            .withExecutorService(executorService)
+            .build();
+        receivedMessages.add(createMessage("msg1"));
+        receivedMessages.add(createMessage("msg2"));
+        drainedProcessor.poll();
+
+        // Act
+        int returned = drainedProcessor.drain(0, TimeUnit.MILLISECONDS);
+        submittedTasks.forEach(Runnable::run);
+
+        // Assert
+        assertEquals(2, returned);
+        ArgumentCaptor<ChangeMessageVisibilityBatchRequest> captor =
+            ArgumentCaptor.forClass(ChangeMessageVisibilityBatchRequest.class);
+        verify(mockAmazonSQS).changeMessageVisibilityBatch(captor.capture());
+        assertEquals("testurl", captor.getValue().getQueueUrl());
+        assertThat(captor.getValue().getEntries()).hasSize(2);
+        assertEquals(Integer.valueOf(0), captor.getValue().getEntries().get(0).getVisibilityTimeout());
+        verify(mockHandler, never()).handle(any(Message.class));
+    }
+
+    @Test
+    public void shouldFlushBatchedDeletesAndStopReceivingWhenDrained() throws Exception {
+        // Arrange
+        when(mockAmazonSQS.deleteMessageBatch(any(DeleteMessageBatchRequest.class)))
+            .thenReturn(new DeleteMessageBatchResult());
+        MessageQueueProcessor drainedProcessor = QueueProcessor.builder(
+            mockAmazonSQS,
+            "UnitTestProcessor",
+            "testurl",
+            mockHandler
+        )
+            .withBatchedDeletes(new BatchingMessageDeleter(mockAmazonSQS, 1, TimeUnit.HOURS))
+            .build();
+        receivedMessages.add(createMessage("msg1"));
+        drainedProcessor.poll();
+
+        // Act
+        int returned = drainedProcessor.drain(1, TimeUnit.SECONDS);
+        drainedProcessor.poll();
+
+        // Assert
+        assertEquals(0, returned);
+        verify(mockHandler).handle(receivedMessages.get(0));
+        verify(mockAmazonSQS).deleteMessageBatch(any(DeleteMessageBatchRequest.class));
+        verify(mockAmazonSQS, times(1)).receiveMessage(any(ReceiveMessageRequest.class));
+    }
+
+    @Test
+    public void shouldReportTheDepthOfTheDeadLetterQueue() throws Exception {
+        // Arrange
+        MessagingMetrics mockMetrics = mock(MessagingMetrics.class);
+        when(mockAmazonSQS.getQueueAttributes(any(GetQueueAttributesRequest.class))).thenReturn(
+            new GetQueueAttributesResult().addAttributesEntry("ApproximateNumberOfMessages", "42")
+        );
+        MessageQueueProcessor deadLetterQueueProcessor = QueueProcessor.deadLetterQueueBuilder(
+            mockAmazonSQS,
+            "UnitTestProcessor",
+            "deadLetterQueueUrl",
+            mockHandler
+        )
+            .withMetrics(mockMetrics)
+            .build();
+
+        // Act
+        deadLetterQueueProcessor.poll();
+        deadLetterQueueProcessor.poll();
+
+        // Assert
+        verify(mockAmazonSQS, times(1)).getQueueAttributes(any(GetQueueAttributesRequest.class));
+        verify(mockMetrics).queueDepth("deadLetterQueueUrl", 42);
+    }
+
+    @Test
+    public void shouldHandleMessagesInParallelButInOrderPerOrderingKey() throws Exception {
+        // Arrange
+        List<Runnable> submittedTasks = new ArrayList<>();
+        ExecutorService executorService = mock(ExecutorService.class);
+        when(executorService.submit(any(Runnable.class))).thenAnswer(invocation -> {
+            submittedTasks.add(invocation.getArgument(0));
+            return null;
+        });
+        List<String> handledMessageIds = new ArrayList<>();
+        MessageQueueProcessor parallelQueueProcessor = QueueProcessor.builder(
+            mockAmazonSQS,
+            "UnitTestProcessor",
+            "testurl",
+            message -> handledMessageIds.add(message.getMessageId())
+        )
+            .withExecutorService(executorService)
+            .withParallelMessageHandling(message -> message.getBody())
+            .build();
+        receivedMessages.addAll(Arrays.asList(
+            createMessage("msg1", "A"),
+            createMessage("msg2", "B"),
+            createMessage("msg3", "A"),
+            createMessage("msg4", null)
+        ));
+
+        // Act
+        parallelQueueProcessor.poll();
+
+        // Assert
+        assertEquals(3, submittedTasks.size());
+        submittedTasks.get(0).run();
+        assertEquals(Arrays.asList("msg1", "msg3"), handledMessageIds);
+        submittedTasks.get(2).run();
+        submittedTasks.get(1).run();
+        assertEquals(Arrays.asList("msg1", "msg3", "msg4", "msg2"), handledMessageIds);
+        verify(mockAmazonSQS, times(4)).deleteMessage(any(DeleteMessageRequest.class));
+    }
+
+    @Test
+    public void shouldExtendVisibilityTimeoutOfMessagesUntilTheyHaveBeenHandled() throws Exception {
+        // Arrange
+        VisibilityTimeoutExtender mockExtender = mock(VisibilityTimeoutExtender.class);
+        when(mockExtender.getVisibilityTimeoutSeconds()).thenReturn(10);
+        MessageQueueProcessor extendingProcessor = QueueProcessor.builder(mockAmazonSQS, "UnitTestProcessor", "testurl", mockHandler)
+            .withVisibilityTimeoutExtension(mockExtender)
+            .build();
+        receivedMessages.add(createMessage("msg1"));
+        receivedMessages.add(createMessage("msg2"));
+        doThrow(new RuntimeException("Failed to handle message")).when(mockHandler).handle(receivedMessages.get(1));
+
+        // Act
+        extendingProcessor.poll();
+
+        // Assert
+        ArgumentCaptor<ReceiveMessageRequest> captor = ArgumentCaptor.forClass(ReceiveMessageRequest.class);
+        verify(mockAmazonSQS).receiveMessage(captor.capture());
+        assertEquals(Integer.valueOf(10), captor.getValue().getVisibilityTimeout());
+        verify(mockExtender).startTracking("testurl", "msg1");
+        verify(mockExtender).startTracking("testurl", "msg2");
+        verify(mockExtender).stopTracking("testurl", "msg1");
+        verify(mockExtender).stopTracking("testurl", "msg2");
+    }
+
+    @Test
+    public void shouldDelayRetriesExponentiallyWithTheNumberOfReceives() throws Exception {
+        // Arrange
+        VisibilityTimeoutExtender mockExtender = mock(VisibilityTimeoutExtender.class);
+        when(mockExtender.getVisibilityTimeoutSeconds()).thenReturn(10);
+        MessageQueueProcessor retryingProcessor = QueueProcessor.builder(mockAmazonSQS, "UnitTestProcessor", "testurl", mockHandler)
+            .withVisibilityTimeoutExtension(mockExtender)
+            .withExponentialRetryDelay(5, 60)
+            .build();
+        Message thirdReceive = createMessage("msg1");
+        thirdReceive.setAttributes(Collections.singletonMap("ApproximateReceiveCount", "3"));
+        Message tenthReceive = createMessage("msg2");
+        tenthReceive.setAttributes(Collections.singletonMap("ApproximateReceiveCount", "10"));
+        receivedMessages.add(thirdReceive);
+        receivedMessages.add(tenthReceive);
+        doThrow(new RetryableMessageHandlerException()).when(mockHandler).handle(any(Message.class));
+
+        // Act
+        retryingProcessor.poll();
+
+        // Assert
+        ArgumentCaptor<ReceiveMessageRequest> captor = ArgumentCaptor.forClass(ReceiveMessageRequest.class);
+        verify(mockAmazonSQS).receiveMessage(captor.capture());
+        assertThat(captor.getValue().getAttributeNames()).contains("ApproximateReceiveCount");
+        verify(mockExtender).changeVisibilityTimeout("testurl", "msg1", 20);
+        verify(mockExtender).changeVisibilityTimeout("testurl", "msg2", 60);
+        verify(mockAmazonSQS, never()).deleteMessage(any(DeleteMessageRequest.class));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRequireAVisibilityTimeoutExtenderToDelayRetries() throws Exception {
+        QueueProcessor.builder(mockAmazonSQS, "UnitTestProcessor", "testurl", mockHandler)
+            .withExponentialRetryDelay(5, 60)
+            .build();
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void shouldPollWithTheAsyncClientWhenThereIsOne() throws Exception {
+        // Arrange
+        AmazonSQSAsync mockAmazonSQSAsync = mock(AmazonSQSAsync.class);
+        Message message = createMessage("msg1");
+        when(mockAmazonSQSAsync.receiveMessageAsync(any(ReceiveMessageRequest.class), any(AsyncHandler.class)))
+            .thenAnswer(invocation -> {
+                AsyncHandler<ReceiveMessageRequest, ReceiveMessageResult> handler = invocation.getArgument(1);
+                handler.onSuccess(invocation.getArgument(0), new ReceiveMessageResult().withMessages(message));
+                return null;
+            });
+        MessageQueueProcessor asyncProcessor =
+            QueueProcessor.builder(mockAmazonSQSAsync, "UnitTestProcessor", "testurl", mockHandler).build();
+
+        // Act
+        int received = asyncProcessor.pollForMessagesAsync(Runnable::run).get(1, TimeUnit.SECONDS);
+
+        // Assert
+        assertEquals(1, received);
+        verify(mockAmazonSQSAsync, never()).receiveMessage(any(ReceiveMessageRequest.class));
+        verify(mockHandler).handle(message);
+        verify(mockAmazonSQSAsync).deleteMessage(any(DeleteMessageRequest.class));
+    }
+
+    private Message createMessage(String messageId, String orderingKey) {
+        Message msg = createMessage(messageId);
+        msg.setBody(orderingKey);
+        return msg;
+    }
 }
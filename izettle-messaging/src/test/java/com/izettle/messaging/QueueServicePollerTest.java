@@ -4,14 +4,21 @@ import static org.assertj.core.api.Assertions.assertThat;
 import static org.junit.Assert.assertEquals;
 import static org.mockito.Matchers.any;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import com.amazonaws.services.sqs.AmazonSQS;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequest;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchResult;
+import com.amazonaws.services.sqs.model.DeleteMessageRequest;
 import com.amazonaws.services.sqs.model.Message;
 import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
 import com.amazonaws.services.sqs.model.ReceiveMessageResult;
+import com.izettle.messaging.serialization.JsonSerializer;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 import org.junit.Before;
 import org.junit.Test;
 
@@ -64,4 +71,28 @@ public class QueueServicePollerTest {
         List<PolledMessage<TestMessage>> receivedMessages2 = queueServicePoller.poll();
         assertEquals(0, receivedMessages2.size());
     }
+
+    @Test
+    public void deleteShouldBeBatchedWhenConsumerHasBatchingDeleter() throws Exception {
+        // Arrange
+        when(mockAmazonSQS.deleteMessageBatch(any(DeleteMessageBatchRequest.class)))
+            .thenReturn(new DeleteMessageBatchResult());
+        BatchingMessageDeleter deleter = new BatchingMessageDeleter(mockAmazonSQS, 1, TimeUnit.HOURS);
+        MessageQueueConsumer<TestMessage> batchingPoller = QueueServicePoller.nonEncryptedMessageQueueConsumer(
+            TestMessage.class,
+            "queueUrl",
+            mockAmazonSQS,
+            JsonSerializer.getInstance(),
+            deleter
+        );
+
+        // Act
+        batchingPoller.delete(new PolledMessage<>(new TestMessage("1"), "receiptHandle1"));
+        batchingPoller.delete(new PolledMessage<>(new TestMessage("2"), "receiptHandle2"));
+        deleter.close();
+
+        // Assert
+        verify(mockAmazonSQS).deleteMessageBatch(any(DeleteMessageBatchRequest.class));
+        verify(mockAmazonSQS, never()).deleteMessage(any(DeleteMessageRequest.class));
+    }
 }
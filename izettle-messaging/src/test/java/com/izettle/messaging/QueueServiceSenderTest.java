@@ -4,23 +4,42 @@ import static org.assertj.core.api.Assertions.assertThat;
 import static org.hamcrest.CoreMatchers.startsWith;
 import static org.mockito.Matchers.any;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import com.amazonaws.handlers.AsyncHandler;
 import com.amazonaws.services.sqs.AmazonSQS;
+import com.amazonaws.services.sqs.AmazonSQSAsync;
+import com.amazonaws.services.sqs.model.BatchResultErrorEntry;
+import com.amazonaws.services.sqs.model.Message;
 import com.amazonaws.services.sqs.model.SendMessageBatchRequest;
 import com.amazonaws.services.sqs.model.SendMessageBatchRequestEntry;
 import com.amazonaws.services.sqs.model.SendMessageBatchResult;
+import com.amazonaws.services.sqs.model.SendMessageBatchResultEntry;
 import com.amazonaws.services.sqs.model.SendMessageRequest;
 import com.amazonaws.services.sqs.model.SendMessageResult;
+import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.izettle.messaging.handler.MessageDispatcher;
+import com.izettle.messaging.payload.PayloadStore;
 import com.izettle.messaging.serialization.AmazonSNSMessage;
+import com.izettle.messaging.serialization.DefaultMessageSerializer;
+import com.izettle.messaging.serialization.JsonSerializer;
+import com.izettle.messaging.serialization.MessageCodec;
+import com.izettle.messaging.serialization.MessageDeserializer;
 import com.izettle.messaging.serialization.MessageSerializer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
@@ -77,6 +96,69 @@ public class QueueServiceSenderTest {
         return result;
     }
 
+    @Test
+    public void postBatchShouldPackMessagesIntoBatchesWithinThePayloadLimit() throws Exception {
+        // Arrange
+        when(mockAmazonSQS.sendMessageBatch(any(SendMessageBatchRequest.class))).thenReturn(mock(SendMessageBatchResult.class));
+        ArgumentCaptor<SendMessageBatchRequest> captor = ArgumentCaptor.forClass(SendMessageBatchRequest.class);
+        String largeText = String.join("", Collections.nCopies(100_000, "x"));
+
+        // Act
+        messagePublisher.postBatch(
+            Arrays.asList(
+                new TestMessage(largeText), new TestMessage(largeText), new TestMessage(largeText), new TestMessage("small")
+            ), SUBJECT
+        );
+
+        // Assert
+        verify(mockAmazonSQS, times(2)).sendMessageBatch(captor.capture());
+        List<SendMessageBatchRequest> requests = captor.getAllValues();
+        assertThat(requests.get(0).getEntries()).hasSize(3);
+        assertThat(requests.get(0).getEntries().get(2).getId()).isEqualTo("4");
+        assertThat(requests.get(1).getEntries()).hasSize(1);
+        assertThat(requests.get(1).getEntries().get(0).getId()).isEqualTo("3");
+    }
+
+    @Test
+    public void postBatchWithResultsShouldReturnTheResultOfEveryMessage() throws Exception {
+        // Arrange
+        when(mockAmazonSQS.sendMessageBatch(any(SendMessageBatchRequest.class))).thenReturn(
+            new SendMessageBatchResult()
+                .withSuccessful(new SendMessageBatchResultEntry().withId("1").withMessageId("messageId1"))
+                .withFailed(new BatchResultErrorEntry().withId("2").withCode("InternalError"))
+        );
+        String tooLargeText = String.join("", Collections.nCopies(262_144, "x"));
+
+        // Act
+        List<PostResult> results = messagePublisher.postBatchWithResults(
+            Arrays.asList(
+                new TestMessage("Hello"), new TestMessage("world"), new TestMessage(tooLargeText)
+            ), SUBJECT
+        );
+
+        // Assert
+        assertThat(results).hasSize(3);
+        assertThat(results.get(0).isSuccessful()).isTrue();
+        assertThat(results.get(0).getReceipt().getMessageId()).isEqualTo("messageId1");
+        assertThat(results.get(0).getReceipt().getMessageString()).isEqualTo("{\"message\":\"Hello\"}");
+        assertThat(results.get(1).isSuccessful()).isFalse();
+        assertThat(results.get(2).isSuccessful()).isFalse();
+        verify(mockAmazonSQS, times(1)).sendMessageBatch(any(SendMessageBatchRequest.class));
+    }
+
+    @Test
+    public void postBatchShouldThrowAfterPostingAllMessagesWhenSomeFailed() throws Exception {
+        // Arrange
+        when(mockAmazonSQS.sendMessageBatch(any(SendMessageBatchRequest.class))).thenReturn(
+            new SendMessageBatchResult().withFailed(new BatchResultErrorEntry().withId("1").withCode("InternalError"))
+        );
+        thrown.expect(MessagingException.class);
+        thrown.expectMessage(startsWith("Failed to post 1 of 11 messages"));
+
+        // Act
+        messagePublisher.postBatch(messageBatch(11), SUBJECT);
+    }
+
     @Test
     public void postBatchShouldSendMessagesWithSNSEnvelope() throws Exception {
         // Arrange
@@ -126,6 +208,173 @@ public class QueueServiceSenderTest {
 
     }
 
+    @Test
+    public void postShouldDeclareTheContentTypeOfMessagesThatAreNotJson() throws Exception {
+        // Arrange
+        ArgumentCaptor<SendMessageRequest> captor = ArgumentCaptor.forClass(SendMessageRequest.class);
+        MessagePublisher smilePublisher = QueueServiceSender.nonEncryptedMessagePublisher(
+            "queueUrl",
+            mockAmazonSQS,
+            new DefaultMessageSerializer(MessageCodec.SMILE)
+        );
+
+        // Act
+        smilePublisher.post(new TestMessage("Hello"), SUBJECT);
+
+        // Assert
+        verify(mockAmazonSQS).sendMessage(captor.capture());
+        SendMessageRequest sendMessageRequest = captor.getValue();
+        assertThat(sendMessageRequest.getMessageAttributes().get(MessageCodec.CONTENT_TYPE_ATTRIBUTE).getStringValue())
+            .isEqualTo(MessageCodec.SMILE.getContentType());
+        AmazonSNSMessage msg = new ObjectMapper().readValue(sendMessageRequest.getMessageBody(), AmazonSNSMessage.class);
+        assertThat(msg.getSubject()).isEqualTo(SUBJECT);
+        TestMessage testMessage = new MessageDeserializer<>(TestMessage.class, JsonSerializer.getInstance())
+            .deserialize(msg.getMessage(), MessageCodec.SMILE);
+        assertThat(testMessage.getMessage()).isEqualTo("Hello");
+    }
+
+    @Test
+    public void postShouldCountTheContentTypeAttributeInTheAttributeLimit() throws Exception {
+        // Arrange
+        thrown.expect(MessagingException.class);
+        thrown.expectMessage(startsWith("Cannot publish message with more than 9 attributes!"));
+        MessagePublisher smilePublisher = QueueServiceSender.nonEncryptedMessagePublisher(
+            "queueUrl",
+            mockAmazonSQS,
+            new DefaultMessageSerializer(MessageCodec.SMILE)
+        );
+
+        // Act
+        smilePublisher.post(new TestMessage("Hello"), SUBJECT, attributes(10));
+    }
+
+    @Test
+    public void postShouldRejectTheContentTypeAttribute() throws Exception {
+        // Arrange
+        thrown.expect(MessagingException.class);
+        thrown.expectMessage(startsWith("Cannot publish message with reserved attribute"));
+        Map<String, String> attributes = attributes(1);
+        attributes.put(MessageCodec.CONTENT_TYPE_ATTRIBUTE, "text/plain");
+
+        // Act
+        messagePublisher.post(new TestMessage("Hello"), SUBJECT, attributes);
+    }
+
+    @Test
+    public void postShouldKeepTheSNSEnvelopeOfCompressedMessagesReadable() throws Exception {
+        // Arrange
+        ArgumentCaptor<SendMessageRequest> captor = ArgumentCaptor.forClass(SendMessageRequest.class);
+        MessagePublisher compressingPublisher = QueueServiceSender.nonEncryptedMessagePublisher(
+            "queueUrl",
+            mockAmazonSQS,
+            new DefaultMessageSerializer(MessageCodec.JSON, 64)
+        );
+        String text = String.join("", Collections.nCopies(100, "Hello"));
+        List<TestMessage> dispatched = new ArrayList<>();
+        MessageDispatcher dispatcher = MessageDispatcher.nonEncryptedMessageDispatcher();
+        dispatcher.addHandler(TestMessage.class, SUBJECT, dispatched::add);
+
+        // Act
+        compressingPublisher.post(new TestMessage(text), SUBJECT);
+
+        // Assert
+        verify(mockAmazonSQS).sendMessage(captor.capture());
+        Message message = new Message().withBody(captor.getValue().getMessageBody());
+        assertThat(message.getBody()).startsWith("{");
+        dispatcher.handle(message);
+        assertThat(dispatched).extracting(TestMessage::getMessage).containsExactly(text);
+        TestMessage read = new MessageDeserializer<>(TestMessage.class, JsonSerializer.getInstance()).read(message);
+        assertThat(read.getMessage()).isEqualTo(text);
+    }
+
+    @Test
+    public void postShouldNotDeclareTheContentTypeOfJsonMessages() throws Exception {
+        // Arrange
+        ArgumentCaptor<SendMessageRequest> captor = ArgumentCaptor.forClass(SendMessageRequest.class);
+
+        // Act
+        messageQueueProducer.post(new TestMessage("Hello"));
+
+        // Assert
+        verify(mockAmazonSQS).sendMessage(captor.capture());
+        assertThat(captor.getValue().getMessageAttributes()).doesNotContainKey(MessageCodec.CONTENT_TYPE_ATTRIBUTE);
+    }
+
+    @Test
+    public void postShouldPutTooLargeMessageBodiesInThePayloadStore() throws Exception {
+        // Arrange
+        ArgumentCaptor<SendMessageRequest> captor = ArgumentCaptor.forClass(SendMessageRequest.class);
+        PayloadStore payloadStore = mock(PayloadStore.class);
+        when(payloadStore.store(any(byte[].class))).thenReturn("key");
+        MessagePublisher publisher = QueueServiceSender.nonEncryptedMessagePublisher(
+            "queueUrl",
+            mockAmazonSQS,
+            new DefaultMessageSerializer(),
+            payloadStore
+        );
+        TestMessage largeMessage = new TestMessage(new String(new char[300000]).replace('\0', 'a'));
+
+        // Act
+        publisher.post(largeMessage, SUBJECT);
+
+        // Assert
+        verify(payloadStore).store(new DefaultMessageSerializer().serialize(largeMessage).getBytes("UTF-8"));
+        verify(mockAmazonSQS).sendMessage(captor.capture());
+        SendMessageRequest sendMessageRequest = captor.getValue();
+        assertThat(sendMessageRequest.getMessageAttributes().get(PayloadStore.STORED_PAYLOAD_ATTRIBUTE).getStringValue())
+            .isEqualTo("key");
+        AmazonSNSMessage msg = new ObjectMapper().readValue(sendMessageRequest.getMessageBody(), AmazonSNSMessage.class);
+        assertThat(msg.getSubject()).isEqualTo(SUBJECT);
+        assertThat(msg.getMessage()).isEqualTo("key");
+    }
+
+    @Test
+    public void postShouldNotPutMessageBodiesThatFitInThePayloadStore() throws Exception {
+        // Arrange
+        PayloadStore payloadStore = mock(PayloadStore.class);
+        MessageQueueProducer<TestMessage> producer = QueueServiceSender.nonEncryptedMessageQueueProducer(
+            "queueUrl",
+            mockAmazonSQS,
+            new DefaultMessageSerializer(),
+            payloadStore
+        );
+
+        // Act
+        producer.post(new TestMessage("Hello"));
+
+        // Assert
+        verify(payloadStore, never()).store(any(byte[].class));
+        verify(mockAmazonSQS).sendMessage(any(SendMessageRequest.class));
+    }
+
+    @Test
+    public void postShouldCountTheStoredPayloadAttributeInTheAttributeLimit() throws Exception {
+        // Arrange
+        thrown.expect(MessagingException.class);
+        thrown.expectMessage(startsWith("Cannot publish message with more than 9 attributes!"));
+        MessagePublisher publisher = QueueServiceSender.nonEncryptedMessagePublisher(
+            "queueUrl",
+            mockAmazonSQS,
+            new DefaultMessageSerializer(),
+            mock(PayloadStore.class)
+        );
+
+        // Act
+        publisher.post(new TestMessage("Hello"), SUBJECT, attributes(10));
+    }
+
+    @Test
+    public void postShouldRejectTheStoredPayloadAttribute() throws Exception {
+        // Arrange
+        thrown.expect(MessagingException.class);
+        thrown.expectMessage(startsWith("Cannot publish message with reserved attribute"));
+        Map<String, String> attributes = attributes(1);
+        attributes.put(PayloadStore.STORED_PAYLOAD_ATTRIBUTE, "key");
+
+        // Act
+        messagePublisher.post(new TestMessage("Hello"), SUBJECT, attributes);
+    }
+
     @Test
     public void itShouldUseCallerSpecifiedMessageSerializer() throws Exception {
         // Arrange
@@ -148,6 +397,37 @@ public class QueueServiceSenderTest {
         verify(serializer).encrypt(serializedMessage);
     }
 
+    @Test
+    public void postShouldWriteTheSNSEnvelopeWithTheCallerSpecifiedMessageSerializer() throws Exception {
+        // Arrange
+        ArgumentCaptor<SendMessageRequest> captor = ArgumentCaptor.forClass(SendMessageRequest.class);
+        MessageSerializer prettySerializer = new MessageSerializer() {
+            @Override
+            public String encrypt(String message) {
+                return message;
+            }
+
+            @Override
+            public String serialize(Object message) throws JsonProcessingException {
+                return JsonSerializer.getInstance().writerWithDefaultPrettyPrinter().writeValueAsString(message);
+            }
+        };
+        MessagePublisher publisher = QueueServiceSender.nonEncryptedMessagePublisher(
+            "test",
+            mockAmazonSQS,
+            prettySerializer
+        );
+
+        // Act
+        publisher.post(new TestMessage("Hello"), SUBJECT);
+
+        // Assert
+        verify(mockAmazonSQS).sendMessage(captor.capture());
+        String messageBody = prettySerializer.serialize(new TestMessage("Hello"));
+        assertThat(captor.getValue().getMessageBody())
+            .isEqualTo(prettySerializer.serialize(new AmazonSNSMessage(SUBJECT, messageBody)));
+    }
+
     @Test
     public void itShouldFailToConstructWithEmptyQueueUrl() throws Exception {
         thrown.expect(IllegalArgumentException.class);
@@ -168,4 +448,84 @@ public class QueueServiceSenderTest {
         thrown.expectMessage(startsWith("None of queueUrl, amazonSQS or messageSerializer can be empty!"));
         QueueServiceSender.nonEncryptedMessageQueueProducer("test.url", mockAmazonSQS, null);
     }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void postAsyncShouldSendMessageWithTheAsyncClient() throws Exception {
+        // Arrange
+        AmazonSQSAsync mockAmazonSQSAsync = mock(AmazonSQSAsync.class);
+        when(mockAmazonSQSAsync.sendMessageAsync(any(SendMessageRequest.class), any(AsyncHandler.class)))
+            .thenAnswer(invocation -> {
+                AsyncHandler<SendMessageRequest, SendMessageResult> handler = invocation.getArgument(1);
+                handler.onSuccess(invocation.getArgument(0), new SendMessageResult().withMessageId("messageId"));
+                return null;
+            });
+        MessageQueueProducer<TestMessage> asyncProducer =
+            QueueServiceSender.nonEncryptedMessageQueueProducer("queueUrl", mockAmazonSQSAsync);
+
+        // Act
+        MessageReceipt receipt = asyncProducer.postAsync(new TestMessage("Hello!")).get(1, TimeUnit.SECONDS);
+
+        // Assert
+        assertThat(receipt.getMessageId()).isEqualTo("messageId");
+        assertThat(receipt.getMessageString()).isEqualTo("{\"message\":\"Hello!\"}");
+        verify(mockAmazonSQSAsync, never()).sendMessage(any(SendMessageRequest.class));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void postAsyncShouldFailRightAwayWhenTooManyMessagesAreInFlight() throws Exception {
+        // Arrange
+        AmazonSQSAsync mockAmazonSQSAsync = mock(AmazonSQSAsync.class);
+        MessagePublisher asyncPublisher = QueueServiceSender.nonEncryptedMessagePublisher(
+            "queueUrl",
+            mockAmazonSQSAsync,
+            new DefaultMessageSerializer(),
+            1
+        );
+
+        // Act
+        CompletableFuture<MessageReceipt> inFlight = asyncPublisher.postAsync(new TestMessage("Hello!"), SUBJECT);
+        CompletableFuture<MessageReceipt> rejected = asyncPublisher.postAsync(new TestMessage("Hello!"), SUBJECT);
+
+        // Assert
+        assertThat(inFlight.isDone()).isFalse();
+        assertThat(rejected.isCompletedExceptionally()).isTrue();
+        verify(mockAmazonSQSAsync, times(1)).sendMessageAsync(any(SendMessageRequest.class), any(AsyncHandler.class));
+    }
+
+    @Test
+    public void postShouldSendMessagesThroughTheBatcherWhenThereIsOne() throws Exception {
+        // Arrange
+        when(mockAmazonSQS.sendMessageBatch(any(SendMessageBatchRequest.class))).thenReturn(
+            new SendMessageBatchResult().withSuccessful(
+                new SendMessageBatchResultEntry().withId("0").withMessageId("messageId0"),
+                new SendMessageBatchResultEntry().withId("1").withMessageId("messageId1")
+            )
+        );
+        SendMessageBatcher batcher = new SendMessageBatcher(mockAmazonSQS, 1, TimeUnit.HOURS);
+        MessageQueueProducer<TestMessage> batchingProducer = QueueServiceSender.nonEncryptedMessageQueueProducer(
+            "queueUrl",
+            mockAmazonSQS,
+            new DefaultMessageSerializer(),
+            batcher
+        );
+
+        // Act
+        CompletableFuture<MessageReceipt> first = batchingProducer.postAsync(new TestMessage("first"));
+        CompletableFuture<MessageReceipt> second = batchingProducer.postAsync(new TestMessage("second"));
+        batcher.close();
+
+        // Assert
+        assertThat(first.get().getMessageId()).isEqualTo("messageId0");
+        assertThat(second.get().getMessageId()).isEqualTo("messageId1");
+        verify(mockAmazonSQS, times(1)).sendMessageBatch(any(SendMessageBatchRequest.class));
+        verify(mockAmazonSQS, never()).sendMessage(any(SendMessageRequest.class));
+    }
+
+    private static Map<String, String> attributes(int count) {
+        Map<String, String> attributes = new HashMap<>();
+        IntStream.range(0, count).forEach(num -> attributes.put("attr" + num, "value" + num));
+        return attributes;
+    }
 }
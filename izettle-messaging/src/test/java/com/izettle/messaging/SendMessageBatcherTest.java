@@ -0,0 +1,170 @@
+package com.izettle.messaging;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.amazonaws.handlers.AsyncHandler;
+import com.amazonaws.services.sqs.AmazonSQS;
+import com.amazonaws.services.sqs.AmazonSQSAsync;
+import com.amazonaws.services.sqs.model.BatchResultErrorEntry;
+import com.amazonaws.services.sqs.model.MessageAttributeValue;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequest;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.SendMessageBatchResult;
+import com.amazonaws.services.sqs.model.SendMessageBatchResultEntry;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+public class SendMessageBatcherTest {
+    private final AmazonSQS mockAmazonSQS = mock(AmazonSQS.class);
+    private SendMessageBatcher batcher;
+
+    @Before
+    public final void before() throws Exception {
+        batcher = new SendMessageBatcher(mockAmazonSQS, 1, TimeUnit.HOURS);
+    }
+
+    @After
+    public final void after() throws Exception {
+        batcher.close();
+    }
+
+    @Test
+    public void shouldCompleteEveryMessageWithItsOwnResult() throws Exception {
+        // Arrange
+        when(mockAmazonSQS.sendMessageBatch(any(SendMessageBatchRequest.class))).thenReturn(
+            new SendMessageBatchResult()
+                .withSuccessful(new SendMessageBatchResultEntry().withId("0").withMessageId("messageId0"))
+                .withFailed(new BatchResultErrorEntry().withId("1").withCode("InternalError"))
+        );
+
+        // Act
+        CompletableFuture<String> sent = batcher.send("queueUrl", entry("0"));
+        CompletableFuture<String> failed = batcher.send("queueUrl", entry("1"));
+        batcher.flush();
+
+        // Assert
+        assertEquals("messageId0", sent.get());
+        assertTrue(failed.isCompletedExceptionally());
+        ArgumentCaptor<SendMessageBatchRequest> captor = ArgumentCaptor.forClass(SendMessageBatchRequest.class);
+        verify(mockAmazonSQS).sendMessageBatch(captor.capture());
+        assertThat(captor.getValue().getEntries()).hasSize(2);
+        assertEquals("1", captor.getValue().getEntries().get(1).getMessageBody());
+    }
+
+    @Test
+    public void shouldFailAllMessagesWhenTheBatchRequestFails() throws Exception {
+        // Arrange
+        when(mockAmazonSQS.sendMessageBatch(any(SendMessageBatchRequest.class)))
+            .thenThrow(new RuntimeException("Unavailable"));
+
+        // Act
+        CompletableFuture<String> sent = batcher.send("queueUrl", entry("0"));
+        batcher.flush();
+
+        // Assert
+        assertTrue(sent.isCompletedExceptionally());
+    }
+
+    @Test
+    public void shouldSendBatchEarlyWhenTheNextMessageWouldExceedThePayloadLimit() throws Exception {
+        // Arrange
+        when(mockAmazonSQS.sendMessageBatch(any(SendMessageBatchRequest.class)))
+            .thenReturn(new SendMessageBatchResult());
+        String largeBody = String.join("", Collections.nCopies(100_000, "x"));
+
+        // Act
+        for (int i = 0; i < 3; i++) {
+            batcher.send("queueUrl", entry(largeBody));
+        }
+
+        // Assert
+        ArgumentCaptor<SendMessageBatchRequest> captor = ArgumentCaptor.forClass(SendMessageBatchRequest.class);
+        verify(mockAmazonSQS, timeout(1000)).sendMessageBatch(captor.capture());
+        assertThat(captor.getValue().getEntries()).hasSize(2);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void shouldSendBatchesWithTheAsyncClientWithoutWaitingForThem() throws Exception {
+        // Arrange
+        AmazonSQSAsync mockAmazonSQSAsync = mock(AmazonSQSAsync.class);
+        List<AsyncHandler<SendMessageBatchRequest, SendMessageBatchResult>> handlers = new ArrayList<>();
+        when(mockAmazonSQSAsync.sendMessageBatchAsync(any(SendMessageBatchRequest.class), any(AsyncHandler.class)))
+            .thenAnswer(invocation -> {
+                handlers.add(invocation.getArgument(1));
+                return null;
+            });
+        SendMessageBatcher asyncBatcher = new SendMessageBatcher(mockAmazonSQSAsync, 1, TimeUnit.HOURS);
+        List<CompletableFuture<String>> sent = new ArrayList<>();
+
+        // Act
+        for (int i = 0; i < 10; i++) {
+            sent.add(asyncBatcher.send("queueUrl", entry(String.valueOf(i))));
+        }
+
+        // Assert
+        assertThat(handlers).hasSize(1);
+        assertTrue(sent.stream().noneMatch(CompletableFuture::isDone));
+
+        // Act
+        handlers.get(0).onSuccess(
+            new SendMessageBatchRequest(),
+            new SendMessageBatchResult()
+                .withSuccessful(new SendMessageBatchResultEntry().withId("9").withMessageId("messageId9"))
+        );
+
+        // Assert
+        assertEquals("messageId9", sent.get(9).get());
+        assertTrue(sent.get(0).isCompletedExceptionally());
+        verify(mockAmazonSQSAsync, never()).sendMessageBatch(any(SendMessageBatchRequest.class));
+        asyncBatcher.close();
+    }
+
+    @Test
+    public void shouldFailMessageThatExceedsThePayloadLimitWithoutSendingIt() throws Exception {
+        // Arrange
+        String tooLargeBody = String.join("", Collections.nCopies(262_145, "x"));
+
+        // Act
+        CompletableFuture<String> sent = batcher.send("queueUrl", entry(tooLargeBody));
+        batcher.flush();
+
+        // Assert
+        assertTrue(sent.isCompletedExceptionally());
+        verify(mockAmazonSQS, never()).sendMessageBatch(any(SendMessageBatchRequest.class));
+    }
+
+    @Test
+    public void shouldCountMessageAttributesInThePayloadSize() throws Exception {
+        // Arrange
+        SendMessageBatchRequestEntry entry = entry("body").addMessageAttributesEntry(
+            "name",
+            new MessageAttributeValue().withDataType("String").withStringValue("value")
+        );
+
+        // Act
+        long size = PayloadSize.of(entry);
+
+        // Assert
+        assertEquals("body".length() + "name".length() + "String".length() + "value".length(), size);
+    }
+
+    private static SendMessageBatchRequestEntry entry(String messageBody) {
+        return new SendMessageBatchRequestEntry().withMessageBody(messageBody);
+    }
+}
@@ -0,0 +1,56 @@
+package com.izettle.messaging;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.assertEquals;
+
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+public class ThroughputLimiterTest {
+
+    @Test
+    public void shouldHandOutAtMostOneReceiveWorthOfPermitsAtStart() throws Exception {
+        // Arrange
+        ThroughputLimiter limiter = new ThroughputLimiter(1, 10);
+
+        // Act
+        int acquired = limiter.acquire(20);
+
+        // Assert
+        assertEquals(10, acquired);
+    }
+
+    @Test
+    public void shouldHandOutReleasedPermitsAgain() throws Exception {
+        // Arrange
+        ThroughputLimiter limiter = new ThroughputLimiter(1, 10);
+        limiter.acquire(10);
+
+        // Act
+        limiter.release(4);
+        int acquired = limiter.acquire(10);
+
+        // Assert
+        assertEquals(4, acquired);
+    }
+
+    @Test
+    public void shouldWaitForPermitsWhenThereAreNone() throws Exception {
+        // Arrange
+        ThroughputLimiter limiter = new ThroughputLimiter(10, 10);
+        limiter.acquire(10);
+        long startNanos = System.nanoTime();
+
+        // Act
+        int acquired = limiter.acquire(10);
+
+        // Assert
+        assertEquals(1, acquired);
+        assertThat(System.nanoTime() - startNanos).isGreaterThanOrEqualTo(TimeUnit.MILLISECONDS.toNanos(50));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRequireAPositiveThroughput() throws Exception {
+        new ThroughputLimiter(0, 10);
+    }
+}
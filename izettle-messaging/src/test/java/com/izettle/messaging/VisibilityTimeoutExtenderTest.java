@@ -0,0 +1,80 @@
+package com.izettle.messaging;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.amazonaws.services.sqs.AmazonSQS;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchRequest;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchResult;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+public class VisibilityTimeoutExtenderTest {
+    private final AmazonSQS mockAmazonSQS = mock(AmazonSQS.class);
+    private VisibilityTimeoutExtender extender;
+
+    @Before
+    public final void before() throws Exception {
+        when(mockAmazonSQS.changeMessageVisibilityBatch(any(ChangeMessageVisibilityBatchRequest.class)))
+            .thenReturn(new ChangeMessageVisibilityBatchResult());
+        extender = new VisibilityTimeoutExtender(mockAmazonSQS, 1);
+    }
+
+    @After
+    public final void after() throws Exception {
+        extender.close();
+    }
+
+    @Test
+    public void shouldExtendVisibilityTimeoutOfTrackedMessages() throws Exception {
+        // Act
+        extender.startTracking("queueUrl", "receiptHandle1");
+        extender.startTracking("queueUrl", "receiptHandle2");
+
+        // Assert
+        ArgumentCaptor<ChangeMessageVisibilityBatchRequest> captor =
+            ArgumentCaptor.forClass(ChangeMessageVisibilityBatchRequest.class);
+        verify(mockAmazonSQS, timeout(5000)).changeMessageVisibilityBatch(captor.capture());
+        assertEquals("queueUrl", captor.getValue().getQueueUrl());
+        assertThat(captor.getValue().getEntries()).hasSize(2);
+        assertEquals(Integer.valueOf(1), captor.getValue().getEntries().get(0).getVisibilityTimeout());
+    }
+
+    @Test
+    public void shouldNotExtendVisibilityTimeoutOfMessagesNoLongerTracked() throws Exception {
+        // Act
+        extender.startTracking("queueUrl", "receiptHandle");
+        extender.stopTracking("queueUrl", "receiptHandle");
+        Thread.sleep(1000);
+
+        // Assert
+        verify(mockAmazonSQS, never()).changeMessageVisibilityBatch(any(ChangeMessageVisibilityBatchRequest.class));
+    }
+
+    @Test
+    public void shouldChangeVisibilityTimeoutOfSingleMessage() throws Exception {
+        // Act
+        extender.changeVisibilityTimeout("queueUrl", "receiptHandle", 120);
+        extender.flush();
+
+        // Assert
+        ArgumentCaptor<ChangeMessageVisibilityBatchRequest> captor =
+            ArgumentCaptor.forClass(ChangeMessageVisibilityBatchRequest.class);
+        verify(mockAmazonSQS).changeMessageVisibilityBatch(captor.capture());
+        assertEquals("receiptHandle", captor.getValue().getEntries().get(0).getReceiptHandle());
+        assertEquals(Integer.valueOf(120), captor.getValue().getEntries().get(0).getVisibilityTimeout());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldNotAcceptVisibilityTimeoutAboveTwelveHours() throws Exception {
+        new VisibilityTimeoutExtender(mockAmazonSQS, 43201);
+    }
+}
@@ -1,14 +1,22 @@
 package com.izettle.messaging.handler;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import static org.mockito.Matchers.any;
 import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 
 import com.amazonaws.services.sqs.model.Message;
 import com.izettle.messaging.MessagingException;
 import com.izettle.messaging.TestMessage;
 import com.izettle.messaging.serialization.AmazonSNSMessage;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
@@ -157,4 +165,133 @@ public class MessageDispatcherTest {
         verify(testSNSMessageHandler).handle(any(AmazonSNSMessage.class));
         verify(testMessageHandler, never()).handle(any(TestMessage.class));
     }
+
+    @Test
+    public void shouldCallIndependentHandlersInParallel() throws Exception {
+
+        // Arrange
+        CountDownLatch bothCalled = new CountDownLatch(2);
+        MessageHandler<TestMessage> waitingHandler = message -> {
+            bothCalled.countDown();
+            assertTrue(bothCalled.await(5, TimeUnit.SECONDS));
+        };
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        dispatcher.setIndependentHandlerExecutor(executor);
+        dispatcher.addHandler(TestMessage.class, waitingHandler);
+        dispatcher.addIndependentHandler(TestMessage.class, waitingHandler);
+
+        Message message = new Message();
+        message.setBody(
+            "{\"Subject\":\"com.izettle.messaging.TestMessage\", \"Message\": \"{\\\"message\\\":\\\"\\\"}\"}");
+
+        // Act
+        try {
+            dispatcher.handle(message);
+        } finally {
+            executor.shutdown();
+        }
+
+        // Assert
+        assertEquals(0, bothCalled.getCount());
+    }
+
+    @Test
+    public void shouldThrowExceptionOfIndependentHandlerAfterAllHandlersAreCalled() throws Exception {
+
+        // Arrange
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        dispatcher.setIndependentHandlerExecutor(executor);
+        dispatcher.addIndependentHandler(TestMessage.class, message -> {
+            throw new MessagingException("Failed to handle");
+        });
+        dispatcher.addHandler(TestMessage.class, testMessageHandler);
+
+        Message message = new Message();
+        message.setBody(
+            "{\"Subject\":\"com.izettle.messaging.TestMessage\", \"Message\": \"{\\\"message\\\":\\\"\\\"}\"}");
+
+        // Act
+        try {
+            dispatcher.handle(message);
+            fail("Expected exception of independent handler");
+        } catch (MessagingException e) {
+            assertEquals("Failed to handle", e.getMessage());
+        } finally {
+            executor.shutdown();
+        }
+
+        // Assert
+        verify(testMessageHandler).handle(any(TestMessage.class));
+    }
+
+    @Test
+    public void shouldCallIndependentHandlersRejectedByTheExecutorOnTheHandlingThread() throws Exception {
+
+        // Arrange
+        dispatcher.setIndependentHandlerExecutor(command -> {
+            throw new RejectedExecutionException("Saturated");
+        });
+        dispatcher.addIndependentHandler(TestMessage.class, testMessageHandler);
+        dispatcher.addIndependentHandler(TestMessage.class, testMessageHandler);
+
+        Message message = new Message();
+        message.setBody(
+            "{\"Subject\":\"com.izettle.messaging.TestMessage\", \"Message\": \"{\\\"message\\\":\\\"\\\"}\"}");
+
+        // Act
+        dispatcher.handle(message);
+
+        // Assert
+        verify(testMessageHandler, times(2)).handle(any(TestMessage.class));
+    }
+
+    @Test(timeout = 5000)
+    public void shouldNotWaitForIndependentHandlersQueuedBehindBusyThreads() throws Exception {
+
+        // Arrange
+        CountDownLatch released = new CountDownLatch(1);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        executor.execute(() -> {
+            try {
+                released.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        dispatcher.setIndependentHandlerExecutor(executor);
+        dispatcher.addIndependentHandler(TestMessage.class, testMessageHandler);
+
+        Message message = new Message();
+        message.setBody(
+            "{\"Subject\":\"com.izettle.messaging.TestMessage\", \"Message\": \"{\\\"message\\\":\\\"\\\"}\"}");
+
+        // Act
+        try {
+            dispatcher.handle(message);
+        } finally {
+            released.countDown();
+            executor.shutdown();
+        }
+
+        // Assert
+        assertTrue(executor.awaitTermination(1, TimeUnit.SECONDS));
+        verify(testMessageHandler).handle(any(TestMessage.class));
+    }
+
+    @Test
+    public void shouldCallIndependentHandlersWithoutExecutor() throws Exception {
+
+        // Arrange
+        dispatcher.addIndependentHandler(TestMessage.class, testMessageHandler);
+
+        Message message = new Message();
+        message.setBody(
+            "{\"Subject\":\"com.izettle.messaging.TestMessage\", \"Message\": \"{\\\"message\\\":\\\"\\\"}\"}");
+
+        // Act
+        dispatcher.handle(message);
+
+        // Assert
+        verify(testMessageHandler).handle(any(TestMessage.class));
+    }
 }
@@ -0,0 +1,69 @@
+package com.izettle.messaging.payload;
+
+import static com.izettle.java.ResourceUtils.getBytesFromStream;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayInputStream;
+import org.junit.Test;
+
+public class CachingPayloadStoreTest {
+    private final PayloadStore mockPayloadStore = mock(PayloadStore.class);
+
+    @Test
+    public void shouldReadPayloadFromTheOtherStoreOnlyOnce() throws Exception {
+        // Arrange
+        when(mockPayloadStore.open("key")).thenAnswer(invocation -> new ByteArrayInputStream(new byte[10]));
+        PayloadStore payloadStore = new CachingPayloadStore(mockPayloadStore, 100);
+
+        // Act
+        byte[] first = getBytesFromStream(payloadStore.open("key"));
+        byte[] second = getBytesFromStream(payloadStore.open("key"));
+
+        // Assert
+        assertThat(first).hasSize(10);
+        assertThat(second).isEqualTo(first);
+        verify(mockPayloadStore, times(1)).open("key");
+    }
+
+    @Test
+    public void shouldEvictTheLeastRecentlyUsedPayloadWhenFull() throws Exception {
+        // Arrange
+        when(mockPayloadStore.store(new byte[40])).thenReturn("first", "second", "third");
+        when(mockPayloadStore.open("second")).thenAnswer(invocation -> new ByteArrayInputStream(new byte[40]));
+        PayloadStore payloadStore = new CachingPayloadStore(mockPayloadStore, 100);
+        payloadStore.store(new byte[40]);
+        payloadStore.store(new byte[40]);
+        getBytesFromStream(payloadStore.open("first"));
+
+        // Act
+        payloadStore.store(new byte[40]);
+        getBytesFromStream(payloadStore.open("first"));
+        getBytesFromStream(payloadStore.open("second"));
+
+        // Assert
+        verify(mockPayloadStore, times(0)).open("first");
+        verify(mockPayloadStore, times(1)).open("second");
+    }
+
+    @Test
+    public void shouldStreamPayloadsThatAreTooLargeToCache() throws Exception {
+        // Arrange
+        byte[] payload = new byte[20000];
+        payload[payload.length - 1] = 1;
+        when(mockPayloadStore.open("key")).thenAnswer(invocation -> new ByteArrayInputStream(payload));
+        PayloadStore payloadStore = new CachingPayloadStore(mockPayloadStore, 100);
+
+        // Act
+        byte[] first = getBytesFromStream(payloadStore.open("key"));
+        byte[] second = getBytesFromStream(payloadStore.open("key"));
+
+        // Assert
+        assertThat(first).isEqualTo(payload);
+        assertThat(second).isEqualTo(payload);
+        verify(mockPayloadStore, times(2)).open("key");
+    }
+}
@@ -0,0 +1,49 @@
+package com.izettle.messaging.payload;
+
+import static com.izettle.java.ResourceUtils.getBytesFromStream;
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.junit.rules.TemporaryFolder;
+
+public class FileSystemPayloadStoreTest {
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+    @Rule
+    public ExpectedException thrown = ExpectedException.none();
+    private PayloadStore payloadStore;
+
+    @Before
+    public void setup() throws Exception {
+        payloadStore = new FileSystemPayloadStore(temporaryFolder.getRoot().toPath().resolve("payloads"));
+    }
+
+    @Test
+    public void shouldReadStoredPayload() throws Exception {
+        // Arrange
+        byte[] payload = "{\"message\":\"Hello\"}".getBytes(StandardCharsets.UTF_8);
+
+        // Act
+        String key = payloadStore.store(payload);
+
+        // Assert
+        assertThat(getBytesFromStream(payloadStore.open(key))).isEqualTo(payload);
+    }
+
+    @Test
+    public void shouldNotReadFilesOutsideOfTheDirectory() throws Exception {
+        // Arrange
+        temporaryFolder.newFile("secret");
+
+        // Assert
+        thrown.expect(IOException.class);
+
+        // Act
+        payloadStore.open("../secret");
+    }
+}
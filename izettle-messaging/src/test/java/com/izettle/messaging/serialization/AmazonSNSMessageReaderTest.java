@@ -0,0 +1,83 @@
+package com.izettle.messaging.serialization;
+
+import static com.izettle.java.ResourceUtils.getResourceAsBytes;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParseException;
+import org.junit.Test;
+
+public class AmazonSNSMessageReaderTest {
+    private final JsonFactory jsonFactory = JsonSerializer.getInstance().getFactory();
+
+    @Test
+    public void shouldReadFieldsOfMessageSentThroughSNS() throws Exception {
+        // Arrange
+        String messageBody = new String(getResourceAsBytes("example-message-sent-with-messagepublisher-through-sns.json"));
+
+        // Act
+        AmazonSNSMessage sns = AmazonSNSMessageReader.read(jsonFactory, messageBody);
+
+        // Assert
+        assertEquals("Notification", sns.getType());
+        assertEquals("d39afcae-bcf5-5303-a9f3-b35b19f37c8f", sns.getMessageId());
+        assertEquals("TestMessage", sns.getSubject());
+        assertEquals("{\"amount\":3135,\"message\":\"MessagePublisher to SNS\","
+            + "\"uuid1\":\"0SFwIEwSEeWQb_kt6mwGgg\",\"uuid2\":\"49c07050-7675-4a65-9e5e-e26d52146d2a\"}", sns.getMessage());
+    }
+
+    @Test
+    public void shouldSkipNestedObjectsAndArrays() throws Exception {
+        // Arrange
+        String messageBody = "{\"Other\":{\"Subject\":\"nested\",\"list\":[1,{\"Message\":\"nested\"}]},"
+            + "\"Subject\":\"EventName\",\"Message\":\"{}\"}";
+
+        // Act
+        AmazonSNSMessage sns = AmazonSNSMessageReader.read(jsonFactory, messageBody);
+
+        // Assert
+        assertEquals("EventName", sns.getSubject());
+        assertEquals("{}", sns.getMessage());
+        assertNull(sns.getType());
+    }
+
+    @Test
+    public void shouldReadValuesOfMessageAttributes() throws Exception {
+        // Arrange
+        String messageBody = "{\"Subject\":\"EventName\",\"Message\":\"{}\",\"MessageAttributes\":{"
+            + "\"ContentType\":{\"Type\":\"String\",\"Value\":\"application/x-jackson-smile\"},"
+            + "\"Other\":{\"Type\":\"String\",\"Value\":\"other\"}}}";
+
+        // Act
+        AmazonSNSMessage sns = AmazonSNSMessageReader.read(jsonFactory, messageBody);
+
+        // Assert
+        assertEquals("application/x-jackson-smile", sns.getMessageAttributes().get("ContentType"));
+        assertEquals("other", sns.getMessageAttributes().get("Other"));
+        assertEquals("{}", sns.getMessage());
+    }
+
+    @Test
+    public void shouldNotReadMessageThatIsAnObjectAsText() throws Exception {
+        // Act
+        AmazonSNSMessage sns = AmazonSNSMessageReader.read(jsonFactory, "{\"Message\":{\"amount\":1}}");
+
+        // Assert
+        assertNull(sns.getMessage());
+    }
+
+    @Test
+    public void shouldReturnNullWhenMessageBodyIsNotAnObject() throws Exception {
+        // Act
+        AmazonSNSMessage sns = AmazonSNSMessageReader.read(jsonFactory, "[\"Subject\",\"Message\"]");
+
+        // Assert
+        assertNull(sns);
+    }
+
+    @Test(expected = JsonParseException.class)
+    public void shouldFailOnInvalidJson() throws Exception {
+        AmazonSNSMessageReader.read(jsonFactory, "{\"Subject\":\"EventName\",\"Message\":");
+    }
+}
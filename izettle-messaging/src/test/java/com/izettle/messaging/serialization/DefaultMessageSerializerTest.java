@@ -7,9 +7,11 @@ import static org.junit.Assert.assertTrue;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.izettle.cryptography.CryptographyException;
+import com.izettle.cryptography.PGPDecryptor;
 import com.izettle.java.DateFormatCreator;
 import com.izettle.java.ResourceUtils;
 import com.izettle.java.TimeZoneId;
+import com.izettle.messaging.MessagingException;
 import com.izettle.messaging.TestMessage;
 import com.izettle.messaging.TestMessageWithDate;
 import com.izettle.messaging.TestMessageWithInstant;
@@ -80,6 +82,100 @@ public class DefaultMessageSerializerTest {
         assertEquals(msg.getMessage(), deserializedMessage.getMessage());
     }
 
+    @Test
+    public void deserializersSharingDecryptorShouldDecryptMessagesOfTheirOwnType() throws Exception {
+        // Arrange
+        PGPDecryptor decryptor = new PGPDecryptor(ResourceUtils.getResourceAsBytes("pgp-example-private.key"), "example");
+        MessageDeserializer<TestMessage> first = new MessageDeserializer<>(TestMessage.class, decryptor, JsonSerializer.getInstance());
+        MessageDeserializer<String> second = new MessageDeserializer<>(String.class, decryptor, JsonSerializer.getInstance());
+        String encryptedBody = pgpSerializer.encrypt(pgpSerializer.serialize(new TestMessage("message in a bottle")));
+
+        // Act
+        TestMessage firstMessage = first.deserialize(first.decrypt(encryptedBody));
+        String secondMessage = second.decrypt(encryptedBody);
+
+        // Assert
+        assertEquals("message in a bottle", firstMessage.getMessage());
+        assertEquals("{\"message\":\"message in a bottle\"}", secondMessage);
+    }
+
+    @Test
+    public void messagesFromTheCompressionThresholdShouldBeCompressedAndReadBack() throws Exception {
+        // Arrange
+        DefaultMessageSerializer compressingSerializer = new DefaultMessageSerializer(MessageCodec.JSON, 100);
+        MessageDeserializer<TestMessage> deserializer = new MessageDeserializer<>(TestMessage.class, JsonSerializer.getInstance());
+        TestMessage msg = new TestMessage(largeText());
+
+        // Act
+        String serialized = compressingSerializer.serialize(msg);
+
+        // Assert
+        assertTrue(serialized.length() < plaintextSerializer.serialize(msg).length());
+        assertEquals(msg.getMessage(), deserializer.deserialize(serialized).getMessage());
+    }
+
+    @Test(expected = MessagingException.class)
+    public void compressedMessagesLargerThanTheMaximumShouldNotBeDecompressed() throws Exception {
+        // Arrange
+        DefaultMessageSerializer compressingSerializer = new DefaultMessageSerializer(MessageCodec.JSON, 100);
+        MessageDeserializer<TestMessage> deserializer = new MessageDeserializer<>(TestMessage.class, JsonSerializer.getInstance());
+        String serialized = compressingSerializer.serialize(new TestMessage(repeatedText(2 * 1024 * 1024)));
+
+        // Act
+        deserializer.deserialize(serialized);
+    }
+
+    @Test
+    public void compressedMessagesUpToTheConfiguredMaximumShouldBeDecompressed() throws Exception {
+        // Arrange
+        DefaultMessageSerializer compressingSerializer = new DefaultMessageSerializer(MessageCodec.JSON, 100);
+        MessageDeserializer<TestMessage> deserializer = new MessageDeserializer<>(
+            TestMessage.class,
+            null,
+            JsonSerializer.getInstance(),
+            null,
+            4 * 1024 * 1024
+        );
+        TestMessage msg = new TestMessage(repeatedText(2 * 1024 * 1024));
+
+        // Act
+        TestMessage deserialized = deserializer.deserialize(compressingSerializer.serialize(msg));
+
+        // Assert
+        assertEquals(msg.getMessage(), deserialized.getMessage());
+    }
+
+    @Test
+    public void messagesBelowTheCompressionThresholdShouldNotBeCompressed() throws Exception {
+        // Arrange
+        DefaultMessageSerializer compressingSerializer = new DefaultMessageSerializer(MessageCodec.JSON, 100);
+
+        // Act
+        String serialized = compressingSerializer.serialize(new TestMessage("message in a bottle"));
+
+        // Assert
+        assertEquals("{\"message\":\"message in a bottle\"}", serialized);
+    }
+
+    @Test
+    public void encryptedMessagesFromTheCompressionThresholdShouldBeCompressedAndDecrypted() throws Exception {
+        // Arrange
+        DefaultMessageSerializer compressingSerializer = new DefaultMessageSerializer(
+            ResourceUtils.getResourceAsBytes("pgp-example-public.key"),
+            MessageCodec.JSON,
+            100
+        );
+        TestMessage msg = new TestMessage(largeText());
+        String serialized = compressingSerializer.serialize(msg);
+
+        // Act
+        String encryptedBody = compressingSerializer.encrypt(serialized);
+
+        // Assert
+        assertTrue(encryptedBody.length() < pgpSerializer.encrypt(serialized).length());
+        assertEquals(msg.getMessage(), pgpDeserializer.deserialize(pgpDeserializer.decrypt(encryptedBody)).getMessage());
+    }
+
     @Test
     public void serializingMessageWithDateShouldFormatTheDateAccordingToRfc3339() throws Exception {
         // Arrange
@@ -95,6 +191,22 @@ public class DefaultMessageSerializerTest {
         assertEquals("2001-12-23T02:05:06.123+0000", dateFieldAsString);
     }
 
+    @Test
+    public void serializingMessagesOfDifferentTypesShouldUseTheSerializerOfEachType() throws Exception {
+        // Arrange
+        Instant testInstant = Instant.parse("2001-12-23T02:05:06.123Z");
+
+        // Act
+        String first = plaintextSerializer.serialize(new TestMessage("message in a bottle"));
+        String second = plaintextSerializer.serialize(new TestMessageWithInstant(testInstant));
+        String third = plaintextSerializer.serialize(new TestMessage("another message"));
+
+        // Assert
+        assertEquals("{\"message\":\"message in a bottle\"}", first);
+        assertEquals("{\"instant\":\"2001-12-23T02:05:06.123+0000\"}", second);
+        assertEquals("{\"message\":\"another message\"}", third);
+    }
+
     @Test
     public void serializingMessageWithInstantShouldFormatTheDateAccordingToRfc3339() throws Exception {
         // Arrange
@@ -108,4 +220,20 @@ public class DefaultMessageSerializerTest {
         String instantFieldAsString = new ObjectMapper().readTree(messageAsJson).get("instant").asText();
         assertEquals("2001-12-23T02:05:06.123+0000", instantFieldAsString);
     }
+
+    private static String largeText() {
+        StringBuilder text = new StringBuilder();
+        for (int line = 0; line < 200; line++) {
+            text.append("line ").append(line).append(": 2 x coffee, 1 x cinnamon bun\n");
+        }
+        return text.toString();
+    }
+
+    private static String repeatedText(int length) {
+        StringBuilder text = new StringBuilder(length);
+        while (text.length() < length) {
+            text.append('x');
+        }
+        return text.toString();
+    }
 }
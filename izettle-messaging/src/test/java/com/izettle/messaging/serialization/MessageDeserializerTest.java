@@ -2,7 +2,11 @@ package com.izettle.messaging.serialization;
 
 import static com.izettle.java.ResourceUtils.getResourceAsBytes;
 import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
 
+import com.amazonaws.services.sqs.model.Message;
+import com.amazonaws.services.sqs.model.MessageAttributeValue;
 import com.izettle.java.DateFormatCreator;
 import com.izettle.java.TimeZoneId;
 import com.izettle.java.UUIDFactory;
@@ -10,7 +14,10 @@ import com.izettle.messaging.TestMessage;
 import com.izettle.messaging.TestMessageWithDate;
 import com.izettle.messaging.TestMessageWithInstant;
 import com.izettle.messaging.TestMessageWithUUID;
+import com.izettle.messaging.payload.PayloadStore;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.time.format.DateTimeFormatter;
 import java.util.UUID;
 import org.junit.Before;
@@ -137,6 +144,118 @@ public class MessageDeserializerTest {
         assertEquals("MessageQueueProducer to SQS", msg.getMessage());
     }
 
+    @Test
+    public void shouldReadMessageWithANullSubjectInTheSNSEnvelope() throws Exception {
+        // Arrange
+        Message message = new Message().withBody("{\"Subject\":null,\"Message\":\"{\\\"message\\\":\\\"Null subject\\\"}\"}");
+
+        // Act
+        TestMessage msg = plaintextDeserializer.read(message);
+
+        // Assert
+        assertEquals("Null subject", msg.getMessage());
+    }
+
+    @Test
+    public void shouldNotRemoveSNSEnvelopeWithoutSubject() throws Exception {
+        String messageWithoutSubject = "{\"Message\":\"{}\"}";
+        String msg = messageDeserializer.removeSnsEnvelope(messageWithoutSubject);
+        assertEquals(messageWithoutSubject, msg);
+    }
+
+    @Test
+    public void shouldReadMessageWithTheCodecOfItsContentTypeAttribute() throws Exception {
+        // Arrange
+        String body = new DefaultMessageSerializer(MessageCodec.SMILE).serialize(new TestMessage("Smile to SQS"));
+        Message message = new Message()
+            .withBody(body)
+            .addMessageAttributesEntry(
+                MessageCodec.CONTENT_TYPE_ATTRIBUTE,
+                new MessageAttributeValue().withDataType("String").withStringValue(MessageCodec.SMILE.getContentType())
+            );
+
+        // Act
+        TestMessage msg = plaintextDeserializer.read(message);
+
+        // Assert
+        assertEquals("Smile to SQS", msg.getMessage());
+    }
+
+    @Test
+    public void shouldReadMessageWithTheCodecOfTheContentTypeAttributeInTheSNSEnvelope() throws Exception {
+        // Arrange
+        String body = new DefaultMessageSerializer(MessageCodec.SMILE).serialize(new TestMessage("Smile through SNS"));
+        Message message = new Message().withBody(
+            "{\"Type\":\"Notification\",\"Subject\":\"TestMessage\",\"Message\":\"" + body + "\","
+                + "\"MessageAttributes\":{\"ContentType\":"
+                + "{\"Type\":\"String\",\"Value\":\"" + MessageCodec.SMILE.getContentType() + "\"}}}"
+        );
+
+        // Act
+        TestMessage msg = plaintextDeserializer.read(message);
+
+        // Assert
+        assertEquals("Smile through SNS", msg.getMessage());
+    }
+
+    @Test
+    public void shouldReadMessageWithoutContentTypeAsJson() throws Exception {
+        // Act
+        TestMessage msg = plaintextDeserializer.read(new Message().withBody(messageSentThroughSQS));
+
+        // Assert
+        assertEquals("MessagePublisher to SQS", msg.getMessage());
+    }
+
+    @Test(expected = IOException.class)
+    public void shouldNotReadMessageWithUnsupportedContentType() throws Exception {
+        // Arrange
+        Message message = new Message()
+            .withBody(plaintextMessage)
+            .addMessageAttributesEntry(
+                MessageCodec.CONTENT_TYPE_ATTRIBUTE,
+                new MessageAttributeValue().withDataType("String").withStringValue("application/xml")
+            );
+
+        // Act
+        plaintextDeserializer.read(message);
+    }
+
+    @Test
+    public void shouldReadMessageBodyFromThePayloadStore() throws Exception {
+        // Arrange
+        PayloadStore payloadStore = mock(PayloadStore.class);
+        when(payloadStore.open("key")).thenReturn(
+            new ByteArrayInputStream("{\"message\":\"Stored payload\"}".getBytes(StandardCharsets.UTF_8))
+        );
+        MessageDeserializer<TestMessage> deserializer =
+            new MessageDeserializer<>(TestMessage.class, null, JsonSerializer.getInstance(), payloadStore);
+        Message message = new Message().withBody(
+            "{\"Type\":\"Notification\",\"Subject\":\"TestMessage\",\"Message\":\"key\","
+                + "\"MessageAttributes\":{\"StoredPayload\":{\"Type\":\"String\",\"Value\":\"key\"}}}"
+        );
+
+        // Act
+        TestMessage msg = deserializer.read(message);
+
+        // Assert
+        assertEquals("Stored payload", msg.getMessage());
+    }
+
+    @Test(expected = IOException.class)
+    public void shouldNotReadMessageBodyFromThePayloadStoreWithoutOne() throws Exception {
+        // Arrange
+        Message message = new Message()
+            .withBody("key")
+            .addMessageAttributesEntry(
+                PayloadStore.STORED_PAYLOAD_ATTRIBUTE,
+                new MessageAttributeValue().withDataType("String").withStringValue("key")
+            );
+
+        // Act
+        plaintextDeserializer.read(message);
+    }
+
     private static <T> MessageDeserializer<T> messageDeserializer(Class<T> clazz) {
         return new MessageDeserializer<>(clazz, JsonSerializer.getInstance());
     }